@@ -76,5 +76,5 @@ public @interface BPFFunction {
 
     boolean addDefinition() default true;
 
-    Set<String> autoAttachableSections = Set.of("fentry", "fexit", "kprobe", "kretprobe");
+    Set<String> autoAttachableSections = Set.of("fentry", "fexit", "kprobe", "kretprobe", "tp_btf");
 }
@@ -0,0 +1,68 @@
+package me.bechberger.ebpf.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Main class of the benchmark jar, runs JMH and writes the results as JSON by default,
+ * into {@code benchmarks-<git commit>.json}, so that runs of different commits can be compared
+ * <p>
+ * Accepts all JMH options and additionally {@code --no-kernel}, which only runs the benchmarks
+ * that don't load a BPF program and therefore don't require root privileges
+ */
+public class BenchmarkRunner {
+
+    /** Benchmarks that load a BPF program */
+    static final List<Class<?>> KERNEL_BENCHMARKS = List.of(MapAccessBenchmark.class,
+            GlobalVariableBenchmark.class, RingBufferBenchmark.class);
+
+    static final String NO_KERNEL_OPTION = "--no-kernel";
+
+    public static void main(String[] args) throws Exception {
+        boolean noKernel = Arrays.asList(args).contains(NO_KERNEL_OPTION);
+        String[] jmhArgs = Arrays.stream(args).filter(a -> !a.equals(NO_KERNEL_OPTION)).toArray(String[]::new);
+        var cmdOptions = new CommandLineOptions(jmhArgs);
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListWithParams() ||
+                cmdOptions.shouldListProfilers() || cmdOptions.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(jmhArgs);
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+        if (!cmdOptions.getResultFormat().hasValue()) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!cmdOptions.getResult().hasValue()) {
+            builder.result("benchmarks-" + gitCommit() + ".json");
+        }
+        if (noKernel) {
+            for (var benchmark : KERNEL_BENCHMARKS) {
+                builder.exclude(benchmark.getName());
+            }
+        }
+        new Runner(builder.build()).run();
+    }
+
+    /** Short hash of the current commit or {@code unknown} if it can't be obtained */
+    static String gitCommit() {
+        try {
+            var process = new ProcessBuilder("git", "rev-parse", "--short", "HEAD")
+                    .redirectErrorStream(true).start();
+            var output = new String(process.getInputStream().readAllBytes()).strip();
+            if (process.waitFor() == 0 && !output.isEmpty()) {
+                return output;
+            }
+        } catch (IOException e) {
+            // no git available
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,52 @@
+package me.bechberger.ebpf.benchmarks;
+
+import me.bechberger.ebpf.shared.PanamaUtil.HandlerWithErrno;
+import me.bechberger.ebpf.shared.PanamaUtil.IntHandlerWithErrno;
+import me.bechberger.ebpf.shared.PanamaUtil.ResultAndErr;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * Compares the generic {@link HandlerWithErrno}, which boxes the arguments and uses
+ * {@code invokeWithArguments}, with the exact-typed {@link IntHandlerWithErrno}
+ * <p>
+ * Calls libc's {@code abs}, so it doesn't require root privileges
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class DowncallBenchmark {
+
+    private static final HandlerWithErrno<Integer> GENERIC_ABS =
+            new HandlerWithErrno<>("abs", FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+
+    private static final IntHandlerWithErrno TYPED_ABS = new IntHandlerWithErrno("abs");
+
+    private int value = -1;
+
+    private int nextValue() {
+        return value = -((value & 0xffff) + 1);
+    }
+
+    @Benchmark
+    public ResultAndErr<Integer> generic() {
+        return GENERIC_ABS.call(nextValue());
+    }
+
+    @Benchmark
+    public ResultAndErr<Integer> typedWithErrno() {
+        return TYPED_ABS.callWithErrno(nextValue());
+    }
+
+    @Benchmark
+    public int typed() {
+        return TYPED_ABS.call(nextValue());
+    }
+}
@@ -0,0 +1,55 @@
+package me.bechberger.ebpf.benchmarks;
+
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Access to {@link GlobalVariable}s from Java
+ * <p>
+ * Requires root privileges, as it loads a BPF program
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class GlobalVariableBenchmark {
+
+    @BPF(license = "GPL")
+    public static abstract class Program extends BPFProgram {
+        final GlobalVariable<Long> counter = new GlobalVariable<>(0L);
+    }
+
+    private Program program;
+    private long value = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        program = BPFProgram.load(Program.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        program.close();
+    }
+
+    @Benchmark
+    public Long get() {
+        return program.counter.get();
+    }
+
+    @Benchmark
+    public void set() {
+        program.counter.set(value++);
+    }
+
+    @Benchmark
+    public Long getAndAdd() {
+        return program.counter.getAndAdd(1L);
+    }
+}
@@ -0,0 +1,109 @@
+package me.bechberger.ebpf.benchmarks;
+
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the allocating {@link BPFHashMap} access path with the one that reuses per-thread buffers
+ * and with the primitive access methods, as well as {@link BPFArray} access and map iteration
+ * <p>
+ * Requires root privileges, as it loads a BPF program
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class MapAccessBenchmark {
+
+    static final int ENTRIES = 1024;
+
+    @BPF(license = "GPL")
+    public static abstract class Program extends BPFProgram {
+        @BPFMapDefinition(maxEntries = ENTRIES)
+        BPFHashMap<@Unsigned Integer, @Unsigned Long> map;
+
+        @BPFMapDefinition(maxEntries = ENTRIES)
+        BPFArray<@Unsigned Long> array;
+    }
+
+    /** Use the per-thread scratch buffers instead of a new arena per call */
+    @Param({"false", "true"})
+    boolean reuseBuffers;
+
+    private Program program;
+    private int key = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        program = BPFProgram.load(Program.class);
+        program.map.reuseBuffers(reuseBuffers);
+        program.array.reuseBuffers(reuseBuffers);
+        for (int i = 0; i < ENTRIES; i++) {
+            program.map.put(i, (long) i);
+            program.array.set(i, (long) i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        program.close();
+    }
+
+    private int nextKey() {
+        key = (key + 1) & (ENTRIES - 1);
+        return key;
+    }
+
+    @Benchmark
+    public Long get() {
+        return program.map.get(nextKey());
+    }
+
+    @Benchmark
+    public boolean put() {
+        int k = nextKey();
+        return program.map.put(k, (long) k);
+    }
+
+    @Benchmark
+    public long getLong() {
+        return program.map.getLong(nextKey(), -1);
+    }
+
+    @Benchmark
+    public boolean putLong() {
+        int k = nextKey();
+        return program.map.putLong(k, k);
+    }
+
+    /** Time per entry */
+    @Benchmark
+    @OperationsPerInvocation(ENTRIES)
+    public long iterate() {
+        long sum = 0;
+        for (var entry : program.map) {
+            sum += entry.getValue();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public Long arrayGet() {
+        return program.array.get(nextKey());
+    }
+
+    @Benchmark
+    public void arraySet() {
+        int k = nextKey();
+        program.array.set(k, (long) k);
+    }
+}
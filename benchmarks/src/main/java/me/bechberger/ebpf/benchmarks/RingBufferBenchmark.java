@@ -0,0 +1,125 @@
+package me.bechberger.ebpf.benchmarks;
+
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link BPFRingBuffer} events from the eBPF program to the Java callback,
+ * comparing parsed events with raw callbacks that read a single field
+ * <p>
+ * Every invocation opens a file, the eBPF program then submits {@link #EVENTS_PER_TRIGGER} events,
+ * so the result is the time per event including the amortized trigger
+ * <p>
+ * Requires root privileges, as it loads a BPF program
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class RingBufferBenchmark {
+
+    /** Has to match the loop bound in the eBPF program */
+    static final int EVENTS_PER_TRIGGER = 64;
+
+    @BPF(license = "GPL")
+    public static abstract class Program extends BPFProgram {
+
+        @Type(name = "event")
+        record Event(@Unsigned int pid, @Unsigned long seq, @Unsigned long timestamp) {}
+
+        @BPFMapDefinition(maxEntries = 1024 * 1024)
+        BPFRingBuffer<Event> events;
+
+        /** process id of the benchmark, only its openat calls produce events */
+        @BPFMapDefinition(maxEntries = 1)
+        BPFArray<@Unsigned Integer> target;
+
+        static final String EBPF_PROGRAM = """
+            #include "vmlinux.h"
+            #include <bpf/bpf_helpers.h>
+
+            SEC ("kprobe/do_sys_openat2")
+                 int kprobe__do_sys_openat2 (struct pt_regs *ctx)
+            {
+              u32 zero = 0;
+              u32 pid = bpf_get_current_pid_tgid() >> 32;
+              u32 *target_pid = bpf_map_lookup_elem(&target, &zero);
+              if (!target_pid || *target_pid != pid) {
+                return 0;
+              }
+              for (int i = 0; i < 64; i++) {
+                struct event *evt = bpf_ringbuf_reserve(&events, sizeof(struct event), 0);
+                if (!evt) {
+                  return 0;
+                }
+                evt->pid = pid;
+                evt->seq = i;
+                evt->timestamp = bpf_ktime_get_ns();
+                bpf_ringbuf_submit(evt, 0);
+              }
+              return 0;
+            }
+
+            char _license[] SEC ("license") = "GPL";
+            """;
+    }
+
+    /** Use a raw callback that only reads the sequence number instead of parsing every event */
+    @Param({"false", "true"})
+    boolean raw;
+
+    private Program program;
+    private Path file;
+    private int received = 0;
+    private long seqSum = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        program = BPFProgram.load(Program.class);
+        program.target.set(0, (int) ProcessHandle.current().pid());
+        if (raw) {
+            var seq = program.events.<Long>field("seq");
+            program.events.setRawCallback((_, event) -> {
+                seqSum += seq.getLong(event);
+                received++;
+            });
+        } else {
+            program.events.setCallback(event -> {
+                seqSum += event.seq();
+                received++;
+            });
+        }
+        program.autoAttachProgram(program.getProgramByName("kprobe__do_sys_openat2"));
+        file = Files.createTempFile("ring-buffer-benchmark", ".txt");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        program.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(EVENTS_PER_TRIGGER)
+    public long consume() throws IOException {
+        received = 0;
+        Files.newByteChannel(file).close();
+        while (received < EVENTS_PER_TRIGGER) {
+            program.events.pollAndThrow(100);
+        }
+        return seqSum;
+    }
+}
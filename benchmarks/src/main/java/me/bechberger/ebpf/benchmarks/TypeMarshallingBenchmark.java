@@ -0,0 +1,68 @@
+package me.bechberger.ebpf.benchmarks;
+
+import me.bechberger.ebpf.annotations.Size;
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.type.BPFType.BPFStructType;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing and writing nested {@link Type} records, as done for every map value and ring buffer event
+ * <p>
+ * Doesn't load the program, so it doesn't require root privileges
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--enable-native-access=ALL-UNNAMED")
+public class TypeMarshallingBenchmark {
+
+    @BPF(license = "GPL")
+    public static abstract class Program extends BPFProgram {
+
+        @Type
+        record Task(@Unsigned int pid, @Unsigned int cpu, @Size(16) String comm) {}
+
+        @Type
+        record Switch(Task prev, Task next, @Unsigned long timestamp, long runtime) {}
+    }
+
+    private BPFStructType<Program.Switch> type;
+    private Arena arena;
+    private MemorySegment segment;
+    private Program.Switch event;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        type = BPFProgram.getStructTypeForClass(Program.class, Program.Switch.class);
+        arena = Arena.ofConfined();
+        segment = arena.allocate(type.size(), 8);
+        event = new Program.Switch(new Program.Task(1, 2, "java"), new Program.Task(3, 4, "kworker/0:1"),
+                1234567890L, 42L);
+        type.setMemory(segment, event);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        arena.close();
+    }
+
+    @Benchmark
+    public Program.Switch parseMemory() {
+        return type.parseMemory(segment);
+    }
+
+    @Benchmark
+    public MemorySegment setMemory() {
+        type.setMemory(segment, event);
+        return segment;
+    }
+}
@@ -98,13 +98,21 @@ public class Processor extends AbstractProcessor {
         TypeSpec typeSpec = createType(implName.className, typeElement.asType(), bytes,
                 typeProcessorResult.fields(), combinedCode, typeProcessorResult.globalVariableDefinitions(),
                 typeProcessorResult.additions());
+        writeSourceFile(typeElement, implName.packageName, typeSpec);
+        for (var view : typeProcessorResult.views()) {
+            writeSourceFile(typeElement, implName.packageName, view);
+        }
+    }
+
+    private void writeSourceFile(TypeElement originatingElement, String packageName, TypeSpec typeSpec) {
         try {
-            var file = processingEnv.getFiler().createSourceFile(implName.fullyQualifiedClassName, typeElement);
+            var file = processingEnv.getFiler().createSourceFile(
+                    packageName.isEmpty() ? typeSpec.name : packageName + "." + typeSpec.name, originatingElement);
             // delete file if it exists
             if (Files.exists(Path.of(file.toUri()))) {
                 Files.delete(Path.of(file.toUri()));
             }
-            JavaFile javaFile = JavaFile.builder(implName.packageName, typeSpec).build();
+            JavaFile javaFile = JavaFile.builder(packageName, typeSpec).build();
             try (var writer = file.openWriter()) {
                 writer.write(javaFile.toString());
             }
@@ -117,14 +125,27 @@ public class Processor extends AbstractProcessor {
 
     /** Creates the name of the implementing class */
     private static ImplName classNameToImplName(String packageName, String className) {
+        return classNameToGeneratedName(packageName, className, "Impl");
+    }
+
+    /** Creates the name of a generated top-level class, flattening nested class names */
+    private static ImplName classNameToGeneratedName(String packageName, String className, String suffix) {
         if (packageName.isEmpty()) {
-            return new ImplName(className + "Impl", className + "Impl", packageName);
+            return new ImplName(className + suffix, className + suffix, packageName);
         }
-        var simpleName = className.replace(".", "$") + "Impl";
+        var simpleName = className.replace(".", "$") + suffix;
         return new ImplName(simpleName, packageName + "." + simpleName, packageName);
     }
 
-    private static ImplName typeToImplName(TypeElement type) {
+    static ImplName typeToImplName(TypeElement type) {
+        return typeToGeneratedName(type, "Impl");
+    }
+
+    /**
+     * Name of a generated top-level class for the passed type, e.g. {@code Outer$InnerView}
+     * for the suffix {@code View}
+     */
+    static ImplName typeToGeneratedName(TypeElement type, String suffix) {
         // problem type might be nested
         List<String> classNameParts = new ArrayList<>();
         var t = type;
@@ -136,8 +157,8 @@ public class Processor extends AbstractProcessor {
             }
         }
         String qualifiedName = t.getQualifiedName().toString();
-        return classNameToImplName(qualifiedName.substring(0, qualifiedName.length() - t.getSimpleName().length() - 1),
-                String.join(".", classNameParts));
+        return classNameToGeneratedName(qualifiedName.substring(0, qualifiedName.length() - t.getSimpleName().length() - 1),
+                String.join(".", classNameParts), suffix);
     }
 
     public static ImplName classToImplName(Class<?> klass) {
@@ -0,0 +1,147 @@
+package me.bechberger.ebpf.bpf.processor;
+
+import com.squareup.javapoet.*;
+import me.bechberger.ebpf.type.BPFType;
+import me.bechberger.ebpf.type.BPFType.BPFStructType;
+import me.bechberger.ebpf.type.StructView;
+import org.jetbrains.annotations.Nullable;
+
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import java.lang.foreign.MemorySegment;
+import java.util.Map;
+
+/**
+ * Generates the {@link StructView} subclass of a {@code @Type} annotated struct
+ * <p>
+ * Integer, bool and floating point members are read and written directly at their offsets,
+ * struct members that have a view themselves are returned as views of the sub-segment,
+ * and all other members are parsed and stored via their {@link BPFType}.
+ */
+class StructViewGenerator {
+
+    private static final String BOX_HELPER = "me.bechberger.ebpf.type.BoxHelper";
+
+    private final TypeElement typeElement;
+    private final BPFStructType<?> type;
+    private final ClassName viewName;
+    private final CodeBlock specField;
+    /** view classes of the other structs of the program, by their BPF name */
+    private final Map<String, ClassName> viewsByBPFName;
+
+    /**
+     * @param typeElement    the annotated class
+     * @param type           struct type of the class
+     * @param viewName       name of the generated view
+     * @param specField      expression that references the spec field of the type in the implementation class
+     * @param viewsByBPFName views of the other structs, used for struct members
+     */
+    StructViewGenerator(TypeElement typeElement, BPFStructType<?> type, ClassName viewName, CodeBlock specField,
+                        Map<String, ClassName> viewsByBPFName) {
+        this.typeElement = typeElement;
+        this.type = type;
+        this.viewName = viewName;
+        this.specField = specField;
+        this.viewsByBPFName = viewsByBPFName;
+    }
+
+    /** Only structs without inline unions get a view */
+    static boolean supportsView(BPFType<?> type) {
+        return type instanceof BPFStructType<?> structType &&
+                structType.members().stream().noneMatch(m -> m.type() instanceof BPFType.BPFInlineUnionType<?>);
+    }
+
+    private @Nullable VariableElement field(String name) {
+        return typeElement.getEnclosedElements().stream()
+                .filter(e -> e.getKind() == ElementKind.FIELD && !e.getModifiers().contains(Modifier.STATIC))
+                .map(e -> (VariableElement) e)
+                .filter(e -> e.getSimpleName().contentEquals(name)).findFirst().orElse(null);
+    }
+
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static TypeName rawType(TypeName typeName) {
+        if (typeName instanceof ParameterizedTypeName parameterized) {
+            return parameterized.rawType;
+        }
+        if (typeName instanceof TypeVariableName || typeName instanceof WildcardTypeName) {
+            return TypeName.OBJECT;
+        }
+        return typeName;
+    }
+
+    TypeSpec generate() {
+        TypeName structClass = ClassName.get(typeElement);
+        var spec = TypeSpec.classBuilder(viewName)
+                .addJavadoc("View of {@link $T}, generated by the annotation processor\n", rawType(structClass))
+                .addAnnotation(AnnotationSpec.builder(SuppressWarnings.class)
+                        .addMember("value", "{\"unchecked\", \"rawtypes\"}").build())
+                .addModifiers(Modifier.PUBLIC, Modifier.FINAL)
+                .superclass(ParameterizedTypeName.get(ClassName.get(StructView.class), structClass))
+                .addField(FieldSpec.builder(long.class, "SIZE", Modifier.PUBLIC, Modifier.STATIC, Modifier.FINAL)
+                        .addJavadoc("Size of the struct in bytes\n")
+                        .initializer("$LL", type.size()).build())
+                .addMethod(MethodSpec.constructorBuilder().addModifiers(Modifier.PUBLIC)
+                        .addParameter(MemorySegment.class, "segment")
+                        .addStatement("super(segment)").build())
+                .addMethod(MethodSpec.methodBuilder("structType").addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC)
+                        .returns(ParameterizedTypeName.get(ClassName.get(BPFStructType.class), structClass))
+                        .addStatement("return $L", specField).build())
+                .addMethod(MethodSpec.methodBuilder("wrap").addAnnotation(Override.class)
+                        .addModifiers(Modifier.PUBLIC).returns(viewName)
+                        .addParameter(MemorySegment.class, "segment")
+                        .addStatement("super.wrap(segment)")
+                        .addStatement("return this").build());
+        var members = type.members();
+        for (int i = 0; i < members.size(); i++) {
+            var member = members.get(i);
+            var field = field(member.name());
+            if (field == null) {
+                continue;
+            }
+            addAccessors(spec, member, i, TypeName.get(field.asType()));
+        }
+        return spec.build();
+    }
+
+    private void addAccessors(TypeSpec.Builder spec, BPFType.BPFStructMember<?, ?> member, int index,
+                              TypeName javaType) {
+        String offset = member.offset() + "L";
+        String suffix = capitalize(member.name());
+        var getter = MethodSpec.methodBuilder("get" + suffix).addModifiers(Modifier.PUBLIC);
+        var setter = MethodSpec.methodBuilder("set" + suffix).addModifiers(Modifier.PUBLIC)
+                .addParameter(javaType, "value");
+        var layout = BPFStructType.primitiveLayout(member.type());
+        var memberView = member.type() instanceof BPFStructType<?> structType ?
+                viewsByBPFName.get(structType.bpfName()) : null;
+        if (layout != null && BPFStructType.isBool(member.type())) {
+            getter.returns(javaType)
+                    .addStatement("return segment.get(java.lang.foreign.ValueLayout.JAVA_BYTE, $L) == 1", offset);
+            setter.addStatement("segment.set(java.lang.foreign.ValueLayout.JAVA_BYTE, $L, value ? (byte) 1 : " +
+                    "(byte) 0)", offset);
+        } else if (layout != null) {
+            String layoutExpr = BPFStructType.unalignedLayoutExpression(layout);
+            getter.returns(javaType).addStatement("return ($T) segment.get($L, $L)", javaType, layoutExpr, offset);
+            setter.addStatement("segment.set($L, $L, ($L) value)", layoutExpr, offset, layout.carrier().getName());
+        } else {
+            String memberType = "structType().members().get(" + index + ").type()";
+            if (memberView != null) {
+                getter.addJavadoc("View of the member, without copying it\n")
+                        .returns(memberView)
+                        .addStatement("return new $T(segment.asSlice($L, $T.SIZE))", memberView, offset, memberView);
+            } else {
+                getter.returns(javaType)
+                        .addStatement("return ($T) $L.unbox($T.parseMember($L, segment, $L), $T.class)", javaType,
+                                BOX_HELPER, BPFStructType.class, memberType, offset, rawType(javaType));
+            }
+            setter.addStatement("$T.setMember($L, segment, $L, value)", BPFStructType.class, memberType, offset);
+        }
+        spec.addMethod(getter.build());
+        spec.addMethod(setter.build());
+    }
+}
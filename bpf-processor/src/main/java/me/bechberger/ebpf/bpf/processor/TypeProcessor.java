@@ -1,6 +1,9 @@
 package me.bechberger.ebpf.bpf.processor;
 
+import com.squareup.javapoet.ClassName;
+import com.squareup.javapoet.CodeBlock;
 import com.squareup.javapoet.FieldSpec;
+import com.squareup.javapoet.TypeSpec;
 import com.sun.tools.javac.code.Attribute.Constant;
 import com.sun.tools.javac.code.Type.ClassType;
 import com.sun.tools.javac.tree.JCTree.JCNewClass;
@@ -200,9 +203,13 @@ public class TypeProcessor {
         }).toList();
     }
 
+    /**
+     * @param views generated {@link StructView} classes, in the package of the processed class
+     */
     public record TypeProcessorResult(List<FieldSpec> fields, List<Define> defines, List<CAST.Statement> definingStatements,
                                @Nullable Statement licenseDefinition, List<MapDefinition> mapDefinitions,
-                               List<GlobalVariableDefinition> globalVariableDefinitions, InterfaceAdditions additions) {
+                               List<GlobalVariableDefinition> globalVariableDefinitions, InterfaceAdditions additions,
+                               List<TypeSpec> views) {
     }
 
     boolean shouldGenerateCCode(TypeElement innerElement) {
@@ -246,7 +253,7 @@ public class TypeProcessor {
             var type = processBPFTypeRecord(unprocessed.getFirst());
             if (type.isEmpty()) {
                 return new TypeProcessorResult(List.of(), List.of(), List.of(), null, List.of(), createGlobalVariableDefinitions(outerTypeElement, typeToSpecField),
-                        new InterfaceAdditions(List.of(), List.of(), List.of()));
+                        new InterfaceAdditions(List.of(), List.of(), List.of()), List.of());
             }
             alreadyDefinedTypes.put(type.get().getJavaName(), type.get());
             processedTypes.add(unprocessed.getFirst());
@@ -258,6 +265,10 @@ public class TypeProcessor {
 
         List<FieldSpec> fields = new ArrayList<>();
         List<CAST.Statement> definingStatements = new ArrayList<>();
+        List<TypeSpec> views = new ArrayList<>();
+        var viewNames = getViewNames(outerTypeElement);
+        Map<String, ClassName> viewsByBPFName = new HashMap<>();
+        viewNames.forEach((element, viewName) -> viewsByBPFName.put(getTypeRecordBpfName(element).name(), viewName));
 
         // add custom type definitions
         usedCustomBPFTypes.stream().map(CustomBPFType::toCDeclaration)
@@ -274,6 +285,15 @@ public class TypeProcessor {
             var actualType = ((TypeBackedBPFTypeLike<?>) type).type;
             var spec = actualType.toFieldSpecGenerator().get().apply(fieldSpecName,
                     t -> t.toJavaFieldSpecUse(t2 -> typeToSpecField.apply(BPFTypeLike.of(t2)).name()));
+            var viewName = viewNames.get(processedType);
+            if (viewName != null) {
+                var implName = Processor.typeToImplName(outerTypeElement);
+                views.add(new StructViewGenerator(processedType, (BPFStructType<?>) actualType, viewName,
+                        CodeBlock.of("$T.$L", ClassName.get(implName.packageName(), implName.className()),
+                                fieldSpecName), viewsByBPFName).generate());
+                spec = FieldSpec.builder(spec.type, spec.name, spec.modifiers.toArray(Modifier[]::new))
+                        .initializer("$L.withView($T::new)", spec.initializer, viewName).build();
+            }
             fields.add(spec);
             if (shouldGenerateCCode(processedType)) {
                 actualType.toCDeclarationStatement().ifPresent(definingStatements::add);
@@ -286,7 +306,30 @@ public class TypeProcessor {
         return new TypeProcessorResult(fields, createDefineStatements(outerTypeElement), definingStatements,
                 getLicenseDefinitionStatement(outerTypeElement), mapDefinitions,
                 createGlobalVariableDefinitions(outerTypeElement, typeToSpecField),
-                additions);
+                additions, views);
+    }
+
+    /**
+     * Names of the {@link StructView}s to generate, only for structs declared in the program class,
+     * as types declared elsewhere might be used by multiple programs
+     */
+    private Map<TypeElement, ClassName> getViewNames(TypeElement outerTypeElement) {
+        Map<TypeElement, ClassName> viewNames = new LinkedHashMap<>();
+        if (outerTypeElement.getKind() != ElementKind.CLASS) {
+            return viewNames;
+        }
+        var innerTypes = getInnerBPFTypeElements(outerTypeElement);
+        for (var processedType : processedTypes) {
+            if (!innerTypes.contains(processedType) || isCustomTypeAnnotatedRecord(processedType)) {
+                continue;
+            }
+            var type = alreadyDefinedTypes.get(new JavaName(processedType));
+            if (type instanceof TypeBackedBPFTypeLike<?> typeBacked && StructViewGenerator.supportsView(typeBacked.type)) {
+                var viewName = Processor.typeToGeneratedName(processedType, "View");
+                viewNames.put(processedType, ClassName.get(viewName.packageName(), viewName.className()));
+            }
+        }
+        return viewNames;
     }
 
     public record GlobalVariableDefinition(Statement globalVariable, String name, String typeField, String initializer) {}
@@ -739,6 +739,17 @@ public sealed interface BPFType<T> {
         private final SourceClassKind sourceClassKind;
         private final boolean typedefed;
 
+        /**
+         * Specialized parser and setter, generated by the annotation processor, null if the generic ones are used
+         */
+        private @Nullable MemoryParser<T> generatedParser;
+        private @Nullable MemorySetter<T> generatedSetter;
+
+        /**
+         * Creates the generated {@link StructView} of this type, null if there is none
+         */
+        private @Nullable Function<MemorySegment, ? extends StructView<T>> viewFactory;
+
         /**
          * Create a new struct type with manually set layout,
          * consider using {@link #autoLayout(String, List, AnnotatedClass, Function)}
@@ -870,8 +881,84 @@ public sealed interface BPFType<T> {
             return layout.byteSize();
         }
 
+        /**
+         * Create a copy of this type that uses the passed parser and setter
+         * <p>
+         * Used by the code generated for {@code @Type} annotated classes, the generated code reads and writes
+         * the members directly at their offsets, without an intermediate list and without boxing primitives
+         */
+        public BPFStructType<T> withAccessors(MemoryParser<T> parser, MemorySetter<T> setter) {
+            var type = copy();
+            type.generatedParser = parser;
+            type.generatedSetter = setter;
+            return type;
+        }
+
+        /**
+         * Create a copy of this type that creates views with the passed factory,
+         * used by the code generated for {@code @Type} annotated classes
+         */
+        public BPFStructType<T> withView(Function<MemorySegment, ? extends StructView<T>> viewFactory) {
+            var type = copy();
+            type.viewFactory = viewFactory;
+            return type;
+        }
+
+        private BPFStructType<T> copy() {
+            var type = new BPFStructType<>(bpfName, members, javaClass, constructor, sourceClassKind, typedefed);
+            type.generatedParser = generatedParser;
+            type.generatedSetter = generatedSetter;
+            type.viewFactory = viewFactory;
+            return type;
+        }
+
+        /**
+         * Is there a generated {@link StructView} for this type?
+         */
+        public boolean hasView() {
+            return viewFactory != null;
+        }
+
+        /**
+         * Create a view of the struct in the passed segment
+         *
+         * @throws UnsupportedOperationException if there is no generated view for this type
+         */
+        public StructView<T> createView(MemorySegment segment) {
+            if (viewFactory == null) {
+                throw new UnsupportedOperationException("No view generated for " + bpfName);
+            }
+            return viewFactory.apply(segment);
+        }
+
+        /**
+         * Does this type use a generated parser and setter?
+         */
+        public boolean hasGeneratedAccessors() {
+            return generatedParser != null;
+        }
+
+        /**
+         * Parse the member of the passed type at the offset, used by the generated parsers
+         */
+        @SuppressWarnings("unchecked")
+        public static <M> M parseMember(BPFType<?> type, MemorySegment segment, long offset) {
+            return (M) type.parseMemory(segment.asSlice(offset));
+        }
+
+        /**
+         * Store the member of the passed type at the offset, used by the generated setters
+         */
+        @SuppressWarnings("unchecked")
+        public static void setMember(BPFType<?> type, MemorySegment segment, long offset, Object value) {
+            ((BPFType<Object>) type).setMemory(segment.asSlice(offset), box(value));
+        }
+
         @Override
         public MemoryParser<T> parser() {
+            if (generatedParser != null) {
+                return generatedParser;
+            }
             return segment -> {
                 List<Object> args =
                         members.stream().map(member -> (Object) member.type.parseMemory(segment.asSlice(member.offset))).toList();
@@ -882,6 +969,9 @@ public sealed interface BPFType<T> {
         @SuppressWarnings("unchecked")
         @Override
         public MemorySetter<T> setter() {
+            if (generatedSetter != null) {
+                return generatedSetter;
+            }
             return (segment, obj) -> {
                 for (BPFStructMember<T, ?> member : members) {
                     var arr = box(member.getter.apply(obj));
@@ -1034,14 +1124,112 @@ public sealed interface BPFType<T> {
 
                 return FieldSpec.builder(fieldType, fieldName).addModifiers(Modifier.FINAL, Modifier.STATIC)
                         .initializer("$T.autoLayout($S, java.util.List.of($L), new $T.AnnotatedClass($T" + ".class, " +
-                                        "java.util.List" + ".of()" + "), " + "fields -> $L, $L, $L)", bpfStructType,
+                                        "java.util.List" + ".of()" + "), " + "fields -> $L, $L, $L)$L", bpfStructType,
                                 bpfName,
                                 memberExpression, bpfType, ClassName.get("", className), constructorExpr,
                                 SourceClassKind.class.getName().replace('$', '.') + "." + sourceClassKind,
-                                typedefed).build();
+                                typedefed, generatedAccessorsExpression(className, typeToSpecName)).build();
             });
         }
 
+        /**
+         * Layout of members that can be read and written directly, null for all other members
+         */
+        public static @Nullable ValueLayout primitiveLayout(BPFType<?> type) {
+            if (type instanceof BPFInternalTypedef<?> typedef) {
+                return primitiveLayout(typedef.wrapped());
+            }
+            if (type instanceof BPFIntType<?> intType && intType.layout() instanceof ValueLayout layout) {
+                return layout;
+            }
+            return null;
+        }
+
+        /**
+         * Java expression of the unaligned variant of the passed primitive layout
+         */
+        public static String unalignedLayoutExpression(ValueLayout layout) {
+            String name;
+            if (layout.carrier() == byte.class) {
+                name = "JAVA_BYTE";
+            } else if (layout.carrier() == short.class) {
+                name = "JAVA_SHORT_UNALIGNED";
+            } else if (layout.carrier() == int.class) {
+                name = "JAVA_INT_UNALIGNED";
+            } else if (layout.carrier() == long.class) {
+                name = "JAVA_LONG_UNALIGNED";
+            } else if (layout.carrier() == float.class) {
+                name = "JAVA_FLOAT_UNALIGNED";
+            } else if (layout.carrier() == double.class) {
+                name = "JAVA_DOUBLE_UNALIGNED";
+            } else {
+                throw new IllegalArgumentException("Unsupported layout " + layout);
+            }
+            return "java.lang.foreign.ValueLayout." + name;
+        }
+
+        /**
+         * Is the passed type a {@code bool}, these are stored as a single byte
+         */
+        public static boolean isBool(BPFType<?> type) {
+            if (type instanceof BPFInternalTypedef<?> typedef) {
+                return isBool(typedef.wrapped());
+            }
+            return type == BPFIntType.BOOL;
+        }
+
+        /**
+         * Java code that calls {@link #withAccessors(MemoryParser, MemorySetter)} with a parser and setter
+         * that access every member directly at its offset
+         *
+         * @return the code or an empty string for structs with inline unions, these use the generic accessors
+         */
+        private String generatedAccessorsExpression(String className, Function<BPFType<?>, String> typeToSpecName) {
+            if (members.stream().anyMatch(m -> m.type instanceof BPFInlineUnionType<?>)) {
+                return "";
+            }
+            List<String> parsed = new ArrayList<>();
+            List<String> stores = new ArrayList<>();
+            for (var member : members) {
+                String offset = member.offset + "L";
+                String getter = switch (sourceClassKind) {
+                    case RECORD -> "o." + member.name + "()";
+                    case CLASS, CLASS_WITH_CONSTRUCTOR -> "o." + member.name;
+                };
+                var layout = primitiveLayout(member.type);
+                if (layout != null && isBool(member.type)) {
+                    parsed.add("(segment.get(java.lang.foreign.ValueLayout.JAVA_BYTE, " + offset + ") == 1)");
+                    stores.add("segment.set(java.lang.foreign.ValueLayout.JAVA_BYTE, " + offset + ", " + getter +
+                            " ? (byte) 1 : (byte) 0);");
+                } else if (layout != null) {
+                    String layoutExpr = unalignedLayoutExpression(layout);
+                    parsed.add("segment.get(" + layoutExpr + ", " + offset + ")");
+                    stores.add("segment.set(" + layoutExpr + ", " + offset + ", " + getter + ");");
+                } else {
+                    String spec = typeToSpecName.apply(member.type);
+                    String javaType = member.type.toJavaUse();
+                    parsed.add("(" + javaType + ")me.bechberger.ebpf.type.BoxHelper.unbox(" + BPF_TYPE +
+                            ".BPFStructType.parseMember(" + spec + ", segment, " + offset + "), " + javaType + ".class)");
+                    stores.add(BPF_TYPE + ".BPFStructType.setMember(" + spec + ", segment, " + offset + ", " +
+                            getter + ");");
+                }
+            }
+            String parser = switch (sourceClassKind) {
+                case RECORD, CLASS_WITH_CONSTRUCTOR -> "segment -> new " + className + "(" +
+                        String.join(", ", parsed) + ")";
+                case CLASS -> {
+                    StringBuilder builder = new StringBuilder("segment -> { var o = new " + className + "(); ");
+                    for (int i = 0; i < members.size(); i++) {
+                        builder.append("o.").append(members.get(i).name).append(" = ").append(parsed.get(i))
+                                .append("; ");
+                    }
+                    yield builder.append("return o; }").toString();
+                }
+            };
+            String setter = "(segment, o) -> { " + String.join(" ", stores) + " }";
+            return ".withAccessors(" + parser + ", " + setter + ")";
+        }
+
         @Override
         public String toJavaUse() {
             return javaClass.klass;
@@ -1130,6 +1318,79 @@ public sealed interface BPFType<T> {
         }
     }
 
+    /**
+     * Value of a per-CPU map as seen from user space, one element per possible CPU, mapped to an unmodifiable
+     * {@link List} in Java
+     * <p>
+     * eBPF programs only see the element of the current CPU, so the C type is the element type.
+     *
+     * @param elementType   type of the value of a single CPU
+     * @param numCpus       number of possible CPUs
+     * @param elementStride distance between the elements of two CPUs, the kernel rounds the value size up to 8 bytes
+     */
+    record BPFPerCpuType<E>(BPFType<E> elementType, int numCpus, long elementStride) implements BPFType<List<E>> {
+
+        @Override
+        public String bpfName() {
+            return elementType.bpfName();
+        }
+
+        @Override
+        public MemoryLayout layout() {
+            return MemoryLayout.sequenceLayout(numCpus, MemoryLayout.paddingLayout(elementStride));
+        }
+
+        @Override
+        public MemoryParser<List<E>> parser() {
+            return segment -> {
+                List<E> values = new ArrayList<>(numCpus);
+                for (int cpu = 0; cpu < numCpus; cpu++) {
+                    values.add(elementType.parseMemory(segment.asSlice(cpu * elementStride)));
+                }
+                return Collections.unmodifiableList(values);
+            };
+        }
+
+        @Override
+        public MemorySetter<List<E>> setter() {
+            return (segment, values) -> {
+                if (values.size() != numCpus) {
+                    throw new IllegalArgumentException("Expected " + numCpus + " values, one per CPU, but got "
+                            + values.size());
+                }
+                for (int cpu = 0; cpu < numCpus; cpu++) {
+                    elementType.setMemory(segment.asSlice(cpu * elementStride), values.get(cpu));
+                }
+            };
+        }
+
+        @Override
+        public long alignment() {
+            return 8;
+        }
+
+        @Override
+        public AnnotatedClass javaClass() {
+            return new AnnotatedClass("java.util.List<" + elementType.toJavaUseInGenerics() + ">", List.of());
+        }
+
+        @Override
+        public Optional<CAST.Declarator> toCDeclaration() {
+            return Optional.empty();
+        }
+
+        @Override
+        public CAST.Declarator toCUse() {
+            return elementType.toCUse();
+        }
+
+        @Override
+        public String toJavaFieldSpecUse(Function<BPFType<?>, String> typeToSpecFieldName) {
+            return "new " + BPF_TYPE + ".BPFPerCpuType<>(" + elementType.toJavaFieldSpecUse(typeToSpecFieldName)
+                    + ", " + numCpus + ", " + elementStride + ")";
+        }
+    }
+
     /**
      * Pointer type mapped to {@link Ptr} in Java, and only usable in generated C code for now
      */
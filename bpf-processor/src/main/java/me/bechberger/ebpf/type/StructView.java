@@ -0,0 +1,84 @@
+package me.bechberger.ebpf.type;
+
+import me.bechberger.ebpf.type.BPFType.BPFStructType;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Flyweight view of a struct in native memory, with typed getters and setters
+ * for the members at their fixed offsets
+ * <p>
+ * The annotation processor generates a view for every {@code @Type} annotated struct that is declared
+ * in a BPF program, named like the implementation class of the program, e.g. {@code Firewall$LogEntryView}
+ * for {@code Firewall.LogEntry}. Reading a member neither allocates nor parses the rest of the struct.
+ * <p>
+ * Example: {@snippet :
+ *   program.blockedConnections.setViewCallback((BPFRingBuffer<LogEntry> buffer, Firewall$LogEntryView entry) -> {
+ *       if (entry.getTimeInMs() > start) {
+ *           // ...
+ *       }
+ *   });
+ *}
+ * A view is only valid as long as its segment, use {@link #wrap(MemorySegment)} to reuse a view
+ * for another struct and {@link #get()} to obtain the struct as an object.
+ *
+ * @param <T> type of the struct
+ */
+public abstract class StructView<T> {
+
+    protected MemorySegment segment;
+
+    protected StructView(MemorySegment segment) {
+        this.segment = segment;
+    }
+
+    /** Type of the viewed struct */
+    public abstract BPFStructType<T> structType();
+
+    /** Segment that contains the struct */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /**
+     * Point this view to another struct
+     *
+     * @return this view
+     */
+    public StructView<T> wrap(MemorySegment segment) {
+        this.segment = segment;
+        return this;
+    }
+
+    /** Parse the whole struct */
+    public T get() {
+        return structType().parseMemory(segment);
+    }
+
+    /** Store the whole struct */
+    public void set(T value) {
+        structType().setMemory(segment, value);
+    }
+
+    /**
+     * Create the view of the passed struct type, looking through types that only change the alignment
+     *
+     * @throws IllegalArgumentException if the type is not a struct with a generated view
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, W extends StructView<T>> W create(BPFType<T> type, MemorySegment segment) {
+        BPFType<?> actual = type;
+        while (actual instanceof BPFType.WrappedBPFType<?> wrapped) {
+            actual = wrapped.type();
+        }
+        if (actual instanceof BPFStructType<?> structType && structType.hasView()) {
+            return (W) structType.createView(segment);
+        }
+        throw new IllegalArgumentException("Type " + type.bpfName() + " has no generated view");
+    }
+
+    @Override
+    public String toString() {
+        return structType().bpfName() + "View[" + get() + "]";
+    }
+}
@@ -222,10 +222,7 @@ public abstract class Firewall extends BPFProgram implements XDPHook, BasePacket
                         NetworkUtil.intToIpAddress(info.connection.ip).getHostAddress(),
                         info.connection.sourcePort, info.connection.destPort);
             });
-            while (true) {
-                program.consumeAndThrow();
-                Thread.sleep(500);
-            }
+            program.startRingBufferConsumer().join();
         }
     }
 }
\ No newline at end of file
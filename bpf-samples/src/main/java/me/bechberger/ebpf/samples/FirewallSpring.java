@@ -2,6 +2,8 @@ package me.bechberger.ebpf.samples;
 
 import me.bechberger.ebpf.bpf.BPFProgram;
 import me.bechberger.ebpf.bpf.NetworkUtil;
+import me.bechberger.ebpf.bpf.map.BatchedDelivery;
+import me.bechberger.ebpf.bpf.map.BatchedDelivery.OverflowPolicy;
 import me.bechberger.ebpf.samples.Firewall.FirewallAction;
 import me.bechberger.ebpf.samples.Firewall.FirewallRule;
 import me.bechberger.ebpf.samples.Firewall.LogEntry;
@@ -12,6 +14,7 @@ import org.springframework.web.bind.annotation.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executors;
 
 /**
  * A spring boot based front-end for the Firewall
@@ -24,13 +27,13 @@ public class FirewallSpring {
         System.setProperty("server.address", "0.0.0.0");
         try (Firewall program = BPFProgram.load(Firewall.class)) {
             program.xdpAttach();
-            program.blockedConnections.setCallback(FirewallSpring::log);
+            // log on virtual threads, so that slow logging doesn't stall the ring buffer
+            var delivery = new BatchedDelivery<LogEntry>(Executors.newVirtualThreadPerTaskExecutor(),
+                    4096, 256, OverflowPolicy.DROP_OLDEST, batch -> batch.forEach(FirewallSpring::log));
+            program.blockedConnections.setCallback(delivery);
             FirewallController.firewall = program;
             new Thread(() -> SpringApplication.run(FirewallSpring.class, args)).start();
-            while (true) {
-                program.consumeAndThrow();
-                Thread.sleep(100);
-            }
+            program.startRingBufferConsumer().join();
         }
     }
 
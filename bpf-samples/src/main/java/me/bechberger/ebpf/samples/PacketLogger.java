@@ -53,25 +53,32 @@ public abstract class PacketLogger extends BPFProgram implements XDPHook, TCHook
 
     public static void main(String[] args) throws InterruptedException {
         try (PacketLogger program = BPFProgram.load(PacketLogger.class)) {
-            program.packetLog.setCallback((info) -> {
-                if (info.direction == PacketDirection.INCOMING) {
+            var log = program.packetLog;
+            // read the fields directly from the ring buffer, without creating PacketInfo objects
+            BPFRingBuffer.EventField<PacketDirection> direction = log.field("direction");
+            BPFRingBuffer.EventField<Protocol> protocol = log.field("protocol");
+            var sourceIp = log.field("source", "ipv4");
+            var destinationIp = log.field("destination", "ipv4");
+            var sourcePort = log.field("sourcePort");
+            var destinationPort = log.field("destinationPort");
+            var length = log.field("length");
+            log.setRawCallback((_, event) -> {
+                if (direction.get(event) == PacketDirection.INCOMING) {
                     System.out.print("Incoming from " +
-                            NetworkUtil.intToIpAddress(info.source.ipv4())
+                            NetworkUtil.intToIpAddress(sourceIp.getInt(event))
                                     .getHostAddress());
                 } else {
                     System.out.print("Outgoing to   " +
-                            NetworkUtil.intToIpAddress(info.destination.ipv4())
+                            NetworkUtil.intToIpAddress(destinationIp.getInt(event))
                                     .getHostAddress());
                 }
                 System.out.printf(" protocol %s port %5d -> %5d  length %d%n",
-                        info.protocol, info.sourcePort, info.destinationPort, info.length);
+                        protocol.get(event), sourcePort.getInt(event), destinationPort.getInt(event),
+                        length.getInt(event));
             });
             program.xdpAttach();
             program.tcAttachEgress();
-            while (true) {
-                program.consumeAndThrow();
-                Thread.sleep(500);
-            }
+            program.startRingBufferConsumer().join();
         }
     }
 }
@@ -61,15 +61,13 @@ public abstract class RingSample extends BPFProgram implements SystemCallHooks {
         rb.submit(evt);
     }
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException {
         try (RingSample program = BPFProgram.load(RingSample.class)) {
             program.rb.setCallback((buffer, event) -> {
                 System.out.printf("do_sys_openat2 called by:%s file:%s pid:%d\n", event.comm, event.filename, event.pid);
             });
             program.autoAttachPrograms();
-            while (true) {
-                program.consumeAndThrow();
-            }
+            program.startRingBufferConsumer().join();
         }
     }
 }
\ No newline at end of file
@@ -46,7 +46,6 @@ import picocli.CommandLine;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
@@ -251,10 +250,7 @@ public abstract class SampleScheduler extends BPFProgram implements Scheduler, R
     }
 
     void printVTimeStats() {
-        var top5 = enqueuesPerProcess.entrySet().stream()
-                .sorted(Comparator.comparingLong(e -> -e.getValue()))
-                .limit(10)
-                .toList();
+        var top5 = enqueuesPerProcess.topEntries(10, Map.Entry.comparingByValue());
         // Print table header
         System.out.printf("%-10s %-20s %-10s%n", "PID", "Process Name", "Enqueue Count");
         System.out.println("---------------------------------------------");
@@ -0,0 +1,161 @@
+package me.bechberger.ebpf.samples;
+
+import me.bechberger.ebpf.annotations.AlwaysInline;
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.SchedTracepoints;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
+import me.bechberger.ebpf.simulator.trace.TraceFile;
+import me.bechberger.ebpf.type.Ptr;
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_smp_processor_id;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_ktime_get_ns;
+
+/**
+ * Record the {@code sched_switch} and {@code sched_wakeup} events into a trace file,
+ * which can be replayed in the scheduler simulator:
+ * {@snippet :
+ *   sudo java -cp bpf-samples.jar me.bechberger.ebpf.samples.SchedTracer --tgid $(pgrep -f renaissance) --seconds 30 jvm.trace
+ *   java -jar scheduler-simulator.jar --trace jvm.trace
+ * }
+ * The events are passed as compact 24 byte records through a ring buffer, read via the generated view
+ * without allocating and appended to the memory-mapped trace file, see {@link TraceFile} for the format.
+ */
+@BPF(license = "GPL")
+public abstract class SchedTracer extends BPFProgram implements SchedTracepoints, Runnable {
+
+    // same codes as in TraceFile
+    static final int SWITCH_IN = 0;
+    static final int PREEMPTED = 1;
+    static final int BLOCKED = 2;
+    static final int WAKEUP = 3;
+    static final int WAKEUP_NEW = 4;
+
+    @Type
+    static class SchedEvent {
+        @Unsigned long timestamp;
+        int pid;
+        int tgid;
+        int cpu;
+        int kind;
+    }
+
+    @BPFMapDefinition(maxEntries = 16 * 1024 * 1024)
+    BPFRingBuffer<SchedEvent> events;
+
+    /** Only trace the threads of this process, 0 to trace all threads */
+    final GlobalVariable<Integer> traced_tgid = new GlobalVariable<>(0);
+
+    /** Events that were dropped because the ring buffer was full */
+    final GlobalVariable<@Unsigned Long> dropped = new GlobalVariable<>(0L);
+
+    @Parameters(index = "0", description = "Trace file to write")
+    Path output;
+
+    @Option(names = "--tgid", description = "Only trace the threads of this process")
+    int tgid = 0;
+
+    @Option(names = "--seconds", description = "Duration of the recording, default: until interrupted")
+    int seconds = -1;
+
+    @BPFFunction
+    @AlwaysInline
+    void recordEvent(Ptr<task_struct> p, int kind) {
+        int pid = p.val().pid;
+        int task_tgid = p.val().tgid;
+        if (pid == 0) {
+            // idle task
+            return;
+        }
+        if (traced_tgid.get() != 0 && traced_tgid.get() != task_tgid) {
+            return;
+        }
+        Ptr<SchedEvent> evt = events.reserve();
+        if (evt == null) {
+            dropped.getAndAdd(1L);
+            return;
+        }
+        evt.val().timestamp = bpf_ktime_get_ns();
+        evt.val().pid = pid;
+        evt.val().tgid = task_tgid;
+        evt.val().cpu = bpf_get_smp_processor_id();
+        evt.val().kind = kind;
+        events.submit(evt);
+    }
+
+    @Override
+    public void schedSwitch(boolean preempt, Ptr<task_struct> prev, Ptr<task_struct> next, @Unsigned int prev_state) {
+        if (prev_state == 0) {
+            recordEvent(prev, PREEMPTED);
+        } else {
+            recordEvent(prev, BLOCKED);
+        }
+        recordEvent(next, SWITCH_IN);
+    }
+
+    @Override
+    public void schedWakeup(Ptr<task_struct> p) {
+        recordEvent(p, WAKEUP);
+    }
+
+    @Override
+    public void schedWakeupNew(Ptr<task_struct> p) {
+        recordEvent(p, WAKEUP_NEW);
+    }
+
+    private volatile boolean stopped = false;
+
+    @Override
+    public void run() {
+        traced_tgid.set(tgid);
+        // Ctrl-C stops the recording, the trace file is only valid after the writer is closed
+        var closed = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            stopped = true;
+            try {
+                closed.await();
+            } catch (InterruptedException ignored) {
+            }
+        }));
+        try (var writer = new TraceFile.Writer(output)) {
+            events.<SchedTracer$SchedEventView>setViewCallback((buffer, event) -> {
+                try {
+                    writer.write(event.getTimestamp(), event.getKind(), event.getCpu(), event.getPid(), event.getTgid());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            autoAttachPrograms();
+            long end = seconds < 0 ? Long.MAX_VALUE : System.nanoTime() + seconds * 1_000_000_000L;
+            while (!stopped && System.nanoTime() < end) {
+                events.pollAndThrow(100);
+            }
+            events.consumeAndThrow();
+            System.out.println("Recorded " + writer.count() + " events, dropped " + dropped.get());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            closed.countDown();
+        }
+    }
+
+    public static void main(String[] args) {
+        try (var program = BPFProgram.load(SchedTracer.class)) {
+            new CommandLine(program).execute(args);
+        }
+    }
+}
@@ -33,10 +33,7 @@ public abstract class RingSample extends BPFProgram implements SystemCallHooks {
         try (RingSample program = BPFProgram.load(RingSample.class)) {
             program.readFiles.setCallback(System.out::println);
             program.autoAttachPrograms();
-            while (true) {
-                program.consumeAndThrow();
-                Thread.sleep(1000);
-            }
+            program.startRingBufferConsumer().join();
         }
     }
 }
\ No newline at end of file
@@ -8,12 +8,14 @@ import me.bechberger.ebpf.annotations.bpf.BPFFunction;
 import me.bechberger.ebpf.annotations.Type;
 import me.bechberger.ebpf.bpf.BPFProgram;
 import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.GlobalVariable.Globals;
 import me.bechberger.ebpf.bpf.Scheduler;
 import me.bechberger.ebpf.type.Ptr;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
-import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.PerCpuHistogram;
+import me.bechberger.ebpf.bpf.map.BPFTaskStorage;
 import me.bechberger.ebpf.annotations.Unsigned;
 
 import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
@@ -72,17 +74,22 @@ public abstract class IOPrioSched extends BPFProgram implements Scheduler, Runna
     final GlobalVariable<@Unsigned Long> prio_num_slices = new GlobalVariable<>(0L);
 
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueue_time;
+    // per-task state, attached to the task_struct and freed when the task exits
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> enqueue_time;
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> slice_usage;
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> slice_usage;
+
+    // log2 histograms of the wait times, indexed by the DSQ id
+    @BPFMapDefinition(maxEntries = 2)
+    PerCpuHistogram wait_time_hist;
 
 
     @BPFFunction
     @AlwaysInline
-    public long sliceUsagePercentage(int pid){
-        var used_t =  slice_usage.bpf_get(pid);
+    public long sliceUsagePercentage(Ptr<task_struct> p){
+        var used_t =  slice_usage.bpf_get(p);
         if (used_t == null){
             // no known value so return the worst possible.
             return 100;
@@ -90,6 +97,15 @@ public abstract class IOPrioSched extends BPFProgram implements Scheduler, Runna
         return (used_t.val() * 100) / slice_time.get();
     }
 
+    @BPFFunction
+    @AlwaysInline
+    void recordEnqueueTime(Ptr<task_struct> p, long time) {
+        var enqueueTime = enqueue_time.bpf_get_or_create(p);
+        if (enqueueTime != null) {
+            enqueueTime.set(time);
+        }
+    }
+
     @Override
     public int init() {
         int r1 = scx_bpf_create_dsq(IO_PRIO_DSQ_ID, -1);
@@ -108,7 +124,7 @@ public abstract class IOPrioSched extends BPFProgram implements Scheduler, Runna
             // We skip the enqueue call
             // sends p to the local queue of the cpu and uses the default time slice value
             long time = bpf_ktime_get_ns();
-            enqueue_time.put(Integer.valueOf(p.val().pid), time);
+            recordEnqueueTime(p, time);
             scx_bpf_dispatch(p, SCX_DSQ_LOCAL.value(), slice_time.get(),0);
         }
         return cpu;
@@ -116,7 +132,7 @@ public abstract class IOPrioSched extends BPFProgram implements Scheduler, Runna
 
     @Override
     public void enqueue(Ptr<task_struct> p, long enq_flags) {
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()){
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()){
             scx_bpf_dispatch(p, IO_PRIO_DSQ_ID, slice_time_prio.get(), enq_flags);
         } else {
             // No CPU was ready so we put p in our waiting queue
@@ -125,7 +141,7 @@ public abstract class IOPrioSched extends BPFProgram implements Scheduler, Runna
         
         // record t_enqueue
         long time = bpf_ktime_get_ns();
-        enqueue_time.put(Integer.valueOf(p.val().pid), time);
+        recordEnqueueTime(p, time);
     
     }
 
@@ -145,7 +161,7 @@ public abstract class IOPrioSched extends BPFProgram implements Scheduler, Runna
     @Override
     public void running(Ptr<task_struct> p) {
         long t = bpf_ktime_get_ns();
-        var lookupResult = enqueue_time.bpf_get(Integer.valueOf(p.val().pid));
+        var lookupResult = enqueue_time.bpf_get(p);
         
         if (lookupResult == null) {
             return;
@@ -155,16 +171,18 @@ public abstract class IOPrioSched extends BPFProgram implements Scheduler, Runna
         long enqueueTimeValue = lookupResult.val();
         long wait_time = t - enqueueTimeValue;
 
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()) {
-            total_prio_queue_wait_time.set(total_prio_queue_wait_time.get() + wait_time);
-            num_prio_enqueues.set(num_prio_enqueues.get() + 1);
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()) {
+            total_prio_queue_wait_time.getAndAdd(wait_time);
+            wait_time_hist.record((int) IO_PRIO_DSQ_ID, wait_time);
+            num_prio_enqueues.getAndAdd(1L);
         }else {
-            total_normal_queue_wait_time.set(total_normal_queue_wait_time.get() + wait_time);
-            num_normal_enqueues.set(num_normal_enqueues.get() + 1);
+            total_normal_queue_wait_time.getAndAdd(wait_time);
+            wait_time_hist.record((int) RR_DSQ_ID, wait_time);
+            num_normal_enqueues.getAndAdd(1L);
         }
 
-        total_wait_time.set(total_wait_time.get() + wait_time);
-        num_enqueues.set(num_enqueues.get() + 1);
+        total_wait_time.getAndAdd(wait_time);
+        num_enqueues.getAndAdd(1L);
     }
 
     @Override
@@ -172,64 +190,72 @@ public abstract class IOPrioSched extends BPFProgram implements Scheduler, Runna
         long usedTime = slice_time.get() - p.val().scx.slice;
         
         // record the slice time usage stats:
-        total_used_slice_time.set(usedTime + total_used_slice_time.get());
-        total_num_slices.set(total_num_slices.get() + 1);
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()) {
-            prio_used_slice_time.set(usedTime + prio_used_slice_time.get());
-            prio_num_slices.set(prio_num_slices.get() + 1);
+        total_used_slice_time.getAndAdd(usedTime);
+        total_num_slices.getAndAdd(1L);
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()) {
+            prio_used_slice_time.getAndAdd(usedTime);
+            prio_num_slices.getAndAdd(1L);
         } else {
-            normal_used_slice_time.set(usedTime + normal_used_slice_time.get());
-            normal_num_slices.set(normal_num_slices.get() + 1);
+            normal_used_slice_time.getAndAdd(usedTime);
+            normal_num_slices.getAndAdd(1L);
         }
 
-        slice_usage.put(Integer.valueOf(p.val().pid), usedTime);
+        var usage = slice_usage.bpf_get_or_create(p);
+        if (usage != null) {
+            usage.set(usedTime);
+        }
     }
 
     int step = 0;
-    void printStats(){
+    void printStats(GlobalVariable.Snapshot waitStats, GlobalVariable.Snapshot sliceStats){
         System.out.println("step: " + step);
         step ++;
-        System.out.println("total_wait_time: " + total_wait_time.get());
-        System.out.println("total_enqueues: " + num_enqueues.get());
-        System.out.println("total_prio_wait_time: " + total_prio_queue_wait_time.get());
-        System.out.println("total_prio_enqueues: " + num_prio_enqueues.get());
-        System.out.println("total_normal_wait_time: " + total_normal_queue_wait_time.get());
-        System.out.println("total_normal_enqueues: " + num_normal_enqueues.get());
+        System.out.println("total_wait_time: " + waitStats.get(total_wait_time));
+        System.out.println("total_enqueues: " + waitStats.get(num_enqueues));
+        System.out.println("total_prio_wait_time: " + waitStats.get(total_prio_queue_wait_time));
+        System.out.println("total_prio_enqueues: " + waitStats.get(num_prio_enqueues));
+        System.out.println("total_normal_wait_time: " + waitStats.get(total_normal_queue_wait_time));
+        System.out.println("total_normal_enqueues: " + waitStats.get(num_normal_enqueues));
 
 
-        System.out.println("total_used_slice_time: " + total_used_slice_time.get());
-        System.out.println("total_num_slices: " + total_num_slices.get());
+        System.out.println("total_used_slice_time: " + sliceStats.get(total_used_slice_time));
+        System.out.println("total_num_slices: " + sliceStats.get(total_num_slices));
 
-        System.out.println("normal_used_slice_time: " + normal_used_slice_time.get());
-        System.out.println("normal_num_slices: " + normal_num_slices.get());
+        System.out.println("normal_used_slice_time: " + sliceStats.get(normal_used_slice_time));
+        System.out.println("normal_num_slices: " + sliceStats.get(normal_num_slices));
 
-        System.out.println("prio_used_slice_time: " + prio_used_slice_time.get());
-        System.out.println("prio_num_slices: " + prio_num_slices.get());
+        System.out.println("prio_used_slice_time: " + sliceStats.get(prio_used_slice_time));
+        System.out.println("prio_num_slices: " + sliceStats.get(prio_num_slices));
         
-        double prio_usage = ((double) prio_used_slice_time.get() / (double) prio_num_slices.get())/ (double) slice_time_prio.get();
+        double prio_usage = ((double) sliceStats.get(prio_used_slice_time) / (double) sliceStats.get(prio_num_slices))/ (double) sliceStats.get(slice_time_prio);
         System.out.println("prio_slice_usage: " + prio_usage);
 
-        double normal_usage = ((double) normal_used_slice_time.get() / (double) normal_num_slices.get())/ (double) slice_time.get();
+        double normal_usage = ((double) sliceStats.get(normal_used_slice_time) / (double) sliceStats.get(normal_num_slices))/ (double) sliceStats.get(slice_time);
         System.out.println("normal_slice_usage: " + normal_usage);
     }
 
-    void resetStats(){
-        total_wait_time.set(0L);
-        num_enqueues.set(0L);
+    /** Read and reset the wait time counters, exchanging each counter with zero so no increments get lost */
+    GlobalVariable.Snapshot drainWaitStats(){
+        return Globals.snapshotAndReset(total_wait_time, num_enqueues,
+                total_prio_queue_wait_time, num_prio_enqueues,
+                total_normal_queue_wait_time, num_normal_enqueues);
+    }
 
-        total_prio_queue_wait_time.set(0L);
-        num_prio_enqueues.set(0L);
-        
-        total_normal_queue_wait_time.set(0L);
-        num_normal_enqueues.set(0L);
+    GlobalVariable.Snapshot readSliceStats(){
+        return Globals.snapshot(total_used_slice_time, total_num_slices,
+                normal_used_slice_time, normal_num_slices,
+                prio_used_slice_time, prio_num_slices,
+                slice_time, slice_time_prio);
     }
 
     void statsLoop() {
         try {
             while (true) {
                 Thread.sleep(100);
-                printStats();
-                resetStats();
+                printStats(drainWaitStats(), readSliceStats());
+                // the histograms are indexed by the DSQ id
+                wait_time_hist.formatPercentilesSinceLastCall("total_wait", "normal_wait", "prio_wait")
+                        .forEach(System.out::println);
             }
         } catch (InterruptedException e) {
         }
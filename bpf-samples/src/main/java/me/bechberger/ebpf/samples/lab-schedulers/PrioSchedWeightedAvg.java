@@ -13,7 +13,8 @@ import me.bechberger.ebpf.type.Ptr;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
-import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.PerCpuHistogram;
+import me.bechberger.ebpf.bpf.map.BPFTaskStorage;
 import me.bechberger.ebpf.annotations.Unsigned;
 
 import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
@@ -86,17 +87,22 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
     final GlobalVariable<@Unsigned Long> prio_num_slices = new GlobalVariable<>(0L);
 
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueue_time;
+    // per-task state, attached to the task_struct and freed when the task exits
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> enqueue_time;
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> slice_usage;
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> slice_usage;
+
+    // log2 histograms of the wait times, indexed by the DSQ id
+    @BPFMapDefinition(maxEntries = 2)
+    PerCpuHistogram wait_time_hist;
 
 
     @BPFFunction
     @AlwaysInline
-    public long sliceUsagePercentage(int pid){
-        var used_t =  slice_usage.bpf_get(pid);
+    public long sliceUsagePercentage(Ptr<task_struct> p){
+        var used_t =  slice_usage.bpf_get(p);
         if (used_t == null){
             // no known value so return the worst possible.
             return 100;
@@ -104,6 +110,15 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
         return (used_t.val() * 100) / slice_time.get();
     }
 
+    @BPFFunction
+    @AlwaysInline
+    void recordEnqueueTime(Ptr<task_struct> p, long time) {
+        var enqueueTime = enqueue_time.bpf_get_or_create(p);
+        if (enqueueTime != null) {
+            enqueueTime.set(time);
+        }
+    }
+
     @Override
     public int init() {
         int r1 = scx_bpf_create_dsq(IO_PRIO_DSQ_ID, -1);
@@ -122,7 +137,7 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
             // We skip the enqueue call
             // sends p to the local queue of the cpu and uses the default time slice value
             long time = bpf_ktime_get_ns();
-            enqueue_time.put(Integer.valueOf(p.val().pid), time);
+            recordEnqueueTime(p, time);
             scx_bpf_dispatch(p, SCX_DSQ_LOCAL.value(), slice_time.get(),0);
         }
         return cpu;
@@ -130,7 +145,7 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
 
     @Override
     public void enqueue(Ptr<task_struct> p, long enq_flags) {
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()){
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()){
             scx_bpf_dispatch(p, IO_PRIO_DSQ_ID, slice_time_prio.get(), enq_flags);
         } else {
             // No CPU was ready so we put p in our waiting queue
@@ -139,7 +154,7 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
         
         // record t_enqueue
         long time = bpf_ktime_get_ns();
-        enqueue_time.put(Integer.valueOf(p.val().pid), time);
+        recordEnqueueTime(p, time);
     
     }
 
@@ -159,7 +174,7 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
     @Override
     public void running(Ptr<task_struct> p) {
         long t = bpf_ktime_get_ns();
-        var lookupResult = enqueue_time.bpf_get(Integer.valueOf(p.val().pid));
+        var lookupResult = enqueue_time.bpf_get(p);
         
         if (lookupResult == null) {
             return;
@@ -169,11 +184,13 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
         long enqueueTimeValue = lookupResult.val();
         long wait_time = t - enqueueTimeValue;
 
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()) {
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()) {
             total_prio_queue_wait_time.set(total_prio_queue_wait_time.get() + wait_time);
+            wait_time_hist.record((int) IO_PRIO_DSQ_ID, wait_time);
             num_prio_enqueues.set(num_prio_enqueues.get() + 1);
         }else {
             total_normal_queue_wait_time.set(total_normal_queue_wait_time.get() + wait_time);
+            wait_time_hist.record((int) RR_DSQ_ID, wait_time);
             num_normal_enqueues.set(num_normal_enqueues.get() + 1);
         }
 
@@ -188,7 +205,7 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
         // record the slice time usage stats:
         total_used_slice_time.set(usedTime + total_used_slice_time.get());
         total_num_slices.set(total_num_slices.get() + 1);
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()) {
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()) {
             prio_used_slice_time.set(usedTime + prio_used_slice_time.get());
             prio_num_slices.set(prio_num_slices.get() + 1);
         } else {
@@ -198,14 +215,17 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
 
         long prevAvg = initial_usage.get();
 
-        var prevAvgPtr = slice_usage.bpf_get(p.val().pid);
+        var prevAvgPtr = slice_usage.bpf_get(p);
         if (prevAvgPtr != null){
             prevAvg = prevAvgPtr.val();
         }
 
         long c = weight_avg_mult.get();
         long weightedAvg = (prevAvg * c + (FIXED_POINT_MULT.get() - c) * usedTime) / FIXED_POINT_MULT.get();
-        slice_usage.put(Integer.valueOf(p.val().pid), weightedAvg);
+        var usage = slice_usage.bpf_get_or_create(p);
+        if (usage != null) {
+            usage.set(weightedAvg);
+        }
     }
 
     int step = 0;
@@ -254,6 +274,9 @@ public abstract class PrioSchedWeightedAvg extends BPFProgram implements Schedul
             while (true) {
                 Thread.sleep(100);
                 printStats();
+                // the histograms are indexed by the DSQ id
+                wait_time_hist.formatPercentilesSinceLastCall("total_wait", "normal_wait", "prio_wait")
+                        .forEach(System.out::println);
                 resetStats();
             }
         } catch (InterruptedException e) {
@@ -12,7 +12,7 @@ import me.bechberger.ebpf.bpf.Scheduler;
 import me.bechberger.ebpf.type.Ptr;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
-import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.BPFTaskStorage;
 import me.bechberger.ebpf.annotations.Unsigned;
 
 import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
@@ -49,22 +49,32 @@ public abstract class PrioSchedWeightedAvgNoLogs extends BPFProgram implements S
     static final long RR_DSQ_ID = 0;
     static final long IO_PRIO_DSQ_ID = 1;
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueue_time;
+    // per-task state, attached to the task_struct and freed when the task exits
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> enqueue_time;
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> slice_usage;
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> slice_usage;
 
     @BPFFunction
     @AlwaysInline
-    public long sliceUsagePercentage(int pid) {
-        var used_t = slice_usage.bpf_get(pid);
+    public long sliceUsagePercentage(Ptr<task_struct> p) {
+        var used_t = slice_usage.bpf_get(p);
         if (used_t == null) {
             return 100;
         }
         return (used_t.val() * 100) / slice_time.get();
     }
 
+    @BPFFunction
+    @AlwaysInline
+    void recordEnqueueTime(Ptr<task_struct> p, long time) {
+        var enqueueTime = enqueue_time.bpf_get_or_create(p);
+        if (enqueueTime != null) {
+            enqueueTime.set(time);
+        }
+    }
+
     @Override
     public int init() {
         int r1 = scx_bpf_create_dsq(IO_PRIO_DSQ_ID, -1);
@@ -81,7 +91,7 @@ public abstract class PrioSchedWeightedAvgNoLogs extends BPFProgram implements S
         int cpu = scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, Ptr.of(is_idle));
         if (is_idle) {
             long time = bpf_ktime_get_ns();
-            enqueue_time.put(Integer.valueOf(p.val().pid), time);
+            recordEnqueueTime(p, time);
             scx_bpf_dispatch(p, SCX_DSQ_LOCAL.value(), slice_time.get(), 0);
         }
         return cpu;
@@ -89,13 +99,13 @@ public abstract class PrioSchedWeightedAvgNoLogs extends BPFProgram implements S
 
     @Override
     public void enqueue(Ptr<task_struct> p, long enq_flags) {
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()) {
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()) {
             scx_bpf_dispatch(p, IO_PRIO_DSQ_ID, slice_time_prio.get(), enq_flags);
         } else {
             scx_bpf_dispatch(p, RR_DSQ_ID, slice_time.get(), enq_flags);
         }
         long time = bpf_ktime_get_ns();
-        enqueue_time.put(Integer.valueOf(p.val().pid), time);
+        recordEnqueueTime(p, time);
     }
 
     @Override
@@ -110,7 +120,7 @@ public abstract class PrioSchedWeightedAvgNoLogs extends BPFProgram implements S
     @Override
     public void running(Ptr<task_struct> p) {
         long t = bpf_ktime_get_ns();
-        var lookupResult = enqueue_time.bpf_get(Integer.valueOf(p.val().pid));
+        var lookupResult = enqueue_time.bpf_get(p);
         if (lookupResult == null) {
             return;
         }
@@ -122,13 +132,16 @@ public abstract class PrioSchedWeightedAvgNoLogs extends BPFProgram implements S
     public void stopping(Ptr<task_struct> p, boolean runnable) {
         long usedTime = slice_time.get() - p.val().scx.slice;
         long prevAvg = initial_usage.get();
-        var prevAvgPtr = slice_usage.bpf_get(p.val().pid);
+        var prevAvgPtr = slice_usage.bpf_get(p);
         if (prevAvgPtr != null) {
             prevAvg = prevAvgPtr.val();
         }
         long c = weight_avg_mult.get();
         long weightedAvg = (prevAvg * c + (FIXED_POINT_MULT.get() - c) * usedTime) / FIXED_POINT_MULT.get();
-        slice_usage.put(Integer.valueOf(p.val().pid), weightedAvg);
+        var usage = slice_usage.bpf_get_or_create(p);
+        if (usage != null) {
+            usage.set(weightedAvg);
+        }
     }
 
     void setSettings() {
@@ -13,7 +13,8 @@ import me.bechberger.ebpf.type.Ptr;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
-import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.PerCpuHistogram;
+import me.bechberger.ebpf.bpf.map.BPFTaskStorage;
 import me.bechberger.ebpf.annotations.Unsigned;
 
 import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
@@ -86,19 +87,24 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
     final GlobalVariable<@Unsigned Long> prio_num_slices = new GlobalVariable<>(0L);
 
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueue_time;
+    // per-task state, attached to the task_struct and freed when the task exits
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> enqueue_time;
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> slice_usage;
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> slice_usage;
 
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Boolean> in_prio_queue;
+    // log2 histograms of the wait times, indexed by the DSQ id
+    @BPFMapDefinition(maxEntries = 2)
+    PerCpuHistogram wait_time_hist;
+
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Boolean> in_prio_queue;
 
     @BPFFunction
     @AlwaysInline
-    public long sliceUsagePercentage(int pid){
-        var used_t =  slice_usage.bpf_get(pid);
+    public long sliceUsagePercentage(Ptr<task_struct> p){
+        var used_t =  slice_usage.bpf_get(p);
         if (used_t == null){
             // no known value so return the worst possible.
             return 100;
@@ -106,6 +112,15 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
         return (used_t.val() * 100) / slice_time.get();
     }
 
+    @BPFFunction
+    @AlwaysInline
+    void recordEnqueueTime(Ptr<task_struct> p, long time) {
+        var enqueueTime = enqueue_time.bpf_get_or_create(p);
+        if (enqueueTime != null) {
+            enqueueTime.set(time);
+        }
+    }
+
     @Override
     public int init() {
         int r1 = scx_bpf_create_dsq(IO_PRIO_DSQ_ID, -1);
@@ -124,7 +139,7 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
             // We skip the enqueue call
             // sends p to the local queue of the cpu and uses the default time slice value
             long time = bpf_ktime_get_ns();
-            enqueue_time.put(Integer.valueOf(p.val().pid), time);
+            recordEnqueueTime(p, time);
             scx_bpf_dispatch(p, SCX_DSQ_LOCAL.value(), slice_time.get(),0);
         }
         return cpu;
@@ -132,24 +147,25 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
 
     @Override
     public void enqueue(Ptr<task_struct> p, long enq_flags) {
-        int pid = p.val().pid;
-        var inPrioQueue = in_prio_queue.bpf_get(pid);
+        var inPrioQueue = in_prio_queue.bpf_get_or_create(p);
         if (inPrioQueue != null && inPrioQueue.val()) {
             // Task has been in the priority queue, dispatch to normal queue
             scx_bpf_dispatch(p, RR_DSQ_ID, slice_time.get(), enq_flags);
-            in_prio_queue.put(pid, false);
+            inPrioQueue.set(false);
         } else {
-            if (sliceUsagePercentage(pid) < prio_slice_usage_percentage.get()) {
+            if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()) {
                 // Task is eligible for priority queue
                 scx_bpf_dispatch(p, IO_PRIO_DSQ_ID, slice_time_prio.get(), enq_flags);
-                in_prio_queue.put(pid, true);
+                if (inPrioQueue != null) {
+                    inPrioQueue.set(true);
+                }
             } else {
                 // Task goes to normal queue
                 scx_bpf_dispatch(p, RR_DSQ_ID, slice_time.get(), enq_flags);
             }
         }
         long time = bpf_ktime_get_ns();
-        enqueue_time.put(pid, time);
+        recordEnqueueTime(p, time);
     }
 
     @Override
@@ -168,7 +184,7 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
     @Override
     public void running(Ptr<task_struct> p) {
         long t = bpf_ktime_get_ns();
-        var lookupResult = enqueue_time.bpf_get(Integer.valueOf(p.val().pid));
+        var lookupResult = enqueue_time.bpf_get(p);
         
         if (lookupResult == null) {
             return;
@@ -178,11 +194,13 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
         long enqueueTimeValue = lookupResult.val();
         long wait_time = t - enqueueTimeValue;
 
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()) {
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()) {
             total_prio_queue_wait_time.set(total_prio_queue_wait_time.get() + wait_time);
+            wait_time_hist.record((int) IO_PRIO_DSQ_ID, wait_time);
             num_prio_enqueues.set(num_prio_enqueues.get() + 1);
         }else {
             total_normal_queue_wait_time.set(total_normal_queue_wait_time.get() + wait_time);
+            wait_time_hist.record((int) RR_DSQ_ID, wait_time);
             num_normal_enqueues.set(num_normal_enqueues.get() + 1);
         }
 
@@ -197,7 +215,7 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
         // record the slice time usage stats:
         total_used_slice_time.set(usedTime + total_used_slice_time.get());
         total_num_slices.set(total_num_slices.get() + 1);
-        if (sliceUsagePercentage(p.val().pid) < prio_slice_usage_percentage.get()) {
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage.get()) {
             prio_used_slice_time.set(usedTime + prio_used_slice_time.get());
             prio_num_slices.set(prio_num_slices.get() + 1);
         } else {
@@ -207,14 +225,17 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
 
         long prevAvg = initial_usage.get();
 
-        var prevAvgPtr = slice_usage.bpf_get(p.val().pid);
+        var prevAvgPtr = slice_usage.bpf_get(p);
         if (prevAvgPtr != null){
             prevAvg = prevAvgPtr.val();
         }
 
         long c = weight_avg_mult.get();
         long weightedAvg = (prevAvg * c + (FIXED_POINT_MULT.get() - c) * usedTime) / FIXED_POINT_MULT.get();
-        slice_usage.put(Integer.valueOf(p.val().pid), weightedAvg);
+        var usage = slice_usage.bpf_get_or_create(p);
+        if (usage != null) {
+            usage.set(weightedAvg);
+        }
     }
 
     int step = 0;
@@ -263,6 +284,9 @@ public abstract class PrioSchedWeightedAvgNoStarvation extends BPFProgram implem
             while (true) {
                 Thread.sleep(100);
                 printStats();
+                // the histograms are indexed by the DSQ id
+                wait_time_hist.formatPercentilesSinceLastCall("total_wait", "normal_wait", "prio_wait")
+                        .forEach(System.out::println);
                 resetStats();
             }
         } catch (InterruptedException e) {
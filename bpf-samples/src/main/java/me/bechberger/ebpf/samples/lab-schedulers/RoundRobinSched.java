@@ -1,6 +1,8 @@
 package me.bechberger.ebpf.samples;
 
+import me.bechberger.ebpf.annotations.AlwaysInline;
 import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
 import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
 import me.bechberger.ebpf.annotations.bpf.Property;
 import me.bechberger.ebpf.bpf.BPFProgram;
@@ -10,7 +12,8 @@ import me.bechberger.ebpf.type.Ptr;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
-import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.BPFTaskStorage;
+import me.bechberger.ebpf.bpf.map.PerCpuCounter;
 import me.bechberger.ebpf.annotations.Unsigned;
 
 import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
@@ -38,18 +41,29 @@ public abstract class RoundRobinSched extends BPFProgram implements Scheduler, R
     // The queue where all runnable processes are stored
     static final long RR_DSQ_ID=0;
 
-    final GlobalVariable<@Unsigned Long> total_wait_time = new GlobalVariable<>(0L);
+    // Indexes of the per-CPU stats counters
+    static final int TOTAL_WAIT_TIME = 0;
+    static final int NUM_ENQUEUES = 1;
+    static final int USED_SLICE_TIME = 2;
+    static final int NUM_SLICES = 3;
 
-    final GlobalVariable<@Unsigned Long> num_enqueues = new GlobalVariable<>(0L);
+    // Every CPU only updates its own slot, so running and stopping don't contend
+    @BPFMapDefinition(maxEntries = 4)
+    PerCpuCounter stats;
 
+    // per-task state, attached to the task_struct and freed when the task exits
+    @BPFMapDefinition(maxEntries = 1)
+    BPFTaskStorage<@Unsigned Long> enqueue_time;
 
-    final GlobalVariable<@Unsigned Long> used_slice_time = new GlobalVariable<>(0L);
-
-    final GlobalVariable<@Unsigned Long> num_slices = new GlobalVariable<>(0L);
-
-    @BPFMapDefinition(maxEntries = 100000)
-    BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueue_time;
 
+    @BPFFunction
+    @AlwaysInline
+    void recordEnqueueTime(Ptr<task_struct> p, long time) {
+        var enqueueTime = enqueue_time.bpf_get_or_create(p);
+        if (enqueueTime != null) {
+            enqueueTime.set(time);
+        }
+    }
 
     @Override
     public int init() {
@@ -64,7 +78,7 @@ public abstract class RoundRobinSched extends BPFProgram implements Scheduler, R
             // We skip the enqueue call
             // sends p to the local queue of the cpu and uses the default time slice value
             long time = bpf_ktime_get_ns();
-            enqueue_time.put(Integer.valueOf(p.val().pid), time);
+            recordEnqueueTime(p, time);
             scx_bpf_dispatch(p, SCX_DSQ_LOCAL.value(), slice_time.get(),0);
         }
         return cpu;
@@ -77,7 +91,7 @@ public abstract class RoundRobinSched extends BPFProgram implements Scheduler, R
         
         // record t_enqueue
         long time = bpf_ktime_get_ns();
-        enqueue_time.put(Integer.valueOf(p.val().pid), time);
+        recordEnqueueTime(p, time);
     
     }
 
@@ -91,12 +105,12 @@ public abstract class RoundRobinSched extends BPFProgram implements Scheduler, R
     @Override
     public void running(Ptr<task_struct> p) {
         long t = bpf_ktime_get_ns();
-        var lookupResult = enqueue_time.bpf_get(Integer.valueOf(p.val().pid));
+        var lookupResult = enqueue_time.bpf_get(p);
         if (lookupResult != null) {
             long enqueueTimeValue = lookupResult.val();
             long wait_time = t - enqueueTimeValue;
-            total_wait_time.set(total_wait_time.get() + wait_time);
-            num_enqueues.set(num_enqueues.get() + 1);
+            stats.add(TOTAL_WAIT_TIME, wait_time);
+            stats.increment(NUM_ENQUEUES);
         }
         return;
     }
@@ -104,37 +118,38 @@ public abstract class RoundRobinSched extends BPFProgram implements Scheduler, R
     @Override
     public void stopping(Ptr<task_struct> p, boolean runnable) {
         long usedTime = slice_time.get() - p.val().scx.slice;
-        used_slice_time.set(usedTime + used_slice_time.get());
-        num_slices.set(num_slices.get() + 1);
+        stats.add(USED_SLICE_TIME, usedTime);
+        stats.increment(NUM_SLICES);
     }
 
 
     int step = 0;
+    // Sums of the previous step, the counters are never reset, so no increments get lost
+    long[] previousSums = new long[4];
+
     void printStats(){
+        long[] sums = stats.sums();
+        long[] delta = new long[sums.length];
+        for (int i = 0; i < sums.length; i++) {
+            delta[i] = sums[i] - previousSums[i];
+        }
+        previousSums = sums;
         System.out.println("step: " + step);
         step ++;
-        System.out.println("total_wait_time: " + total_wait_time.get());
-        System.out.println("total_enqueues: " + num_enqueues.get());
-        System.out.println("used_slice_time: " + used_slice_time.get());
-        System.out.println("num_slices: " + num_slices.get());
+        System.out.println("total_wait_time: " + delta[TOTAL_WAIT_TIME]);
+        System.out.println("total_enqueues: " + delta[NUM_ENQUEUES]);
+        System.out.println("used_slice_time: " + delta[USED_SLICE_TIME]);
+        System.out.println("num_slices: " + delta[NUM_SLICES]);
         
-        double usage = ((double) used_slice_time.get() / (double) num_slices.get())/ (double) slice_time.get();
+        double usage = ((double) delta[USED_SLICE_TIME] / (double) delta[NUM_SLICES])/ (double) slice_time.get();
         System.out.println("slice_usage: " + usage);
     }
-    
-    void resetStats(){
-        total_wait_time.set(0L);
-        num_enqueues.set(0L);
-        num_slices.set(0L);
-        used_slice_time.set(0L);
-    }
 
     void statsLoop() {
         try {
             while (true) {
                 Thread.sleep(100);
                 printStats();
-                resetStats();
             }
         } catch (InterruptedException e) {
         }
@@ -0,0 +1,81 @@
+package me.bechberger.ebpf.samples;
+
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.Property;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.Scheduler;
+import me.bechberger.ebpf.bpf.UserspacePolicy;
+import me.bechberger.ebpf.bpf.UserspaceScheduler;
+import me.bechberger.ebpf.bpf.VruntimePolicy;
+import me.bechberger.ebpf.type.Ptr;
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+
+import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
+
+/**
+ * Scheduler that lets the Java {@link VruntimePolicy} decide the order, CPU and slice of the tasks,
+ * in the style of {@code scx_rustland}
+ * <p>
+ * The eBPF part and the policy loop are in {@link UserspaceScheduler}, this class only forwards
+ * the scheduler callbacks and prints the stats.
+ */
+@BPF(license = "GPL")
+@Property(name = "sched_name", value = "userspace_sched")
+public abstract class UserspaceSched extends BPFProgram implements Scheduler, UserspaceScheduler, Runnable {
+    @Option(names = "--verbose")
+    boolean verbose = false;
+
+    // Default is 20 milion (ns), the slice of the tasks that bypass the policy
+    @Option(names = "--slice_time")
+    long slice_time_setting = 20000000;
+
+    @Option(names = "--max_in_flight", description = "Maximum number of decisions that dispatch didn't drain yet, default: number of CPUs")
+    int max_in_flight = Runtime.getRuntime().availableProcessors();
+
+    UserspacePolicy policy = new VruntimePolicy();
+
+    @Override
+    public int init() {
+        return userspaceInit();
+    }
+
+    @Override
+    public int selectCPU(Ptr<task_struct> p, int prev_cpu, long wake_flags) {
+        return userspaceSelectCPU(p, prev_cpu, wake_flags);
+    }
+
+    @Override
+    public void enqueue(Ptr<task_struct> p, long enq_flags) {
+        userspaceEnqueue(p, enq_flags);
+    }
+
+    @Override
+    public void dispatch(int cpu, Ptr<task_struct> prev) {
+        userspaceDispatch();
+    }
+
+    int step = 0;
+
+    void printStats(Stats stats) {
+        System.out.println("step: " + step);
+        step ++;
+        System.out.println("bypassed: " + stats.bypassed());
+        System.out.println("sent: " + stats.sent());
+        System.out.println("overflows: " + stats.overflows());
+        System.out.println("dispatched: " + stats.dispatched());
+        System.out.println("exited: " + stats.exited());
+        System.out.println("policy_queued: " + stats.policyQueued());
+    }
+
+    public void run() {
+        runUserspacePolicy(policy, slice_time_setting, max_in_flight, verbose ? this::printStats : null);
+    }
+
+    public static void main(String[] args) {
+        try (var program = BPFProgram.load(UserspaceSched.class)) {
+            new CommandLine(program).execute(args);
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+package me.bechberger.ebpf.samples;
+
+import me.bechberger.ebpf.annotations.AlwaysInline;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.annotations.bpf.Property;
+import me.bechberger.ebpf.bpf.BPFProgram;
+import me.bechberger.ebpf.bpf.CpuTopology;
+import me.bechberger.ebpf.bpf.GlobalVariable;
+import me.bechberger.ebpf.bpf.Scheduler;
+import me.bechberger.ebpf.type.Ptr;
+import picocli.CommandLine;
+import picocli.CommandLine.Option;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.CpuMaskArray;
+import me.bechberger.ebpf.bpf.map.PerCpuCounter;
+import me.bechberger.ebpf.annotations.Unsigned;
+
+import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
+
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_kick_flags.SCX_KICK_IDLE;
+import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
+import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_smp_processor_id;
+
+/**
+ * Scheduler with one DSQ per CPU, so CPUs don't contend on a shared queue
+ * <p>
+ * Tasks are queued on the DSQ of the CPU they were selected for (or ran on last).
+ * A CPU that runs out of work steals the first task of the longest queue,
+ * preferring CPUs that share its last level cache.
+ * <p>
+ * Waking tasks prefer an idle CPU in the LLC of their previous CPU, then in the LLC of the waker,
+ * then in the NUMA node of their previous CPU and only then any idle CPU, see {@link CpuTopology}.
+ */
+@BPF(license = "GPL")
+@Property(name = "sched_name", value = "work_stealing_sched")
+public abstract class WorkStealingSched extends BPFProgram implements Scheduler, Runnable {
+    @Option(names = "--verbose")
+    boolean verbose = false;
+
+    // Default is 20 milion (ns)
+    @Option(names = "--slice_time")
+    long slice_time_setting = 20000000;
+    final GlobalVariable<@Unsigned Long> slice_time = new GlobalVariable<>(0L);
+
+    // Upper bound for the loops over all CPUs, the DSQ of CPU i has the id i
+    static final int MAX_CPUS = 1024;
+
+    // Set in init, the number of possible CPU ids
+    final GlobalVariable<Integer> nr_cpus = new GlobalVariable<>(0);
+
+    // LLC domain and NUMA node of every CPU and the CPUs of every domain, published from /sys before attaching
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> cpu_llc;
+
+    @BPFMapDefinition(maxEntries = 256)
+    CpuMaskArray llc_masks;
+
+    @BPFMapDefinition(maxEntries = MAX_CPUS)
+    BPFArray<Integer> cpu_node;
+
+    @BPFMapDefinition(maxEntries = 64)
+    CpuMaskArray node_masks;
+
+    // Indexes of the per-CPU stats counters
+    static final int LOCAL_DISPATCHES = 0;
+    static final int LLC_STEALS = 1;
+    static final int REMOTE_STEALS = 2;
+    static final int KICKS = 3;
+    static final int IDLE_PREV = 4;
+    static final int IDLE_LLC = 5;
+    static final int IDLE_NODE = 6;
+    static final int IDLE_REMOTE = 7;
+
+    @BPFMapDefinition(maxEntries = 8)
+    PerCpuCounter stats;
+
+    @BPFFunction
+    @AlwaysInline
+    int llcOf(int cpu) {
+        Ptr<Integer> llc = cpu_llc.bpf_get(cpu);
+        if (llc == null) {
+            return -1;
+        }
+        return llc.val();
+    }
+
+    @BPFFunction
+    @AlwaysInline
+    int nodeOf(int cpu) {
+        Ptr<Integer> node = cpu_node.bpf_get(cpu);
+        if (node == null) {
+            return -1;
+        }
+        return node.val();
+    }
+
+    /**
+     * Claim an idle CPU, trying the domains from the closest to the farthest
+     *
+     * @return the CPU or a negative number if no allowed CPU is idle
+     */
+    @BPFFunction
+    @AlwaysInline
+    int pickIdleCpu(Ptr<task_struct> p, int prev_cpu) {
+        if (scx_bpf_test_and_clear_cpu_idle(prev_cpu)) {
+            stats.increment(IDLE_PREV);
+            return prev_cpu;
+        }
+        int prev_llc = llcOf(prev_cpu);
+        int cpu = llc_masks.pickIdleCpu(prev_llc, p);
+        if (cpu < 0) {
+            // selectCPU runs on the CPU of the waker, which shares the data with the wakee
+            int waker_llc = llcOf(bpf_get_smp_processor_id());
+            if (waker_llc != prev_llc) {
+                cpu = llc_masks.pickIdleCpu(waker_llc, p);
+            }
+        }
+        if (cpu >= 0) {
+            stats.increment(IDLE_LLC);
+            return cpu;
+        }
+        cpu = node_masks.pickIdleCpu(nodeOf(prev_cpu), p);
+        if (cpu >= 0) {
+            stats.increment(IDLE_NODE);
+            return cpu;
+        }
+        cpu = scx_bpf_pick_idle_cpu(p.val().cpus_ptr, 0);
+        if (cpu >= 0) {
+            stats.increment(IDLE_REMOTE);
+        }
+        return cpu;
+    }
+
+    @Override
+    public int init() {
+        int nr = scx_bpf_nr_cpu_ids();
+        if (nr > MAX_CPUS) {
+            scx_bpf_error("Too many CPUs %d, supporting at most %d", nr, MAX_CPUS);
+            return -1;
+        }
+        nr_cpus.set(nr);
+        for (int cpu = 0; cpu < MAX_CPUS; cpu++) {
+            if (cpu >= nr) {
+                break;
+            }
+            int err = scx_bpf_create_dsq(cpu, -1);
+            if (err != 0) {
+                return err;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int selectCPU(Ptr<task_struct> p, int prev_cpu, long wake_flags) {
+        int cpu = pickIdleCpu(p, prev_cpu);
+        if (cpu >= 0) {
+            // We skip the enqueue call
+            scx_bpf_dispatch(p, SCX_DSQ_LOCAL.value(), slice_time.get(), 0);
+            return cpu;
+        }
+        return prev_cpu;
+    }
+
+    @Override
+    public void enqueue(Ptr<task_struct> p, long enq_flags) {
+        // the CPU chosen in selectCPU, or the CPU the task ran on if it was preempted
+        int cpu = scx_bpf_task_cpu(p);
+        scx_bpf_dispatch(p, cpu, slice_time.get(), enq_flags);
+
+        // wake up an idle CPU, it steals the task if its CPU is still busy
+        int idle_cpu = scx_bpf_pick_idle_cpu(p.val().cpus_ptr, 0);
+        if (idle_cpu >= 0) {
+            scx_bpf_kick_cpu(idle_cpu, SCX_KICK_IDLE.value());
+            stats.increment(KICKS);
+        }
+    }
+
+    @Override
+    public void dispatch(int cpu, Ptr<task_struct> prev) {
+        if (scx_bpf_consume(cpu)) {
+            stats.increment(LOCAL_DISPATCHES);
+            return;
+        }
+        // find the longest queue, once in the own LLC and once over all CPUs
+        int own_llc = llcOf(cpu);
+        int nr = nr_cpus.get();
+        int llc_victim = -1;
+        int llc_victim_queued = 0;
+        int victim = -1;
+        int victim_queued = 0;
+        for (int other = 0; other < MAX_CPUS; other++) {
+            if (other >= nr) {
+                break;
+            }
+            if (other == cpu) {
+                continue;
+            }
+            int queued = scx_bpf_dsq_nr_queued(other);
+            if (queued > llc_victim_queued && llcOf(other) == own_llc) {
+                llc_victim = other;
+                llc_victim_queued = queued;
+            }
+            if (queued > victim_queued) {
+                victim = other;
+                victim_queued = queued;
+            }
+        }
+        if (llc_victim >= 0 && scx_bpf_consume(llc_victim)) {
+            stats.increment(LLC_STEALS);
+            return;
+        }
+        if (victim >= 0 && victim != llc_victim && scx_bpf_consume(victim)) {
+            stats.increment(REMOTE_STEALS);
+        }
+    }
+
+    int step = 0;
+    // Sums of the previous step, the counters are never reset, so no increments get lost
+    long[] previousSums = new long[8];
+
+    void printStats(){
+        long[] sums = stats.sums();
+        long[] delta = new long[sums.length];
+        for (int i = 0; i < sums.length; i++) {
+            delta[i] = sums[i] - previousSums[i];
+        }
+        previousSums = sums;
+        System.out.println("step: " + step);
+        step ++;
+        System.out.println("local_dispatches: " + delta[LOCAL_DISPATCHES]);
+        System.out.println("llc_steals: " + delta[LLC_STEALS]);
+        System.out.println("remote_steals: " + delta[REMOTE_STEALS]);
+        System.out.println("kicks: " + delta[KICKS]);
+        System.out.println("idle_prev: " + delta[IDLE_PREV]);
+        System.out.println("idle_llc: " + delta[IDLE_LLC]);
+        System.out.println("idle_node: " + delta[IDLE_NODE]);
+        System.out.println("idle_remote: " + delta[IDLE_REMOTE]);
+    }
+
+    void statsLoop() {
+        try {
+            while (true) {
+                Thread.sleep(100);
+                printStats();
+            }
+        } catch (InterruptedException e) {
+        }
+    }
+
+    public void run() {
+        var topology = CpuTopology.read();
+        topology.publishLLCs(cpu_llc, llc_masks);
+        topology.publishNodes(cpu_node, node_masks);
+        if (verbose) {
+            System.out.println(topology);
+        }
+        slice_time.set(slice_time_setting);
+        attachScheduler();
+        if (verbose) {
+            statsLoop();
+        } else {
+            try {
+                Thread.currentThread().join();
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        try (var program = BPFProgram.load(WorkStealingSched.class)) {
+            new CommandLine(program).execute(args);
+        }
+    }
+
+}
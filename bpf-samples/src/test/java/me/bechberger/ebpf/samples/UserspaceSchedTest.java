@@ -0,0 +1,20 @@
+package me.bechberger.ebpf.samples;
+
+import me.bechberger.ebpf.bpf.BPFProgram;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the generated code of the sample, loading it requires a kernel with sched-ext
+ */
+public class UserspaceSchedTest {
+
+    @Test
+    public void testDrainsDecisions() {
+        String code = BPFProgram.getCode(UserspaceSched.class);
+        assertTrue(code.contains("bpf_user_ringbuf_drain(&usersched_dispatched, usersched_dispatch_decision, (void*)0, 0)"), code);
+        assertTrue(code.contains("static long usersched_dispatch_decision(struct bpf_dynptr *dynptr, void *ctx)"), code);
+        assertTrue(code.contains("usersched_enqueue(p, enq_flags)"), code);
+    }
+}
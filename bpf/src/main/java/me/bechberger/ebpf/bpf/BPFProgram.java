@@ -28,6 +28,7 @@ import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.IntStream;
 
@@ -145,6 +146,7 @@ public abstract class BPFProgram implements AutoCloseable {
     private final Set<Integer> openedFDs = new HashSet<>();
 
     private final Set<BPFMap> attachedMaps = new HashSet<>();
+    private final List<RingBufferConsumer> ringBufferConsumers = new ArrayList<>();
 
     private final Set<MemorySegment> attachedStructOps = new HashSet<>();
 
@@ -497,6 +499,8 @@ public abstract class BPFProgram implements AutoCloseable {
      *     <ul>fentry, fexit of syscalls: e.g. <code>SEC("fentry/do_unlinkat")
      * int BPF_PROG(do_unlinkat, int dfd, struct filename *name)</code>, <code>SEC("fexit/do_unlinkat")
      * int BPF_PROG(do_unlinkat_exit, int dfd, struct filename *name, long ret)</code></ul>
+     *     <ul>BTF-enabled tracepoints: e.g. <code>SEC("tp_btf/sched_wakeup")
+     * int BPF_PROG(sched_wakeup, struct task_struct *p)</code>, see {@link SchedTracepoints}</ul>
      * </li>
      * See <a href="https://man7.org/linux/man-pages/man2/syscalls.2.html">syscalls(2)</a> for a list of syscalls.
      * @return
@@ -667,6 +671,10 @@ public abstract class BPFProgram implements AutoCloseable {
             return;
         }
         closed = true;
+        // stop polling before the ring buffers are closed
+        synchronized (ringBufferConsumers) {
+            ringBufferConsumers.forEach(RingBufferConsumer::close);
+        }
         for (var structOps : attachedStructOps) {
             Lib.bpf_link__destroy(structOps);
         }
@@ -776,6 +784,7 @@ public abstract class BPFProgram implements AutoCloseable {
      * Get a ring buffer by name
      * <p>
      * Keep in mind to regularly call {@link BPFRingBuffer#consumeAndThrow()} to consume the events
+     * or to start a consumer via {@link #startRingBufferConsumer()}
      *
      * @param name      the name of the ring buffer
      * @param eventType type of the event
@@ -823,9 +832,48 @@ public abstract class BPFProgram implements AutoCloseable {
      */
     public void consumeAndThrow() {
         for (var map : attachedMaps) {
-            if (map instanceof BPFRingBuffer) {
-                ((BPFRingBuffer<?>)map).consumeAndThrow();
+            if (map instanceof BPFRingBuffer<?> buffer && !buffer.isGrouped()) {
+                buffer.consumeAndThrow();
+            }
+        }
+    }
+
+    /**
+     * Start consuming all recorded ring buffers in the background, delivering events as soon as they arrive
+     * <p>
+     * Set the callbacks of the ring buffers before, the consumer is stopped when the program is closed.
+     * Buffers that are part of a {@link RingBufferGroup} are skipped.
+     * Errors stop the consumer and are rethrown by {@link RingBufferConsumer#join()}.
+     *
+     * @return the started consumer
+     * @see RingBufferConsumer
+     */
+    public RingBufferConsumer startRingBufferConsumer() {
+        return startRingBufferConsumer(null);
+    }
+
+    /**
+     * Start consuming all recorded ring buffers in the background, delivering events as soon as they arrive
+     *
+     * @param errorHandler called with errors while polling or thrown by the callbacks,
+     *                     {@code null} to stop the consumer on the first error
+     * @return the started consumer
+     * @see #startRingBufferConsumer()
+     */
+    public RingBufferConsumer startRingBufferConsumer(@Nullable Consumer<BPFRingBufferError> errorHandler) {
+        Map<String, BPFRingBuffer<?>> buffers = new HashMap<>();
+        for (var map : attachedMaps) {
+            if (map instanceof BPFRingBuffer<?> buffer && !buffer.isGrouped()) {
+                buffers.put("ring-buffer-" + buffer.getFd().name(), buffer);
+            }
+        }
+        synchronized (ringBufferConsumers) {
+            if (closed) {
+                throw new IllegalStateException("Program is closed");
             }
+            var consumer = new RingBufferConsumer(buffers, errorHandler);
+            ringBufferConsumers.add(consumer);
+            return consumer;
         }
     }
 
@@ -0,0 +1,278 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.CpuMaskArray;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Last level cache (LLC) and NUMA topology of the CPUs, read from {@code /sys/devices/system}
+ * <p>
+ * Every possible CPU belongs to exactly one LLC domain and one NUMA node. The domains are numbered densely
+ * in the order of their first CPU, so they can be used as indexes into {@link CpuMaskArray} maps:
+ * {@snippet :
+ *   @BPFMapDefinition(maxEntries = CpuMaskArray.MAX_CPUS)
+ *   BPFArray<Integer> cpu_llc;
+ *   @BPFMapDefinition(maxEntries = 64)
+ *   CpuMaskArray llc_masks;
+ *
+ *   // in Java, before attaching
+ *   CpuTopology.read().publishLLCs(cpu_llc, llc_masks);
+ *
+ *   // in eBPF
+ *   int cpu = llc_masks.pickIdleCpu(cpu_llc.bpf_get(prev_cpu).val(), p);
+ *}
+ * CPUs without cache information form their own LLC domain,
+ * all CPUs are on node 0 if the kernel has no NUMA information.
+ */
+public class CpuTopology {
+
+    private final BitSet possibleCpus;
+    private final int[] cpuToLLC;
+    private final int[] cpuToNode;
+    private final List<BitSet> llcs;
+    private final List<BitSet> nodes;
+
+    CpuTopology(BitSet possibleCpus, List<BitSet> llcs, List<BitSet> nodes) {
+        this.possibleCpus = (BitSet) possibleCpus.clone();
+        this.llcs = llcs.stream().map(b -> (BitSet) b.clone()).toList();
+        this.nodes = nodes.stream().map(b -> (BitSet) b.clone()).toList();
+        this.cpuToLLC = domainIndexes(possibleCpus, this.llcs, "LLC");
+        this.cpuToNode = domainIndexes(possibleCpus, this.nodes, "NUMA node");
+    }
+
+    private static int[] domainIndexes(BitSet possibleCpus, List<BitSet> domains, String kind) {
+        int[] indexes = new int[possibleCpus.length()];
+        Arrays.fill(indexes, -1);
+        for (int domain = 0; domain < domains.size(); domain++) {
+            for (int cpu = domains.get(domain).nextSetBit(0); cpu >= 0; cpu = domains.get(domain).nextSetBit(cpu + 1)) {
+                if (cpu >= indexes.length || indexes[cpu] != -1) {
+                    throw new BPFError("CPU " + cpu + " is not possible or in more than one " + kind);
+                }
+                indexes[cpu] = domain;
+            }
+        }
+        return indexes;
+    }
+
+    /** Read the topology of this machine */
+    public static CpuTopology read() {
+        return read(Path.of("/sys/devices/system"));
+    }
+
+    /**
+     * Read the topology from a sysfs tree
+     *
+     * @param system usually {@code /sys/devices/system}, containing the {@code cpu} and {@code node} directories
+     */
+    public static CpuTopology read(Path system) {
+        BitSet possible = parseCpuList(readString(system.resolve("cpu/possible")));
+        List<BitSet> llcs = new ArrayList<>();
+        // CPUs that are already in a domain, offline CPUs might have no cache info but appear in the list of others
+        BitSet covered = new BitSet();
+        for (int cpu = possible.nextSetBit(0); cpu >= 0; cpu = possible.nextSetBit(cpu + 1)) {
+            if (covered.get(cpu)) {
+                continue;
+            }
+            BitSet llc = readLLC(system.resolve("cpu/cpu" + cpu + "/cache"));
+            if (llc == null || !llc.get(cpu)) {
+                llc = new BitSet();
+                llc.set(cpu);
+            }
+            llc.and(possible);
+            llc.andNot(covered);
+            covered.or(llc);
+            llcs.add(llc);
+        }
+        List<BitSet> nodes = new ArrayList<>();
+        Path nodeDir = system.resolve("node");
+        if (Files.isDirectory(nodeDir)) {
+            try (Stream<Path> files = Files.list(nodeDir)) {
+                files.filter(p -> p.getFileName().toString().matches("node[0-9]+"))
+                        .sorted((a, b) -> Integer.compare(nodeId(a), nodeId(b)))
+                        .map(p -> parseCpuList(readString(p.resolve("cpulist"))))
+                        .forEach(cpus -> {
+                            cpus.and(possible);
+                            if (!cpus.isEmpty()) {
+                                nodes.add(cpus);
+                            }
+                        });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        // CPUs that are possible but not yet online aren't listed in any node
+        BitSet withoutNode = (BitSet) possible.clone();
+        nodes.forEach(withoutNode::andNot);
+        if (!withoutNode.isEmpty()) {
+            if (nodes.isEmpty()) {
+                nodes.add(withoutNode);
+            } else {
+                nodes.get(0).or(withoutNode);
+            }
+        }
+        return new CpuTopology(possible, sortByFirstCpu(llcs), sortByFirstCpu(nodes));
+    }
+
+    private static int nodeId(Path node) {
+        return Integer.parseInt(node.getFileName().toString().substring("node".length()));
+    }
+
+    private static List<BitSet> sortByFirstCpu(List<BitSet> domains) {
+        List<BitSet> sorted = new ArrayList<>(domains);
+        sorted.sort((a, b) -> Integer.compare(a.nextSetBit(0), b.nextSetBit(0)));
+        return sorted;
+    }
+
+    /**
+     * CPUs sharing the highest level cache, or null if the cache directory doesn't exist
+     */
+    private static BitSet readLLC(Path cacheDir) {
+        if (!Files.isDirectory(cacheDir)) {
+            return null;
+        }
+        int bestLevel = -1;
+        BitSet shared = null;
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            for (Path index : files.filter(p -> p.getFileName().toString().startsWith("index")).sorted().toList()) {
+                Path level = index.resolve("level");
+                Path sharedCpus = index.resolve("shared_cpu_list");
+                if (!Files.exists(level) || !Files.exists(sharedCpus)) {
+                    continue;
+                }
+                int l = Integer.parseInt(readString(level));
+                if (l > bestLevel) {
+                    bestLevel = l;
+                    shared = parseCpuList(readString(sharedCpus));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return shared;
+    }
+
+    private static String readString(Path file) {
+        try {
+            return Files.readString(file).trim();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parse a kernel CPU list like {@code 0-3,8,10-11}
+     */
+    public static BitSet parseCpuList(String list) {
+        BitSet cpus = new BitSet();
+        if (list.isBlank()) {
+            return cpus;
+        }
+        for (String part : list.trim().split(",")) {
+            String[] range = part.split("-");
+            try {
+                int start = Integer.parseInt(range[0].trim());
+                int end = range.length == 1 ? start : Integer.parseInt(range[1].trim());
+                if (range.length > 2 || end < start) {
+                    throw new NumberFormatException();
+                }
+                cpus.set(start, end + 1);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid CPU list: " + list);
+            }
+        }
+        return cpus;
+    }
+
+    public BitSet possibleCpus() {
+        return (BitSet) possibleCpus.clone();
+    }
+
+    public int numLLCs() {
+        return llcs.size();
+    }
+
+    public int numNodes() {
+        return nodes.size();
+    }
+
+    /** Index of the LLC domain of the CPU, or -1 if the CPU is not possible */
+    public int llcOf(int cpu) {
+        return cpu >= 0 && cpu < cpuToLLC.length ? cpuToLLC[cpu] : -1;
+    }
+
+    /** Index of the NUMA node of the CPU, or -1 if the CPU is not possible */
+    public int nodeOf(int cpu) {
+        return cpu >= 0 && cpu < cpuToNode.length ? cpuToNode[cpu] : -1;
+    }
+
+    /** CPUs of the LLC domain */
+    public BitSet llcCpus(int llc) {
+        return (BitSet) llcs.get(llc).clone();
+    }
+
+    /** CPUs of the NUMA node, the node index is not necessarily the kernel's node id */
+    public BitSet nodeCpus(int node) {
+        return (BitSet) nodes.get(node).clone();
+    }
+
+    public List<BitSet> llcs() {
+        return Collections.unmodifiableList(llcs.stream().map(b -> (BitSet) b.clone()).toList());
+    }
+
+    public List<BitSet> nodes() {
+        return Collections.unmodifiableList(nodes.stream().map(b -> (BitSet) b.clone()).toList());
+    }
+
+    /**
+     * Publish the LLC domains: the domain index of every possible CPU and the CPU mask of every domain
+     *
+     * @throws BPFError if the maps are too small
+     */
+    public void publishLLCs(BPFArray<Integer> cpuToDomain, CpuMaskArray masks) {
+        publish(cpuToLLC, llcs, cpuToDomain, masks, "LLC");
+    }
+
+    /**
+     * Publish the NUMA nodes: the node index of every possible CPU and the CPU mask of every node
+     *
+     * @throws BPFError if the maps are too small
+     */
+    public void publishNodes(BPFArray<Integer> cpuToDomain, CpuMaskArray masks) {
+        publish(cpuToNode, nodes, cpuToDomain, masks, "NUMA node");
+    }
+
+    private static void publish(int[] indexes, List<BitSet> domains, BPFArray<Integer> cpuToDomain,
+                                CpuMaskArray masks, String kind) {
+        if (cpuToDomain.size() < indexes.length) {
+            throw new BPFError("CPU to " + kind + " map has " + cpuToDomain.size() + " entries, but there are "
+                    + indexes.length + " possible CPUs");
+        }
+        if (masks.numMasks() < domains.size()) {
+            throw new BPFError(kind + " mask map has " + masks.numMasks() + " masks, but there are "
+                    + domains.size() + " domains");
+        }
+        List<Integer> values = new ArrayList<>();
+        for (int index : indexes) {
+            values.add(index);
+        }
+        cpuToDomain.copy(values);
+        for (int domain = 0; domain < domains.size(); domain++) {
+            masks.setMask(domain, domains.get(domain));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CpuTopology[cpus=" + possibleCpus + ", llcs=" + llcs + ", nodes=" + nodes + "]";
+    }
+}
@@ -4,15 +4,24 @@ import me.bechberger.ebpf.annotations.Type;
 import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
 import me.bechberger.ebpf.bpf.BPFProgram.BTF.BTFType.VariableSectionInfo;
 import me.bechberger.ebpf.bpf.map.BPFMap;
+import me.bechberger.ebpf.bpf.map.BPFMmapArray;
 import me.bechberger.ebpf.bpf.raw.Lib_1;
+import me.bechberger.ebpf.shared.LibC;
 import me.bechberger.ebpf.shared.PanamaUtil;
 import me.bechberger.ebpf.type.BPFType;
+import org.jetbrains.annotations.Nullable;
 
 import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.VarHandle;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
 /**
  * A global variable in the eBPF program, which can be read and written both from Java and the eBPF program.
  * <p>
@@ -39,19 +48,54 @@ import java.util.stream.Collectors;
  */
 public class GlobalVariable<T> {
 
+    private static final VarHandle INT_HANDLE = JAVA_INT.varHandle();
+    private static final VarHandle LONG_HANDLE = JAVA_LONG.varHandle();
+
     public record GlobalVariableInitInfo<T>(GlobalVariable<T> variable, String name, BPFType<T> type) {
     }
 
+    /**
+     * Values of multiple global variables, obtained via {@link Globals#snapshot(GlobalVariable[])}
+     * or {@link Globals#snapshotAndReset(GlobalVariable[])}
+     */
+    public static class Snapshot {
+        private final Map<GlobalVariable<?>, Object> values;
+
+        private Snapshot(Map<GlobalVariable<?>, Object> values) {
+            this.values = values;
+        }
+
+        /**
+         * Get the value of the passed variable at the time of the snapshot
+         * @throws IllegalArgumentException if the variable is not part of this snapshot
+         */
+        @SuppressWarnings("unchecked")
+        public <T> T get(GlobalVariable<T> variable) {
+            if (!values.containsKey(variable)) {
+                throw new IllegalArgumentException("Variable " + variable.name + " is not part of the snapshot");
+            }
+            return (T) values.get(variable);
+        }
+    }
+
     /**
      * Stores the data of the .data section of the eBPF program
+     * <p>
+     * libbpf creates the section map with {@code BPF_F_MMAPABLE} on all recent kernels,
+     * so the section is mapped once and all accesses are plain loads and stores at the
+     * offset of each variable. Falls back to reading and writing the whole section via
+     * syscalls if the map can't be mapped.
      */
     public static class Globals {
         private final BPFMap dataMap;
         private final Map<String, Integer> offsetsPerVariable;
+        /** Mapped .data section, or null if not mappable */
+        private final @Nullable MemorySegment data;
 
         private Globals(BPFMap dataMap, Map<String, Integer> offsetsPerVariable) {
             this.dataMap = dataMap;
             this.offsetsPerVariable = offsetsPerVariable;
+            this.data = mapSection(dataMap);
         }
 
         public static Globals forProgram(BPFProgram program) {
@@ -59,6 +103,46 @@ public class GlobalVariable<T> {
             return new Globals(dataMap, findOffsetsPerVariable(program));
         }
 
+        /**
+         * Map the single value of the section map into memory, the mapping is released
+         * when the segment is no longer reachable
+         */
+        private static @Nullable MemorySegment mapSection(BPFMap dataMap) {
+            var info = dataMap.getInfo();
+            if ((info.mapFlags() & BPFMmapArray.BPF_F_MMAPABLE) == 0) {
+                return null;
+            }
+            long length = PanamaUtil.padSize(info.valueSize(), LibC.pageSize());
+            var res = LibC.mmap(length, LibC.PROT_READ | LibC.PROT_WRITE, LibC.MAP_SHARED, dataMap.getFd().fd(), 0);
+            if (res.result().address() == LibC.MAP_FAILED) {
+                return null;
+            }
+            return res.result().reinterpret(length, Arena.ofAuto(), s -> LibC.munmap(s.reinterpret(length)))
+                    .asSlice(0, info.valueSize());
+        }
+
+        /**
+         * Is the section memory mapped, so that accesses don't need syscalls?
+         */
+        public boolean isMapped() {
+            return data != null;
+        }
+
+        /**
+         * Slice of the mapped section that contains the variable, or null if the section isn't mapped
+         */
+        @Nullable MemorySegment segmentOf(String name, BPFType<?> type) {
+            return data == null ? null : data.asSlice(offsetOf(name), type.size());
+        }
+
+        int offsetOf(String name) {
+            var offset = offsetsPerVariable.get(name);
+            if (offset == null) {
+                throw new BPFError("Unknown global variable " + name);
+            }
+            return offset;
+        }
+
         /**
          * Based on <a href="https://stackoverflow.com/a/70485885/19040822">Dylan's stackoverflow answer</a>
          */
@@ -75,6 +159,13 @@ public class GlobalVariable<T> {
 
         @SuppressWarnings({"unchecked", "rawtypes"})
         public void set(Map<GlobalVariable<?>, ?> values) {
+            if (data != null) {
+                for (var entry : values.entrySet()) {
+                    var globalVariable = (GlobalVariable) entry.getKey();
+                    globalVariable.type.setMemory(data.asSlice(offsetOf(globalVariable.name)), entry.getValue());
+                }
+                return;
+            }
             try (var arena = Arena.ofConfined()) {
                 // Create buffer the size of .data
                 var buffer = arena.allocate(dataMap.getInfo().valueSize());
@@ -98,6 +189,70 @@ public class GlobalVariable<T> {
             }
         }
 
+        /**
+         * Read the values of all passed variables in one pass, copying the section once
+         * (or reading it with a single syscall if it isn't mapped)
+         * <p>
+         * All variables have to belong to the same program.
+         */
+        public static Snapshot snapshot(GlobalVariable<?>... variables) {
+            if (variables.length == 0) {
+                return new Snapshot(Map.of());
+            }
+            return globalsOf(variables).read(variables);
+        }
+
+        /**
+         * Read and reset the values of all passed variables, exchanging each variable with zero
+         * via {@link GlobalVariable#getAndSet(Object)}
+         * <p>
+         * The variables are exchanged one after another, so this is not a consistent snapshot
+         * across variables. Concurrent increments are only guaranteed not to be lost for
+         * 4 and 8 byte integer variables in a mapped section.
+         * All variables have to belong to the same program.
+         */
+        public static Snapshot snapshotAndReset(GlobalVariable<?>... variables) {
+            if (variables.length == 0) {
+                return new Snapshot(Map.of());
+            }
+            globalsOf(variables);
+            Map<GlobalVariable<?>, Object> values = new HashMap<>();
+            for (var variable : variables) {
+                values.put(variable, variable.getAndSetZero());
+            }
+            return new Snapshot(values);
+        }
+
+        private static Globals globalsOf(GlobalVariable<?>... variables) {
+            var globals = variables[0].globals;
+            for (var variable : variables) {
+                if (variable.globals != globals) {
+                    throw new IllegalArgumentException("Variables have to belong to the same program");
+                }
+            }
+            return globals;
+        }
+
+        private Snapshot read(GlobalVariable<?>... variables) {
+            try (var arena = Arena.ofConfined()) {
+                var buffer = arena.allocate(dataMap.getInfo().valueSize(), 8);
+                if (data != null) {
+                    MemorySegment.copy(data, 0, buffer, 0, data.byteSize());
+                } else {
+                    var zeroRef = PanamaUtil.allocateIntRef(arena, 0);
+                    var ret = Lib_1.bpf_map_lookup_elem(dataMap.getFd().fd(), zeroRef, buffer);
+                    if (ret < 0) {
+                        throw new BPFError("Failed to read .data", ret);
+                    }
+                }
+                Map<GlobalVariable<?>, Object> values = new HashMap<>();
+                for (var variable : variables) {
+                    values.put(variable, variable.type.parseMemory(buffer.asSlice(offsetOf(variable.name))));
+                }
+                return new Snapshot(values);
+            }
+        }
+
         public <T> void set(String name, GlobalVariable<T> globalVariable, T value) {
             set(Map.of(globalVariable, value));
         }
@@ -112,6 +267,9 @@ public class GlobalVariable<T> {
         }
 
         public <T> T get(String name, BPFType<T> type) {
+            if (data != null) {
+                return type.parseMemory(data.asSlice(offsetOf(name)));
+            }
             try (var arena = Arena.ofConfined()) {
                 // Create buffer the size of .data
                 var buffer = arena.allocate(dataMap.getInfo().valueSize());
@@ -131,6 +289,8 @@ public class GlobalVariable<T> {
     private Globals globals;
     private BPFType<T> type;
     private String name;
+    /** Location of the variable in the mapped .data section, null if not mapped */
+    private @Nullable MemorySegment segment;
 
     public GlobalVariable(T initialValue) {
         this.initialValue = initialValue;
@@ -143,6 +303,7 @@ public class GlobalVariable<T> {
         this.globals = globals;
         this.type = type;
         this.name = name;
+        this.segment = globals.segmentOf(name, type);
     }
 
     /**
@@ -150,6 +311,10 @@ public class GlobalVariable<T> {
      */
     @BuiltinBPFFunction("$this = $arg1")
     public void set(T value) {
+        if (segment != null) {
+            type.setMemory(segment, value);
+            return;
+        }
         globals.set(name, this, value);
     }
 
@@ -158,6 +323,87 @@ public class GlobalVariable<T> {
      */
     @BuiltinBPFFunction("$this")
     public T get() {
+        if (segment != null) {
+            return type.parseMemory(segment);
+        }
         return globals.get(name, type);
     }
+
+    /**
+     * Set the value of this global variable and return the previous value
+     * <p>
+     * The exchange is atomic for 4 and 8 byte integer variables if the section is mapped,
+     * otherwise it is only atomic with respect to other Java threads.
+     */
+    public T getAndSet(T value) {
+        if (segment != null && (value instanceof Integer || value instanceof Long)) {
+            var number = (Number) value;
+            if (segment.byteSize() == 8) {
+                return fromLong((long) LONG_HANDLE.getAndSet(segment, 0L, number.longValue()));
+            }
+            if (segment.byteSize() == 4) {
+                return fromInt((int) INT_HANDLE.getAndSet(segment, 0L, number.intValue()));
+            }
+        }
+        synchronized (this) {
+            var old = get();
+            set(value);
+            return old;
+        }
+    }
+
+    /**
+     * Reset this variable to zero and return the previous value, see {@link #getAndSet(Object)}
+     */
+    public T getAndReset() {
+        return getAndSetZero();
+    }
+
+    private T getAndSetZero() {
+        return getAndSet(type.parseMemory(MemorySegment.ofArray(new long[(int) ((type.size() + 7) / 8)])));
+    }
+
+    /**
+     * Add the delta to this integer variable and return the previous value
+     * <p>
+     * Atomic in eBPF and in Java if the section is mapped, use this instead of
+     * {@code x.set(x.get() + delta)} for counters that are drained
+     * with {@link Globals#snapshotAndReset(GlobalVariable[])}.
+     * @throws IllegalArgumentException if the variable is not an int or long
+     */
+    @BuiltinBPFFunction("__sync_fetch_and_add(&$this, $arg1)")
+    public T getAndAdd(T delta) {
+        if (!(delta instanceof Integer || delta instanceof Long)) {
+            throw new IllegalArgumentException("getAndAdd is only supported for int and long variables, not for "
+                    + type.bpfName() + " variable " + name);
+        }
+        var number = (Number) delta;
+        if (segment != null && segment.byteSize() == 8) {
+            return fromLong((long) LONG_HANDLE.getAndAdd(segment, 0L, number.longValue()));
+        }
+        if (segment != null && segment.byteSize() == 4) {
+            return fromInt((int) INT_HANDLE.getAndAdd(segment, 0L, number.intValue()));
+        }
+        synchronized (this) {
+            var old = get();
+            set(add(old, number));
+            return old;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T add(T value, Number delta) {
+        if (value instanceof Long l) {
+            return (T) Long.valueOf(l + delta.longValue());
+        }
+        return (T) Integer.valueOf((Integer) value + delta.intValue());
+    }
+
+    private T fromLong(long value) {
+        return type.parseMemory(MemorySegment.ofArray(new long[]{value}));
+    }
+
+    private T fromInt(int value) {
+        return type.parseMemory(MemorySegment.ofArray(new int[]{value}));
+    }
 }
@@ -0,0 +1,212 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer.BPFRingBufferError;
+import me.bechberger.ebpf.shared.LibC;
+import me.bechberger.ebpf.shared.PanamaUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Consumes the events of a set of ring buffers in the background, with one thread per buffer
+ * (or {@link me.bechberger.ebpf.bpf.map.RingBufferGroup}) that blocks in {@code epoll_wait} without a timeout
+ * <p>
+ * Events are passed to the callbacks of the buffers as soon as the kernel wakes up the epoll wait,
+ * without the latency and idle wakeups of calling {@link BPFProgram#consumeAndThrow()} in a sleep loop.
+ * Every thread waits on an epoll set that contains the epoll file descriptor of its source
+ * and an eventfd, which {@link #close()} signals to wake the threads up.
+ * <p>
+ * The threads are daemon platform threads, as a virtual thread blocked in a native call
+ * would pin its carrier thread anyway.
+ * <p>
+ * Example: {@snippet :
+ *   program.blockedConnections.setCallback(event -> ...);
+ *   program.startRingBufferConsumer().join();
+ *}
+ * @see BPFProgram#startRingBufferConsumer()
+ */
+public class RingBufferConsumer implements AutoCloseable {
+
+    /**
+     * Something that can be waited on via epoll and consumed, like a {@link BPFRingBuffer}
+     */
+    public interface Source {
+        /**
+         * Epoll file descriptor that is readable while events are available
+         */
+        int epollFd();
+
+        /**
+         * Consume the available events without waiting
+         *
+         * @return number of consumed events
+         * @throws BPFRingBufferError if consuming failed or if any errors were caught in the call backs
+         */
+        int consumeAndThrow();
+    }
+
+    private final List<Thread> threads = new ArrayList<>();
+    private final @Nullable Consumer<BPFRingBufferError> errorHandler;
+    /** Signalled to wake up all threads when the consumer stops, closed by the last thread that exits */
+    private final int wakeFd;
+    private final AtomicBoolean stopRequested = new AtomicBoolean(false);
+    private final AtomicInteger runningThreads;
+    private volatile boolean stopped = false;
+    private volatile @Nullable BPFRingBufferError error = null;
+
+    /**
+     * Start consuming the passed sources, with one thread per source
+     *
+     * @param sources      sources to consume by thread name, the callbacks have to be set before
+     * @param errorHandler called with errors while polling or thrown by the callbacks,
+     *                     {@code null} to stop the consumer on the first error and
+     *                     rethrow it in {@link #join()}
+     * @throws BPFError if the eventfd or the epoll sets could not be created
+     */
+    public RingBufferConsumer(Map<String, ? extends Source> sources,
+                              @Nullable Consumer<BPFRingBufferError> errorHandler) {
+        this.errorHandler = errorHandler;
+        this.runningThreads = new AtomicInteger(sources.size());
+        var eventFd = LibC.eventfd(0, LibC.EFD_CLOEXEC);
+        if (eventFd.result() < 0) {
+            throw new BPFError("Failed to create eventfd", eventFd.err());
+        }
+        this.wakeFd = eventFd.result();
+        List<Integer> epollFds = new ArrayList<>();
+        try {
+            for (var source : sources.values()) {
+                epollFds.add(createEpollSet(source));
+            }
+        } catch (BPFError e) {
+            epollFds.forEach(LibC::close);
+            LibC.close(wakeFd);
+            throw e;
+        }
+        if (sources.isEmpty()) {
+            stopped = true;
+            LibC.close(wakeFd);
+            return;
+        }
+        int i = 0;
+        for (var entry : sources.entrySet()) {
+            int epollFd = epollFds.get(i++);
+            threads.add(Thread.ofPlatform().daemon()
+                    .name(entry.getKey())
+                    .start(() -> consumeLoop(entry.getValue(), epollFd)));
+        }
+    }
+
+    /**
+     * Create an epoll set with the epoll file descriptor of the source and the wake-up eventfd
+     */
+    private int createEpollSet(Source source) {
+        var epollFd = LibC.epollCreate1(LibC.EPOLL_CLOEXEC);
+        if (epollFd.result() < 0) {
+            throw new BPFError("Failed to create epoll instance", epollFd.err());
+        }
+        for (int fd : new int[]{source.epollFd(), wakeFd}) {
+            var ret = LibC.epollAdd(epollFd.result(), fd, LibC.EPOLLIN);
+            if (ret.result() < 0) {
+                LibC.close(epollFd.result());
+                throw new BPFError("Failed to add file descriptor to epoll instance", ret.err());
+            }
+        }
+        return epollFd.result();
+    }
+
+    private void consumeLoop(Source source, int epollFd) {
+        try {
+            while (!stopped) {
+                try {
+                    var ready = LibC.epollWait(epollFd, -1);
+                    if (ready.result() < 0 && ready.err() != PanamaUtil.ERRNO_EINTR) {
+                        throw new BPFRingBufferError("Failed to wait for events", ready.err());
+                    }
+                    if (ready.result() > 0 && !stopped) {
+                        source.consumeAndThrow();
+                    }
+                } catch (BPFRingBufferError e) {
+                    if (errorHandler != null) {
+                        errorHandler.accept(e);
+                        continue;
+                    }
+                    synchronized (this) {
+                        if (error == null) {
+                            error = e;
+                        }
+                    }
+                    stop();
+                }
+            }
+        } finally {
+            LibC.close(epollFd);
+            if (runningThreads.decrementAndGet() == 0) {
+                LibC.close(wakeFd);
+            }
+        }
+    }
+
+    /**
+     * Wake up all threads and let them exit
+     * <p>
+     * The eventfd is written before the threads can exit, so it is still open,
+     * and it stays readable, so every thread sees it
+     */
+    private void stop() {
+        if (stopRequested.compareAndSet(false, true)) {
+            LibC.eventfdWrite(wakeFd, 1);
+            stopped = true;
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * Wait till the consumer is stopped, either via {@link #close()} or by an error
+     *
+     * @throws BPFRingBufferError the first error if the consumer has no error handler
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        for (var thread : threads) {
+            thread.join();
+        }
+        var e = error;
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * Stop consuming and wait for the threads to finish their current callbacks
+     */
+    @Override
+    public void close() {
+        if (threads.isEmpty()) {
+            return;
+        }
+        stop();
+        boolean interrupted = false;
+        for (var thread : threads) {
+            // a callback might close the program
+            while (thread.isAlive() && thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFInterface;
+import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
+import me.bechberger.ebpf.type.Ptr;
+
+/**
+ * Hooks for the scheduler tracepoints, attached as BTF-enabled tracepoints ({@code tp_btf})
+ * via {@link BPFProgram#autoAttachPrograms()}
+ * <p>
+ * Override the methods you need, they are called on the CPU where the event happens,
+ * so {@code bpf_get_smp_processor_id()} gives the CPU of the switch or wakeup.
+ */
+@BPFInterface
+public interface SchedTracepoints {
+
+    /**
+     * Called when the CPU switches from {@code prev} to {@code next}
+     *
+     * @param preempt    whether {@code prev} was preempted
+     * @param prev       task that stops running
+     * @param next       task that starts running
+     * @param prev_state state of {@code prev}, 0 ({@code TASK_RUNNING}) if it is still runnable
+     */
+    @BPFFunction(
+            headerTemplate = "int BPF_PROG($name, bool preempt, struct task_struct *prev, struct task_struct *next, unsigned int prev_state)",
+            lastStatement = "return 0;",
+            section = "tp_btf/sched_switch",
+            autoAttach = true
+    )
+    default void schedSwitch(boolean preempt, Ptr<task_struct> prev, Ptr<task_struct> next, @Unsigned int prev_state) {
+        return;
+    }
+
+    /**
+     * Called when a sleeping task becomes runnable
+     */
+    @BPFFunction(
+            headerTemplate = "int BPF_PROG($name, struct task_struct *p)",
+            lastStatement = "return 0;",
+            section = "tp_btf/sched_wakeup",
+            autoAttach = true
+    )
+    default void schedWakeup(Ptr<task_struct> p) {
+        return;
+    }
+
+    /**
+     * Called when a newly created task becomes runnable for the first time
+     */
+    @BPFFunction(
+            headerTemplate = "int BPF_PROG($name, struct task_struct *p)",
+            lastStatement = "return 0;",
+            section = "tp_btf/sched_wakeup_new",
+            autoAttach = true
+    )
+    default void schedWakeupNew(Ptr<task_struct> p) {
+        return;
+    }
+}
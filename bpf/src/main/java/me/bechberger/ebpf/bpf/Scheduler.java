@@ -89,6 +89,7 @@ import static me.bechberger.ebpf.bpf.raw.Lib_2.bpf_map__attach_struct_ops;
                 const struct cpumask *scx_bpf_get_idle_cpumask(void) __ksym;
                 const struct cpumask *scx_bpf_get_idle_smtmask(void) __ksym;
                 void scx_bpf_put_idle_cpumask(const struct cpumask *cpumask) __ksym;
+                bool bpf_cpumask_test_cpu(u32 cpu, const struct cpumask *cpumask) __ksym;
                 bool scx_bpf_test_and_clear_cpu_idle(s32 cpu) __ksym;
                 s32 scx_bpf_pick_idle_cpu(const cpumask_t *cpus_allowed, u64 flags) __ksym;
                 s32 scx_bpf_pick_any_cpu(const cpumask_t *cpus_allowed, u64 flags) __ksym;
@@ -214,6 +215,21 @@ public interface Scheduler {
         throw new MethodIsBPFRelatedFunction();
     }
 
+    /**
+     * Acquire the task with the given thread id, the result has to be released
+     * with {@link #bpf_task_release(Ptr)} if it is not null
+     */
+    @BuiltinBPFFunction
+    default Ptr<TaskDefinitions.task_struct> bpf_task_from_pid(int pid) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /** Release a task acquired with {@link #bpf_task_from_pid(int)} */
+    @BuiltinBPFFunction
+    default void bpf_task_release(Ptr<TaskDefinitions.task_struct> p) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
     @BPFFunction(
             headerTemplate = "s32 BPF_STRUCT_OPS(sched_select_cpu, struct task_struct *p, s32 prev_cpu, u64 wake_flags)",
             addDefinition = false
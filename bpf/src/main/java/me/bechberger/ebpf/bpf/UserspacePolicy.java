@@ -0,0 +1,52 @@
+package me.bechberger.ebpf.bpf;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Scheduling policy that runs in Java, in the style of {@code scx_rustland}
+ * <p>
+ * The eBPF scheduler forwards runnable tasks to the policy, the policy decides in which order they run,
+ * on which CPU and for how long. {@link UserspaceScheduler} runs a policy on real tasks,
+ * the {@code UserspaceScheduler} of the scheduler simulator on simulated ones.
+ * <p>
+ * Policies are only called from a single thread and don't have to be thread-safe.
+ */
+public interface UserspacePolicy {
+
+    /**
+     * A runnable task, sent by the eBPF scheduler in {@code enqueue}
+     *
+     * @param pid              thread id
+     * @param tgid             process id
+     * @param cpu              CPU the task ran on last or was selected for
+     * @param weight           scheduling weight, 100 is the default
+     * @param sumExecRuntimeNs total CPU time of the task
+     * @param enqueueNs        {@code bpf_ktime_get_ns()} at the time of the enqueue
+     */
+    record Task(int pid, int tgid, int cpu, int weight, long sumExecRuntimeNs, long enqueueNs) {
+    }
+
+    /**
+     * Run the task next
+     *
+     * @param pid     thread id of the task
+     * @param cpu     CPU to run the task on, or {@link #ANY_CPU} to let the first CPU that is free run it
+     * @param sliceNs time slice
+     */
+    record Decision(int pid, int cpu, long sliceNs) {
+        public static final int ANY_CPU = -1;
+    }
+
+    /** Called for every runnable task */
+    void enqueue(Task task);
+
+    /**
+     * Next task to run, called repeatedly after every batch of enqueues
+     *
+     * @return the decision or null if no task is waiting
+     */
+    @Nullable Decision next();
+
+    /** Number of tasks that are waiting for a decision */
+    int queued();
+}
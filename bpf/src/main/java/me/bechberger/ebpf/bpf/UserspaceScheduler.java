@@ -0,0 +1,387 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.annotations.bpf.BPFInterface;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.bpf.UserspacePolicy.Decision;
+import me.bechberger.ebpf.bpf.UserspacePolicy.Task;
+import me.bechberger.ebpf.bpf.map.BPFMmapArray;
+import me.bechberger.ebpf.bpf.map.BPFUserRingBuffer;
+import me.bechberger.ebpf.bpf.map.PerCpuCounter;
+import me.bechberger.ebpf.runtime.TaskDefinitions;
+import me.bechberger.ebpf.type.BPFType;
+import me.bechberger.ebpf.type.BPFType.BPFIntType;
+import me.bechberger.ebpf.type.BPFType.BPFStructMember;
+import me.bechberger.ebpf.type.BPFType.BPFStructType;
+import me.bechberger.ebpf.type.Ptr;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A sched-ext scheduler that lets a Java {@link UserspacePolicy} decide the order, CPU and slice of the tasks,
+ * in the style of {@code scx_rustland}
+ * <p>
+ * {@code enqueue} sends the runnable tasks through a ring buffer to the policy thread,
+ * which sends its decisions back through a user ring buffer. {@code dispatch} drains
+ * the decisions in batches. Both buffers are shared memory, so there is no syscall per task.
+ * <p>
+ * Latency-critical tasks bypass the policy: tasks that find an idle CPU in {@code selectCPU},
+ * per-CPU kernel threads and the threads of this JVM, which includes the policy thread itself.
+ * Otherwise a GC pause of the JVM would wait for the GC threads, which would wait for the policy.
+ * <p>
+ * The eBPF part is defined in this interface, implementations also implement {@link Scheduler},
+ * forward its callbacks and run the policy:
+ * {@snippet :
+ *   @BPF(license = "GPL")
+ *   @Property(name = "sched_name", value = "my_userspace_sched")
+ *   public abstract class MyScheduler extends BPFProgram implements Scheduler, UserspaceScheduler {
+ *       @Override
+ *       public int init() {
+ *           return userspaceInit();
+ *       }
+ *
+ *       @Override
+ *       public int selectCPU(Ptr<task_struct> p, int prev_cpu, long wake_flags) {
+ *           return userspaceSelectCPU(p, prev_cpu, wake_flags);
+ *       }
+ *
+ *       @Override
+ *       public void enqueue(Ptr<task_struct> p, long enq_flags) {
+ *           userspaceEnqueue(p, enq_flags);
+ *       }
+ *
+ *       @Override
+ *       public void dispatch(int cpu, Ptr<task_struct> prev) {
+ *           userspaceDispatch();
+ *       }
+ *   }
+ *
+ *   // in Java, attaches the scheduler and never returns
+ *   program.runUserspacePolicy(new VruntimePolicy(), 20_000_000, 8, null);
+ *}
+ */
+@BPFInterface(
+        before = """
+                #define USERSCHED_SHARED_DSQ 0
+
+                #define USERSCHED_CONFIG_SLICE_NS 0
+                #define USERSCHED_CONFIG_TGID 1
+                #define USERSCHED_CONFIG_NR_DRAINED 2
+
+                #define USERSCHED_STATS_BYPASSED 0
+                #define USERSCHED_STATS_SENT 1
+                #define USERSCHED_STATS_OVERFLOWS 2
+                #define USERSCHED_STATS_DISPATCHED 3
+                #define USERSCHED_STATS_EXITED 4
+
+                struct usersched_queued_task {
+                    s32 pid;
+                    s32 tgid;
+                    s32 cpu;
+                    s32 weight;
+                    u64 sum_exec_runtime;
+                    u64 enqueue_time;
+                };
+
+                struct usersched_dispatch_decision {
+                    s32 pid;
+                    s32 cpu;
+                    u64 slice;
+                };
+
+                struct {
+                    __uint (type, BPF_MAP_TYPE_RINGBUF);
+                    __uint (max_entries, 4 * 1024 * 1024);
+                } usersched_queued SEC(".maps");
+
+                struct {
+                    __uint (type, BPF_MAP_TYPE_USER_RINGBUF);
+                    __uint (max_entries, 4 * 1024 * 1024);
+                } usersched_dispatched SEC(".maps");
+
+                struct {
+                    __uint (type, BPF_MAP_TYPE_ARRAY);
+                    __uint (map_flags, BPF_F_MMAPABLE);
+                    __type (key, u32);
+                    __type (value, u64);
+                    __uint (max_entries, 3);
+                } usersched_config SEC(".maps");
+
+                struct {
+                    __uint (type, BPF_MAP_TYPE_PERCPU_ARRAY);
+                    __type (key, u32);
+                    __type (value, u64);
+                    __uint (max_entries, 5);
+                } usersched_stats SEC(".maps");
+
+                static s32 usersched_init(void);
+                static s32 usersched_select_cpu(struct task_struct *p, s32 prev_cpu, u64 wake_flags);
+                static void usersched_enqueue(struct task_struct *p, u64 enq_flags);
+                static void usersched_dispatch(void);
+                """,
+        after = """
+                static __always_inline u64 usersched_config_get(u32 index) {
+                    u64 *value = bpf_map_lookup_elem(&usersched_config, &index);
+                    return value ? *value : 0;
+                }
+
+                static __always_inline void usersched_count(u32 index) {
+                    u64 *count = bpf_map_lookup_elem(&usersched_stats, &index);
+                    if (count) {
+                        (*count)++;
+                    }
+                }
+
+                /* the threads of the JVM and per-CPU kernel threads, PF_KTHREAD is 0x00200000 */
+                static __always_inline bool usersched_is_latency_critical(struct task_struct *p) {
+                    if ((u64) p->tgid == usersched_config_get(USERSCHED_CONFIG_TGID)) {
+                        return true;
+                    }
+                    return (p->flags & 0x00200000) != 0 && p->nr_cpus_allowed == 1;
+                }
+
+                static s32 usersched_init(void) {
+                    return scx_bpf_create_dsq(USERSCHED_SHARED_DSQ, -1);
+                }
+
+                static s32 usersched_select_cpu(struct task_struct *p, s32 prev_cpu, u64 wake_flags) {
+                    bool is_idle = false;
+                    s32 cpu = scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, &is_idle);
+                    if (is_idle) {
+                        /* an idle CPU can run the task right away, asking the policy would only add latency */
+                        scx_bpf_dispatch(p, SCX_DSQ_LOCAL, usersched_config_get(USERSCHED_CONFIG_SLICE_NS), 0);
+                        usersched_count(USERSCHED_STATS_BYPASSED);
+                    }
+                    return cpu;
+                }
+
+                static void usersched_enqueue(struct task_struct *p, u64 enq_flags) {
+                    if (usersched_is_latency_critical(p)) {
+                        scx_bpf_dispatch(p, USERSCHED_SHARED_DSQ, usersched_config_get(USERSCHED_CONFIG_SLICE_NS), enq_flags);
+                        usersched_count(USERSCHED_STATS_BYPASSED);
+                        return;
+                    }
+                    struct usersched_queued_task *task = bpf_ringbuf_reserve(&usersched_queued, sizeof(*task), 0);
+                    if (!task) {
+                        /* the policy thread lags behind, don't lose the task */
+                        scx_bpf_dispatch(p, USERSCHED_SHARED_DSQ, usersched_config_get(USERSCHED_CONFIG_SLICE_NS), enq_flags);
+                        usersched_count(USERSCHED_STATS_OVERFLOWS);
+                        return;
+                    }
+                    task->pid = p->pid;
+                    task->tgid = p->tgid;
+                    task->cpu = scx_bpf_task_cpu(p);
+                    task->weight = p->scx.weight;
+                    task->sum_exec_runtime = p->se.sum_exec_runtime;
+                    task->enqueue_time = bpf_ktime_get_ns();
+                    bpf_ringbuf_submit(task, 0);
+                    usersched_count(USERSCHED_STATS_SENT);
+                }
+
+                /* dispatch a single decision of the policy, returns 0 to continue draining and 1 to stop */
+                static long usersched_dispatch_decision(struct bpf_dynptr *dynptr, void *ctx) {
+                    struct usersched_dispatch_decision decision;
+                    if (bpf_dynptr_read(&decision, sizeof(decision), dynptr, 0, 0)) {
+                        return 1;
+                    }
+                    u32 index = USERSCHED_CONFIG_NR_DRAINED;
+                    u64 *nr_drained = bpf_map_lookup_elem(&usersched_config, &index);
+                    if (nr_drained) {
+                        __sync_fetch_and_add(nr_drained, 1);
+                    }
+                    struct task_struct *p = bpf_task_from_pid(decision.pid);
+                    if (!p) {
+                        /* the task exited in the meantime */
+                        usersched_count(USERSCHED_STATS_EXITED);
+                        return 0;
+                    }
+                    /* the kernel ignores the dispatch if the task was dequeued since it was sent to the policy,
+                       a negative CPU means any CPU */
+                    if (decision.cpu >= 0) {
+                        scx_bpf_dispatch(p, SCX_DSQ_LOCAL_ON | decision.cpu, decision.slice, 0);
+                        scx_bpf_kick_cpu(decision.cpu, SCX_KICK_IDLE);
+                    } else {
+                        scx_bpf_dispatch(p, USERSCHED_SHARED_DSQ, decision.slice, 0);
+                        s32 idle_cpu = scx_bpf_pick_idle_cpu(p->cpus_ptr, 0);
+                        if (idle_cpu >= 0) {
+                            scx_bpf_kick_cpu(idle_cpu, SCX_KICK_IDLE);
+                        }
+                    }
+                    bpf_task_release(p);
+                    usersched_count(USERSCHED_STATS_DISPATCHED);
+                    /* the rest is dispatched in the next round, when the dispatch buffer of this CPU is full */
+                    return scx_bpf_dispatch_nr_slots() == 0 ? 1 : 0;
+                }
+
+                static void usersched_dispatch(void) {
+                    bpf_user_ringbuf_drain(&usersched_dispatched, usersched_dispatch_decision, (void*)0, 0);
+                    scx_bpf_consume(USERSCHED_SHARED_DSQ);
+                }
+                """
+)
+public interface UserspaceScheduler {
+
+    /** DSQ of the tasks that bypass the policy and of the tasks that the policy sent to any CPU */
+    long SHARED_DSQ_ID = 0;
+
+    /** Indexes into the {@code usersched_config} array, the same as the {@code USERSCHED_CONFIG_*} defines */
+    int CONFIG_SLICE_NS = 0;
+    int CONFIG_TGID = 1;
+    int CONFIG_NR_DRAINED = 2;
+    int CONFIG_SIZE = 3;
+
+    /** Indexes into the {@code usersched_stats} counters, the same as the {@code USERSCHED_STATS_*} defines */
+    int STATS_BYPASSED = 0;
+    int STATS_SENT = 1;
+    int STATS_OVERFLOWS = 2;
+    int STATS_DISPATCHED = 3;
+    int STATS_EXITED = 4;
+    int STATS_SIZE = 5;
+
+    /**
+     * Deltas of the per-CPU stats counters since the previous call of the stats consumer
+     *
+     * @param bypassed     tasks that bypassed the policy
+     * @param sent         tasks sent to the policy
+     * @param overflows    tasks that bypassed the policy because the ring buffer was full
+     * @param dispatched   decisions of the policy that have been dispatched
+     * @param exited       decisions for tasks that exited in the meantime
+     * @param policyQueued tasks that are waiting for a decision of the policy
+     */
+    record Stats(long bypassed, long sent, long overflows, long dispatched, long exited, int policyQueued) {
+    }
+
+    /** Create the shared DSQ, call it in {@link Scheduler#init()} */
+    @BuiltinBPFFunction("usersched_init()")
+    @NotUsableInJava
+    default int userspaceInit() {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /** Select the CPU and dispatch the task directly if the CPU is idle, call it in {@link Scheduler#selectCPU} */
+    @BuiltinBPFFunction("usersched_select_cpu($arg1, $arg2, $arg3)")
+    @NotUsableInJava
+    default int userspaceSelectCPU(Ptr<TaskDefinitions.task_struct> p, int prev_cpu, long wake_flags) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /** Send the task to the policy, unless it is latency-critical, call it in {@link Scheduler#enqueue} */
+    @BuiltinBPFFunction("usersched_enqueue($arg1, $arg2)")
+    @NotUsableInJava
+    default void userspaceEnqueue(Ptr<TaskDefinitions.task_struct> p, long enq_flags) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /** Dispatch the decisions of the policy and consume the shared DSQ, call it in {@link Scheduler#dispatch} */
+    @BuiltinBPFFunction("usersched_dispatch()")
+    @NotUsableInJava
+    default void userspaceDispatch() {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /** Layout of {@code struct usersched_queued_task} */
+    BPFStructType<Task> TASK_TYPE = new BPFStructType<>("usersched_queued_task", List.of(
+            new BPFStructMember<>("pid", BPFIntType.INT32, 0, Task::pid),
+            new BPFStructMember<>("tgid", BPFIntType.INT32, 4, Task::tgid),
+            new BPFStructMember<>("cpu", BPFIntType.INT32, 8, Task::cpu),
+            new BPFStructMember<>("weight", BPFIntType.INT32, 12, Task::weight),
+            new BPFStructMember<>("sum_exec_runtime", BPFIntType.UINT64, 16, Task::sumExecRuntimeNs),
+            new BPFStructMember<>("enqueue_time", BPFIntType.UINT64, 24, Task::enqueueNs)),
+            new BPFType.AnnotatedClass(Task.class, List.of()),
+            objects -> new Task((int) objects.get(0), (int) objects.get(1), (int) objects.get(2),
+                    (int) objects.get(3), (long) objects.get(4), (long) objects.get(5)));
+
+    /** Layout of {@code struct usersched_dispatch_decision} */
+    BPFStructType<Decision> DECISION_TYPE = new BPFStructType<>("usersched_dispatch_decision", List.of(
+            new BPFStructMember<>("pid", BPFIntType.INT32, 0, Decision::pid),
+            new BPFStructMember<>("cpu", BPFIntType.INT32, 4, Decision::cpu),
+            new BPFStructMember<>("slice", BPFIntType.UINT64, 8, Decision::sliceNs)),
+            new BPFType.AnnotatedClass(Decision.class, List.of()),
+            objects -> new Decision((int) objects.get(0), (int) objects.get(1), (long) objects.get(2)));
+
+    /**
+     * Attach the scheduler and run the policy on the tasks that {@code enqueue} sends, never returns
+     *
+     * @param policy        decides the order, CPU and slice of the tasks, only called from the current thread
+     * @param sliceNs       slice of the tasks that bypass the policy
+     * @param maxInFlight   maximum number of decisions that {@code dispatch} didn't drain yet,
+     *                      the other tasks stay in the policy, so that tasks that are enqueued later
+     *                      can still overtake them
+     * @param statsConsumer called every 100ms with the stats since the previous call, or null
+     */
+    default void runUserspacePolicy(UserspacePolicy policy, long sliceNs, int maxInFlight,
+                                    @Nullable Consumer<Stats> statsConsumer) {
+        if (!(this instanceof BPFProgram program) || !(this instanceof Scheduler scheduler)) {
+            throw new IllegalStateException("Cannot run a userspace policy for a non-BPFProgram or non-Scheduler");
+        }
+        var config = program.getMapByName("usersched_config",
+                fd -> new BPFMmapArray<>(fd, BPFIntType.UINT64, CONFIG_SIZE));
+        var stats = program.getMapByName("usersched_stats", fd -> new PerCpuCounter(fd, STATS_SIZE));
+        var dispatched = program.getMapByName("usersched_dispatched",
+                fd -> new BPFUserRingBuffer<>(fd, DECISION_TYPE));
+        var queued = program.getRingBufferByName("usersched_queued", TASK_TYPE,
+                (buffer, task) -> policy.enqueue(task));
+        config.setLongVolatile(CONFIG_SLICE_NS, sliceNs);
+        // the process id of this JVM, all of its threads bypass the policy
+        config.setLongVolatile(CONFIG_TGID, ProcessHandle.current().pid());
+        scheduler.attachScheduler();
+        // decisions of the policy that didn't fit into the user ring buffer
+        ArrayDeque<Decision> pending = new ArrayDeque<>();
+        long sentDecisions = 0;
+        // sums of the previous stats call, the counters are never reset, so no increments get lost
+        long[] previousSums = new long[STATS_SIZE];
+        long lastStats = System.nanoTime();
+        while (true) {
+            // block till tasks are enqueued, the kernel doesn't notify when dispatch drained decisions,
+            // so only wait for a millisecond while there are decisions that didn't fit into the batch in flight
+            boolean waiting = !pending.isEmpty() || policy.queued() > 0;
+            queued.pollAndThrow(waiting ? 1 : (statsConsumer != null ? 100 : -1));
+            long inFlight = sentDecisions - config.getLongVolatile(CONFIG_NR_DRAINED);
+            sentDecisions += sendDecisions(policy, dispatched, pending, maxInFlight - inFlight);
+            if (statsConsumer != null && System.nanoTime() - lastStats > 100_000_000) {
+                lastStats = System.nanoTime();
+                long[] sums = stats.sums();
+                statsConsumer.accept(new Stats(sums[STATS_BYPASSED] - previousSums[STATS_BYPASSED],
+                        sums[STATS_SENT] - previousSums[STATS_SENT],
+                        sums[STATS_OVERFLOWS] - previousSums[STATS_OVERFLOWS],
+                        sums[STATS_DISPATCHED] - previousSums[STATS_DISPATCHED],
+                        sums[STATS_EXITED] - previousSums[STATS_EXITED], policy.queued()));
+                previousSums = sums;
+            }
+        }
+    }
+
+    /**
+     * Send pending decisions and then decisions of the policy, until the batch in flight is full
+     *
+     * @return number of sent decisions
+     */
+    private static int sendDecisions(UserspacePolicy policy, BPFUserRingBuffer<Decision> dispatched,
+                                     ArrayDeque<Decision> pending, long free) {
+        List<Decision> batch = new ArrayList<>();
+        while (batch.size() < free) {
+            if (!pending.isEmpty()) {
+                batch.add(pending.poll());
+                continue;
+            }
+            Decision decision = policy.next();
+            if (decision == null) {
+                break;
+            }
+            batch.add(decision);
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        int sent = dispatched.offerAll(batch);
+        for (int i = batch.size() - 1; i >= sent; i--) {
+            pending.addFirst(batch.get(i));
+        }
+        return sent;
+    }
+}
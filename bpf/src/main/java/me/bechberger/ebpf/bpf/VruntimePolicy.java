@@ -0,0 +1,94 @@
+package me.bechberger.ebpf.bpf;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Weighted virtual runtime policy, similar to the default policy of {@code scx_rustland}
+ * <p>
+ * The task with the smallest virtual runtime runs next, tasks that slept get at most one slice of credit.
+ * The slice shrinks with the number of waiting tasks, so that every task gets to run soon.
+ */
+public class VruntimePolicy implements UserspacePolicy {
+
+    public static final int DEFAULT_WEIGHT = 100;
+
+    private static final int MAX_TASKS = 64 * 1024;
+
+    private record Entry(int pid, long vruntime, long seq) {
+    }
+
+    private static final class TaskState {
+        long vruntime;
+        long lastSumExecRuntimeNs;
+
+        TaskState(long vruntime, long sumExecRuntimeNs) {
+            this.vruntime = vruntime;
+            this.lastSumExecRuntimeNs = sumExecRuntimeNs;
+        }
+    }
+
+    private final long sliceNs;
+    private final long minSliceNs;
+
+    // bounded, as the policy doesn't learn when a task exits, evicts the least recently enqueued task
+    private final Map<Integer, TaskState> tasks = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, TaskState> eldest) {
+            return size() > MAX_TASKS;
+        }
+    };
+    private final PriorityQueue<Entry> queue =
+            new PriorityQueue<>(Comparator.comparingLong(Entry::vruntime).thenComparingLong(Entry::seq));
+    // entry of every queued task, a task that is enqueued again before its decision has been drained replaces it
+    private final Map<Integer, Entry> queuedEntries = new HashMap<>();
+    private long minVruntime = 0;
+    private long seq = 0;
+
+    public VruntimePolicy() {
+        this(20_000_000, 500_000);
+    }
+
+    public VruntimePolicy(long sliceNs, long minSliceNs) {
+        this.sliceNs = sliceNs;
+        this.minSliceNs = minSliceNs;
+    }
+
+    @Override
+    public void enqueue(Task task) {
+        TaskState state = tasks.computeIfAbsent(task.pid(), pid -> new TaskState(minVruntime, task.sumExecRuntimeNs()));
+        long ran = Math.max(0, task.sumExecRuntimeNs() - state.lastSumExecRuntimeNs);
+        state.lastSumExecRuntimeNs = task.sumExecRuntimeNs();
+        state.vruntime += ran * DEFAULT_WEIGHT / Math.max(1, task.weight());
+        // tasks that slept for a long time would otherwise starve all others
+        state.vruntime = Math.max(state.vruntime, minVruntime - sliceNs);
+        Entry entry = new Entry(task.pid(), state.vruntime, seq++);
+        Entry previous = queuedEntries.put(task.pid(), entry);
+        if (previous != null) {
+            queue.remove(previous);
+        }
+        queue.add(entry);
+    }
+
+    @Override
+    public @Nullable Decision next() {
+        Entry entry = queue.poll();
+        if (entry == null) {
+            return null;
+        }
+        queuedEntries.remove(entry.pid());
+        minVruntime = Math.max(minVruntime, entry.vruntime());
+        long slice = Math.max(minSliceNs, sliceNs / (queue.size() + 1));
+        return new Decision(entry.pid(), Decision.ANY_CPU, slice);
+    }
+
+    @Override
+    public int queued() {
+        return queue.size();
+    }
+}
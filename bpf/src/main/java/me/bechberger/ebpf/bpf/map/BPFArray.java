@@ -3,11 +3,14 @@ package me.bechberger.ebpf.bpf.map;
 import me.bechberger.ebpf.annotations.Unsigned;
 import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
 import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.BPFError;
 import me.bechberger.ebpf.type.BPFType;
 import me.bechberger.ebpf.type.BPFType.BPFIntType;
 
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Spliterator;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
@@ -52,10 +55,19 @@ public class BPFArray<V> extends BPFBaseMap<@Unsigned Integer, V> {
         put(i, value);
     }
 
-    /** Copy as many values as possible */
+    /**
+     * Copy as many values as possible, using a single batch update if possible
+     *
+     * @throws BPFError if not all values could be written
+     */
     public void copy(Iterable<V> values) {
+        Map<Integer, V> entries = new LinkedHashMap<>();
         AtomicInteger index = new AtomicInteger(-1);
         StreamSupport.stream(values.spliterator(), false).limit(size)
-                .forEach(v -> put(index.incrementAndGet(), v));
+                .forEach(v -> entries.put(index.incrementAndGet(), v));
+        int written = updateBatch(entries);
+        if (written != entries.size()) {
+            throw new BPFError("Copied only " + written + " of " + entries.size() + " values into array");
+        }
     }
 }
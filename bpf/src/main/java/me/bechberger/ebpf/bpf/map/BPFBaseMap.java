@@ -7,19 +7,29 @@ import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
 import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
 import me.bechberger.ebpf.bpf.BPFError;
 import me.bechberger.ebpf.bpf.raw.Lib;
+import me.bechberger.ebpf.bpf.raw.bpf_map_batch_opts;
 import me.bechberger.ebpf.runtime.runtime;
 import me.bechberger.ebpf.runtime.runtime.key;
 import me.bechberger.ebpf.type.BPFType;
 import me.bechberger.ebpf.shared.PanamaUtil;
 import me.bechberger.ebpf.type.Enum;
 import me.bechberger.ebpf.type.Ptr;
+import me.bechberger.ebpf.type.StructView;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
 
 /**
  * A base map based on <a href="https://docs.kernel.org/bpf/map_hash.html">BPF hash map</a>
@@ -31,9 +41,29 @@ import java.util.function.BiConsumer;
  */
 public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>> {
 
+    /**
+     * Default number of entries that are transferred per batch syscall
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
     private final BPFType<K> keyType;
     private final BPFType<V> valueType;
 
+    /**
+     * Batch operations that the kernel rejected for this map, these are emulated with per-key operations
+     * <p>
+     * Concurrent, as it is updated from spliterators and stream workers while other threads read it
+     */
+    private final Set<BatchOperation> unsupportedBatchOperations = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Per-thread key and value buffers, only used if {@link #reuseBuffers} is set
+     * or for the primitive access methods
+     */
+    private final ThreadLocal<Scratch> threadScratch = ThreadLocal.withInitial(() -> newScratch(Arena.ofAuto()));
+
+    private volatile boolean reuseBuffers = false;
+
     public BPFBaseMap(FileDescriptor fd, MapTypeId mapType, BPFType<K> keyType, BPFType<V> valueType) {
         super(mapType, fd);
         this.keyType = keyType;
@@ -48,6 +78,36 @@ public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>
         return valueType;
     }
 
+    /**
+     * Distance between two values in the buffers that are passed to the kernel,
+     * equal to the value size of the map for all non per-CPU maps
+     */
+    protected long valueStride() {
+        return info.valueSize();
+    }
+
+    /**
+     * Size of a buffer that can hold a single value, types might be larger than the
+     * declared map value size (e.g. strings)
+     */
+    protected long valueBufferSize() {
+        return Math.max(valueStride(), valueType.size());
+    }
+
+    /** Parse a value from a buffer filled by the kernel */
+    protected V parseValue(MemorySegment segment) {
+        return valueType.parseMemory(segment);
+    }
+
+    /** Store a value into a buffer of at least {@link #valueBufferSize()} bytes */
+    protected void storeValue(MemorySegment segment, V value) {
+        valueType.setMemory(segment, value);
+    }
+
+    private MemorySegment allocateValue(Arena arena) {
+        return arena.allocate(valueBufferSize(), 8);
+    }
+
     public static class BPFHashMapError extends BPFError {
         public BPFHashMapError(String message, int errorCode) {
             super(message, errorCode);
@@ -93,9 +153,13 @@ public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>
      */
     @BuiltinBPFFunction("!bpf_map_update_elem(&$this, $pointery$arg1, $pointery$arg2, $arg3)")
     public boolean put(K key, V value, PutMode mode) {
+        if (reuseBuffers) {
+            return put(key, value, mode, threadScratch.get());
+        }
         try (var arena = Arena.ofConfined()) {
             var keySegment = keyType.allocate(arena, Objects.requireNonNull(key));
-            var valueSegment = valueType.allocate(arena, Objects.requireNonNull(value));
+            var valueSegment = allocateValue(arena);
+            storeValue(valueSegment, Objects.requireNonNull(value));
             var ret = Lib.bpf_map_update_elem(fd.fd(), keySegment, valueSegment, mode.mode);
             return ret == 0;
         }
@@ -122,14 +186,17 @@ public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>
      */
     @BPFFunctionAlternative("bpf_get")
     public V get(K key) {
+        if (reuseBuffers) {
+            return get(key, threadScratch.get());
+        }
         try (var arena = Arena.ofConfined()) {
             var keySegment = keyType.allocate(arena, Objects.requireNonNull(key));
-            var valueSegment = valueType.allocate(arena);
+            var valueSegment = allocateValue(arena);
             var ret = Lib.bpf_map_lookup_elem(fd.fd(), keySegment, valueSegment);
             if (ret != 0) {
                 return null;
             }
-            return valueType.parseMemory(valueSegment);
+            return parseValue(valueSegment);
         }
     }
 
@@ -143,6 +210,9 @@ public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>
      * @return false on error
      */
     public boolean delete(K key) {
+        if (reuseBuffers) {
+            return delete(key, threadScratch.get());
+        }
         try (var arena = Arena.ofConfined()) {
             var keySegment = keyType.allocate(arena, Objects.requireNonNull(key));
             var ret = Lib.bpf_map_delete_elem(fd.fd(), keySegment);
@@ -150,6 +220,364 @@ public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>
         }
     }
 
+    /**
+     * Native key and value buffers that are reused across map operations to avoid allocating
+     * a new {@link Arena} per operation
+     * <p>
+     * A scratch must not be used by multiple threads at the same time,
+     * use {@link #scratch()} to get the one of the current thread
+     * or {@link #newScratch(Arena)} to create one with a custom lifetime
+     *
+     * @param key   buffer for the key, at least as large as the map key
+     * @param value buffer for the value, at least as large as the map value
+     */
+    public record Scratch(MemorySegment key, MemorySegment value) {
+
+        /**
+         * Zero the key buffer, so that padding bytes don't leak from the previous key into the lookup
+         */
+        MemorySegment clearedKey() {
+            return key.fill((byte) 0);
+        }
+
+        MemorySegment clearedValue() {
+            return value.fill((byte) 0);
+        }
+    }
+
+    /**
+     * Allocate a scratch for this map in the passed arena
+     */
+    public Scratch newScratch(Arena arena) {
+        return new Scratch(arena.allocate(Math.max(info.keySize(), keyType.size()), 8),
+                allocateValue(arena));
+    }
+
+    /**
+     * Scratch of the current thread, lazily allocated and kept alive as long as the thread and the map
+     */
+    public Scratch scratch() {
+        return threadScratch.get();
+    }
+
+    /**
+     * Use the per-thread scratch buffers for {@link #get(Object)}, {@link #put(Object, Object, PutMode)}
+     * and {@link #delete(Object)} instead of allocating new native memory per call
+     *
+     * @return this map
+     */
+    public BPFBaseMap<K, V> reuseBuffers(boolean reuse) {
+        this.reuseBuffers = reuse;
+        return this;
+    }
+
+    public boolean reusesBuffers() {
+        return reuseBuffers;
+    }
+
+    /**
+     * Get a value from the map, using the passed buffers
+     * @return value or null if not found
+     */
+    public V get(K key, Scratch scratch) {
+        var keySegment = scratch.clearedKey();
+        keyType.setMemory(keySegment, Objects.requireNonNull(key));
+        if (Lib.bpf_map_lookup_elem(fd.fd(), keySegment, scratch.value()) != 0) {
+            return null;
+        }
+        return parseValue(scratch.value());
+    }
+
+    /**
+     * Put a value into the map, using the passed buffers
+     * @return success?
+     */
+    public boolean put(K key, V value, PutMode mode, Scratch scratch) {
+        var keySegment = scratch.clearedKey();
+        keyType.setMemory(keySegment, Objects.requireNonNull(key));
+        var valueSegment = scratch.clearedValue();
+        storeValue(valueSegment, Objects.requireNonNull(value));
+        return Lib.bpf_map_update_elem(fd.fd(), keySegment, valueSegment, mode.mode) == 0;
+    }
+
+    /**
+     * Delete a value from the map, using the passed buffers
+     * @return false on error
+     */
+    public boolean delete(K key, Scratch scratch) {
+        var keySegment = scratch.clearedKey();
+        keyType.setMemory(keySegment, Objects.requireNonNull(key));
+        return Lib.bpf_map_delete_elem(fd.fd(), keySegment) == 0;
+    }
+
+    /**
+     * Create a view of the value type, with its own buffer in the passed arena
+     *
+     * @param <W> generated view class of the value type
+     * @throws IllegalArgumentException if the value type is not a struct with a generated view
+     * @see #getView(Object, StructView)
+     */
+    public <W extends StructView<V>> W newView(Arena arena) {
+        return StructView.create(valueType, allocateValue(arena));
+    }
+
+    /**
+     * Look up the value and return a view of it, without parsing it
+     * <p>
+     * The view uses the per-thread scratch buffer and is only valid till the next operation
+     * of the current thread on this map
+     *
+     * @param <W> generated view class of the value type
+     * @return view or null if not found
+     * @throws IllegalArgumentException if the value type is not a struct with a generated view
+     */
+    public <W extends StructView<V>> @Nullable W getView(K key) {
+        return getView(key, StructView.<V, W>create(valueType, threadScratch.get().value()));
+    }
+
+    /**
+     * Look up the value into the segment of the passed view, e.g. one created via {@link #newView(Arena)}
+     *
+     * @return the passed view or null if not found
+     */
+    public <W extends StructView<V>> @Nullable W getView(K key, W view) {
+        var keySegment = threadScratch.get().clearedKey();
+        keyType.setMemory(keySegment, Objects.requireNonNull(key));
+        if (Lib.bpf_map_lookup_elem(fd.fd(), keySegment, view.segment()) != 0) {
+            return null;
+        }
+        return view;
+    }
+
+    /**
+     * Call the action for every entry in the map with a view of the value
+     * <p>
+     * The keys are parsed, the values not. The view is reused for all entries
+     * and only valid during the call of the action.
+     *
+     * @param <W> generated view class of the value type
+     * @throws IllegalArgumentException if the value type is not a struct with a generated view
+     */
+    public <W extends StructView<V>> void forEachView(BiConsumer<? super K, ? super W> action) {
+        try (var arena = Arena.ofConfined()) {
+            W view = newView(arena);
+            var key = keyType.allocate(arena);
+            var nextKey = keyType.allocate(arena);
+            var prev = MemorySegment.NULL;
+            while (Lib.bpf_map_get_next_key(fd.fd(), prev, nextKey) == 0) {
+                // entries might be deleted concurrently
+                if (Lib.bpf_map_lookup_elem(fd.fd(), nextKey, view.segment()) == 0) {
+                    action.accept(keyType.parseMemory(nextKey), view);
+                }
+                var tmp = key;
+                key = nextKey;
+                nextKey = tmp;
+                prev = key;
+            }
+        }
+    }
+
+    /**
+     * Store an integer of the given byte size (1, 2, 4 or 8) at the start of the segment
+     */
+    static void setIntegral(MemorySegment segment, int size, long value) {
+        switch (size) {
+            case 1 -> segment.set(ValueLayout.JAVA_BYTE, 0, (byte) value);
+            case 2 -> segment.set(ValueLayout.JAVA_SHORT_UNALIGNED, 0, (short) value);
+            case 4 -> segment.set(ValueLayout.JAVA_INT_UNALIGNED, 0, (int) value);
+            case 8 -> segment.set(ValueLayout.JAVA_LONG_UNALIGNED, 0, value);
+            default -> throw new IllegalStateException("Not an integral type of size " + size);
+        }
+    }
+
+    /**
+     * Load an integer of the given byte size (1, 2, 4 or 8) from the start of the segment
+     */
+    static long getIntegral(MemorySegment segment, int size, boolean unsigned) {
+        return getIntegral(segment, 0, size, unsigned);
+    }
+
+    /**
+     * Load an integer of the given byte size (1, 2, 4 or 8) at the offset
+     */
+    static long getIntegral(MemorySegment segment, long offset, int size, boolean unsigned) {
+        return switch (size) {
+            case 1 -> unsigned ? Byte.toUnsignedLong(segment.get(ValueLayout.JAVA_BYTE, offset)) :
+                    segment.get(ValueLayout.JAVA_BYTE, offset);
+            case 2 -> unsigned ? Short.toUnsignedLong(segment.get(ValueLayout.JAVA_SHORT_UNALIGNED, offset)) :
+                    segment.get(ValueLayout.JAVA_SHORT_UNALIGNED, offset);
+            case 4 -> unsigned ? Integer.toUnsignedLong(segment.get(ValueLayout.JAVA_INT_UNALIGNED, offset)) :
+                    segment.get(ValueLayout.JAVA_INT_UNALIGNED, offset);
+            case 8 -> segment.get(ValueLayout.JAVA_LONG_UNALIGNED, offset);
+            default -> throw new IllegalStateException("Not an integral type of size " + size);
+        };
+    }
+
+    /**
+     * Is the type an unsigned integer type, looking through typedefs and alignment wrappers
+     */
+    static boolean isUnsignedIntegral(BPFType<?> type) {
+        return switch (type) {
+            case BPFType.BPFIntType<?> intType -> !intType.isSigned();
+            case BPFType.WrappedBPFType<?> wrapped -> isUnsignedIntegral(wrapped.type());
+            case BPFType.BPFInternalTypedef<?> typedef -> isUnsignedIntegral(typedef.wrapped());
+            default -> false;
+        };
+    }
+
+    /**
+     * Is the type an integer type, looking through typedefs and alignment wrappers
+     */
+    static boolean isIntegral(BPFType<?> type) {
+        return switch (type) {
+            case BPFType.BPFIntType<?> intType -> true;
+            case BPFType.WrappedBPFType<?> wrapped -> isIntegral(wrapped.type());
+            case BPFType.BPFInternalTypedef<?> typedef -> isIntegral(typedef.wrapped());
+            default -> false;
+        };
+    }
+
+    /**
+     * Check that the key and, if requested, the value type are integral, as required by the primitive access methods
+     *
+     * @throws IllegalArgumentException otherwise
+     */
+    private void checkIntegral(boolean checkValue) {
+        if (!isIntegral(keyType)) {
+            throw new IllegalArgumentException("Primitive access requires an integral key type, but the key type is "
+                    + keyType.bpfName());
+        }
+        if (checkValue && !isIntegral(primitiveValueType())) {
+            throw new IllegalArgumentException("Primitive access requires an integral value type, but the value type is "
+                    + primitiveValueType().bpfName());
+        }
+    }
+
+    /**
+     * Type of the integers that the primitive access methods read and write, the value type for all
+     * maps but per-CPU maps
+     */
+    protected BPFType<?> primitiveValueType() {
+        return valueType;
+    }
+
+    /**
+     * Load the primitive value from a value buffer at the given offset, the type is {@link #primitiveValueType()}
+     */
+    protected long loadLong(MemorySegment values, long offset) {
+        return getIntegral(values, offset, info.valueSize(), isUnsignedIntegral(valueType));
+    }
+
+    /**
+     * Store the primitive value into a cleared value buffer, the type is {@link #primitiveValueType()}
+     */
+    protected void storeLong(MemorySegment value, long primitive) {
+        setIntegral(value, info.valueSize(), primitive);
+    }
+
+    /**
+     * Get the value for an integral key as a primitive, without boxing and without allocation
+     * <p>
+     * Only works for maps with integer keys and values (like {@code BPFHashMap<@Unsigned Integer, @Unsigned Long>}),
+     * unsigned values are zero-extended
+     *
+     * @param key     key, truncated to the key size of the map
+     * @param missing value returned if the key is not present
+     * @return value or {@code missing}
+     * @throws IllegalArgumentException if the key or value type is not integral
+     */
+    public long getLong(long key, long missing) {
+        checkIntegral(true);
+        var scratch = threadScratch.get();
+        setIntegral(scratch.key(), info.keySize(), key);
+        if (Lib.bpf_map_lookup_elem(fd.fd(), scratch.key(), scratch.value()) != 0) {
+            return missing;
+        }
+        return loadLong(scratch.value(), 0);
+    }
+
+    /**
+     * Put a primitive value for an integral key, without boxing and without allocation
+     *
+     * @return success?
+     * @throws IllegalArgumentException if the key or value type is not integral
+     * @see #getLong(long, long)
+     */
+    public boolean putLong(long key, long value, PutMode mode) {
+        checkIntegral(true);
+        var scratch = threadScratch.get();
+        setIntegral(scratch.key(), info.keySize(), key);
+        storeLong(scratch.clearedValue(), value);
+        return Lib.bpf_map_update_elem(fd.fd(), scratch.key(), scratch.value(), mode.mode) == 0;
+    }
+
+    /**
+     * Put a primitive value for an integral key, updating it if it's already there
+     *
+     * @return success?
+     * @see #getLong(long, long)
+     */
+    public boolean putLong(long key, long value) {
+        return putLong(key, value, PutMode.BPF_ANY);
+    }
+
+    /**
+     * Delete the entry for an integral key, without boxing and without allocation
+     *
+     * @return false on error
+     * @throws IllegalArgumentException if the key type is not integral
+     */
+    public boolean deleteLong(long key) {
+        checkIntegral(false);
+        var scratch = threadScratch.get();
+        setIntegral(scratch.key(), info.keySize(), key);
+        return Lib.bpf_map_delete_elem(fd.fd(), scratch.key()) == 0;
+    }
+
+    /**
+     * Called with the key and value of an entry of a map with integer keys and values
+     */
+    @FunctionalInterface
+    public interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+
+    /**
+     * Call the action for every entry of a map with integer keys and values, without boxing,
+     * using batch lookups if possible
+     * <p>
+     * Unsigned keys and values are zero-extended
+     *
+     * @throws IllegalArgumentException if the key or value type is not integral
+     * @see #getLong(long, long)
+     */
+    public void forEachLong(LongLongConsumer action) {
+        checkIntegral(true);
+        int keySize = info.keySize();
+        boolean unsignedKey = isUnsignedIntegral(keyType);
+        RawEntryConsumer raw = (keys, keyOffset, values, valueOffset) ->
+                action.accept(getIntegral(keys, keyOffset, keySize, unsignedKey), loadLong(values, valueOffset));
+        if (lookupBatchRaw(BatchOperation.LOOKUP, DEFAULT_BATCH_SIZE, raw)) {
+            return;
+        }
+        try (var arena = Arena.ofConfined()) {
+            var key = arena.allocate(keySize, 8);
+            var nextKey = arena.allocate(keySize, 8);
+            var value = allocateValue(arena);
+            var prev = MemorySegment.NULL;
+            while (Lib.bpf_map_get_next_key(fd.fd(), prev, nextKey) == 0) {
+                // entries might be deleted concurrently
+                if (Lib.bpf_map_lookup_elem(fd.fd(), nextKey, value) == 0) {
+                    raw.accept(nextKey, 0, value, 0);
+                }
+                var tmp = key;
+                key = nextKey;
+                nextKey = tmp;
+                prev = key;
+            }
+        }
+    }
+
     /**
      * Iterate over all keys in the map
      */
@@ -236,27 +664,21 @@ public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>
 
 
     /**
-     * Get all values in the map
+     * Get all values in the map, using batch lookups if possible
      * @return set of values
      */
     public Set<V> values() {
         Set<V> values = new HashSet<>();
-        for (K key : keySet()) {
-            values.add(get(key));
-        }
+        forEach((key, value) -> values.add(value));
         return values;
     }
 
     /**
-     * Get all entries in the map
+     * Get all entries in the map, using batch lookups if possible
      * @return set of entries
      */
     public Set<Map.Entry<K, V>> entrySet() {
-        Set<Map.Entry<K, V>> entries = new HashSet<>();
-        for (K key : keySet()) {
-            entries.add(new AbstractMap.SimpleEntry<>(key, get(key)));
-        }
-        return entries;
+        return new HashSet<>(lookupBatch());
     }
 
     public boolean isEmpty() {
@@ -275,7 +697,13 @@ public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>
         }
     }
 
+    /**
+     * Call the action for every entry in the map, using batch lookups if possible
+     */
     public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (lookupBatch(BatchOperation.LOOKUP, DEFAULT_BATCH_SIZE, action)) {
+            return;
+        }
         for (Map.Entry<K, V> entry : this) {
             action.accept(entry.getKey(), entry.getValue());
         }
@@ -306,11 +734,556 @@ public class BPFBaseMap<K, V> extends BPFMap implements Iterable<Map.Entry<K, V>
     }
 
     /**
-     * Clear the map
+     * Clear the map, using batch deletions if possible
      */
     public void clear() {
-        for (K key : keySet()) {
-            delete(key);
+        if (lookupBatch(BatchOperation.LOOKUP_AND_DELETE, DEFAULT_BATCH_SIZE, (k, v) -> {})) {
+            return;
+        }
+        deleteBatch(keySet());
+    }
+
+    /**
+     * Batch operations of the {@code bpf} syscall,
+     * see <a href="https://docs.kernel.org/bpf/map_hash.html">the kernel documentation</a>
+     */
+    enum BatchOperation {
+        LOOKUP, LOOKUP_AND_DELETE, UPDATE, DELETE
+    }
+
+    /**
+     * Checks whether the kernel supported the batch operation for this map the last time it was used
+     */
+    boolean supportsBatch(BatchOperation operation) {
+        return !unsupportedBatchOperations.contains(operation);
+    }
+
+    private static boolean isBatchUnsupportedError(int ret) {
+        return ret == -PanamaUtil.ERRNO_EINVAL || ret == -PanamaUtil.ERRNO_EOPNOTSUPP
+                || ret == -PanamaUtil.ERRNO_ENOTSUPP;
+    }
+
+    private static MemorySegment allocateBatchOpts(Arena arena, long elemFlags) {
+        var opts = bpf_map_batch_opts.allocate(arena);
+        opts.fill((byte) 0);
+        bpf_map_batch_opts.sz(opts, bpf_map_batch_opts.sizeof());
+        bpf_map_batch_opts.elem_flags(opts, elemFlags);
+        return opts;
+    }
+
+    /**
+     * Allocate a buffer for {@code count} elements, using the element size of the map as the stride
+     * <p>
+     * Types might be larger than the declared map element size (e.g. strings), so the buffer has room
+     * for the last element being written with its full size
+     */
+    private static MemorySegment allocateBatchBuffer(Arena arena, long stride, long elementSize, int count) {
+        return arena.allocate(stride * (count - 1) + Math.max(stride, elementSize), 8);
+    }
+
+    /**
+     * Look up all entries with the batch syscalls and pass them to the action,
+     * the action is called after every transferred batch
+     *
+     * @param operation either {@link BatchOperation#LOOKUP} or {@link BatchOperation#LOOKUP_AND_DELETE}
+     * @param batchSize initial number of entries per syscall, increased if a hash bucket doesn't fit
+     * @return false if batch operations are not supported for this map, nothing has been passed to the action then
+     * @throws BPFHashMapError if a batch syscall fails for another reason
+     */
+    boolean lookupBatch(BatchOperation operation, int batchSize, BiConsumer<? super K, ? super V> action) {
+        return lookupBatchRaw(operation, batchSize, (keys, keyOffset, values, valueOffset) ->
+                action.accept(keyType.parseMemory(keys.asSlice(keyOffset)), parseValue(values.asSlice(valueOffset))));
+    }
+
+    /**
+     * Called with the buffers of a transferred entry, without parsing the key and the value
+     */
+    @FunctionalInterface
+    interface RawEntryConsumer {
+        void accept(MemorySegment keys, long keyOffset, MemorySegment values, long valueOffset);
+    }
+
+    /**
+     * Like {@link #lookupBatch(BatchOperation, int, BiConsumer)}, but passes the raw buffers to the action
+     */
+    boolean lookupBatchRaw(BatchOperation operation, int batchSize, RawEntryConsumer action) {
+        if (!supportsBatch(operation)) {
+            return false;
+        }
+        int keySize = info.keySize();
+        long valueSize = valueStride();
+        // hash maps use a 32-bit bucket index as the batch token, arrays the key
+        int tokenSize = Math.max(keySize, 8);
+        try (var arena = Arena.ofConfined()) {
+            var opts = allocateBatchOpts(arena, 0);
+            var inBatch = arena.allocate(tokenSize, 8);
+            var outBatch = arena.allocate(tokenSize, 8);
+            var count = arena.allocate(JAVA_INT);
+            int size = Math.max(1, Math.min(batchSize, getMaxEntries()));
+            var keys = allocateBatchBuffer(arena, keySize, keyType.size(), size);
+            var values = allocateBatchBuffer(arena, valueSize, valueBufferSize(), size);
+            boolean first = true;
+            while (true) {
+                count.set(JAVA_INT, 0, size);
+                var in = first ? MemorySegment.NULL : inBatch;
+                int ret = operation == BatchOperation.LOOKUP ?
+                        Lib.bpf_map_lookup_batch(fd.fd(), in, outBatch, keys, values, count, opts) :
+                        Lib.bpf_map_lookup_and_delete_batch(fd.fd(), in, outBatch, keys, values, count, opts);
+                int transferred = count.get(JAVA_INT, 0);
+                if (ret != 0 && ret != -PanamaUtil.ERRNO_ENOENT) {
+                    if (ret == -PanamaUtil.ERRNO_ENOSPC && transferred == 0) {
+                        // a single hash bucket has more entries than fit into the buffers
+                        size *= 2;
+                        keys = allocateBatchBuffer(arena, keySize, keyType.size(), size);
+                        values = allocateBatchBuffer(arena, valueSize, valueBufferSize(), size);
+                        continue;
+                    }
+                    if (first && isBatchUnsupportedError(ret)) {
+                        unsupportedBatchOperations.add(operation);
+                        return false;
+                    }
+                    throw new BPFHashMapError("Failed to " + operation.name().toLowerCase() + " batch", ret);
+                }
+                for (int i = 0; i < transferred; i++) {
+                    action.accept(keys, (long) i * keySize, values, i * valueSize);
+                }
+                if (ret == -PanamaUtil.ERRNO_ENOENT) {
+                    return true;
+                }
+                MemorySegment.copy(outBatch, 0, inBatch, 0, tokenSize);
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Get all entries of the map with as few syscalls as possible
+     * <p>
+     * Uses {@code BPF_MAP_LOOKUP_BATCH} and falls back to iterating over the keys
+     * on kernels or map types that don't support it. The result is not an atomic snapshot.
+     *
+     * @return all entries of the map
+     */
+    public List<Map.Entry<K, V>> lookupBatch() {
+        List<Map.Entry<K, V>> entries = new ArrayList<>();
+        if (!lookupBatch(BatchOperation.LOOKUP, DEFAULT_BATCH_SIZE,
+                (key, value) -> entries.add(new AbstractMap.SimpleEntry<>(key, value)))) {
+            for (Map.Entry<K, V> entry : this) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Get and remove all entries of the map with as few syscalls as possible
+     * <p>
+     * Uses {@code BPF_MAP_LOOKUP_AND_DELETE_BATCH} and falls back to getting and deleting every key
+     * on kernels or map types that don't support it.
+     *
+     * @return all removed entries
+     */
+    public List<Map.Entry<K, V>> lookupAndDeleteBatch() {
+        List<Map.Entry<K, V>> entries = new ArrayList<>();
+        if (!lookupBatch(BatchOperation.LOOKUP_AND_DELETE, DEFAULT_BATCH_SIZE,
+                (key, value) -> entries.add(new AbstractMap.SimpleEntry<>(key, value)))) {
+            for (K key : keySet()) {
+                var value = get(key);
+                if (value != null && delete(key)) {
+                    entries.add(new AbstractMap.SimpleEntry<>(key, value));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Put all entries into the map with as few syscalls as possible
+     * <p>
+     * Uses {@code BPF_MAP_UPDATE_BATCH} and falls back to {@link #put(Object, Object, PutMode)}
+     * on kernels or map types that don't support it
+     *
+     * @param entries entries to put
+     * @param mode    put mode used for every entry
+     * @return number of entries that were put, the batch stops at the first failing entry
+     */
+    public int updateBatch(Map<K, V> entries, PutMode mode) {
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        if (supportsBatch(BatchOperation.UPDATE)) {
+            int keySize = info.keySize();
+            long valueSize = valueStride();
+            try (var arena = Arena.ofConfined()) {
+                var keys = allocateBatchBuffer(arena, keySize, keyType.size(), entries.size());
+                var values = allocateBatchBuffer(arena, valueSize, valueBufferSize(), entries.size());
+                int i = 0;
+                for (var entry : entries.entrySet()) {
+                    keyType.setMemory(keys.asSlice((long) i * keySize), Objects.requireNonNull(entry.getKey()));
+                    storeValue(values.asSlice(i * valueSize), Objects.requireNonNull(entry.getValue()));
+                    i++;
+                }
+                var count = PanamaUtil.allocateIntRef(arena, entries.size());
+                int ret = Lib.bpf_map_update_batch(fd.fd(), keys, values, count, allocateBatchOpts(arena, mode.mode));
+                int updated = count.get(JAVA_INT, 0);
+                if (ret == 0 || updated > 0 || !isBatchUnsupportedError(ret)) {
+                    return ret == 0 ? entries.size() : updated;
+                }
+                unsupportedBatchOperations.add(BatchOperation.UPDATE);
+            }
+        }
+        int updated = 0;
+        for (var entry : entries.entrySet()) {
+            if (!put(entry.getKey(), entry.getValue(), mode)) {
+                break;
+            }
+            updated++;
+        }
+        return updated;
+    }
+
+    /**
+     * Put all entries into the map with as few syscalls as possible, updating existing entries
+     *
+     * @see #updateBatch(Map, PutMode)
+     */
+    public int updateBatch(Map<K, V> entries) {
+        return updateBatch(entries, PutMode.BPF_ANY);
+    }
+
+    /**
+     * Delete all passed keys with as few syscalls as possible
+     * <p>
+     * Uses {@code BPF_MAP_DELETE_BATCH} and falls back to {@link #delete(Object)}
+     * on kernels or map types that don't support it
+     *
+     * @param keys keys to delete
+     * @return number of deleted entries, the batch stops at the first key that could not be deleted
+     */
+    public int deleteBatch(Collection<K> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+        if (supportsBatch(BatchOperation.DELETE)) {
+            int keySize = info.keySize();
+            try (var arena = Arena.ofConfined()) {
+                var keySegments = allocateBatchBuffer(arena, keySize, keyType.size(), keys.size());
+                int i = 0;
+                for (K key : keys) {
+                    keyType.setMemory(keySegments.asSlice((long) i * keySize), Objects.requireNonNull(key));
+                    i++;
+                }
+                var count = PanamaUtil.allocateIntRef(arena, keys.size());
+                int ret = Lib.bpf_map_delete_batch(fd.fd(), keySegments, count, allocateBatchOpts(arena, 0));
+                int deleted = count.get(JAVA_INT, 0);
+                if (ret == 0 || deleted > 0 || !isBatchUnsupportedError(ret)) {
+                    return ret == 0 ? keys.size() : deleted;
+                }
+                unsupportedBatchOperations.add(BatchOperation.DELETE);
+            }
+        }
+        int deleted = 0;
+        for (K key : keys) {
+            if (!delete(key)) {
+                break;
+            }
+            deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Lazy stream of the entries, fetched in chunks of {@link #DEFAULT_BATCH_SIZE} entries
+     *
+     * @see #spliterator(int)
+     */
+    public Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Lazy parallel stream of the entries, the chunks are parsed in parallel
+     *
+     * @see #spliterator(int)
+     */
+    public Stream<Map.Entry<K, V>> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return spliterator(DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Spliterator that fetches the entries lazily in chunks, using batch lookups if possible
+     * <p>
+     * Every chunk is obtained with a single syscall and only parsed when its entries are consumed.
+     * {@link Spliterator#trySplit()} splits off the next chunk, so parallel streams parse the chunks
+     * concurrently, while the map is still read sequentially. Like the iterator,
+     * the spliterator doesn't see an atomic snapshot of the map.
+     *
+     * @param batchSize number of entries per chunk
+     */
+    public Spliterator<Map.Entry<K, V>> spliterator(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        return new BatchSpliterator(batchSize);
+    }
+
+    /**
+     * Get the {@code k} largest entries according to the comparator, without copying the whole map
+     * into a sorted collection
+     * <p>
+     * Streams the map in chunks and keeps only the top {@code k} entries in a bounded heap.
+     * <p>
+     * Example: {@snippet :
+     *   var top10 = map.topEntries(10, Map.Entry.comparingByValue());
+     *}
+     *
+     * @return at most {@code k} entries, the largest first
+     */
+    public List<Map.Entry<K, V>> topEntries(int k, Comparator<? super Map.Entry<K, V>> comparator) {
+        return parallelStream().collect(topCollector(k, comparator));
+    }
+
+    /**
+     * Collector that keeps the {@code k} largest elements in a bounded heap
+     *
+     * @return at most {@code k} elements, the largest first
+     */
+    public static <T> Collector<T, ?, List<T>> topCollector(int k, Comparator<? super T> comparator) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative");
+        }
+        return Collector.<T, PriorityQueue<T>, List<T>>of(() -> new PriorityQueue<>(comparator), (heap, element) -> {
+            heap.add(element);
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }, (left, right) -> {
+            for (var element : right) {
+                left.add(element);
+                if (left.size() > k) {
+                    left.poll();
+                }
+            }
+            return left;
+        }, heap -> {
+            List<T> result = new ArrayList<>(heap);
+            result.sort(comparator.reversed());
+            return result;
+        });
+    }
+
+    /**
+     * Raw keys and values of up to {@code count} entries, obtained with a single syscall
+     */
+    private record Chunk(MemorySegment keys, MemorySegment values, int count) {}
+
+    /**
+     * Spliterator over a fetched chunk, parses the entries on demand
+     */
+    private final class ChunkSpliterator implements Spliterator<Map.Entry<K, V>> {
+        private final Chunk chunk;
+        private int index;
+        private final int end;
+
+        private ChunkSpliterator(Chunk chunk, int index, int end) {
+            this.chunk = chunk;
+            this.index = index;
+            this.end = end;
+        }
+
+        private Map.Entry<K, V> entry(int i) {
+            return new AbstractMap.SimpleEntry<>(keyType.parseMemory(chunk.keys.asSlice((long) i * info.keySize())),
+                    parseValue(chunk.values.asSlice(i * valueStride())));
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            if (index >= end) {
+                return false;
+            }
+            action.accept(entry(index++));
+            return true;
+        }
+
+        @Override
+        public @Nullable Spliterator<Map.Entry<K, V>> trySplit() {
+            int mid = (index + end) >>> 1;
+            if (mid <= index) {
+                return null;
+            }
+            var prefix = new ChunkSpliterator(chunk, index, mid);
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return SIZED | SUBSIZED | DISTINCT | NONNULL;
+        }
+    }
+
+    /**
+     * Fetches the chunks sequentially from the kernel, see {@link #spliterator(int)}
+     * <p>
+     * The buffers are allocated in automatic arenas, as the spliterator is passed between threads
+     * and a stream might not be consumed till the end
+     */
+    private final class BatchSpliterator implements Spliterator<Map.Entry<K, V>> {
+        private final Arena arena = Arena.ofAuto();
+        private final MemorySegment opts = allocateBatchOpts(arena, 0);
+        private final MemorySegment inBatch;
+        private final MemorySegment outBatch;
+        private final MemorySegment count = arena.allocate(JAVA_INT);
+        /** last key of the previous chunk, only used without batch support */
+        private final MemorySegment lastKey;
+        private final int tokenSize;
+        private int batchSize;
+        private boolean first = true;
+        private boolean ended = false;
+        private @Nullable ChunkSpliterator current;
+
+        private BatchSpliterator(int batchSize) {
+            this.batchSize = Math.max(1, Math.min(batchSize, getMaxEntries()));
+            // hash maps use a 32-bit bucket index as the batch token, arrays the key
+            this.tokenSize = Math.max(info.keySize(), 8);
+            this.inBatch = arena.allocate(tokenSize, 8);
+            this.outBatch = arena.allocate(tokenSize, 8);
+            this.lastKey = arena.allocate(Math.max(info.keySize(), keyType.size()), 8);
+        }
+
+        private MemorySegment allocateKeys(int size) {
+            return allocateBatchBuffer(Arena.ofAuto(), info.keySize(), keyType.size(), size);
+        }
+
+        private MemorySegment allocateValues(int size) {
+            return allocateBatchBuffer(Arena.ofAuto(), valueStride(), valueBufferSize(), size);
+        }
+
+        /**
+         * @return the next non-empty chunk or null if all entries have been fetched
+         */
+        private @Nullable Chunk fetch() {
+            while (!ended) {
+                var chunk = supportsBatch(BatchOperation.LOOKUP) ? fetchBatch() : fetchIteratively();
+                if (chunk != null && chunk.count > 0) {
+                    return chunk;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return chunk, null if batch lookups turned out to be unsupported
+         */
+        private @Nullable Chunk fetchBatch() {
+            var keys = allocateKeys(batchSize);
+            var values = allocateValues(batchSize);
+            while (true) {
+                count.set(JAVA_INT, 0, batchSize);
+                int ret = Lib.bpf_map_lookup_batch(fd.fd(), first ? MemorySegment.NULL : inBatch, outBatch,
+                        keys, values, count, opts);
+                int transferred = count.get(JAVA_INT, 0);
+                if (ret != 0 && ret != -PanamaUtil.ERRNO_ENOENT) {
+                    if (ret == -PanamaUtil.ERRNO_ENOSPC && transferred == 0) {
+                        // a single hash bucket has more entries than fit into the buffers
+                        batchSize *= 2;
+                        keys = allocateKeys(batchSize);
+                        values = allocateValues(batchSize);
+                        continue;
+                    }
+                    if (first && isBatchUnsupportedError(ret)) {
+                        unsupportedBatchOperations.add(BatchOperation.LOOKUP);
+                        return null;
+                    }
+                    throw new BPFHashMapError("Failed to lookup batch", ret);
+                }
+                if (ret == -PanamaUtil.ERRNO_ENOENT) {
+                    ended = true;
+                } else {
+                    MemorySegment.copy(outBatch, 0, inBatch, 0, tokenSize);
+                }
+                first = false;
+                return new Chunk(keys, values, transferred);
+            }
+        }
+
+        /**
+         * Fallback that iterates over the keys and looks up every value
+         */
+        private Chunk fetchIteratively() {
+            int keySize = info.keySize();
+            long valueStride = valueStride();
+            var keys = allocateKeys(batchSize);
+            var values = allocateValues(batchSize);
+            int fetched = 0;
+            while (fetched < batchSize) {
+                var key = keys.asSlice((long) fetched * keySize, keySize);
+                if (Lib.bpf_map_get_next_key(fd.fd(), first ? MemorySegment.NULL : lastKey, key) != 0) {
+                    ended = true;
+                    break;
+                }
+                first = false;
+                MemorySegment.copy(key, 0, lastKey, 0, keySize);
+                // entries might be deleted concurrently
+                if (Lib.bpf_map_lookup_elem(fd.fd(), key, values.asSlice(fetched * valueStride)) == 0) {
+                    fetched++;
+                }
+            }
+            return new Chunk(keys, values, fetched);
+        }
+
+        private boolean ensureCurrent() {
+            if (current != null && current.estimateSize() > 0) {
+                return true;
+            }
+            var chunk = fetch();
+            current = chunk == null ? null : new ChunkSpliterator(chunk, 0, chunk.count);
+            return current != null;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            return ensureCurrent() && current.tryAdvance(action);
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super Map.Entry<K, V>> action) {
+            while (ensureCurrent()) {
+                current.forEachRemaining(action);
+            }
+        }
+
+        @Override
+        public @Nullable Spliterator<Map.Entry<K, V>> trySplit() {
+            if (!ensureCurrent()) {
+                return null;
+            }
+            var split = current;
+            current = null;
+            return split;
+        }
+
+        @Override
+        public long estimateSize() {
+            if (!ended) {
+                return Long.MAX_VALUE;
+            }
+            return current == null ? 0 : current.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,26 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.type.BPFType;
+
+/**
+ * A per-CPU hash map that evicts the least recently used entry if the map is full
+ * @see BPFPerCpuHashMap
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_LRU_PERCPU_HASH);
+            __uint (key_size, sizeof($c1));
+            __uint (value_size, sizeof($c2));
+            __uint (max_entries, $maxEntries);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class<>($fd, $b1, $b2)
+        """)
+public class BPFLRUPerCpuHashMap<K, V> extends BPFPerCpuHashMap<K, V> {
+    public BPFLRUPerCpuHashMap(FileDescriptor fd, BPFType<K> keyType, BPFType<V> elementType) {
+        super(fd, true, keyType, elementType);
+    }
+}
@@ -0,0 +1,234 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.bpf.BPFError;
+import me.bechberger.ebpf.shared.LibC;
+import me.bechberger.ebpf.shared.PanamaUtil;
+import me.bechberger.ebpf.type.BPFType;
+import me.bechberger.ebpf.type.StructView;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.VarHandle;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+/**
+ * eBPF array map that is created with {@code BPF_F_MMAPABLE} and mapped once into the memory
+ * of the Java process
+ * <p>
+ * All reads and writes go directly to the shared memory, without any syscalls.
+ * The kernel lays out the elements with a stride of the value size rounded up to 8 bytes.
+ * Plain accesses ({@link #get(Integer)}, {@link #set(int, Object)}) are not atomic,
+ * use the volatile or acquire/release accessors for single integer or long values
+ * that are concurrently modified by the eBPF program.
+ * <p>
+ * Example usage in eBPF with {@code __sync_fetch_and_add(&counters[idx], 1)} via {@code bpf_get}
+ * and in Java via {@code counters.getLongVolatile(idx)}.
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_ARRAY);
+            __uint (map_flags, BPF_F_MMAPABLE);
+            __type (key, u32);
+            __type (value, $c1);
+            __uint (max_entries, $maxEntries);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class<>($fd, $b1, $maxEntries)
+        """)
+public class BPFMmapArray<V> extends BPFArray<V> {
+
+    /** Flag that the map supports mmap, see {@code include/uapi/linux/bpf.h} */
+    public static final int BPF_F_MMAPABLE = 1 << 10;
+
+    /**
+     * Error thrown when the map could not be memory mapped
+     */
+    public static class BPFMmapError extends BPFError {
+        public BPFMmapError(String message, int errorCode) {
+            super(message, errorCode);
+        }
+    }
+
+    private static final VarHandle INT_HANDLE = JAVA_INT.varHandle();
+    private static final VarHandle LONG_HANDLE = JAVA_LONG.varHandle();
+
+    private final long stride;
+    /** Owns the mapping, closing it unmaps the memory and invalidates all segments */
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment segment;
+
+    public BPFMmapArray(FileDescriptor fd, BPFType<V> valueType, int size) {
+        super(fd, valueType, size);
+        if ((info.mapFlags() & BPF_F_MMAPABLE) == 0) {
+            throw new BPFMmapError("Map " + fd.name() + " is not created with BPF_F_MMAPABLE", 0);
+        }
+        this.stride = PanamaUtil.padSize(info.valueSize());
+        long length = PanamaUtil.padSize(stride * info.maxEntries(), LibC.pageSize());
+        var res = LibC.mmap(length, LibC.PROT_READ | LibC.PROT_WRITE, LibC.MAP_SHARED, fd.fd(), 0);
+        if (res.result().address() == LibC.MAP_FAILED) {
+            throw new BPFMmapError("Failed to mmap map " + fd.name(), res.err());
+        }
+        this.segment = res.result().reinterpret(length, arena, s -> LibC.munmap(s.reinterpret(length)));
+    }
+
+    /** Distance in bytes between two consecutive elements */
+    public long stride() {
+        return stride;
+    }
+
+    /**
+     * Memory segment that covers the whole array, valid until the map is closed,
+     * accesses afterward throw an {@link IllegalStateException}
+     */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /** Memory segment of the element at the given index */
+    public MemorySegment elementSegment(int index) {
+        return segment.asSlice(offset(index), stride);
+    }
+
+    private long offset(int index) {
+        Objects.checkIndex(index, size());
+        return index * stride;
+    }
+
+    @Override
+    public V get(Integer index) {
+        return getValueType().parseMemory(elementSegment(index));
+    }
+
+    @Override
+    public void set(int index, V value) {
+        getValueType().setMemory(elementSegment(index), Objects.requireNonNull(value));
+    }
+
+    /**
+     * View of the element directly in the shared memory, so writes via the view are visible
+     * to the eBPF program, valid until the map is closed
+     */
+    @Override
+    public <W extends StructView<V>> W getView(Integer index) {
+        return StructView.create(getValueType(), elementSegment(index));
+    }
+
+    /**
+     * Point the view to the element in the shared memory
+     *
+     * @return the passed view
+     */
+    @Override
+    public <W extends StructView<V>> W getView(Integer index, W view) {
+        view.wrap(elementSegment(index));
+        return view;
+    }
+
+    /**
+     * Call the action for every element with a view of the element in the shared memory
+     */
+    @Override
+    public <W extends StructView<V>> void forEachView(BiConsumer<? super Integer, ? super W> action) {
+        if (size() == 0) {
+            return;
+        }
+        W view = StructView.create(getValueType(), elementSegment(0));
+        for (int i = 0; i < size(); i++) {
+            view.wrap(elementSegment(i));
+            action.accept(i, view);
+        }
+    }
+
+    /**
+     * Set the value at the given index directly in the shared memory, ignores the mode
+     * for Java calls, as all array elements always exist
+     */
+    @Override
+    @BuiltinBPFFunction("!bpf_map_update_elem(&$this, $pointery$arg1, $pointery$arg2, $arg3)")
+    public boolean put(Integer key, V value, PutMode mode) {
+        if (key < 0 || key >= size() || mode == PutMode.BPF_NOEXIST) {
+            return false;
+        }
+        set(key, value);
+        return true;
+    }
+
+    /** Plain read of the int at the start of the element */
+    public int getInt(int index) {
+        return segment.get(JAVA_INT, offset(index));
+    }
+
+    /** Plain write of the int at the start of the element */
+    public void setInt(int index, int value) {
+        segment.set(JAVA_INT, offset(index), value);
+    }
+
+    public int getIntVolatile(int index) {
+        return (int) INT_HANDLE.getVolatile(segment, offset(index));
+    }
+
+    public void setIntVolatile(int index, int value) {
+        INT_HANDLE.setVolatile(segment, offset(index), value);
+    }
+
+    public int getIntAcquire(int index) {
+        return (int) INT_HANDLE.getAcquire(segment, offset(index));
+    }
+
+    public void setIntRelease(int index, int value) {
+        INT_HANDLE.setRelease(segment, offset(index), value);
+    }
+
+    /** Plain read of the long at the start of the element, requires a value size of at least 8 bytes */
+    public long getLong(int index) {
+        return segment.get(JAVA_LONG, offset(index));
+    }
+
+    /** Plain write of the long at the start of the element, requires a value size of at least 8 bytes */
+    public void setLong(int index, long value) {
+        segment.set(JAVA_LONG, offset(index), value);
+    }
+
+    public long getLongVolatile(int index) {
+        return (long) LONG_HANDLE.getVolatile(segment, offset(index));
+    }
+
+    public void setLongVolatile(int index, long value) {
+        LONG_HANDLE.setVolatile(segment, offset(index), value);
+    }
+
+    public long getLongAcquire(int index) {
+        return (long) LONG_HANDLE.getAcquire(segment, offset(index));
+    }
+
+    public void setLongRelease(int index, long value) {
+        LONG_HANDLE.setRelease(segment, offset(index), value);
+    }
+
+    /** Atomically add to the long at the start of the element, returns the previous value */
+    public long getAndAddLong(int index, long delta) {
+        return (long) LONG_HANDLE.getAndAdd(segment, offset(index), delta);
+    }
+
+    /** Atomically set the long at the start of the element, returns the previous value */
+    public long getAndSetLong(int index, long value) {
+        return (long) LONG_HANDLE.getAndSet(segment, offset(index), value);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (arena.scope().isAlive()) {
+            // fails accesses in other threads instead of letting them read unmapped memory
+            arena.close();
+        }
+        super.close();
+    }
+}
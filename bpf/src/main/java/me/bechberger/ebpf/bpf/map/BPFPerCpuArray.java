@@ -0,0 +1,53 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.type.BPFType;
+import me.bechberger.ebpf.type.BPFType.BPFIntType;
+
+import java.util.List;
+
+/**
+ * eBPF per-CPU array map, every index has a separate value per possible CPU
+ * <p>
+ * Use {@link #bpf_get_this_cpu(Object)} in eBPF to get the value of the current CPU
+ * @see BPFPerCpuBaseMap
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_PERCPU_ARRAY);
+            __type (key, u32);
+            __type (value, $c1);
+            __uint (max_entries, $maxEntries);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class<>($fd, $b1, $maxEntries)
+        """)
+public class BPFPerCpuArray<V> extends BPFPerCpuBaseMap<@Unsigned Integer, V> {
+
+    private final int size;
+
+    public BPFPerCpuArray(FileDescriptor fd, BPFType<V> elementType, int size) {
+        super(fd, MapTypeId.PERCPU_ARRAY, BPFIntType.UINT32, elementType);
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public List<V> get(Integer i) {
+        if (i < size) {
+            return super.get(i);
+        }
+        throw new ArrayIndexOutOfBoundsException("Index " + i +
+                " is out of bounds of array with size " + size);
+    }
+
+    public void set(int i, List<V> values) {
+        put(i, values);
+    }
+}
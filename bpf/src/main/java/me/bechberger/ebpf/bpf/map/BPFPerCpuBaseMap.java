@@ -0,0 +1,237 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.bpf.BPFError;
+import me.bechberger.ebpf.bpf.raw.Lib;
+import me.bechberger.ebpf.shared.PanamaUtil;
+import me.bechberger.ebpf.type.BPFType;
+import me.bechberger.ebpf.type.BPFType.BPFPerCpuType;
+import me.bechberger.ebpf.type.Ptr;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BinaryOperator;
+
+/**
+ * Base class for per-CPU maps, every key has a separate value per possible CPU
+ * <p>
+ * The eBPF program only sees the value of the CPU it is running on, so updates don't need atomics
+ * and don't bounce cache lines between cores. The Java side reads and writes the values of all CPUs
+ * at once, as a list with one element per possible CPU (see {@link #numCpus()}).
+ * <p>
+ * The value type is a {@link BPFPerCpuType} over the element type, which is available via {@link #getElementType()}.
+ * The primitive access methods ({@link #getLong(long, long)} and friends) work with the sum over all CPUs.
+ * <p>
+ * Use the reducers ({@link #merge(Object, BinaryOperator)}, {@link #sum(Object)}, {@link #max(Object)}
+ * and their {@code *All} variants) to aggregate the values of all CPUs, the {@code *All} variants
+ * use batch lookups if possible.
+ * @param <K> key type
+ * @param <V> type of the value per CPU
+ */
+public class BPFPerCpuBaseMap<K, V> extends BPFBaseMap<K, List<V>> {
+
+    private static int numPossibleCpus = -1;
+
+    private final BPFType<V> elementType;
+    private final int numCpus;
+    private final long elementStride;
+
+    public BPFPerCpuBaseMap(FileDescriptor fd, MapTypeId mapType, BPFType<K> keyType, BPFType<V> elementType) {
+        super(fd, mapType, keyType, perCpuType(fd, elementType));
+        var valueType = (BPFPerCpuType<V>) getValueType();
+        this.elementType = elementType;
+        this.numCpus = valueType.numCpus();
+        this.elementStride = valueType.elementStride();
+    }
+
+    private static <V> BPFPerCpuType<V> perCpuType(FileDescriptor fd, BPFType<V> elementType) {
+        // the kernel rounds every per-CPU value up to 8 bytes
+        return new BPFPerCpuType<>(elementType, numPossibleCpus(), PanamaUtil.padSize(getInfo(fd).valueSize()));
+    }
+
+    /**
+     * Number of possible CPUs, which is the number of values per key
+     *
+     * @throws BPFError if the number could not be obtained
+     */
+    public static int numPossibleCpus() {
+        if (numPossibleCpus == -1) {
+            int ret = Lib.libbpf_num_possible_cpus();
+            if (ret < 0) {
+                throw new BPFError("Failed to get the number of possible CPUs", ret);
+            }
+            numPossibleCpus = ret;
+        }
+        return numPossibleCpus;
+    }
+
+    /** Number of values per key */
+    public int numCpus() {
+        return numCpus;
+    }
+
+    public BPFType<V> getElementType() {
+        return elementType;
+    }
+
+    @Override
+    protected long valueStride() {
+        return elementStride * numCpus;
+    }
+
+    @Override
+    protected long valueBufferSize() {
+        return elementStride * (numCpus - 1) + Math.max(elementStride, elementType.size());
+    }
+
+    /**
+     * The primitive access methods work with the element type
+     */
+    @Override
+    protected BPFType<?> primitiveValueType() {
+        return elementType;
+    }
+
+    /**
+     * Sum of the elements of all CPUs
+     */
+    @Override
+    protected long loadLong(MemorySegment values, long offset) {
+        boolean unsigned = isUnsignedIntegral(elementType);
+        long sum = 0;
+        for (int cpu = 0; cpu < numCpus; cpu++) {
+            sum += getIntegral(values, offset + cpu * elementStride, info.valueSize(), unsigned);
+        }
+        return sum;
+    }
+
+    /**
+     * Store the value for the first CPU and keep the other CPUs at zero, so that the sum is the value
+     */
+    @Override
+    protected void storeLong(MemorySegment value, long primitive) {
+        setIntegral(value, info.valueSize(), primitive);
+    }
+
+    /**
+     * Put the same value for every CPU
+     * @return success?
+     */
+    public boolean putForAllCpus(K key, V value) {
+        return put(key, Collections.nCopies(numCpus, value));
+    }
+
+    /**
+     * Merge the values of all CPUs for the given key
+     *
+     * @param key    key
+     * @param merger function that combines two values, e.g. {@code Long::sum}
+     * @return merged value or null if the key is not present
+     */
+    public V merge(K key, BinaryOperator<V> merger) {
+        var values = get(key);
+        return values == null ? null : merge(values, merger);
+    }
+
+    /**
+     * Merge the values of all CPUs for every key
+     *
+     * @param merger function that combines two values, e.g. {@code Long::sum}
+     * @return merged value per key
+     */
+    public Map<K, V> mergeAll(BinaryOperator<V> merger) {
+        Map<K, V> result = new HashMap<>();
+        forEach((key, values) -> result.put(key, merge(values, merger)));
+        return result;
+    }
+
+    private static <V> V merge(List<V> values, BinaryOperator<V> merger) {
+        return values.stream().reduce(merger).orElseThrow();
+    }
+
+    /**
+     * Sum of the values of all CPUs for the given key, requires numeric values
+     *
+     * @return sum or 0 if the key is not present
+     */
+    public long sum(K key) {
+        var values = get(key);
+        return values == null ? 0 : sumValues(values);
+    }
+
+    /**
+     * Sum of the values of all CPUs for every key, requires numeric values
+     */
+    public Map<K, Long> sumAll() {
+        Map<K, Long> result = new HashMap<>();
+        forEach((key, values) -> result.put(key, sumValues(values)));
+        return result;
+    }
+
+    /**
+     * Maximum of the values of all CPUs for the given key, requires numeric values
+     * which are compared as signed numbers
+     *
+     * @return maximum or {@link Long#MIN_VALUE} if the key is not present
+     */
+    public long max(K key) {
+        var values = get(key);
+        return values == null ? Long.MIN_VALUE : maxValues(values);
+    }
+
+    /**
+     * Maximum of the values of all CPUs for every key, requires numeric values
+     */
+    public Map<K, Long> maxAll() {
+        Map<K, Long> result = new HashMap<>();
+        forEach((key, values) -> result.put(key, maxValues(values)));
+        return result;
+    }
+
+    static long sumValues(List<?> values) {
+        long sum = 0;
+        for (var value : values) {
+            sum += ((Number) value).longValue();
+        }
+        return sum;
+    }
+
+    static long maxValues(List<?> values) {
+        long max = Long.MIN_VALUE;
+        for (var value : values) {
+            max = Math.max(max, ((Number) value).longValue());
+        }
+        return max;
+    }
+
+    /**
+     * Obtain a pointer to the value of the current CPU for the given key,
+     * or {@link Ptr#ofNull()} if the key is not present
+     *
+     * @param key key
+     * @return pointer to the value or {@link Ptr#ofNull()}
+     *
+     * @see me.bechberger.ebpf.runtime.helpers.BPFHelpers#bpf_map_lookup_elem(Ptr, Ptr)
+     */
+    @BuiltinBPFFunction("bpf_map_lookup_elem(&$this, $pointery$arg1)")
+    @NotUsableInJava
+    public Ptr<V> bpf_get_this_cpu(K key) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /**
+     * Set the value of the current CPU for the given key, the values of the other CPUs
+     * are zero if the entry is created
+     * @return success?
+     */
+    @BuiltinBPFFunction("!bpf_map_update_elem(&$this, $pointery$arg1, $pointery$arg2, BPF_ANY)")
+    @NotUsableInJava
+    public boolean bpf_put_this_cpu(K key, V value) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+}
@@ -0,0 +1,43 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.type.BPFType;
+
+/**
+ * A per-CPU hash map, every key has a separate value per possible CPU
+ * <p>
+ * Use {@link #bpf_get_this_cpu(Object)} and {@link #bpf_put_this_cpu(Object, Object)} in eBPF
+ * to access the value of the current CPU
+ * @param <K> key type
+ * @param <V> type of the value per CPU
+ * @see BPFPerCpuBaseMap
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_PERCPU_HASH);
+            __uint (key_size, sizeof($c1));
+            __uint (value_size, sizeof($c2));
+            __uint (max_entries, $maxEntries);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class<>($fd, $b1, $b2)
+        """)
+public class BPFPerCpuHashMap<K, V> extends BPFPerCpuBaseMap<K, V> {
+
+    /**
+     * @param useLRU evict the least recently used entry if the map is full
+     */
+    public BPFPerCpuHashMap(FileDescriptor fd, boolean useLRU, BPFType<K> keyType, BPFType<V> elementType) {
+        super(fd, useLRU ? MapTypeId.LRU_PERCPU_HASH : MapTypeId.PERCPU_HASH, keyType, elementType);
+    }
+
+    public BPFPerCpuHashMap(FileDescriptor fd, BPFType<K> keyType, BPFType<V> elementType) {
+        this(fd, false, keyType, elementType);
+    }
+
+    public boolean usesLRU() {
+        return typeId == MapTypeId.LRU_PERCPU_HASH;
+    }
+}
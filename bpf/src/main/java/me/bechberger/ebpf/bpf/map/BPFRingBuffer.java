@@ -5,10 +5,12 @@ import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
 import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
 import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
 import me.bechberger.ebpf.bpf.BPFError;
+import me.bechberger.ebpf.bpf.RingBufferConsumer;
 import me.bechberger.ebpf.bpf.raw.Lib;
 import me.bechberger.ebpf.bpf.raw.ring_buffer_sample_fn;
 import me.bechberger.ebpf.type.BPFType;
 import me.bechberger.ebpf.type.Ptr;
+import me.bechberger.ebpf.type.StructView;
 
 import java.lang.foreign.Arena;
 import java.lang.foreign.FunctionDescriptor;
@@ -37,17 +39,17 @@ import static me.bechberger.ebpf.shared.PanamaUtil.*;
         javaTemplate = """
         new $class<>($fd, $b1)
         """)
-public class BPFRingBuffer<E> extends BPFMap {
+public class BPFRingBuffer<E> extends BPFMap implements RingBufferConsumer.Source {
 
     /**
      * Error thrown when consuming events went wrong
      */
     public static class BPFRingBufferError extends BPFError {
-        private BPFRingBufferError(String message, int errorCode) {
+        BPFRingBufferError(String message, int errorCode) {
             super(message, errorCode);
         }
 
-        private BPFRingBufferError(String message, List<CaughtBPFRingBufferError> caughtErrorsInCallBack) {
+        BPFRingBufferError(String message, List<CaughtBPFRingBufferError> caughtErrorsInCallBack) {
             super(message + ": " + caughtErrorsInCallBack.toString(), caughtErrorsInCallBack.getFirst().exception());
         }
     }
@@ -78,16 +80,68 @@ public class BPFRingBuffer<E> extends BPFMap {
         void call(E event) throws Throwable;
     }
 
+    /**
+     * Callback that is called with the raw memory of a new event, without parsing it
+     * <p>
+     * The segment is read-only and only valid during the call, as libbpf reuses the memory for later events.
+     * All segments of one poll or consume call share one confined arena, so accessing a segment throws
+     * an {@link IllegalStateException} once that call returned, but not when accessed by a later callback
+     * of the same call.
+     * Read the fields via {@link EventField}s and use {@link #parse(MemorySegment)} to obtain the event object
+     * if it is needed after the call
+     *
+     * @param <E> type of the event
+     */
+    @FunctionalInterface
+    public interface RawEventCallback<E> {
+        /**
+         * Called when a new event is received
+         */
+        void call(BPFRingBuffer<E> buffer, MemorySegment event) throws Throwable;
+    }
+
+    /**
+     * Callback that is called with a view of a new event, without parsing it
+     * <p>
+     * The view is reused for all events and only valid during the call
+     *
+     * @param <E> type of the event
+     * @param <W> generated view class of the event type
+     */
+    @FunctionalInterface
+    public interface ViewEventCallback<E, W extends StructView<E>> {
+        /**
+         * Called when a new event is received
+         */
+        void call(BPFRingBuffer<E> buffer, W event) throws Throwable;
+    }
+
+    /**
+     * Shared, as the buffer might be polled by a {@link me.bechberger.ebpf.bpf.RingBufferConsumer} thread
+     */
     private final Arena ringArena;
 
     private final BPFType<E> eventType;
 
+    private volatile RawEventCallback<E> rawCallback;
+
+    /**
+     * Scopes the segments passed to the {@link #rawCallback} during the running poll or consume call,
+     * one arena per call instead of one per event, as opening and closing an arena per event is costly
+     */
+    private Arena sampleArena;
+
+    /**
+     * Set while the buffer is consumed by a {@link RingBufferGroup}
+     */
+    volatile boolean grouped = false;
+
     /**
      * Pointer to a {@code ring_buffer} struct
      */
     private final MemorySegment rb;
 
-    private EventCallback<E> callback;
+    private volatile EventCallback<E> callback;
 
     /**
      * Error caught while calling the callback
@@ -122,21 +176,17 @@ public class BPFRingBuffer<E> extends BPFMap {
      */
     public BPFRingBuffer(FileDescriptor fd, BPFType<E> eventType, EventCallback<E> callback) {
         super(MapTypeId.RINGBUF, fd);
-        this.ringArena = Arena.ofConfined();
+        this.ringArena = Arena.ofShared();
         this.eventType = eventType;
         this.callback = callback;
-        this.rb = initRingBuffer(fd, eventType, callback);
+        this.rb = initRingBuffer(fd);
     }
 
     public BPFRingBuffer(FileDescriptor fd, BPFType<E> eventType) {
         super(MapTypeId.RINGBUF, fd);
-        this.ringArena = Arena.ofConfined();
+        this.ringArena = Arena.ofShared();
         this.eventType = eventType;
-        this.rb = initRingBuffer(fd, eventType, (buffer, event) -> {
-            if (callback != null) {
-                callback.call(buffer, event);
-            }
-        });
+        this.rb = initRingBuffer(fd);
     }
 
     /**
@@ -144,7 +194,7 @@ public class BPFRingBuffer<E> extends BPFMap {
      * use in combination with {@link BPFRingBuffer#BPFRingBuffer(FileDescriptor, BPFType)}
      */
     public void setCallback(EventCallback<E> callback) {
-        if (this.callback != null) {
+        if (this.callback != null || this.rawCallback != null) {
             throw new IllegalStateException("Callback already set");
         }
         this.callback = callback;
@@ -154,33 +204,210 @@ public class BPFRingBuffer<E> extends BPFMap {
         setCallback((_, event) -> callback.call(event));
     }
 
+    /**
+     * Sets a callback that receives the raw memory of the events instead of parsed objects,
+     * avoiding the allocations of parsing for consumers that only look at a few fields
+     * <p>
+     * Use in combination with {@link BPFRingBuffer#BPFRingBuffer(FileDescriptor, BPFType)},
+     * at most one callback can be set
+     * <p>
+     * Example: {@snippet :
+     *   var length = buffer.field("length");
+     *   buffer.setRawCallback((_, event) -> {
+     *       if (length.getInt(event) > 1000) {
+     *           System.out.println(buffer.parse(event));
+     *       }
+     *   });
+     *}
+     */
+    public void setRawCallback(RawEventCallback<E> callback) {
+        if (this.callback != null || this.rawCallback != null) {
+            throw new IllegalStateException("Callback already set");
+        }
+        this.rawCallback = callback;
+    }
+
+    /**
+     * Sets a callback that receives the events as views, a single view is reused for all events,
+     * so reading fields doesn't allocate
+     * <p>
+     * Example: {@snippet :
+     *   program.rb.<Prog$EventView>setViewCallback((_, event) -> {
+     *       if (event.getPid() == pid) {
+     *           System.out.println(event.get());
+     *       }
+     *   });
+     *}
+     *
+     * @param <W> generated view class of the event type
+     * @throws IllegalArgumentException if the event type is not a struct with a generated view
+     * @see #setRawCallback(RawEventCallback)
+     */
+    @SuppressWarnings("unchecked")
+    public <W extends StructView<E>> void setViewCallback(ViewEventCallback<E, W> callback) {
+        W view = StructView.create(eventType, MemorySegment.NULL);
+        setRawCallback((buffer, event) -> callback.call(buffer, (W) view.wrap(event)));
+    }
+
+    public BPFType<E> getEventType() {
+        return eventType;
+    }
+
+    /**
+     * Parse the event from the segment passed to a {@link RawEventCallback}
+     */
+    public E parse(MemorySegment event) {
+        return eventType.parseMemory(event);
+    }
+
+    /**
+     * Accessor for a field of the event in the memory passed to a {@link RawEventCallback},
+     * reading primitive fields doesn't allocate
+     *
+     * @param name   name of the field, with nested names separated by dots
+     * @param type   type of the field
+     * @param offset offset of the field in the event
+     * @param <T>    type of the field
+     */
+    public record EventField<T>(String name, BPFType<T> type, long offset) {
+
+        private void checkSize(long size) {
+            if (type.size() != size) {
+                throw new IllegalStateException("Field " + name + " has size " + type.size() + ", not " + size);
+            }
+        }
+
+        /**
+         * Parse the field, this allocates for non-primitive fields
+         */
+        public T get(MemorySegment event) {
+            return type.parseMemory(event.asSlice(offset, type.size()));
+        }
+
+        public byte getByte(MemorySegment event) {
+            checkSize(1);
+            return event.get(ValueLayout.JAVA_BYTE, offset);
+        }
+
+        public boolean getBoolean(MemorySegment event) {
+            return getByte(event) != 0;
+        }
+
+        public short getShort(MemorySegment event) {
+            checkSize(2);
+            return event.get(ValueLayout.JAVA_SHORT_UNALIGNED, offset);
+        }
+
+        public int getInt(MemorySegment event) {
+            checkSize(4);
+            return event.get(ValueLayout.JAVA_INT_UNALIGNED, offset);
+        }
+
+        public long getLong(MemorySegment event) {
+            checkSize(8);
+            return event.get(ValueLayout.JAVA_LONG_UNALIGNED, offset);
+        }
+    }
+
+    /**
+     * Obtain an accessor for a (nested) field of the event struct, to be used in {@link RawEventCallback}s
+     * <p>
+     * Obtain the accessors once, outside the callback
+     *
+     * @param path names of the field and of the struct fields that contain it, e.g. {@code "source", "ipv4"}
+     * @throws IllegalArgumentException if there is no such field
+     */
+    @SuppressWarnings("unchecked")
+    public <T> EventField<T> field(String... path) {
+        BPFType<?> type = eventType;
+        long offset = 0;
+        for (var name : path) {
+            while (true) {
+                if (type instanceof BPFType.BPFTypedef<?, ?> typedef) {
+                    type = typedef.wrapped();
+                } else if (type instanceof BPFType.BPFInternalTypedef<?> typedef) {
+                    type = typedef.wrapped();
+                } else {
+                    break;
+                }
+            }
+            if (!(type instanceof BPFType.BPFStructType<?> struct)) {
+                throw new IllegalArgumentException("Cannot access field " + name + " of non-struct type " + type.bpfName());
+            }
+            var member = struct.members().stream().filter(m -> m.name().equals(name)).findFirst()
+                    .orElseThrow(() -> new IllegalArgumentException("No field " + name + " in " + struct.bpfName()));
+            offset += member.offset();
+            type = member.type();
+        }
+        return new EventField<>(String.join(".", path), (BPFType<T>) type, offset);
+    }
+
     private static final HandlerWithErrno<MemorySegment> RING_BUFFER_NEW = new HandlerWithErrno<>("ring_buffer__new",
             FunctionDescriptor.of(POINTER, JAVA_INT, POINTER, POINTER, POINTER));
 
-    private static ResultAndErr<MemorySegment> ring_buffer__new(Arena arena, int fd, MemorySegment sampleFn,
-                                                                MemorySegment flags, MemorySegment ctx) {
-        return RING_BUFFER_NEW.call(arena, fd, sampleFn, flags, ctx);
+    static ResultAndErr<MemorySegment> ring_buffer__new(int fd, MemorySegment sampleFn,
+                                                        MemorySegment flags, MemorySegment ctx) {
+        return RING_BUFFER_NEW.call(fd, sampleFn, flags, ctx);
     }
 
-    private MemorySegment initRingBuffer(FileDescriptor fd, BPFType<E> eventType, EventCallback<E> callback) {
-        ring_buffer_sample_fn.Function sample = (ctx, data, len) -> {
-            E event;
-            try {
-                event = eventType.parseMemory(data);
-            } catch (RuntimeException e) {
-                addCaughtError(new CaughtBPFRingBufferError.CaughtBPFRingBufferParseError(e, data, len));
-                return 0;
-            }
+    /**
+     * Handle an event, used as the sample callback of this buffer and of {@link RingBufferGroup}s
+     */
+    void handleSample(MemorySegment data, long len) {
+        var raw = rawCallback;
+        if (raw != null) {
+            var arena = sampleArena;
             try {
-                callback.call(this, event);
+                raw.call(this, data.reinterpret(len, arena, null).asReadOnly());
             } catch (Throwable e) {
-                addCaughtError(new CaughtBPFRingBufferError.CaughtBPFRingBufferCallbackError<>(e, event));
-                return 0;
+                addCaughtError(new CaughtBPFRingBufferError.CaughtBPFRingBufferCallbackError<>(e, null));
             }
+            return;
+        }
+        var callback = this.callback;
+        if (callback == null) {
+            return;
+        }
+        E event;
+        try {
+            event = eventType.parseMemory(data);
+        } catch (RuntimeException e) {
+            addCaughtError(new CaughtBPFRingBufferError.CaughtBPFRingBufferParseError(e, data, len));
+            return;
+        }
+        try {
+            callback.call(this, event);
+        } catch (Throwable e) {
+            addCaughtError(new CaughtBPFRingBufferError.CaughtBPFRingBufferCallbackError<>(e, event));
+        }
+    }
+
+    /**
+     * Open the arena for the segments passed to the raw callback during one poll or consume call,
+     * on the thread that calls the sample callbacks
+     */
+    void openSampleArena() {
+        sampleArena = Arena.ofConfined();
+    }
+
+    /**
+     * Close the arena of the call, so that the segments passed to the raw callback can't be accessed anymore
+     */
+    void closeSampleArena() {
+        var arena = sampleArena;
+        if (arena != null) {
+            sampleArena = null;
+            arena.close();
+        }
+    }
+
+    private MemorySegment initRingBuffer(FileDescriptor fd) {
+        ring_buffer_sample_fn.Function sample = (ctx, data, len) -> {
+            handleSample(data, len);
             return 0;
         };
         var sampleFn = ring_buffer_sample_fn.allocate(sample, ringArena);
-        var rb = ring_buffer__new(ringArena, fd.fd(), sampleFn, MemorySegment.NULL, MemorySegment.NULL);
+        var rb = ring_buffer__new(fd.fd(), sampleFn, MemorySegment.NULL, MemorySegment.NULL);
         if (rb.result() == MemorySegment.NULL) {
             throw new BPFError("Failed to create ring buffer", rb.err());
         }
@@ -193,8 +420,8 @@ public class BPFRingBuffer<E> extends BPFMap {
         }
     }
 
-    private static final HandlerWithErrno<Integer> ring_buffer__consume = new HandlerWithErrno<>(
-            "ring_buffer__consume", FunctionDescriptor.of(ValueLayout.JAVA_INT, POINTER));
+    private static final PointerHandlerWithErrno ring_buffer__consume =
+            new PointerHandlerWithErrno("ring_buffer__consume");
 
     /**
      * Result of calling the {@link BPFRingBuffer#consume() consume} method
@@ -212,38 +439,128 @@ public class BPFRingBuffer<E> extends BPFMap {
      *
      * @return the number of events consumed (max MAX_INT) and a list of caught errors if any
      * @throws BPFRingBufferError if calling the consume method failed
+     * @throws IllegalStateException if the buffer is part of a {@link RingBufferGroup}
      */
     public ConsumeResult consume() {
-        try (Arena arena = Arena.ofConfined()) {
-            var ret = ring_buffer__consume.call(arena, rb);
-            ConsumeResult res;
-            synchronized (caughtErrorsInCallBack) {
-                res = new ConsumeResult(ret.result(), new ArrayList<>(caughtErrorsInCallBack));
-                caughtErrorsInCallBack.clear();
+        checkNotGrouped();
+        ResultAndErr<Integer> ret;
+        openSampleArena();
+        try {
+            ret = ring_buffer__consume.callWithErrno(rb);
+        } finally {
+            closeSampleArena();
+        }
+        var res = collectResult(ret.result());
+        if (ret.err() != 0) {
+            if (ret.err() == ERRNO_EAGAIN) {
+                // this is not an error, just no events available
+                return res;
             }
-            if (ret.err() != 0) {
-                if (ret.err() == ERRNO_EAGAIN) {
-                    // this is not an error, just no events available
-                    return res;
-                }
-                if (ret.err() == ERRNO_EINVAL) {
-                    return res; // don't know why this happens, but it does
-                }
-                if (ret.err() == 2) {
-                    return res;
-                }
-                throw new BPFRingBufferError("Failed to consume events", ret.err());
+            if (ret.err() == ERRNO_EINVAL) {
+                return res; // don't know why this happens, but it does
+            }
+            if (ret.err() == 2) {
+                return res;
+            }
+            throw new BPFRingBufferError("Failed to consume events", ret.err());
+        }
+        return res;
+    }
+
+    /**
+     * Is this buffer consumed by a {@link RingBufferGroup}?
+     */
+    public boolean isGrouped() {
+        return grouped;
+    }
+
+    private void checkNotGrouped() {
+        if (grouped) {
+            throw new IllegalStateException("Ring buffer " + fd.name() + " is consumed by a RingBufferGroup");
+        }
+    }
+
+    ConsumeResult collectResult(int consumed) {
+        synchronized (caughtErrorsInCallBack) {
+            if (caughtErrorsInCallBack.isEmpty()) {
+                return new ConsumeResult(Math.max(consumed, 0), List.of());
             }
+            var res = new ConsumeResult(Math.max(consumed, 0), new ArrayList<>(caughtErrorsInCallBack));
+            caughtErrorsInCallBack.clear();
             return res;
         }
     }
 
+    static final PointerHandlerWithErrno ring_buffer__epoll_fd =
+            new PointerHandlerWithErrno("ring_buffer__epoll_fd");
+
+    /**
+     * Epoll file descriptor of the underlying libbpf ring buffer, readable while events are available
+     *
+     * @throws IllegalStateException if the buffer is part of a {@link RingBufferGroup}
+     */
+    @Override
+    public int epollFd() {
+        checkNotGrouped();
+        return ring_buffer__epoll_fd.call(rb);
+    }
+
+    private static final PointerIntHandlerWithErrno ring_buffer__poll =
+            new PointerIntHandlerWithErrno("ring_buffer__poll");
+
+    /**
+     * Waits via epoll until events are available or the timeout elapsed and consumes the available events
+     * <p>
+     * Unlike {@link #consume()} in a sleep loop, this returns as soon as the kernel signals new events
+     * and doesn't wake up while the buffer is idle.
+     *
+     * @param timeoutMillis maximum time to wait in milliseconds, {@code -1} to wait indefinitely
+     *                      and {@code 0} to not wait at all
+     * @return the number of events consumed (max MAX_INT) and a list of caught errors if any,
+     * zero events if the timeout elapsed or the wait was interrupted by a signal
+     * @throws BPFRingBufferError if calling the poll method failed
+     * @throws IllegalStateException if the buffer is part of a {@link RingBufferGroup}
+     */
+    public ConsumeResult poll(int timeoutMillis) {
+        checkNotGrouped();
+        int ret;
+        openSampleArena();
+        try {
+            ret = ring_buffer__poll.call(rb, timeoutMillis);
+        } finally {
+            closeSampleArena();
+        }
+        var res = collectResult(ret);
+        // libbpf returns the negated errno
+        if (ret < 0 && ret != -ERRNO_EINTR) {
+            throw new BPFRingBufferError("Failed to poll events", -ret);
+        }
+        return res;
+    }
+
+    /**
+     * Waits until events are available or the timeout elapsed and consumes the available events
+     *
+     * @param timeoutMillis maximum time to wait in milliseconds, {@code -1} to wait indefinitely
+     * @return the number of events consumed (max MAX_INT)
+     * @throws BPFRingBufferError if calling the poll method failed or if any errors were caught in the call back
+     * @see #poll(int)
+     */
+    public int pollAndThrow(int timeoutMillis) {
+        var res = poll(timeoutMillis);
+        if (res.hasCaughtErrors()) {
+            throw new BPFRingBufferError("Caught errors while consuming events", res.caughtErrorsInCallBack);
+        }
+        return res.consumed();
+    }
+
     /**
      * Polls data from the ring buffer and consumes if available.
      *
      * @return the number of events consumed (max MAX_INT)
      * @throws BPFRingBufferError if calling the consume method failed or if any errors were caught in the call back
      */
+    @Override
     public int consumeAndThrow() {
         var res = consume();
         if (res.hasCaughtErrors()) {
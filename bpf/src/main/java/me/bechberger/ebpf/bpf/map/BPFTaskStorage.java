@@ -0,0 +1,162 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.bpf.BPFError;
+import me.bechberger.ebpf.bpf.raw.Lib;
+import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
+import me.bechberger.ebpf.shared.LibC;
+import me.bechberger.ebpf.type.BPFType;
+import me.bechberger.ebpf.type.Ptr;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Objects;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+
+/**
+ * Task local storage map ({@code BPF_MAP_TYPE_TASK_STORAGE})
+ * <p>
+ * Stores one value per task, attached directly to the {@code task_struct}. Lookups are O(1) without hashing,
+ * there is no size limit and the value is freed automatically when the task exits.
+ * Use this instead of hash maps keyed by pid for per-task state.
+ * <p>
+ * The {@code maxEntries} of the map definition is ignored, task storage maps have no capacity.
+ * <p>
+ * Example: {@snippet :
+ *   @BPFMapDefinition(maxEntries = 1)
+ *   BPFTaskStorage<@Unsigned Long> enqueue_time;
+ *
+ *   // in eBPF
+ *   var time = enqueue_time.bpf_get_or_create(p);
+ *   if (time != null) {
+ *       time.set(bpf_ktime_get_ns());
+ *   }
+ *}
+ * <p>
+ * Java accesses the values via pid, using a pidfd as the key
+ * @param <V> value type
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_TASK_STORAGE);
+            __uint (map_flags, BPF_F_NO_PREALLOC);
+            __type (key, int);
+            __type (value, $c1);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class<>($fd, $b1)
+        """)
+public class BPFTaskStorage<V> extends BPFMap {
+
+    /**
+     * Error thrown when the pidfd for a process could not be obtained
+     */
+    public static class BPFTaskStorageError extends BPFError {
+        public BPFTaskStorageError(String message, int errorCode) {
+            super(message, errorCode);
+        }
+    }
+
+    private final BPFType<V> valueType;
+
+    public BPFTaskStorage(FileDescriptor fd, BPFType<V> valueType) {
+        super(MapTypeId.TASK_STORAGE, fd);
+        this.valueType = valueType;
+    }
+
+    public BPFType<V> getValueType() {
+        return valueType;
+    }
+
+    private interface PidfdAction<R> {
+        R apply(Arena arena, MemorySegment key);
+    }
+
+    private <R> R withPidfd(int pid, PidfdAction<R> action) {
+        var pidfd = LibC.pidfdOpen(pid);
+        if (pidfd.result() < 0) {
+            throw new BPFTaskStorageError("Failed to open pidfd for " + pid, pidfd.err());
+        }
+        try (var arena = Arena.ofConfined()) {
+            var key = arena.allocateFrom(JAVA_INT, pidfd.result());
+            return action.apply(arena, key);
+        } finally {
+            LibC.close(pidfd.result());
+        }
+    }
+
+    /**
+     * Get the value stored for the task with the given pid
+     * @return value or null if there is no value for the task
+     * @throws BPFTaskStorageError if the process doesn't exist
+     */
+    public V get(int pid) {
+        return withPidfd(pid, (arena, key) -> {
+            var value = valueType.allocate(arena);
+            if (Lib.bpf_map_lookup_elem(fd.fd(), key, value) != 0) {
+                return null;
+            }
+            return valueType.parseMemory(value);
+        });
+    }
+
+    /**
+     * Store a value for the task with the given pid, creating the storage if needed
+     * @return success?
+     * @throws BPFTaskStorageError if the process doesn't exist
+     */
+    public boolean put(int pid, V value) {
+        return withPidfd(pid, (arena, key) ->
+                Lib.bpf_map_update_elem(fd.fd(), key, valueType.allocate(arena, Objects.requireNonNull(value)),
+                        Lib.BPF_ANY()) == 0);
+    }
+
+    /**
+     * Delete the value of the task with the given pid
+     * @return false on error or if there was no value
+     * @throws BPFTaskStorageError if the process doesn't exist
+     */
+    public boolean delete(int pid) {
+        return withPidfd(pid, (arena, key) -> Lib.bpf_map_delete_elem(fd.fd(), key) == 0);
+    }
+
+    /**
+     * Obtain a pointer to the value of the task, or {@link Ptr#ofNull()} if there is none
+     *
+     * @param task task
+     * @return pointer to the value or {@link Ptr#ofNull()}
+     */
+    @BuiltinBPFFunction("bpf_task_storage_get(&$this, $arg1, 0, 0)")
+    @NotUsableInJava
+    public Ptr<V> bpf_get(Ptr<task_struct> task) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /**
+     * Obtain a pointer to the value of the task, creating a zero initialized value if there is none
+     *
+     * @param task task
+     * @return pointer to the value or {@link Ptr#ofNull()} if the value could not be created
+     */
+    @BuiltinBPFFunction("bpf_task_storage_get(&$this, $arg1, 0, BPF_LOCAL_STORAGE_GET_F_CREATE)")
+    @NotUsableInJava
+    public Ptr<V> bpf_get_or_create(Ptr<task_struct> task) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /**
+     * Delete the value of the task
+     * @return success?
+     */
+    @BuiltinBPFFunction("!bpf_task_storage_delete(&$this, $arg1)")
+    @NotUsableInJava
+    public boolean bpf_delete(Ptr<task_struct> task) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+}
@@ -0,0 +1,272 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.bpf.BPFError;
+import me.bechberger.ebpf.type.BPFType;
+import me.bechberger.ebpf.type.Ptr;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+import java.util.Objects;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static me.bechberger.ebpf.shared.PanamaUtil.*;
+
+/**
+ * <a href="https://docs.kernel.org/bpf/map_user_ringbuf.html">User ring buffer</a>,
+ * the counterpart of {@link BPFRingBuffer} that sends events from the user space to the eBPF program
+ * <p>
+ * Java writes the events directly into the memory shared with the kernel, without a syscall per event.
+ * The eBPF program drains the buffer with {@link #drain(String)}, which calls a callback function
+ * for every event. The callback reads the event via {@link #read(Ptr, Ptr)}.
+ * <p>
+ * Example: {@snippet :
+ *   @BPFMapDefinition(maxEntries = 256 * 1024)
+ *   BPFUserRingBuffer<Command> commands;
+ *
+ *   @BPFFunction(headerTemplate = "static long $name(struct bpf_dynptr *dynptr, void *ctx)",
+ *                lastStatement = "return 0;")
+ *   public void handleCommand(Ptr<?> dynptr, Ptr<?> ctx) {
+ *       Command command = new Command();
+ *       if (commands.read(dynptr, Ptr.of(command))) {
+ *           // ...
+ *       }
+ *   }
+ *
+ *   // in eBPF, e.g. in a timer or a frequently called hook
+ *   commands.drain("handleCommand");
+ *
+ *   // in Java
+ *   program.commands.offerAll(commandList);
+ *}
+ * The producer side is synchronized, so the buffer can be used from multiple Java threads.
+ * @param <E> type of the event
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_USER_RINGBUF);
+            __uint (max_entries, $maxEntries);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class<>($fd, $b1)
+        """)
+public class BPFUserRingBuffer<E> extends BPFMap {
+
+    /**
+     * Error thrown when the user ring buffer could not be created or used
+     */
+    public static class BPFUserRingBufferError extends BPFError {
+        public BPFUserRingBufferError(String message, int errorCode) {
+            super(message, errorCode);
+        }
+    }
+
+    private static final HandlerWithErrno<MemorySegment> USER_RING_BUFFER_NEW = new HandlerWithErrno<>(
+            "user_ring_buffer__new", FunctionDescriptor.of(POINTER, JAVA_INT, POINTER));
+
+    private static final HandlerWithErrno<MemorySegment> USER_RING_BUFFER_RESERVE = new HandlerWithErrno<>(
+            "user_ring_buffer__reserve", FunctionDescriptor.of(POINTER, POINTER, JAVA_INT));
+
+    private static final HandlerWithErrno<MemorySegment> USER_RING_BUFFER_RESERVE_BLOCKING =
+            new HandlerWithErrno<>("user_ring_buffer__reserve_blocking",
+                    FunctionDescriptor.of(POINTER, POINTER, JAVA_INT, JAVA_INT));
+
+    private static final HandlerWithErrno<Void> USER_RING_BUFFER_SUBMIT = new HandlerWithErrno<>(
+            "user_ring_buffer__submit", FunctionDescriptor.ofVoid(POINTER, POINTER));
+
+    private static final HandlerWithErrno<Void> USER_RING_BUFFER_DISCARD = new HandlerWithErrno<>(
+            "user_ring_buffer__discard", FunctionDescriptor.ofVoid(POINTER, POINTER));
+
+    private static final HandlerWithErrno<Void> USER_RING_BUFFER_FREE = new HandlerWithErrno<>(
+            "user_ring_buffer__free", FunctionDescriptor.ofVoid(POINTER));
+
+    /**
+     * errno value for "Timer expired", set by the blocking reserve
+     */
+    private static final int ERRNO_ETIME = 62;
+
+    private final BPFType<E> eventType;
+
+    /**
+     * Pointer to a {@code user_ring_buffer} struct
+     */
+    private MemorySegment rb;
+
+    /**
+     * Create a new user ring buffer
+     *
+     * @param fd        file descriptor of the map
+     * @param eventType type of the event
+     * @throws BPFUserRingBufferError if the ring buffer could not be created
+     */
+    public BPFUserRingBuffer(FileDescriptor fd, BPFType<E> eventType) {
+        super(MapTypeId.USER_RINGBUF, fd);
+        this.eventType = eventType;
+        var res = USER_RING_BUFFER_NEW.call(fd.fd(), MemorySegment.NULL);
+        if (res.result() == MemorySegment.NULL || res.result().address() == 0) {
+            throw new BPFUserRingBufferError("Failed to create user ring buffer", res.err());
+        }
+        this.rb = res.result();
+    }
+
+    public BPFType<E> getEventType() {
+        return eventType;
+    }
+
+    /**
+     * Pointer to the {@code user_ring_buffer} struct, native code must not see the null pointer after {@link #close()}
+     */
+    private MemorySegment ringBuffer() {
+        if (rb == null) {
+            throw new IllegalStateException("User ring buffer is closed");
+        }
+        return rb;
+    }
+
+    private @Nullable MemorySegment checkReserved(ResultAndErr<MemorySegment> res) {
+        if (res.result() == MemorySegment.NULL || res.result().address() == 0) {
+            if (res.err() == ERRNO_ENOSPC || res.err() == ERRNO_EAGAIN || res.err() == ERRNO_ETIME) {
+                return null;
+            }
+            throw new BPFUserRingBufferError("Failed to reserve event", res.err());
+        }
+        return res.result().reinterpret(eventType.size());
+    }
+
+    /**
+     * Reserve space for an event in the shared memory
+     * <p>
+     * <b>Every reserved event has to be either submitted ({@link #submit(MemorySegment)})
+     * or discarded ({@link #discard(MemorySegment)})</b>, in the order of reservation
+     *
+     * @return segment to write the event to, or null if the buffer is full
+     * @throws BPFUserRingBufferError if reserving failed for other reasons
+     * @throws IllegalStateException if the buffer has already been closed
+     */
+    public synchronized @Nullable MemorySegment reserve() {
+        return checkReserved(USER_RING_BUFFER_RESERVE.call(ringBuffer(), (int) eventType.size()));
+    }
+
+    /**
+     * Reserve space for an event, waiting till the eBPF program drained enough events if the buffer is full
+     *
+     * @param timeoutMillis maximum time to wait, {@code -1} to wait indefinitely
+     * @return segment to write the event to, or null if the timeout elapsed
+     * @see #reserve()
+     */
+    public synchronized @Nullable MemorySegment reserveBlocking(int timeoutMillis) {
+        return checkReserved(USER_RING_BUFFER_RESERVE_BLOCKING.call(ringBuffer(), (int) eventType.size(), timeoutMillis));
+    }
+
+    /**
+     * Submit a reserved event, making it visible to the eBPF program
+     */
+    public synchronized void submit(MemorySegment event) {
+        USER_RING_BUFFER_SUBMIT.call(ringBuffer(), event);
+    }
+
+    /**
+     * Discard a reserved event
+     */
+    public synchronized void discard(MemorySegment event) {
+        USER_RING_BUFFER_DISCARD.call(ringBuffer(), event);
+    }
+
+    /**
+     * Write and submit an event
+     *
+     * @return false if the buffer is full
+     * @throws IllegalStateException if the buffer has already been closed
+     */
+    public synchronized boolean offer(E event) {
+        var segment = reserve();
+        if (segment == null) {
+            return false;
+        }
+        eventType.setMemory(segment, Objects.requireNonNull(event));
+        submit(segment);
+        return true;
+    }
+
+    /**
+     * Write and submit the events in order, till the buffer is full
+     *
+     * @return number of submitted events, the remaining events have not been written
+     * @throws IllegalStateException if the buffer has already been closed
+     */
+    public synchronized int offerAll(List<E> events) {
+        int count = 0;
+        for (var event : events) {
+            if (!offer(event)) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Write and submit an event, waiting for space if the buffer is full
+     *
+     * @param timeoutMillis maximum time to wait, {@code -1} to wait indefinitely
+     * @return false if the timeout elapsed
+     */
+    public synchronized boolean put(E event, int timeoutMillis) {
+        var segment = reserveBlocking(timeoutMillis);
+        if (segment == null) {
+            return false;
+        }
+        eventType.setMemory(segment, Objects.requireNonNull(event));
+        submit(segment);
+        return true;
+    }
+
+    /**
+     * Free the ring buffer and close the map, calling it again does nothing
+     */
+    @Override
+    public synchronized void close() {
+        if (rb == null) {
+            return;
+        }
+        USER_RING_BUFFER_FREE.call(rb);
+        rb = null;
+        super.close();
+    }
+
+    /**
+     * Drain the buffer, calling the passed callback function for every event
+     * <p>
+     * The callback has to be a {@code BPFFunction} with the C signature
+     * {@code long callback(struct bpf_dynptr *dynptr, void *ctx)}, returning 0 to continue
+     * and 1 to stop draining
+     *
+     * @param callbackName name of the callback function, has to be a string literal
+     * @return number of drained events or a negative error
+     */
+    @BuiltinBPFFunction("bpf_user_ringbuf_drain(&$this, $str$arg1, (void*)0, 0)")
+    @NotUsableInJava
+    public long drain(String callbackName) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /**
+     * Copy the event of the passed dynptr (in the drain callback) into the destination
+     *
+     * @param dynptr first argument of the drain callback
+     * @param dest   destination
+     * @return success?
+     */
+    @BuiltinBPFFunction("!bpf_dynptr_read($arg2, sizeof(*$arg2), $arg1, 0, 0)")
+    @NotUsableInJava
+    public boolean read(Ptr<?> dynptr, Ptr<E> dest) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+}
@@ -0,0 +1,236 @@
+package me.bechberger.ebpf.bpf.map;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Ring buffer callback that moves the events into a bounded queue and delivers them in batches
+ * on an executor, so that slow callbacks don't stall the thread that consumes the ring buffer
+ * <p>
+ * At most one batch is delivered at a time, in the order of the events. Works with any executor,
+ * including {@link java.util.concurrent.Executors#newVirtualThreadPerTaskExecutor()}.
+ * If the executor rejects a drain, the events stay queued, the next offered event retries the drain,
+ * and {@link #rejectedDrains()} and {@link #lastError()} report the rejection.
+ * <p>
+ * Example: {@snippet :
+ *   var delivery = new BatchedDelivery<LogEntry>(Executors.newVirtualThreadPerTaskExecutor(),
+ *           4096, 256, OverflowPolicy.DROP_OLDEST, batch -> batch.forEach(this::log));
+ *   program.blockedConnections.setCallback(delivery);
+ *}
+ * @param <E> type of the event
+ */
+public class BatchedDelivery<E> implements BPFRingBuffer.EventCallback<E>, AutoCloseable {
+
+    /**
+     * What to do with a new event if the queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait till there is space, which stalls the ring buffer consumer,
+         * so the eBPF program eventually can't reserve new events
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued event
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new event
+         */
+        DROP_NEWEST
+    }
+
+    /**
+     * Called with a batch of events
+     *
+     * @param <E> type of the event
+     */
+    @FunctionalInterface
+    public interface BatchCallback<E> {
+        void call(List<E> batch) throws Throwable;
+    }
+
+    /**
+     * Time the producer waits for space with {@link OverflowPolicy#BLOCK} before it checks again
+     * whether the delivery is closed and a drain is scheduled
+     */
+    private static final long BLOCK_WAIT_NANOS = 50_000;
+
+    private final Executor executor;
+    private final int capacity;
+    private final int batchSize;
+    private final OverflowPolicy policy;
+    private final BatchCallback<E> callback;
+
+    private final ArrayBlockingQueue<E> queue;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong failedBatches = new AtomicLong();
+    private final AtomicLong rejectedDrains = new AtomicLong();
+    private final AtomicReference<Throwable> lastError = new AtomicReference<>();
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new delivery
+     *
+     * @param executor  executor that runs the batch callbacks
+     * @param capacity  maximum number of queued events
+     * @param batchSize maximum number of events per batch
+     * @param policy    what to do if the queue is full
+     * @param callback  called with every batch
+     */
+    public BatchedDelivery(Executor executor, int capacity, int batchSize, OverflowPolicy policy,
+                           BatchCallback<E> callback) {
+        if (capacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Capacity and batch size must be positive");
+        }
+        this.executor = executor;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.policy = policy;
+        this.callback = callback;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    @Override
+    public void call(BPFRingBuffer<E> buffer, E event) {
+        offer(event);
+    }
+
+    /**
+     * Queue the event, applying the overflow policy if the queue is full
+     *
+     * @return whether the event has been queued
+     */
+    public boolean offer(E event) {
+        if (closed || !enqueue(event)) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    private boolean enqueue(E event) {
+        return switch (policy) {
+            case DROP_NEWEST -> queue.offer(event);
+            case DROP_OLDEST -> {
+                while (!queue.offer(event)) {
+                    // poll only finds nothing if a drain emptied the queue, so the next offer succeeds
+                    if (queue.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                yield true;
+            }
+            case BLOCK -> enqueueBlocking(event);
+        };
+    }
+
+    private boolean enqueueBlocking(E event) {
+        try {
+            while (!queue.offer(event, BLOCK_WAIT_NANOS, TimeUnit.NANOSECONDS)) {
+                // without a drain, the queue never gets space again
+                if (closed || !scheduleDrain()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Start a drain if events are queued and no drain is running
+     *
+     * @return false if the executor rejected the drain
+     */
+    private boolean scheduleDrain() {
+        if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // allow the next event to retry, instead of never draining again
+                draining.set(false);
+                rejectedDrains.incrementAndGet();
+                lastError.set(e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void drain() {
+        try {
+            List<E> batch = new ArrayList<>(Math.min(batchSize, capacity));
+            while (queue.drainTo(batch, batchSize) > 0) {
+                deliver(batch);
+                batch = new ArrayList<>(Math.min(batchSize, capacity));
+            }
+        } finally {
+            draining.set(false);
+        }
+        // events queued after the last poll but before resetting the flag
+        scheduleDrain();
+    }
+
+    private void deliver(List<E> batch) {
+        try {
+            callback.call(batch);
+            delivered.addAndGet(batch.size());
+        } catch (Throwable e) {
+            failedBatches.incrementAndGet();
+            lastError.set(e);
+        }
+    }
+
+    /** Number of events dropped because the queue was full or the delivery was closed */
+    public long droppedEvents() {
+        return dropped.get();
+    }
+
+    /** Number of events passed to successful batch callbacks */
+    public long deliveredEvents() {
+        return delivered.get();
+    }
+
+    /** Number of events currently queued */
+    public int queuedEvents() {
+        return queue.size();
+    }
+
+    /** Number of batch callbacks that threw an exception */
+    public long failedBatches() {
+        return failedBatches.get();
+    }
+
+    /** Number of drains that the executor rejected, the events stay queued for the next drain */
+    public long rejectedDrains() {
+        return rejectedDrains.get();
+    }
+
+    /** Last exception thrown by the batch callback or by the executor, if any */
+    public @Nullable Throwable lastError() {
+        return lastError.get();
+    }
+
+    /**
+     * Stop accepting events, already queued events are still delivered
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,157 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.bpf.BPFError;
+import me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
+import me.bechberger.ebpf.type.BPFType.BPFIntType;
+import me.bechberger.ebpf.type.Ptr;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An array of CPU masks with up to {@value #MAX_CPUS} CPUs each, backed by an array map
+ * with {@value #WORDS} {@code u64} words per mask
+ * <p>
+ * The masks are written in Java, e.g. the CPUs of every LLC domain from {@link me.bechberger.ebpf.bpf.CpuTopology},
+ * and tested in eBPF. Kernel {@code struct bpf_cpumask} objects can't be created from user space,
+ * so the masks are plain bitmaps.
+ * <p>
+ * Example: {@snippet :
+ *   @BPFMapDefinition(maxEntries = 64) // number of masks
+ *   CpuMaskArray llc_masks;
+ *
+ *   // in Java
+ *   llc_masks.setMask(0, cpus);
+ *
+ *   // in eBPF
+ *   if (llc_masks.test(0, cpu)) { ... }
+ *
+ *   // in a sched-ext scheduler
+ *   int cpu = llc_masks.pickIdleCpu(0, p);
+ *}
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_ARRAY);
+            __type (key, u32);
+            __type (value, u64);
+            __uint (max_entries, ($maxEntries) * 16);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class($fd, $maxEntries)
+        """)
+public class CpuMaskArray extends BPFArray<@Unsigned Long> {
+
+    /** Number of {@code u64} words per mask, keep in sync with the templates */
+    public static final int WORDS = 16;
+
+    /** Maximum number of CPUs per mask */
+    public static final int MAX_CPUS = WORDS * 64;
+
+    private final int masks;
+
+    public CpuMaskArray(FileDescriptor fd, int masks) {
+        super(fd, BPFIntType.UINT64, masks * WORDS);
+        this.masks = masks;
+    }
+
+    /** Number of masks */
+    public int numMasks() {
+        return masks;
+    }
+
+    private void checkMask(int mask) {
+        if (mask < 0 || mask >= masks) {
+            throw new IndexOutOfBoundsException("Mask " + mask + " is out of bounds, there are " + masks);
+        }
+    }
+
+    /**
+     * Replace the mask, using a single batch update if possible
+     */
+    public void setMask(int mask, BitSet cpus) {
+        checkMask(mask);
+        if (cpus.length() > MAX_CPUS) {
+            throw new IllegalArgumentException("CPU " + (cpus.length() - 1) + " is larger than the supported " + MAX_CPUS);
+        }
+        long[] words = cpus.toLongArray();
+        Map<Integer, Long> entries = new HashMap<>();
+        for (int word = 0; word < WORDS; word++) {
+            entries.put(mask * WORDS + word, word < words.length ? words[word] : 0);
+        }
+        if (updateBatch(entries) != WORDS) {
+            throw new BPFError("Could not set CPU mask " + mask);
+        }
+    }
+
+    /**
+     * CPUs in the mask
+     */
+    public BitSet getMask(int mask) {
+        checkMask(mask);
+        long[] words = new long[WORDS];
+        for (int word = 0; word < WORDS; word++) {
+            Long value = get(mask * WORDS + word);
+            words[word] = value == null ? 0 : value;
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * Is the CPU in the mask? Out of bounds masks and CPUs are empty
+     */
+    @BuiltinBPFFunction("""
+            ({ u32 ___cpu = $arg2; bool ___set = false;
+               if (___cpu < 1024) {
+                 u32 ___key = ($arg1) * 16 + (___cpu >> 6);
+                 u64 *___word = bpf_map_lookup_elem(&$this, &___key);
+                 ___set = ___word && ((*___word >> (___cpu & 63)) & 1);
+               }
+               ___set; })""")
+    public boolean test(int mask, int cpu) {
+        return cpu >= 0 && cpu < MAX_CPUS && getMask(mask).get(cpu);
+    }
+
+    /**
+     * Claim an idle CPU of the mask that the task may run on, only usable in sched-ext schedulers
+     * <p>
+     * Uses {@code scx_bpf_get_idle_cpumask} to skip busy CPUs and
+     * {@code scx_bpf_test_and_clear_cpu_idle} to claim the CPU.
+     *
+     * @return the claimed CPU or {@code -EBUSY} if there is no idle CPU in the mask
+     */
+    @BuiltinBPFFunction("""
+            ({ s32 ___found = -16 /* -EBUSY */; u32 ___nr = scx_bpf_nr_cpu_ids();
+               const struct cpumask *___idle = scx_bpf_get_idle_cpumask();
+               for (u32 ___w = 0; ___w < 16 && ___found < 0; ___w++) {
+                 if (___w * 64 >= ___nr) { break; }
+                 u32 ___key = ($arg1) * 16 + ___w;
+                 u64 *___word = bpf_map_lookup_elem(&$this, &___key);
+                 if (!___word || !*___word) { continue; }
+                 u64 ___bits = *___word;
+                 for (u32 ___b = 0; ___b < 64; ___b++) {
+                   u32 ___cpu = ___w * 64 + ___b;
+                   if (___cpu >= ___nr) { break; }
+                   if (((___bits >> ___b) & 1) && bpf_cpumask_test_cpu(___cpu, ___idle)
+                       && bpf_cpumask_test_cpu(___cpu, ($arg2)->cpus_ptr)
+                       && scx_bpf_test_and_clear_cpu_idle(___cpu)) {
+                     ___found = ___cpu;
+                     break;
+                   }
+                 }
+               }
+               scx_bpf_put_idle_cpumask(___idle);
+               ___found; })""")
+    @NotUsableInJava
+    public int pickIdleCpu(int mask, Ptr<task_struct> p) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+}
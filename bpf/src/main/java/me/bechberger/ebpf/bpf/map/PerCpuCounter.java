@@ -0,0 +1,103 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.type.BPFType.BPFIntType;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of {@code u64} counters with one slot per CPU, backed by a per-CPU array
+ * <p>
+ * Incrementing a counter in eBPF only touches the slot of the current CPU, so counters that are updated
+ * on every scheduler event don't bounce between cores. Java reads the sum over all CPUs:
+ * {@link #sums()} for all counters and the inherited {@link #sum(Object)} for a single counter.
+ * <p>
+ * Example: {@snippet :
+ *   static final int WAIT_TIME = 0;
+ *   static final int ENQUEUES = 1;
+ *
+ *   @BPFMapDefinition(maxEntries = 2)
+ *   PerCpuCounter stats;
+ *
+ *   // in eBPF
+ *   stats.add(WAIT_TIME, waitTime);
+ *   stats.increment(ENQUEUES);
+ *
+ *   // in Java
+ *   long[] sums = stats.sums();
+ *   long waitTime = stats.sum(WAIT_TIME);
+ *}
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_PERCPU_ARRAY);
+            __type (key, u32);
+            __type (value, u64);
+            __uint (max_entries, $maxEntries);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class($fd, $maxEntries)
+        """)
+public class PerCpuCounter extends BPFPerCpuArray<@Unsigned Long> {
+
+    public PerCpuCounter(FileDescriptor fd, int size) {
+        super(fd, BPFIntType.UINT64, size);
+    }
+
+    /**
+     * Add the delta to the counter with the given index, only modifies the slot of the current CPU
+     * <p>
+     * Only usable in eBPF: Java can only write the slots of all CPUs at once, which would
+     * clobber the increments that eBPF makes on any CPU between reading and writing them
+     */
+    @BuiltinBPFFunction("({ u32 ___key = $arg1; u64 *___val = bpf_map_lookup_elem(&$this, &___key); " +
+            "if (___val) { *___val += $arg2; } })")
+    @NotUsableInJava
+    public void add(int index, long delta) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /**
+     * Increment the counter with the given index by one, only usable in eBPF
+     * @see #add(int, long)
+     */
+    @BuiltinBPFFunction("({ u32 ___key = $arg1; u64 *___val = bpf_map_lookup_elem(&$this, &___key); " +
+            "if (___val) { *___val += 1; } })")
+    @NotUsableInJava
+    public void increment(int index) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /**
+     * Sums of all counters over all CPUs, indexed by counter, using batch lookups if possible
+     */
+    public long[] sums() {
+        long[] sums = new long[size()];
+        forEach((index, values) -> sums[index] = sumValues(values));
+        return sums;
+    }
+
+    /**
+     * Reset all counters on all CPUs to zero
+     * <p>
+     * Increments that happen between reading and resetting are lost, prefer computing
+     * the difference of two consecutive {@link #sums()} for periodic statistics
+     */
+    public void reset() {
+        var zeros = Collections.nCopies(numCpus(), 0L);
+        Map<Integer, List<Long>> entries = new HashMap<>();
+        for (int i = 0; i < size(); i++) {
+            entries.put(i, zeros);
+        }
+        updateBatch(entries);
+    }
+}
@@ -0,0 +1,268 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.Unsigned;
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.annotations.bpf.MethodIsBPFRelatedFunction;
+import me.bechberger.ebpf.annotations.bpf.NotUsableInJava;
+import me.bechberger.ebpf.type.BPFType.BPFIntType;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A set of log2 histograms with one slot per CPU, backed by a per-CPU array with
+ * {@value #BUCKETS} {@code u64} buckets per histogram
+ * <p>
+ * Bucket 0 counts the value 0, bucket {@code b > 0} counts the values in {@code [2^(b-1), 2^b)}, the last bucket
+ * also counts all larger values. Recording a value in eBPF only increments a bucket of the current CPU,
+ * so it is cheap enough for every scheduler event and doesn't need a ring buffer.
+ * Java merges the buckets of all CPUs and computes percentiles, which are exact up to a factor of two.
+ * <p>
+ * Example: {@snippet :
+ *   @BPFMapDefinition(maxEntries = 2) // number of histograms
+ *   PerCpuHistogram waitTimes;
+ *
+ *   // in eBPF
+ *   waitTimes.record(QUEUE, waitTime);
+ *
+ *   // in Java, every tick
+ *   var current = waitTimes.histogram(QUEUE);
+ *   var tick = current.minus(previous);
+ *   System.out.println(tick.percentile(99));
+ *   previous = current;
+ *}
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_PERCPU_ARRAY);
+            __type (key, u32);
+            __type (value, u64);
+            __uint (max_entries, ($maxEntries) * 64);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class($fd, $maxEntries)
+        """)
+public class PerCpuHistogram extends BPFPerCpuArray<@Unsigned Long> {
+
+    /** Number of buckets per histogram, keep in sync with the cTemplate */
+    public static final int BUCKETS = 64;
+
+    private final int histograms;
+
+    /** Snapshot of the last {@link #histogramsSinceLastCall()} */
+    private Histogram @Nullable [] previous = null;
+
+    public PerCpuHistogram(FileDescriptor fd, int histograms) {
+        super(fd, BPFIntType.UINT64, histograms * BUCKETS);
+        this.histograms = histograms;
+    }
+
+    /** Number of histograms */
+    public int numHistograms() {
+        return histograms;
+    }
+
+    /**
+     * Bucket of the value, the same computation as in {@link #record(int, long)}
+     */
+    public static int bucket(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * Count the value in the given histogram, only modifies the slot of the current CPU
+     * <p>
+     * The value is treated as unsigned. Only usable in eBPF: Java can only write the slots of all CPUs at once,
+     * which would clobber the counts that eBPF adds on any CPU between reading and writing them
+     */
+    @BuiltinBPFFunction("""
+            ({ u64 ___v = $arg2; u32 ___b = 0;
+               if (___v) {
+                 ___b = 1;
+                 if (___v >> 32) { ___v >>= 32; ___b += 32; }
+                 if (___v >> 16) { ___v >>= 16; ___b += 16; }
+                 if (___v >> 8) { ___v >>= 8; ___b += 8; }
+                 if (___v >> 4) { ___v >>= 4; ___b += 4; }
+                 if (___v >> 2) { ___v >>= 2; ___b += 2; }
+                 if (___v >> 1) { ___b += 1; }
+               }
+               if (___b > 63) { ___b = 63; }
+               u32 ___key = ($arg1) * 64 + ___b;
+               u64 *___cnt = bpf_map_lookup_elem(&$this, &___key);
+               if (___cnt) { *___cnt += 1; } })""")
+    @NotUsableInJava
+    public void record(int histogram, long value) {
+        throw new MethodIsBPFRelatedFunction();
+    }
+
+    /**
+     * Merged histogram of all CPUs
+     */
+    public Histogram histogram(int histogram) {
+        if (histogram < 0 || histogram >= histograms) {
+            throw new IndexOutOfBoundsException("Histogram " + histogram + " is out of bounds, there are " + histograms);
+        }
+        long[] counts = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            var values = get(histogram * BUCKETS + bucket);
+            counts[bucket] = values == null ? 0 : sumValues(values);
+        }
+        return new Histogram(counts);
+    }
+
+    /**
+     * Merged histograms of all CPUs, indexed by histogram, using batch lookups if possible
+     */
+    public Histogram[] histograms() {
+        long[][] counts = new long[histograms][BUCKETS];
+        forEach((index, values) -> counts[index / BUCKETS][index % BUCKETS] = sumValues(values));
+        return Arrays.stream(counts).map(Histogram::new).toArray(Histogram[]::new);
+    }
+
+    /**
+     * Merged histograms of the values recorded since the last call, the first call returns all recorded values
+     */
+    public synchronized Histogram[] histogramsSinceLastCall() {
+        var current = histograms();
+        var result = current;
+        if (previous != null) {
+            result = new Histogram[histograms];
+            for (int i = 0; i < histograms; i++) {
+                result[i] = current[i].minus(previous[i]);
+            }
+        }
+        previous = current;
+        return result;
+    }
+
+    /**
+     * Percentiles of the values recorded since the last call, one line per histogram and one line
+     * for all histograms together, e.g. {@code prio_wait_percentiles: p50=1.200ms ...} for the name {@code prio_wait}
+     *
+     * @param totalName name of all histograms together
+     * @param names     name of every histogram, indexed by histogram
+     */
+    public List<String> formatPercentilesSinceLastCall(String totalName, String... names) {
+        if (names.length != histograms) {
+            throw new IllegalArgumentException("Expected " + histograms + " names, got " + names.length);
+        }
+        var since = histogramsSinceLastCall();
+        var total = new Histogram(new long[BUCKETS]);
+        List<String> lines = new ArrayList<>(histograms + 1);
+        for (int i = 0; i < histograms; i++) {
+            lines.add(names[i] + "_percentiles: " + since[i].formatPercentiles());
+            total = total.plus(since[i]);
+        }
+        lines.add(totalName + "_percentiles: " + total.formatPercentiles());
+        return lines;
+    }
+
+    /**
+     * Immutable log2 histogram with {@value #BUCKETS} buckets
+     */
+    public static final class Histogram {
+
+        private final long[] counts;
+        private final long total;
+
+        public Histogram(long[] counts) {
+            if (counts.length != BUCKETS) {
+                throw new IllegalArgumentException("Expected " + BUCKETS + " buckets, got " + counts.length);
+            }
+            this.counts = counts.clone();
+            this.total = Arrays.stream(counts).sum();
+        }
+
+        public long count(int bucket) {
+            return counts[bucket];
+        }
+
+        /** Number of recorded values */
+        public long total() {
+            return total;
+        }
+
+        /** Smallest value of the bucket */
+        public static long lowerBound(int bucket) {
+            return bucket == 0 ? 0 : 1L << (bucket - 1);
+        }
+
+        /** Largest value of the bucket */
+        public static long upperBound(int bucket) {
+            return bucket == 0 ? 0 : bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+
+        /**
+         * Difference to an earlier snapshot of the same histogram, e.g. the values recorded in the last tick
+         */
+        public Histogram minus(Histogram earlier) {
+            long[] diff = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                diff[i] = counts[i] - earlier.counts[i];
+            }
+            return new Histogram(diff);
+        }
+
+        public Histogram plus(Histogram other) {
+            long[] sum = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                sum[i] = counts[i] + other.counts[i];
+            }
+            return new Histogram(sum);
+        }
+
+        /**
+         * Estimate the percentile by interpolating linearly in the bucket that contains it
+         *
+         * @param percentile between 0 and 100, e.g. 99.9
+         * @return estimated value or 0 if the histogram is empty
+         */
+        public long percentile(double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            double rank = Math.max(1, Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (counts[bucket] == 0) {
+                    continue;
+                }
+                if (seen + counts[bucket] >= rank) {
+                    long lower = lowerBound(bucket);
+                    long upper = upperBound(bucket);
+                    double fraction = (rank - seen) / counts[bucket];
+                    return lower + (long) ((upper - lower) * fraction);
+                }
+                seen += counts[bucket];
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        /** p50, p90, p99 and p99.9 of values in ns, formatted in ms, e.g. {@code p50=1.200ms p90=...} */
+        public String formatPercentiles() {
+            return String.format(Locale.ROOT, "p50=%.3fms p90=%.3fms p99=%.3fms p99.9=%.3fms (n=%d)",
+                    percentile(50) / 1e6, percentile(90) / 1e6, percentile(99) / 1e6, percentile(99.9) / 1e6, total);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Histogram other && Arrays.equals(counts, other.counts);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(counts);
+        }
+
+        @Override
+        public String toString() {
+            return "Histogram[" + formatPercentiles() + "]";
+        }
+    }
+}
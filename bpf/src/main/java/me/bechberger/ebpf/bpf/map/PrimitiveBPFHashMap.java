@@ -0,0 +1,31 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BPFMapClass;
+import me.bechberger.ebpf.type.BPFType;
+
+/**
+ * Hash map with {@code int} or {@code long} keys and values, that can be accessed from Java without boxing
+ * <p>
+ * Use it instead of {@link BPFHashMap} in a map definition with {@code Integer} or {@code Long} keys and values.
+ * @param <K> key type, {@code Integer} or {@code Long}
+ * @param <V> value type, {@code Integer} or {@code Long}
+ * @see PrimitiveBPFLRUHashMap
+ */
+@BPFMapClass(
+        cTemplate = """
+        struct {
+            __uint (type, BPF_MAP_TYPE_HASH);
+            __uint (key_size, sizeof($c1));
+            __uint (value_size, sizeof($c2));
+            __uint (max_entries, $maxEntries);
+        } $field SEC(".maps");
+        """,
+        javaTemplate = """
+        new $class<>($fd, $b1, $b2)
+        """)
+public class PrimitiveBPFHashMap<K, V> extends BPFHashMap<K, V> implements PrimitiveBPFMap {
+
+    public PrimitiveBPFHashMap(FileDescriptor fd, BPFType<K> keyType, BPFType<V> valueType) {
+        super(fd, keyType, valueType);
+    }
+}
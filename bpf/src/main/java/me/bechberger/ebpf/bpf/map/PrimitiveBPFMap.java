@@ -0,0 +1,74 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.annotations.bpf.BuiltinBPFFunction;
+import me.bechberger.ebpf.bpf.map.BPFBaseMap.LongLongConsumer;
+import me.bechberger.ebpf.bpf.map.BPFBaseMap.PutMode;
+
+/**
+ * Access to a map with {@code int} or {@code long} keys and values via primitives,
+ * without boxing and without allocation
+ * <p>
+ * Implemented by {@link PrimitiveBPFHashMap} and {@link PrimitiveBPFLRUHashMap}, declare a map field with one of
+ * these classes to use it. Keys are truncated to the key size of the map, unsigned values are zero-extended.
+ */
+public interface PrimitiveBPFMap {
+
+    /** @see BPFBaseMap#getLong(long, long) */
+    long getLong(long key, long missing);
+
+    /** @see BPFBaseMap#putLong(long, long, PutMode) */
+    boolean putLong(long key, long value, PutMode mode);
+
+    /** @see BPFBaseMap#deleteLong(long) */
+    boolean deleteLong(long key);
+
+    /** @see BPFBaseMap#forEachLong(LongLongConsumer) */
+    void forEachLong(LongLongConsumer action);
+
+    /**
+     * Get the value for the key
+     *
+     * @return value or {@code missing} if not found
+     */
+    default long get(long key, long missing) {
+        return getLong(key, missing);
+    }
+
+    /**
+     * Put a value into the map
+     *
+     * @return success?
+     */
+    @BuiltinBPFFunction("({ $C1 ___key = $arg1; $C2 ___value = $arg2; " +
+            "!bpf_map_update_elem(&$this, &___key, &___value, $arg3); })")
+    default boolean put(long key, long value, PutMode mode) {
+        return putLong(key, value, mode);
+    }
+
+    /**
+     * Put a value into the map, updates it if it's already there
+     *
+     * @return success?
+     */
+    @BuiltinBPFFunction("({ $C1 ___key = $arg1; $C2 ___value = $arg2; " +
+            "!bpf_map_update_elem(&$this, &___key, &___value, BPF_ANY); })")
+    default boolean put(long key, long value) {
+        return putLong(key, value, PutMode.BPF_ANY);
+    }
+
+    /**
+     * Delete the entry for the key
+     *
+     * @return false on error
+     */
+    default boolean delete(long key) {
+        return deleteLong(key);
+    }
+
+    /**
+     * Call the action for every entry, using batch lookups if possible
+     */
+    default void forEachPrimitive(LongLongConsumer action) {
+        forEachLong(action);
+    }
+}
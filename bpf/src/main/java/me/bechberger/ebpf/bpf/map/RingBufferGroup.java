@@ -0,0 +1,365 @@
+package me.bechberger.ebpf.bpf.map;
+
+import me.bechberger.ebpf.bpf.BPFError;
+import me.bechberger.ebpf.bpf.RingBufferConsumer;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer.BPFRingBufferError;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer.CaughtBPFRingBufferError;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer.ConsumeResult;
+import me.bechberger.ebpf.bpf.raw.Lib;
+import me.bechberger.ebpf.bpf.raw.ring_buffer_sample_fn;
+import me.bechberger.ebpf.shared.LibC;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static me.bechberger.ebpf.shared.PanamaUtil.*;
+
+/**
+ * Consumes multiple ring buffers, possibly of different programs, with a single libbpf {@code ring_buffer}
+ * and one epoll set
+ * <p>
+ * The events are passed to the callbacks of the individual buffers. Every poll visits the buffers
+ * round-robin and consumes at most the budget of a buffer before moving to the next,
+ * so that a buffer with a high event rate can't starve the others.
+ * <p>
+ * Buffers that are part of a group can't be consumed directly anymore.
+ * <p>
+ * {@link #poll(int)} waits without holding the lock of the group, so {@link #add(BPFRingBuffer, int)},
+ * {@link #size()} and {@link #close()} don't block while another thread waits for events.
+ * Adding a buffer or closing the group wakes up the waiting threads.
+ * <p>
+ * Example: {@snippet :
+ *   try (var group = new RingBufferGroup()) {
+ *       group.add(firewall.blockedConnections).add(logger.packetLog, 16);
+ *       group.startConsumer(null).join();
+ *   }
+ *}
+ * Requires libbpf 1.3 or newer.
+ */
+public class RingBufferGroup implements RingBufferConsumer.Source, AutoCloseable {
+
+    /**
+     * Default number of events consumed per buffer before the next buffer is visited
+     */
+    public static final int DEFAULT_BUDGET = 64;
+
+    /**
+     * Maximum number of round-robin rounds per poll, so that polls return even with continuous events
+     */
+    static final int MAX_ROUNDS = 16;
+
+    /**
+     * Returned by the sample callback to stop consuming a buffer
+     */
+    private static final int BUDGET_EXHAUSTED = -ERRNO_EAGAIN;
+
+    private static final class Member {
+        private final BPFRingBuffer<?> buffer;
+        private final int budget;
+        private MemorySegment ring = MemorySegment.NULL;
+        private int consumedInRound = 0;
+
+        private Member(BPFRingBuffer<?> buffer, int budget) {
+            this.buffer = buffer;
+            this.budget = budget;
+        }
+    }
+
+    private static final HandlerWithErrno<Integer> RING_BUFFER_ADD = new HandlerWithErrno<>("ring_buffer__add",
+            FunctionDescriptor.of(JAVA_INT, POINTER, JAVA_INT, POINTER, POINTER));
+
+    private static final HandlerWithErrno<MemorySegment> RING_BUFFER_RING = new HandlerWithErrno<>(
+            "ring_buffer__ring", FunctionDescriptor.of(POINTER, POINTER, JAVA_INT));
+
+    private static final PointerHandlerWithErrno RING_CONSUME = new PointerHandlerWithErrno("ring__consume");
+
+    private final Arena arena = Arena.ofShared();
+    private final List<Member> members = new ArrayList<>();
+    private MemorySegment rb = MemorySegment.NULL;
+    private int epollFd = -1;
+    /** Signalled by {@link #add(BPFRingBuffer, int)} and {@link #close()} to wake up waiting threads */
+    private final int wakeFd;
+    /** Epoll set of the epoll file descriptor of the combined ring buffer and the {@link #wakeFd} */
+    private final int waitFd;
+    /** Threads waiting in {@link #poll(int)}, the last one frees the group if it is closed meanwhile */
+    private int waiters = 0;
+    private boolean closed = false;
+
+    /**
+     * Create an empty group
+     *
+     * @throws BPFError if the eventfd or the epoll set could not be created
+     */
+    public RingBufferGroup() {
+        var eventFd = LibC.eventfd(0, LibC.EFD_CLOEXEC | LibC.EFD_NONBLOCK);
+        if (eventFd.result() < 0) {
+            throw new BPFError("Failed to create eventfd", eventFd.err());
+        }
+        this.wakeFd = eventFd.result();
+        var epoll = LibC.epollCreate1(LibC.EPOLL_CLOEXEC);
+        if (epoll.result() < 0) {
+            LibC.close(wakeFd);
+            throw new BPFError("Failed to create epoll instance", epoll.err());
+        }
+        this.waitFd = epoll.result();
+        try {
+            addToWaitSet(wakeFd);
+        } catch (BPFError e) {
+            LibC.close(waitFd);
+            LibC.close(wakeFd);
+            throw e;
+        }
+    }
+
+    private void addToWaitSet(int fd) {
+        var ret = LibC.epollAdd(waitFd, fd, LibC.EPOLLIN);
+        if (ret.result() < 0) {
+            throw new BPFError("Failed to add file descriptor to epoll instance", ret.err());
+        }
+    }
+
+    /**
+     * Add a buffer with the {@link #DEFAULT_BUDGET}
+     *
+     * @return this group
+     * @see #add(BPFRingBuffer, int)
+     */
+    public RingBufferGroup add(BPFRingBuffer<?> buffer) {
+        return add(buffer, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Add a buffer, its events are passed to its callback
+     *
+     * @param budget maximum number of events consumed from this buffer before the other buffers are visited
+     * @return this group
+     * @throws IllegalStateException if the buffer is already part of a group or the group is closed
+     * @throws BPFError if the buffer could not be added
+     */
+    public synchronized RingBufferGroup add(BPFRingBuffer<?> buffer, int budget) {
+        if (closed) {
+            throw new IllegalStateException("Group is closed");
+        }
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        if (buffer.grouped) {
+            throw new IllegalStateException("Ring buffer " + buffer.getFd().name() + " is already part of a group");
+        }
+        var member = new Member(buffer, budget);
+        ring_buffer_sample_fn.Function sample = (ctx, data, len) -> {
+            buffer.handleSample(data, len);
+            return ++member.consumedInRound >= member.budget ? BUDGET_EXHAUSTED : 0;
+        };
+        var sampleFn = ring_buffer_sample_fn.allocate(sample, arena);
+        int fd = buffer.getFd().fd();
+        if (rb == MemorySegment.NULL) {
+            var res = BPFRingBuffer.ring_buffer__new(fd, sampleFn, MemorySegment.NULL, MemorySegment.NULL);
+            if (res.result() == MemorySegment.NULL) {
+                throw new BPFError("Failed to create ring buffer for " + buffer.getFd().name(), res.err());
+            }
+            rb = res.result();
+            epollFd = BPFRingBuffer.ring_buffer__epoll_fd.call(rb);
+            addToWaitSet(epollFd);
+        } else {
+            int ret = RING_BUFFER_ADD.call(rb, fd, sampleFn, MemorySegment.NULL).result();
+            if (ret < 0) {
+                throw new BPFError("Failed to add ring buffer " + buffer.getFd().name(), -ret);
+            }
+        }
+        member.ring = RING_BUFFER_RING.call(rb, members.size()).result();
+        if (member.ring == MemorySegment.NULL) {
+            throw new BPFError("Failed to obtain ring of " + buffer.getFd().name());
+        }
+        buffer.grouped = true;
+        members.add(member);
+        // a waiting thread returns, so that the next poll includes the new buffer
+        LibC.eventfdWrite(wakeFd, 1);
+        return this;
+    }
+
+    public synchronized int size() {
+        return members.size();
+    }
+
+    /**
+     * Waits via epoll until events are available in any buffer or the timeout elapsed,
+     * and consumes the available events round-robin, respecting the budget of every buffer
+     * <p>
+     * Returns early without events if a buffer is added or the group is closed while waiting.
+     * The lock of the group is only held while consuming, not while waiting.
+     *
+     * @param timeoutMillis maximum time to wait in milliseconds, {@code -1} to wait indefinitely
+     * @return the number of events consumed and the errors caught in the callbacks of all buffers
+     * @throws BPFRingBufferError if waiting or consuming failed
+     */
+    public ConsumeResult poll(int timeoutMillis) {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Group is closed");
+            }
+            if (members.isEmpty()) {
+                return new ConsumeResult(0, List.of());
+            }
+            waiters++;
+        }
+        var ready = LibC.epollWait(waitFd, timeoutMillis);
+        synchronized (this) {
+            waiters--;
+            if (closed) {
+                if (waiters == 0) {
+                    free();
+                }
+                return new ConsumeResult(0, List.of());
+            }
+            if (ready.result() < 0 && ready.err() != ERRNO_EINTR) {
+                throw new BPFRingBufferError("Failed to wait for events", ready.err());
+            }
+            // reset a wake-up by add, fails with EAGAIN if there was none
+            LibC.eventfdRead(wakeFd);
+            return collectResult(ready.result() > 0 ? consumeRounds() : 0);
+        }
+    }
+
+    /**
+     * Consume the available events round-robin without waiting, respecting the budget of every buffer
+     *
+     * @return the number of events consumed and the errors caught in the callbacks of all buffers
+     * @throws BPFRingBufferError if consuming failed
+     */
+    public synchronized ConsumeResult consume() {
+        if (closed) {
+            throw new IllegalStateException("Group is closed");
+        }
+        return collectResult(consumeRounds());
+    }
+
+    private int consumeRounds() {
+        members.forEach(member -> member.buffer.openSampleArena());
+        try {
+            return consumeRoundsInArenas();
+        } finally {
+            members.forEach(member -> member.buffer.closeSampleArena());
+        }
+    }
+
+    private int consumeRoundsInArenas() {
+        int consumed = 0;
+        boolean exhausted = true;
+        for (int round = 0; round < MAX_ROUNDS && exhausted; round++) {
+            exhausted = false;
+            for (var member : members) {
+                member.consumedInRound = 0;
+                int ret = RING_CONSUME.call(member.ring);
+                consumed += member.consumedInRound;
+                if (ret == BUDGET_EXHAUSTED) {
+                    exhausted = true;
+                } else if (ret < 0) {
+                    throw new BPFRingBufferError("Failed to consume events of " +
+                            member.buffer.getFd().name(), -ret);
+                }
+            }
+        }
+        return consumed;
+    }
+
+    private ConsumeResult collectResult(int consumed) {
+        List<CaughtBPFRingBufferError> errors = new ArrayList<>();
+        for (var member : members) {
+            errors.addAll(member.buffer.collectResult(0).caughtErrorsInCallBack());
+        }
+        return new ConsumeResult(consumed, errors);
+    }
+
+    /**
+     * Waits until events are available or the timeout elapsed and consumes the available events
+     *
+     * @return the number of events consumed
+     * @throws BPFRingBufferError if polling failed or if any errors were caught in the call backs
+     * @see #poll(int)
+     */
+    public int pollAndThrow(int timeoutMillis) {
+        return throwCaughtErrors(poll(timeoutMillis));
+    }
+
+    /**
+     * Consumes the available events without waiting
+     *
+     * @return the number of events consumed
+     * @throws BPFRingBufferError if consuming failed or if any errors were caught in the call backs
+     * @see #consume()
+     */
+    @Override
+    public int consumeAndThrow() {
+        return throwCaughtErrors(consume());
+    }
+
+    private static int throwCaughtErrors(ConsumeResult res) {
+        if (res.hasCaughtErrors()) {
+            throw new BPFRingBufferError("Caught errors while consuming events", res.caughtErrorsInCallBack());
+        }
+        return res.consumed();
+    }
+
+    /**
+     * Epoll file descriptor of the combined ring buffer, readable while events are available in any buffer
+     *
+     * @throws IllegalStateException if no buffer has been added yet
+     */
+    @Override
+    public synchronized int epollFd() {
+        if (epollFd == -1) {
+            throw new IllegalStateException("Group has no buffers");
+        }
+        return epollFd;
+    }
+
+    /**
+     * Start polling the group in a background thread
+     *
+     * @param errorHandler called with errors, {@code null} to stop the consumer on the first error
+     * @see RingBufferConsumer
+     */
+    public RingBufferConsumer startConsumer(@Nullable Consumer<BPFRingBufferError> errorHandler) {
+        return new RingBufferConsumer(Map.of("ring-buffer-group", this), errorHandler);
+    }
+
+    /**
+     * Free the combined ring buffer, the buffers can be consumed directly afterward
+     * <p>
+     * Wakes up threads waiting in {@link #poll(int)}, the last of them frees the ring buffer.
+     * Stop consumers of this group before
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (waiters > 0) {
+            // stays readable, so that every waiting thread wakes up
+            LibC.eventfdWrite(wakeFd, 1);
+        } else {
+            free();
+        }
+    }
+
+    private void free() {
+        if (rb != MemorySegment.NULL) {
+            Lib.ring_buffer__free(rb);
+        }
+        arena.close();
+        LibC.close(waitFd);
+        LibC.close(wakeFd);
+        for (var member : members) {
+            member.buffer.grouped = false;
+        }
+    }
+}
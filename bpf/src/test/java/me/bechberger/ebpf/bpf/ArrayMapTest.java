@@ -3,13 +3,17 @@ package me.bechberger.ebpf.bpf;
 import me.bechberger.ebpf.annotations.bpf.BPF;
 import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
 import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFMmapArray;
+import me.bechberger.ebpf.type.BPFType.BPFIntType;
 import me.bechberger.ebpf.shared.TraceLog;
 import org.junit.jupiter.api.Test;
 
+import java.lang.foreign.ValueLayout;
 import java.time.Duration;
 import java.time.Instant;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class ArrayMapTest {
 
@@ -59,4 +63,36 @@ public class ArrayMapTest {
         }
         TraceLog.getInstance().readAllAvailableLines(Duration.ofMillis(100));
     }
+
+    @BPF(license = "GPL")
+    public static abstract class MmapProgram extends BPFProgram {
+        @BPFMapDefinition(maxEntries = 16)
+        BPFMmapArray<Long> array;
+    }
+
+    @Test
+    public void testMmapArray() {
+        try (var program = BPFProgram.load(MmapProgram.class)) {
+            var array = program.array;
+            assertEquals(16, array.size());
+            assertEquals(8, array.stride());
+            array.set(3, 42L);
+            array.setLongRelease(4, 43);
+            assertEquals(42L, array.get(3));
+            assertEquals(43, array.getLongAcquire(4));
+            assertEquals(43, array.getAndAddLong(4, 1));
+            assertEquals(44, array.getLongVolatile(4));
+            // the same memory is visible via the syscall based API
+            var syscallArray = new BPFArray<>(array.getFd(), BPFIntType.INT64, 16);
+            assertEquals(42L, syscallArray.get(3));
+            syscallArray.set(5, 7L);
+            assertEquals(7, array.getLong(5));
+            assertThrows(IndexOutOfBoundsException.class, () -> array.get(16));
+            // the memory is unmapped, so stale accesses fail instead of crashing the JVM
+            var segment = array.segment();
+            array.close();
+            assertThrows(IllegalStateException.class, () -> array.getLong(5));
+            assertThrows(IllegalStateException.class, () -> segment.get(ValueLayout.JAVA_LONG, 0));
+        }
+    }
 }
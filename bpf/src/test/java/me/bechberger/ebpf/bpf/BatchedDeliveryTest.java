@@ -0,0 +1,141 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.bpf.map.BatchedDelivery;
+import me.bechberger.ebpf.bpf.map.BatchedDelivery.OverflowPolicy;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchedDeliveryTest {
+
+    /**
+     * Collects the drain tasks, so that the test decides when batches are delivered
+     */
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            while (!tasks.isEmpty()) {
+                tasks.removeFirst().run();
+            }
+        }
+    }
+
+    @Test
+    public void testBatching() {
+        var executor = new ManualExecutor();
+        List<List<Integer>> batches = new ArrayList<>();
+        var delivery = new BatchedDelivery<Integer>(executor, 10, 4, OverflowPolicy.DROP_NEWEST, batches::add);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(delivery.offer(i));
+        }
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(List.of(List.of(0, 1, 2, 3), List.of(4, 5, 6, 7), List.of(8, 9)), batches);
+        assertEquals(10, delivery.deliveredEvents());
+        assertEquals(0, delivery.queuedEvents());
+    }
+
+    @Test
+    public void testDropNewest() {
+        var executor = new ManualExecutor();
+        List<Integer> events = new ArrayList<>();
+        var delivery = new BatchedDelivery<Integer>(executor, 2, 8, OverflowPolicy.DROP_NEWEST, events::addAll);
+        assertTrue(delivery.offer(1));
+        assertTrue(delivery.offer(2));
+        assertFalse(delivery.offer(3));
+        executor.runAll();
+        assertEquals(List.of(1, 2), events);
+        assertEquals(1, delivery.droppedEvents());
+    }
+
+    @Test
+    public void testDropOldest() {
+        var executor = new ManualExecutor();
+        List<Integer> events = new ArrayList<>();
+        var delivery = new BatchedDelivery<Integer>(executor, 2, 8, OverflowPolicy.DROP_OLDEST, events::addAll);
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(delivery.offer(i));
+        }
+        executor.runAll();
+        assertEquals(List.of(3, 4), events);
+        assertEquals(2, delivery.droppedEvents());
+    }
+
+    @Test
+    @Timeout(10)
+    public void testBlockWithVirtualThreads() throws InterruptedException {
+        List<Integer> events = new CopyOnWriteArrayList<>();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var delivery = new BatchedDelivery<Integer>(executor, 4, 2, OverflowPolicy.BLOCK, batch -> {
+                Thread.sleep(1);
+                events.addAll(batch);
+            });
+            for (int i = 0; i < 100; i++) {
+                assertTrue(delivery.offer(i));
+            }
+            while (events.size() < 100) {
+                Thread.sleep(1);
+            }
+            assertEquals(0, delivery.droppedEvents());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, events.get(i));
+        }
+    }
+
+    @Test
+    public void testFailingBatchAndClose() {
+        var executor = new ManualExecutor();
+        var delivery = new BatchedDelivery<Integer>(executor, 4, 4, OverflowPolicy.DROP_NEWEST, batch -> {
+            throw new IllegalStateException("failed");
+        });
+        assertTrue(delivery.offer(1));
+        executor.runAll();
+        assertEquals(1, delivery.failedBatches());
+        assertInstanceOf(IllegalStateException.class, delivery.lastError());
+        delivery.close();
+        assertFalse(delivery.offer(2));
+        assertEquals(1, delivery.droppedEvents());
+    }
+
+    @Test
+    public void testRejectedDrainIsRetried() {
+        var executor = new ManualExecutor() {
+            boolean reject = true;
+
+            @Override
+            public void execute(Runnable command) {
+                if (reject) {
+                    reject = false;
+                    throw new RejectedExecutionException("saturated");
+                }
+                super.execute(command);
+            }
+        };
+        List<Integer> events = new ArrayList<>();
+        var delivery = new BatchedDelivery<Integer>(executor, 4, 4, OverflowPolicy.DROP_NEWEST, events::addAll);
+        // the event stays queued although the drain was rejected
+        assertTrue(delivery.offer(1));
+        assertEquals(1, delivery.rejectedDrains());
+        assertInstanceOf(RejectedExecutionException.class, delivery.lastError());
+        assertEquals(1, delivery.queuedEvents());
+        assertTrue(delivery.offer(2));
+        executor.runAll();
+        assertEquals(List.of(1, 2), events);
+        assertEquals(0, delivery.queuedEvents());
+    }
+}
@@ -0,0 +1,89 @@
+package me.bechberger.ebpf.bpf;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CpuTopologyTest {
+
+    private static BitSet cpus(String list) {
+        return CpuTopology.parseCpuList(list);
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, content + "\n");
+    }
+
+    /** Two nodes with an L3 each: CPUs 0-3 and 4-7, CPU 7 has no cache info and CPU 8 is offline */
+    private static void writeSysfs(Path system) throws IOException {
+        write(system.resolve("cpu/possible"), "0-8");
+        for (int cpu = 0; cpu < 7; cpu++) {
+            Path cache = system.resolve("cpu/cpu" + cpu + "/cache");
+            write(cache.resolve("index0/level"), "1");
+            write(cache.resolve("index0/shared_cpu_list"), String.valueOf(cpu));
+            write(cache.resolve("index2/level"), "2");
+            write(cache.resolve("index2/shared_cpu_list"), (cpu / 2 * 2) + "-" + (cpu / 2 * 2 + 1));
+            write(cache.resolve("index3/level"), "3");
+            write(cache.resolve("index3/shared_cpu_list"), cpu < 4 ? "0-3" : "4-7");
+        }
+        write(system.resolve("node/node1/cpulist"), "4-7");
+        write(system.resolve("node/node0/cpulist"), "0-3");
+        write(system.resolve("node/possible"), "0-1");
+    }
+
+    @Test
+    public void testParseCpuList() {
+        assertEquals(new BitSet(), cpus(""));
+        BitSet expected = new BitSet();
+        expected.set(0, 4);
+        expected.set(8);
+        expected.set(10, 12);
+        assertEquals(expected, cpus("0-3,8,10-11\n"));
+        assertThrows(IllegalArgumentException.class, () -> cpus("3-1"));
+        assertThrows(IllegalArgumentException.class, () -> cpus("a"));
+    }
+
+    @Test
+    public void testRead(@TempDir Path system) throws IOException {
+        writeSysfs(system);
+        var topology = CpuTopology.read(system);
+        assertEquals(cpus("0-8"), topology.possibleCpus());
+        // CPU 7 shares the L3 of CPUs 4-6, CPU 8 has no cache info
+        assertEquals(List.of(cpus("0-3"), cpus("4-7"), cpus("8")), topology.llcs());
+        // the offline CPU 8 is in no node list and ends up on the first node
+        assertEquals(List.of(cpus("0-3,8"), cpus("4-7")), topology.nodes());
+        assertEquals(0, topology.llcOf(3));
+        assertEquals(1, topology.llcOf(7));
+        assertEquals(2, topology.llcOf(8));
+        assertEquals(-1, topology.llcOf(9));
+        assertEquals(1, topology.nodeOf(7));
+        assertEquals(0, topology.nodeOf(8));
+    }
+
+    @Test
+    public void testReadWithoutNodes(@TempDir Path system) throws IOException {
+        write(system.resolve("cpu/possible"), "0-1");
+        var topology = CpuTopology.read(system);
+        assertEquals(List.of(cpus("0"), cpus("1")), topology.llcs());
+        assertEquals(List.of(cpus("0-1")), topology.nodes());
+    }
+
+    @Test
+    public void testReadThisMachine() {
+        var topology = CpuTopology.read();
+        var possible = topology.possibleCpus();
+        assertFalse(possible.isEmpty());
+        for (int cpu = possible.nextSetBit(0); cpu >= 0; cpu = possible.nextSetBit(cpu + 1)) {
+            assertTrue(topology.llcCpus(topology.llcOf(cpu)).get(cpu));
+            assertTrue(topology.nodeCpus(topology.nodeOf(cpu)).get(cpu));
+        }
+    }
+}
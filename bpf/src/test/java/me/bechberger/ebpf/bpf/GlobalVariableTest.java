@@ -11,6 +11,7 @@ import org.junit.jupiter.api.Timeout;
 import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class GlobalVariableTest {
 
@@ -57,4 +58,21 @@ public class GlobalVariableTest {
             assertEquals(Set.of(3, 43), program.values.values());
         }
     }
+
+    @Test
+    public void testSnapshotAndAtomicExchange() {
+        try (var program = BPFProgram.load(GlobalVariableTest.Program.class)) {
+            program.intVariable.set(5);
+            var snapshot = GlobalVariable.Globals.snapshot(program.intVariable, program.recordVariable);
+            assertEquals(5, snapshot.get(program.intVariable));
+            assertEquals(new InnerRecord(1, (byte) 2), snapshot.get(program.recordVariable));
+            assertEquals(5, program.intVariable.getAndAdd(3));
+            assertEquals(8, program.intVariable.getAndSet(10));
+            var drained = GlobalVariable.Globals.snapshotAndReset(program.intVariable);
+            assertEquals(10, drained.get(program.intVariable));
+            assertEquals(0, program.intVariable.get());
+            assertThrows(IllegalArgumentException.class,
+                    () -> program.recordVariable.getAndAdd(new InnerRecord(1, (byte) 1)));
+        }
+    }
 }
@@ -1,14 +1,24 @@
 package me.bechberger.ebpf.bpf;
 
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.Unsigned;
 import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
 import me.bechberger.ebpf.bpf.map.BPFBaseMap;
 import me.bechberger.ebpf.bpf.map.BPFHashMap;
+import me.bechberger.ebpf.bpf.map.PrimitiveBPFHashMap;
+import me.bechberger.ebpf.bpf.map.PrimitiveBPFLRUHashMap;
 import me.bechberger.ebpf.type.BPFType;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.lang.foreign.Arena;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -145,6 +155,42 @@ public class HashMapTest {
         }
     }
 
+    @Test
+    public void testBatchOperations() {
+        try (Program program = BPFProgram.load(Program.class)) {
+            var map = getHashMap(program);
+            assertEquals(3, map.updateBatch(Map.of("b", 1, "c", 2, "d", 3)));
+            Assertions.assertAll(
+                    () -> assertEquals(Set.of(Map.entry("b", 1), Map.entry("c", 2), Map.entry("d", 3)),
+                            Set.copyOf(map.lookupBatch())),
+                    () -> assertEquals(Set.of(1, 2, 3), map.values()),
+                    () -> assertEquals(3, map.entrySet().size())
+            );
+            assertEquals(2, map.deleteBatch(List.of("b", "c")));
+            assertEquals(Set.of("d"), map.keySet());
+            assertEquals(List.of(Map.entry("d", 3)), map.lookupAndDeleteBatch());
+            assertTrue(map.isEmpty());
+            map.updateBatch(Map.of("e", 4, "f", 5));
+            map.clear();
+            assertTrue(map.isEmpty());
+        }
+    }
+
+    @Test
+    public void testStream() {
+        try (Program program = BPFProgram.load(Program.class)) {
+            var map = getHashMap(program);
+            map.updateBatch(Map.of("b", 1, "c", 2, "d", 3));
+            assertEquals(Set.of(Map.entry("b", 1), Map.entry("c", 2), Map.entry("d", 3)),
+                    map.stream().collect(Collectors.toSet()));
+            assertEquals(6, map.parallelStream().mapToInt(Map.Entry::getValue).sum());
+            // one entry per chunk
+            assertEquals(3, StreamSupport.stream(map.spliterator(1), true).count());
+            assertEquals(List.of(Map.entry("d", 3), Map.entry("c", 2)),
+                    map.topEntries(2, Map.Entry.comparingByValue()));
+        }
+    }
+
     @BPF
     public static abstract class LRUProgram extends BPFProgram {
         static final String EBPF_PROGRAM = """
@@ -194,4 +240,99 @@ public class HashMapTest {
         }
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testPrimitiveAccessRequiresIntegralTypes() {
+        try (Program program = BPFProgram.load(Program.class)) {
+            var map = getHashMap(program);
+            assertThrows(IllegalArgumentException.class, () -> map.getLong(1, 0));
+            assertThrows(IllegalArgumentException.class, () -> map.putLong(1, 2));
+            assertThrows(IllegalArgumentException.class, () -> map.deleteLong(1));
+            assertThrows(IllegalArgumentException.class, () -> map.forEachLong((k, v) -> {}));
+        }
+    }
+
+    @BPF(license = "GPL")
+    public static abstract class PrimitiveProgram extends BPFProgram {
+        @BPFMapDefinition(maxEntries = 16)
+        PrimitiveBPFLRUHashMap<@Unsigned Integer, @Unsigned Long> intLong;
+
+        @BPFMapDefinition(maxEntries = 16)
+        PrimitiveBPFHashMap<Long, Long> longLong;
+
+        @BPFMapDefinition(maxEntries = 16)
+        PrimitiveBPFHashMap<Long, Integer> longInt;
+    }
+
+    @Test
+    public void testPrimitiveMaps() {
+        try (PrimitiveProgram program = BPFProgram.load(PrimitiveProgram.class)) {
+            var intLong = program.intLong;
+            assertTrue(intLong.usesLRU());
+            assertTrue(intLong.put(1, 10L));
+            assertTrue(intLong.put(-1, -1L));
+            assertEquals(10L, intLong.get(1, 0));
+            assertEquals(-1L, intLong.get(-1, 0));
+            assertEquals(0, intLong.get(2, 0));
+            assertEquals(10L, intLong.get(1));
+            Map<Integer, Long> entries = new HashMap<>();
+            intLong.forEachPrimitive((key, value) -> entries.put((int) key, value));
+            assertEquals(Map.of(1, 10L, -1, -1L), entries);
+            assertTrue(intLong.delete(1));
+            assertEquals(-2, intLong.get(1, -2));
+
+            var longLong = program.longLong;
+            assertTrue(longLong.put(1L << 40, 3L));
+            assertEquals(3L, longLong.get(1L << 40, 0));
+            assertEquals(Set.of(Map.entry(1L << 40, 3L)), longLong.entrySet());
+
+            var longInt = program.longInt;
+            assertTrue(longInt.put(1L << 40, -1));
+            assertEquals(-1, longInt.get(1L << 40, 0));
+            assertEquals(Set.of(Map.entry(1L << 40, -1)), longInt.entrySet());
+        }
+    }
+
+    @BPF(license = "GPL")
+    public static abstract class ViewProgram extends BPFProgram {
+        @Type
+        record Point(int x, long y) {
+        }
+
+        @BPFMapDefinition(maxEntries = 16)
+        BPFHashMap<Integer, Point> points;
+    }
+
+    @Test
+    public void testViews() {
+        try (ViewProgram program = BPFProgram.load(ViewProgram.class)) {
+            var points = program.points;
+            assertTrue(points.put(1, new ViewProgram.Point(1, 10)));
+            assertTrue(points.put(2, new ViewProgram.Point(2, 20)));
+
+            HashMapTest$ViewProgram$PointView view = points.getView(1);
+            assertNotNull(view);
+            assertEquals(1, view.getX());
+            assertEquals(10, view.getY());
+            assertEquals(new ViewProgram.Point(1, 10), view.get());
+            assertNull(points.getView(3));
+
+            try (var arena = Arena.ofConfined()) {
+                HashMapTest$ViewProgram$PointView own = points.newView(arena);
+                own.setX(3);
+                own.setY(30);
+                assertTrue(points.put(3, own.get()));
+                own.setY(0);
+                assertSame(own, points.getView(3, own));
+                assertEquals(30, own.getY());
+            }
+
+            Map<Integer, ViewProgram.Point> entries = new HashMap<>();
+            points.<HashMapTest$ViewProgram$PointView>forEachView((key, point) -> {
+                assertEquals((int) key, point.getX());
+                entries.put(key, point.get());
+            });
+            assertEquals(Map.of(1, new ViewProgram.Point(1, 10), 2, new ViewProgram.Point(2, 20),
+                    3, new ViewProgram.Point(3, 30)), entries);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.map.BPFLRUPerCpuHashMap;
+import me.bechberger.ebpf.bpf.map.BPFPerCpuArray;
+import me.bechberger.ebpf.bpf.map.BPFPerCpuHashMap;
+import me.bechberger.ebpf.bpf.map.PerCpuCounter;
+import me.bechberger.ebpf.bpf.map.PerCpuHistogram;
+import me.bechberger.ebpf.runtime.OpenDefinitions.open_how;
+import me.bechberger.ebpf.runtime.interfaces.SystemCallHooks;
+import me.bechberger.ebpf.type.BPFType.BPFPerCpuType;
+import me.bechberger.ebpf.type.Ptr;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PerCpuMapTest {
+
+    @BPF(license = "GPL")
+    public static abstract class Program extends BPFProgram implements SystemCallHooks {
+
+        static final int OPENS = 0;
+        static final int FIVES = 1;
+
+        @BPFMapDefinition(maxEntries = 2)
+        PerCpuCounter counter;
+
+        @BPFMapDefinition(maxEntries = 2)
+        PerCpuHistogram histogram;
+
+        @BPFMapDefinition(maxEntries = 4)
+        BPFPerCpuArray<Integer> array;
+
+        @BPFMapDefinition(maxEntries = 16)
+        BPFPerCpuHashMap<Integer, Long> hashMap;
+
+        @BPFMapDefinition(maxEntries = 16)
+        BPFLRUPerCpuHashMap<Integer, Long> lruHashMap;
+
+        @Override
+        public void enterOpenat2(int dfd, String filename, Ptr<open_how> how) {
+            counter.increment(OPENS);
+            counter.add(FIVES, 5);
+            histogram.record(OPENS, 1000);
+        }
+    }
+
+    @Test
+    public void testPerCpuArray() {
+        try (var program = BPFProgram.load(Program.class)) {
+            var array = program.array;
+            int cpus = array.numCpus();
+            assertTrue(cpus > 0);
+            assertEquals(Collections.nCopies(cpus, 0), array.get(1));
+            assertTrue(array.putForAllCpus(1, 3));
+            assertEquals(Collections.nCopies(cpus, 3), array.get(1));
+            assertEquals(4, array.lookupBatch().size());
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testPerCpuCounter() throws InterruptedException {
+        try (var program = BPFProgram.load(Program.class)) {
+            program.autoAttachPrograms();
+            while (program.counter.sum(Program.OPENS) == 0) {
+                TestUtil.triggerOpenAt();
+                Thread.sleep(10);
+            }
+            long[] sums = program.counter.sums();
+            assertTrue(sums[Program.OPENS] > 0);
+            assertEquals(0, sums[Program.FIVES] % 5);
+        }
+    }
+
+    @Test
+    public void testPerCpuHashMapReducers() {
+        try (var program = BPFProgram.load(Program.class)) {
+            for (var map : List.of(program.hashMap, program.lruHashMap)) {
+                int cpus = map.numCpus();
+                var values = new ArrayList<Long>();
+                for (int cpu = 0; cpu < cpus; cpu++) {
+                    values.add((long) cpu + 1);
+                }
+                assertTrue(map.put(1, values));
+                assertTrue(map.putForAllCpus(2, 3L));
+                assertEquals(values, map.get(1));
+                assertEquals((long) cpus * (cpus + 1) / 2, map.sum(1));
+                assertEquals(cpus, map.max(1));
+                assertEquals(3L * cpus, map.merge(2, Long::sum));
+                assertEquals(Map.of(1, (long) cpus * (cpus + 1) / 2, 2, 3L * cpus), map.sumAll());
+                assertEquals(Map.of(1, (long) cpus, 2, 3L), map.maxAll());
+            }
+            assertTrue(program.lruHashMap.usesLRU());
+        }
+    }
+
+    @Test
+    public void testPerCpuValueTypeAndPrimitiveAccess() {
+        try (var program = BPFProgram.load(Program.class)) {
+            var map = program.hashMap;
+            int cpus = map.numCpus();
+            var valueType = assertInstanceOf(BPFPerCpuType.class, map.getValueType());
+            assertEquals(cpus, valueType.numCpus());
+            assertTrue(map.putForAllCpus(1, 2L));
+            assertEquals(2L * cpus, map.getLong(1, -1));
+            assertEquals(-1, map.getLong(5, -1));
+            // the value is stored for the first CPU, so that the sum is the value
+            assertTrue(map.putLong(3, 7));
+            assertEquals(7, map.getLong(3, 0));
+            assertEquals(7L, map.get(3).getFirst());
+            assertEquals(7, map.sum(3));
+            Map<Long, Long> sums = new HashMap<>();
+            map.forEachLong(sums::put);
+            assertEquals(Map.of(1L, 2L * cpus, 3L, 7L), sums);
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testPerCpuHistogram() throws InterruptedException {
+        try (var program = BPFProgram.load(Program.class)) {
+            program.autoAttachPrograms();
+            while (program.histogram.histogram(Program.OPENS).total() == 0) {
+                TestUtil.triggerOpenAt();
+                Thread.sleep(10);
+            }
+            var histograms = program.histogram.histograms();
+            assertEquals(2, histograms.length);
+            var opens = histograms[Program.OPENS];
+            assertEquals(opens.total(), opens.count(PerCpuHistogram.bucket(1000)));
+            assertEquals(0, histograms[Program.FIVES].total());
+            // 1000 is in [512, 1024)
+            assertTrue(opens.percentile(50) >= 512 && opens.percentile(50) < 1024);
+        }
+    }
+
+    @Test
+    public void testHistogramsSinceLastCall() {
+        try (var program = BPFProgram.load(Program.class)) {
+            // not attached, so the buckets only change when Java sets them
+            var histogram = program.histogram;
+            int cpus = histogram.numCpus();
+            int opens = Program.OPENS * PerCpuHistogram.BUCKETS + PerCpuHistogram.bucket(1000);
+            histogram.set(opens, Collections.nCopies(cpus, 2L));
+            assertEquals(2L * cpus, histogram.histogramsSinceLastCall()[Program.OPENS].total());
+            histogram.set(Program.FIVES * PerCpuHistogram.BUCKETS + PerCpuHistogram.bucket(5),
+                    Collections.nCopies(cpus, 1L));
+            var lines = histogram.formatPercentilesSinceLastCall("total", "opens", "fives");
+            assertEquals(3, lines.size());
+            assertTrue(lines.get(0).startsWith("opens_percentiles: ") && lines.get(0).endsWith("(n=0)"));
+            assertTrue(lines.get(1).endsWith("(n=" + cpus + ")"));
+            assertTrue(lines.get(2).startsWith("total_percentiles: ") && lines.get(2).endsWith("(n=" + cpus + ")"));
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        assertEquals(0, PerCpuHistogram.bucket(0));
+        assertEquals(1, PerCpuHistogram.bucket(1));
+        assertEquals(11, PerCpuHistogram.bucket(1024));
+        assertEquals(63, PerCpuHistogram.bucket(-1));
+        long[] counts = new long[PerCpuHistogram.BUCKETS];
+        counts[PerCpuHistogram.bucket(100)] = 90;
+        counts[PerCpuHistogram.bucket(10_000)] = 10;
+        var histogram = new PerCpuHistogram.Histogram(counts);
+        assertEquals(100, histogram.total());
+        assertTrue(histogram.percentile(50) >= 64 && histogram.percentile(50) < 128);
+        assertTrue(histogram.percentile(99) >= 8192 && histogram.percentile(99) < 16384);
+        assertEquals(0, histogram.minus(histogram).total());
+        assertEquals(0, histogram.minus(histogram).percentile(99));
+        assertEquals(200, histogram.plus(histogram).total());
+    }
+}
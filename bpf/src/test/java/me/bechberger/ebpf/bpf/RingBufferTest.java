@@ -0,0 +1,232 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.annotations.Size;
+import me.bechberger.ebpf.annotations.Type;
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer;
+import me.bechberger.ebpf.bpf.map.BPFRingBuffer.BPFRingBufferError;
+import me.bechberger.ebpf.bpf.map.RingBufferGroup;
+import me.bechberger.ebpf.runtime.OpenDefinitions.open_how;
+import me.bechberger.ebpf.runtime.interfaces.SystemCallHooks;
+import me.bechberger.ebpf.type.Ptr;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_current_pid_tgid;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RingBufferTest {
+
+    @BPF(license = "GPL")
+    public static abstract class Program extends BPFProgram implements SystemCallHooks {
+
+        @BPFMapDefinition(maxEntries = 100 * 1024)
+        BPFRingBuffer<@Size(256) String> readFiles;
+
+        @Override
+        public void enterOpenat2(int dfd, String filename, Ptr<open_how> how) {
+            var elem = readFiles.reserve();
+            if (elem == null) {
+                return;
+            }
+            BPFJ.bpf_probe_read_user_str(elem.val(), filename);
+            readFiles.submit(elem);
+        }
+    }
+
+    @BPF(license = "GPL")
+    public static abstract class SecondProgram extends BPFProgram implements SystemCallHooks {
+
+        @BPFMapDefinition(maxEntries = 100 * 1024)
+        BPFRingBuffer<@Size(256) String> readFiles;
+
+        @Override
+        public void enterOpenat2(int dfd, String filename, Ptr<open_how> how) {
+            var elem = readFiles.reserve();
+            if (elem == null) {
+                return;
+            }
+            BPFJ.bpf_probe_read_user_str(elem.val(), filename);
+            readFiles.submit(elem);
+        }
+    }
+
+    @BPF(license = "GPL")
+    public static abstract class StructProgram extends BPFProgram implements SystemCallHooks {
+
+        @Type
+        static class OpenEvent {
+            int tgid;
+            @Size(256) String filename;
+        }
+
+        @BPFMapDefinition(maxEntries = 100 * 1024)
+        BPFRingBuffer<OpenEvent> events;
+
+        @Override
+        public void enterOpenat2(int dfd, String filename, Ptr<open_how> how) {
+            var elem = events.reserve();
+            if (elem == null) {
+                return;
+            }
+            elem.val().tgid = (int) (bpf_get_current_pid_tgid() >> 32);
+            BPFJ.bpf_probe_read_user_str(elem.val().filename, filename);
+            events.submit(elem);
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testPoll() {
+        try (var program = BPFProgram.load(Program.class)) {
+            Set<Path> paths = ConcurrentHashMap.newKeySet();
+            program.readFiles.setCallback(file -> paths.add(Path.of(file)));
+            program.autoAttachPrograms();
+            Path path = TestUtil.triggerOpenAt();
+            while (!paths.contains(path)) {
+                program.readFiles.pollAndThrow(100);
+            }
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testRawCallback() {
+        try (var program = BPFProgram.load(Program.class)) {
+            Set<Path> paths = ConcurrentHashMap.newKeySet();
+            AtomicReference<MemorySegment> lastEvent = new AtomicReference<>();
+            var buffer = program.readFiles;
+            buffer.setRawCallback((_, event) -> {
+                assertTrue(event.isReadOnly());
+                paths.add(Path.of(buffer.parse(event)));
+                lastEvent.set(event);
+            });
+            assertThrows(IllegalStateException.class, () -> buffer.setCallback(file -> {}));
+            assertThrows(IllegalArgumentException.class, () -> buffer.field("length"));
+            program.autoAttachPrograms();
+            Path path = TestUtil.triggerOpenAt();
+            while (!paths.contains(path)) {
+                buffer.pollAndThrow(100);
+            }
+            // the segment is only valid during the poll call that passed it to the callback
+            assertThrows(IllegalStateException.class, () -> lastEvent.get().get(ValueLayout.JAVA_BYTE, 0));
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testViewCallback() {
+        try (var program = BPFProgram.load(StructProgram.class)) {
+            int tgid = (int) ProcessHandle.current().pid();
+            Set<Path> paths = ConcurrentHashMap.newKeySet();
+            program.events.<RingBufferTest$StructProgram$OpenEventView>setViewCallback((_, event) -> {
+                if (event.getTgid() == tgid) {
+                    paths.add(Path.of(event.getFilename()));
+                    assertEquals(event.getFilename(), event.get().filename);
+                }
+            });
+            program.autoAttachPrograms();
+            Path path = TestUtil.triggerOpenAt();
+            while (!paths.contains(path)) {
+                program.events.pollAndThrow(100);
+            }
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testConsumer() throws InterruptedException {
+        try (var program = BPFProgram.load(Program.class)) {
+            Set<Path> paths = ConcurrentHashMap.newKeySet();
+            program.readFiles.setCallback(file -> paths.add(Path.of(file)));
+            program.autoAttachPrograms();
+            var consumer = program.startRingBufferConsumer();
+            Path path = TestUtil.triggerOpenAt();
+            while (!paths.contains(path)) {
+                Thread.sleep(10);
+            }
+            consumer.close();
+            assertTrue(consumer.isStopped());
+            consumer.join();
+        }
+    }
+
+    /** The consumer blocks without a timeout, so closing it has to wake it up via its eventfd */
+    @Test
+    @Timeout(10)
+    public void testClosingIdleConsumer() throws InterruptedException {
+        try (var program = BPFProgram.load(Program.class)) {
+            program.readFiles.setCallback(file -> {});
+            var consumer = program.startRingBufferConsumer();
+            Thread.sleep(100);
+            assertFalse(consumer.isStopped());
+            consumer.close();
+            assertTrue(consumer.isStopped());
+            consumer.join();
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testConsumerStopsOnCallbackError() {
+        try (var program = BPFProgram.load(Program.class)) {
+            program.readFiles.setCallback(file -> {
+                throw new IllegalStateException(file);
+            });
+            program.autoAttachPrograms();
+            var consumer = program.startRingBufferConsumer();
+            while (!consumer.isStopped()) {
+                TestUtil.triggerOpenAt();
+            }
+            assertThrows(BPFRingBufferError.class, consumer::join);
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testGroup() {
+        try (var program = BPFProgram.load(Program.class);
+             var second = BPFProgram.load(SecondProgram.class);
+             var group = new RingBufferGroup()) {
+            Set<Path> paths = ConcurrentHashMap.newKeySet();
+            Set<Path> secondPaths = ConcurrentHashMap.newKeySet();
+            program.readFiles.setCallback(file -> paths.add(Path.of(file)));
+            second.readFiles.setCallback(file -> secondPaths.add(Path.of(file)));
+            group.add(program.readFiles).add(second.readFiles, 1);
+            assertEquals(2, group.size());
+            assertTrue(program.readFiles.isGrouped());
+            assertThrows(IllegalStateException.class, () -> group.add(second.readFiles));
+            assertThrows(IllegalStateException.class, () -> program.readFiles.poll(0));
+            program.autoAttachPrograms();
+            second.autoAttachPrograms();
+            Path path = TestUtil.triggerOpenAt();
+            while (!paths.contains(path) || !secondPaths.contains(path)) {
+                group.pollAndThrow(100);
+            }
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testGroupCloseWakesUpPoll() throws InterruptedException {
+        try (var program = BPFProgram.load(Program.class)) {
+            var group = new RingBufferGroup().add(program.readFiles);
+            // not attached, so the poll only returns when the group is closed
+            var poller = Thread.ofPlatform().start(() -> group.poll(-1));
+            Thread.sleep(100);
+            assertTrue(poller.isAlive());
+            assertEquals(1, group.size());
+            group.close();
+            poller.join();
+            assertFalse(program.readFiles.isGrouped());
+        }
+    }
+}
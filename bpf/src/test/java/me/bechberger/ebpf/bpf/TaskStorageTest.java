@@ -0,0 +1,36 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.map.BPFTaskStorage;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TaskStorageTest {
+
+    @BPF(license = "GPL")
+    public static abstract class Program extends BPFProgram {
+        @BPFMapDefinition(maxEntries = 1)
+        BPFTaskStorage<Long> storage;
+    }
+
+    @Test
+    public void testStorageOfCurrentProcess() {
+        try (var program = BPFProgram.load(Program.class)) {
+            int pid = (int) ProcessHandle.current().pid();
+            assertNull(program.storage.get(pid));
+            assertTrue(program.storage.put(pid, 42L));
+            assertEquals(42L, program.storage.get(pid));
+            assertTrue(program.storage.delete(pid));
+            assertNull(program.storage.get(pid));
+        }
+    }
+
+    @Test
+    public void testUnknownProcess() {
+        try (var program = BPFProgram.load(Program.class)) {
+            assertThrows(BPFTaskStorage.BPFTaskStorageError.class, () -> program.storage.get(Integer.MAX_VALUE));
+        }
+    }
+}
@@ -50,6 +50,10 @@ public class TypeProcessingTest {
         record RecordWithOtherType(@Unsigned int value, SimpleRecord other) {
         }
 
+        @Type
+        record RecordWithPrimitives(boolean flag, short s, @Unsigned int u, float f, double d, long l) {
+        }
+
         @Type
         record RecordWithStringWithRecordOutOfProgram(RecordWithStringOutOfProgram name) {
         }
@@ -501,6 +505,87 @@ public class TypeProcessingTest {
         }
     }
 
+    @Test
+    public void testGeneratedAccessors() {
+        var type = BPFProgram.getStructTypeForClass(SimpleRecordTestProgram.class,
+                SimpleRecordTestProgram.RecordWithPrimitives.class);
+        assertTrue(type.hasGeneratedAccessors());
+        var record = new SimpleRecordTestProgram.RecordWithPrimitives(true, (short) -3, 42, 1.5f, -2.5, 1L << 40);
+        try (var arena = Arena.ofConfined()) {
+            var memory = type.allocate(arena, record);
+            assertEquals(1, memory.get(ValueLayout.JAVA_BYTE, 0));
+            assertEquals(-3, memory.get(ValueLayout.JAVA_SHORT, type.getOffsetOfMember("s")));
+            assertEquals(1L << 40, memory.get(ValueLayout.JAVA_LONG, type.getOffsetOfMember("l")));
+            assertEquals(record, type.parseMemory(memory));
+        }
+    }
+
+    @Test
+    public void testGeneratedAccessorsOfNestedTypes() {
+        var type = BPFProgram.getStructTypeForClass(SimpleRecordTestProgram.class,
+                SimpleRecordTestProgram.RecordWithOtherType.class);
+        assertTrue(type.hasGeneratedAccessors());
+        var record = new SimpleRecordTestProgram.RecordWithOtherType(42, new SimpleRecordTestProgram.SimpleRecord(43));
+        var classType = BPFProgram.getStructTypeForClass(SimpleRecordTestProgram.class,
+                SimpleRecordTestProgram.ClassRecord.class);
+        assertTrue(classType.hasGeneratedAccessors());
+        var classRecord = new SimpleRecordTestProgram.ClassRecord();
+        classRecord.a = 42;
+        classRecord.b = "Hello";
+        try (var arena = Arena.ofConfined()) {
+            assertEquals(record, type.parseMemory(type.allocate(arena, record)));
+            var parsed = classType.parseMemory(classType.allocate(arena, classRecord));
+            assertEquals(42, parsed.a);
+            assertEquals("Hello", parsed.b);
+        }
+    }
+
+    @Test
+    public void testInlineUnionsUseGenericAccessors() {
+        var type = BPFProgram.getStructTypeForClass(SimpleRecordTestProgram.class,
+                SimpleRecordTestProgram.StructWithInlineUnion.class);
+        assertFalse(type.hasGeneratedAccessors());
+        assertFalse(type.hasView());
+    }
+
+    @Test
+    public void testView() {
+        var type = BPFProgram.getStructTypeForClass(SimpleRecordTestProgram.class,
+                SimpleRecordTestProgram.RecordWithPrimitives.class);
+        assertTrue(type.hasView());
+        var record = new SimpleRecordTestProgram.RecordWithPrimitives(true, (short) -3, 42, 1.5f, -2.5, 1L << 40);
+        try (var arena = Arena.ofConfined()) {
+            var memory = type.allocate(arena, record);
+            TypeProcessingTest$SimpleRecordTestProgram$RecordWithPrimitivesView view = StructView.create(type, memory);
+            assertTrue(view.getFlag());
+            assertEquals(-3, view.getS());
+            assertEquals(42, view.getU());
+            assertEquals(1.5f, view.getF());
+            assertEquals(1L << 40, view.getL());
+            view.setFlag(false);
+            view.setL(7);
+            assertEquals(new SimpleRecordTestProgram.RecordWithPrimitives(false, (short) -3, 42, 1.5f, -2.5, 7),
+                    type.parseMemory(memory));
+            assertEquals(type.parseMemory(memory), view.get());
+            view.set(record);
+            assertEquals(record, type.parseMemory(memory));
+        }
+    }
+
+    @Test
+    public void testViewOfNestedType() {
+        var type = BPFProgram.getStructTypeForClass(SimpleRecordTestProgram.class,
+                SimpleRecordTestProgram.RecordWithOtherType.class);
+        var record = new SimpleRecordTestProgram.RecordWithOtherType(42, new SimpleRecordTestProgram.SimpleRecord(43));
+        try (var arena = Arena.ofConfined()) {
+            var memory = type.allocate(arena, record);
+            var view = new TypeProcessingTest$SimpleRecordTestProgram$RecordWithOtherTypeView(memory);
+            assertEquals(43, view.getOther().getValue());
+            view.getOther().setValue(44);
+            assertEquals(new SimpleRecordTestProgram.SimpleRecord(44), type.parseMemory(memory).other());
+        }
+    }
+
     @Test
     public void testClassWithPointer() {
         var type = BPFProgram.getStructTypeForClass(SimpleRecordTestProgram.class,
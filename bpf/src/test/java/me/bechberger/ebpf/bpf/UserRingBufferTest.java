@@ -0,0 +1,153 @@
+package me.bechberger.ebpf.bpf;
+
+import me.bechberger.ebpf.annotations.bpf.BPF;
+import me.bechberger.ebpf.annotations.bpf.BPFFunction;
+import me.bechberger.ebpf.annotations.bpf.BPFMapDefinition;
+import me.bechberger.ebpf.bpf.map.BPFArray;
+import me.bechberger.ebpf.bpf.map.BPFUserRingBuffer;
+import me.bechberger.ebpf.type.Ptr;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserRingBufferTest {
+
+    @BPF(license = "GPL")
+    public static abstract class Program extends BPFProgram {
+
+        @BPFMapDefinition(maxEntries = 4096)
+        BPFUserRingBuffer<Long> commands;
+
+        /** sum of all received values and number of received values */
+        @BPFMapDefinition(maxEntries = 2)
+        BPFArray<Long> stats;
+
+        static final String EBPF_PROGRAM = """
+            #include <vmlinux.h>
+            #include <bpf/bpf_helpers.h>
+
+            static long handle_command(struct bpf_dynptr *dynptr, void *ctx)
+            {
+              long value;
+              if (bpf_dynptr_read(&value, sizeof(value), dynptr, 0, 0)) {
+                return 1;
+              }
+              int idx = 0;
+              long *sum = bpf_map_lookup_elem(&stats, &idx);
+              if (sum) {
+                *sum += value;
+              }
+              idx = 1;
+              long *count = bpf_map_lookup_elem(&stats, &idx);
+              if (count) {
+                *count += 1;
+              }
+              return 0;
+            }
+
+            SEC ("kprobe/do_sys_openat2")
+                 int kprobe__do_sys_openat2 (struct pt_regs *ctx)
+            {
+              bpf_user_ringbuf_drain(&commands, handle_command, NULL, 0);
+              return 0;
+            }
+        """;
+    }
+
+    /**
+     * Same as {@link Program}, but drains the buffer via {@link BPFUserRingBuffer#drain(String)} from Java
+     */
+    @BPF(license = "GPL")
+    public static abstract class JavaDrainProgram extends BPFProgram {
+
+        static final String EBPF_PROGRAM = """
+            #include <vmlinux.h>
+            #include <bpf/bpf_helpers.h>
+        """;
+
+        @BPFMapDefinition(maxEntries = 4096)
+        BPFUserRingBuffer<Long> commands;
+
+        final GlobalVariable<Long> sum = new GlobalVariable<>(0L);
+        final GlobalVariable<Long> count = new GlobalVariable<>(0L);
+
+        @BPFFunction(headerTemplate = "static long $name(struct bpf_dynptr *dynptr, void *ctx)")
+        public long handleCommand(Ptr<?> dynptr, Ptr<?> ctx) {
+            long value = 0;
+            if (!commands.read(dynptr, Ptr.of(value))) {
+                return 1;
+            }
+            sum.getAndAdd(value);
+            count.getAndAdd(1L);
+            return 0;
+        }
+
+        @BPFFunction(headerTemplate = "int $name(struct pt_regs *ctx)", lastStatement = "return 0;",
+                section = "kprobe/do_sys_openat2", autoAttach = true)
+        public void drainCommands(Ptr<?> ctx) {
+            commands.drain("handleCommand");
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testSendToProgram() throws InterruptedException {
+        try (var program = BPFProgram.load(Program.class)) {
+            program.autoAttachProgram(program.getProgramByName("kprobe__do_sys_openat2"));
+            List<Long> values = new ArrayList<>();
+            for (long i = 1; i <= 100; i++) {
+                values.add(i);
+            }
+            assertEquals(100, program.commands.offerAll(values));
+            assertTrue(program.commands.offer(1000L));
+            while (program.stats.get(1) < 101) {
+                TestUtil.triggerOpenAt();
+                Thread.sleep(1);
+            }
+            assertEquals(5050 + 1000, program.stats.get(0));
+        }
+    }
+
+    @Test
+    public void testFullBuffer() {
+        try (var program = BPFProgram.load(Program.class)) {
+            // nothing drains the buffer, as the program is not attached
+            int sent = 0;
+            while (program.commands.offer((long) sent)) {
+                sent++;
+            }
+            assertTrue(sent > 0);
+            assertNull(program.commands.reserve());
+            assertFalse(program.commands.put(1L, 10));
+        }
+    }
+
+    @Test
+    @Timeout(10)
+    public void testDrainFromJava() throws InterruptedException {
+        try (var program = BPFProgram.load(JavaDrainProgram.class)) {
+            program.autoAttachPrograms();
+            for (long i = 1; i <= 10; i++) {
+                assertTrue(program.commands.offer(i));
+            }
+            while (program.count.get() < 10) {
+                TestUtil.triggerOpenAt();
+                Thread.sleep(1);
+            }
+            assertEquals(55, program.sum.get());
+        }
+    }
+
+    @Test
+    public void testOfferAfterClose() {
+        try (var program = BPFProgram.load(Program.class)) {
+            program.commands.close();
+            assertThrows(IllegalStateException.class, () -> program.commands.offer(1L));
+            assertThrows(IllegalStateException.class, () -> program.commands.offerAll(List.of(1L, 2L)));
+        }
+    }
+}
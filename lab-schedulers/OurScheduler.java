@@ -38,24 +38,22 @@ import me.bechberger.ebpf.annotations.bpf.Property;
 import me.bechberger.ebpf.bpf.BPFProgram;
 import me.bechberger.ebpf.bpf.GlobalVariable;
 import me.bechberger.ebpf.bpf.Scheduler;
-import me.bechberger.ebpf.bpf.map.BPFHashMap;
 import me.bechberger.ebpf.bpf.map.BPFLRUHashMap;
+import me.bechberger.ebpf.bpf.map.BPFPerCpuArray;
 import me.bechberger.ebpf.type.Ptr;
 import picocli.CommandLine;
 
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
 import java.util.Map;
+import java.util.List;
 import java.util.function.Function;
 
 import static me.bechberger.ebpf.runtime.ScxDefinitions.*;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_dsq_id_flags.SCX_DSQ_LOCAL;
 import static me.bechberger.ebpf.runtime.ScxDefinitions.scx_public_consts.SCX_SLICE_DFL;
 import static me.bechberger.ebpf.runtime.TaskDefinitions.task_struct;
-import static me.bechberger.ebpf.runtime.helpers.BPFHelpers.bpf_get_smp_processor_id;
 import static picocli.CommandLine.Option;
 
 @BPF(license = "GPL")
@@ -82,32 +80,24 @@ public abstract class OurScheduler extends BPFProgram implements Scheduler, Runn
         long local;
     }
 
-    @BPFMapDefinition(maxEntries = 100)
-    BPFHashMap<Integer, Stats> statsPerCPU;
+    // single entry, the per-CPU array keeps a separate copy for every CPU
+    @BPFMapDefinition(maxEntries = 1)
+    BPFPerCpuArray<Stats> statsPerCPU;
 
     @BPFMapDefinition(maxEntries = 100000)
     BPFLRUHashMap<@Unsigned Integer, @Unsigned Long> enqueuesPerProcess;
 
     @BPFFunction
     void incrementStats(boolean local) {
-        int processor = bpf_get_smp_processor_id();
-        Ptr<Stats> statsPtr = statsPerCPU.bpf_get(processor);
+        int key = 0;
+        Ptr<Stats> statsPtr = statsPerCPU.bpf_get_this_cpu(key);
         if (statsPtr == null) {
-            var nee = new Stats();
-            if (local) {
-                nee.local = 1;
-                nee.global = 0;
-            } else {
-                nee.global = 1;
-                nee.local = 0;
-            }
-            statsPerCPU.put(processor, nee);
+            return;
+        }
+        if (local) {
+            statsPtr.val().local++;
         } else {
-            if (local) {
-                statsPtr.val().local++;
-            } else {
-                statsPtr.val().global++;
-            }
+            statsPtr.val().global++;
         }
     }
 
@@ -223,14 +213,13 @@ public abstract class OurScheduler extends BPFProgram implements Scheduler, Runn
         statsRows.add(new ArrayList<>());
         statsRows.add(new ArrayList<>());
         statsRows.add(new ArrayList<>());
-        statsPerCPU.entrySet().stream().sorted(Map.Entry.comparingByKey())
-                .forEach((e) -> {
-            var cpu = e.getKey();
-            var stats = e.getValue();
+        var perCpu = statsPerCPU.get(0);
+        for (int cpu = 0; cpu < perCpu.size(); cpu++) {
+            var stats = perCpu.get(cpu);
             statsRows.get(0).add((long)cpu);
             statsRows.get(1).add(stats.local);
             statsRows.get(2).add(stats.global);
-        });
+        }
 
         Function<Long, String> format = (Long l) -> String.format("%-9d", l);
         Function<List<Long>, String> formatRow = (List<Long> row) -> String.join(" ", row.stream().map(format).toList());
@@ -240,6 +229,13 @@ public abstract class OurScheduler extends BPFProgram implements Scheduler, Runn
         System.out.println("local " + String.join(" ", formatRow.apply(statsRows.get(1))));
         // header: | global | ...
         System.out.println("global " + String.join(" ", formatRow.apply(statsRows.get(2))));
+        var total = statsPerCPU.merge(0, (a, b) -> {
+            var sum = new Stats();
+            sum.local = a.local + b.local;
+            sum.global = a.global + b.global;
+            return sum;
+        });
+        System.out.println("total local " + total.local + " global " + total.global);
     }
 
     String getProcessName(int pid) {
@@ -251,10 +247,7 @@ public abstract class OurScheduler extends BPFProgram implements Scheduler, Runn
     }
 
     void printVTimeStats() {
-        var top5 = enqueuesPerProcess.entrySet().stream()
-                .sorted(Comparator.comparingLong(e -> -e.getValue()))
-                .limit(10)
-                .toList();
+        var top5 = enqueuesPerProcess.topEntries(10, Map.Entry.comparingByValue());
         // Print table header
         System.out.printf("%-10s %-20s %-10s%n", "PID", "Process Name", "Enqueue Count");
         System.out.println("---------------------------------------------");
@@ -0,0 +1,74 @@
+package me.bechberger.ebpf.simulator;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.TreeSet;
+
+/**
+ * Simulated dispatch queue (DSQ)
+ * <p>
+ * Like in the kernel, a DSQ is either a FIFO or ordered by the {@code dsq_vtime} of its tasks,
+ * the mode is fixed by the first insertion and mixing both is an error.
+ * Tasks with equal vtime are ordered by insertion.
+ */
+final class DispatchQueue {
+
+    private record Entry(SimTask task, long vtime, long seq) {
+    }
+
+    private enum Mode {
+        UNDECIDED, FIFO, VTIME
+    }
+
+    final long id;
+    /** CPU whose local DSQ this is, -1 for other DSQs */
+    final int cpu;
+    private final TreeSet<Entry> entries = new TreeSet<>((a, b) -> {
+        // vtimes wrap around, so compare them via their signed difference like the kernel
+        int cmp = Long.signum(a.vtime - b.vtime);
+        return cmp != 0 ? cmp : Long.compare(a.seq, b.seq);
+    });
+    private Mode mode = Mode.UNDECIDED;
+    private long seq = 0;
+
+    DispatchQueue(long id, int cpu) {
+        this.id = id;
+        this.cpu = cpu;
+    }
+
+    /**
+     * @throws IllegalStateException if the queue is already used with the other ordering
+     */
+    void insert(SimTask task, boolean vtimeOrdered, long vtime) {
+        Mode requested = vtimeOrdered ? Mode.VTIME : Mode.FIFO;
+        if (mode == Mode.UNDECIDED || entries.isEmpty()) {
+            mode = requested;
+        } else if (mode != requested) {
+            throw new IllegalStateException("DSQ " + id + " is used in " + mode + " and " + requested + " mode");
+        }
+        entries.add(new Entry(task, vtimeOrdered ? vtime : 0, seq++));
+        task.queue = this;
+    }
+
+    @Nullable SimTask poll() {
+        Entry entry = entries.pollFirst();
+        if (entry == null) {
+            return null;
+        }
+        entry.task.queue = null;
+        return entry.task;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "DSQ " + id + " (" + entries.size() + " tasks)";
+    }
+}
@@ -0,0 +1,26 @@
+package me.bechberger.ebpf.simulator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Counterpart of {@code BPFLRUHashMap}: a hash map with a maximum number of entries
+ * that evicts the least recently used entry when it is full
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class SimLRUHashMap<K, V> extends LinkedHashMap<K, V> {
+
+    private final int maxEntries;
+
+    public SimLRUHashMap(int maxEntries) {
+        super(16, 0.75f, true);
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > maxEntries;
+    }
+}
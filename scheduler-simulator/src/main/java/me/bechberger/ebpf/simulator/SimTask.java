@@ -0,0 +1,92 @@
+package me.bechberger.ebpf.simulator;
+
+import me.bechberger.ebpf.simulator.Workload.Phase;
+import me.bechberger.ebpf.simulator.Workload.TaskSpec;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * Simulated task, the counterpart of the {@code task_struct} that the sched-ext callbacks receive
+ * <p>
+ * Only the members that the lab schedulers use are modelled, with the same names,
+ * so that {@code p.val().scx.slice} becomes {@code p.scx.slice} when porting a scheduler.
+ */
+public final class SimTask {
+
+    /**
+     * Counterpart of {@code struct sched_ext_entity}
+     */
+    public static final class Scx {
+        /** Remaining time slice in ns, set when dispatching and decremented while running */
+        public long slice;
+        /** Virtual time used for ordering in vtime DSQs */
+        public long dsq_vtime;
+        /** Weight derived from the nice value, 100 is the default */
+        public int weight;
+    }
+
+    enum State {
+        /** not yet arrived */
+        NEW,
+        RUNNABLE,
+        RUNNING,
+        SLEEPING,
+        DEAD
+    }
+
+    public final int pid;
+    public final int tgid;
+    public final String comm;
+    public final Scx scx = new Scx();
+
+    final List<Phase> phases;
+    State state = State.NEW;
+    /** CPU the task last ran on or was selected for */
+    int cpu;
+    int phaseIndex = 0;
+    /** remaining run time of the current phase */
+    long remainingRun;
+    /** time at which the task became runnable the last time */
+    long runnableSince;
+    /** DSQ the task is queued in, null if not queued */
+    @Nullable DispatchQueue queue;
+
+    long totalWaitNs = 0;
+    long totalRunNs = 0;
+    long completedPhases = 0;
+    long exitNs = -1;
+
+    SimTask(TaskSpec spec, int cpu) {
+        this.pid = spec.pid();
+        this.tgid = spec.tgid();
+        this.comm = spec.name();
+        this.scx.weight = spec.weight();
+        this.phases = spec.phases();
+        this.cpu = cpu;
+        this.remainingRun = phases.isEmpty() ? 0 : phases.get(0).runNs();
+    }
+
+    @Nullable Phase currentPhase() {
+        return phaseIndex < phases.size() ? phases.get(phaseIndex) : null;
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    /** Total time this task spent waiting while being runnable */
+    public long totalWaitNs() {
+        return totalWaitNs;
+    }
+
+    /** Total time this task spent on a CPU */
+    public long totalRunNs() {
+        return totalRunNs;
+    }
+
+    @Override
+    public String toString() {
+        return comm + "[" + pid + "]";
+    }
+}
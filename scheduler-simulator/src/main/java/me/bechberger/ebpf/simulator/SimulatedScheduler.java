@@ -0,0 +1,231 @@
+package me.bechberger.ebpf.simulator;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Scheduling policy that runs in the {@link Simulator}, the userspace counterpart of
+ * {@code me.bechberger.ebpf.bpf.Scheduler}
+ * <p>
+ * The callbacks and the kfuncs have the same names and semantics as in the BPF scheduler,
+ * so porting a scheduler mostly means replacing {@code Ptr<task_struct> p} with {@link SimTask}
+ * and {@code p.val().} with {@code p.}. Global variables become fields and maps become
+ * Java maps (see {@link SimLRUHashMap}). Example:
+ * {@snippet :
+ *     class FIFO extends SimulatedScheduler {
+ *         static final long SHARED_DSQ_ID = 0;
+ *
+ *         @Override
+ *         public int init() {
+ *             return scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+ *         }
+ *
+ *         @Override
+ *         public void enqueue(SimTask p, long enq_flags) {
+ *             scx_bpf_dispatch(p, SHARED_DSQ_ID, SCX_SLICE_DFL, enq_flags);
+ *         }
+ *
+ *         @Override
+ *         public void dispatch(int cpu, SimTask prev) {
+ *             scx_bpf_consume(SHARED_DSQ_ID);
+ *         }
+ *     }
+ * }
+ * A scheduler instance can only be used in one simulation, as it usually holds per-run state.
+ */
+public abstract class SimulatedScheduler {
+
+    public static final long SCX_DSQ_FLAG_BUILTIN = 1L << 63;
+    public static final long SCX_DSQ_GLOBAL = SCX_DSQ_FLAG_BUILTIN | 1;
+    /** Local DSQ of the CPU the callback is running for */
+    public static final long SCX_DSQ_LOCAL = SCX_DSQ_FLAG_BUILTIN | 2;
+    /** Local DSQ of a specific CPU, use {@code SCX_DSQ_LOCAL_ON | cpu} */
+    public static final long SCX_DSQ_LOCAL_ON = SCX_DSQ_FLAG_BUILTIN | (1L << 62);
+    public static final long SCX_DSQ_LOCAL_CPU_MASK = 0xffffffffL;
+    /** Default time slice, 20ms */
+    public static final long SCX_SLICE_DFL = 20_000_000;
+
+    private @Nullable Simulator simulator;
+
+    void attach(Simulator simulator) {
+        if (this.simulator != null) {
+            throw new IllegalStateException("Scheduler " + getSchedulerName() + " is already used in a simulation");
+        }
+        this.simulator = simulator;
+    }
+
+    private Simulator sim() {
+        if (simulator == null) {
+            throw new IllegalStateException("kfuncs can only be called during a simulation");
+        }
+        return simulator;
+    }
+
+    public String getSchedulerName() {
+        return getClass().getSimpleName();
+    }
+
+    // callbacks
+
+    /** Called once before the first task arrives, return a non-zero value to abort */
+    public int init() {
+        return 0;
+    }
+
+    /** Called when a task arrives, before {@link #enable(SimTask)}, return a non-zero value to abort */
+    public int initTask(SimTask p) {
+        return 0;
+    }
+
+    /** Called when a task arrives, typically used to initialize its vtime */
+    public void enable(SimTask p) {
+    }
+
+    /**
+     * Select the CPU for a waking task, dispatching the task here skips {@link #enqueue(SimTask, long)}
+     * <p>
+     * The default implementation dispatches to the local DSQ of an idle CPU, like the kernel does
+     * if the BPF scheduler has no {@code select_cpu} callback.
+     */
+    public int selectCPU(SimTask p, int prev_cpu, long wake_flags) {
+        boolean[] is_idle = new boolean[1];
+        int cpu = scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, is_idle);
+        if (is_idle[0]) {
+            scx_bpf_dispatch(p, SCX_DSQ_LOCAL, SCX_SLICE_DFL, 0);
+        }
+        return cpu;
+    }
+
+    /**
+     * Enqueue a runnable task, either by dispatching it to a DSQ or by storing it
+     * for a later dispatch in {@link #dispatch(int, SimTask)}
+     */
+    public abstract void enqueue(SimTask p, long enq_flags);
+
+    /**
+     * Called when the CPU has nothing in its local DSQ and the global DSQ is empty,
+     * move tasks to the local DSQ via {@link #scx_bpf_consume(long)} or {@link #scx_bpf_dispatch}
+     *
+     * @param prev task that ran before on this CPU or null
+     */
+    public void dispatch(int cpu, @Nullable SimTask prev) {
+    }
+
+    /** Called when a task starts running on a CPU */
+    public void running(SimTask p) {
+    }
+
+    /**
+     * Called when a task stops running
+     *
+     * @param runnable whether the task is still runnable, i.e. it used up its slice
+     */
+    public void stopping(SimTask p, boolean runnable) {
+    }
+
+    /** Called when a CPU enters or leaves the idle state */
+    public void updateIdle(int cpu, boolean idle) {
+    }
+
+    // kfuncs and helpers
+
+    /**
+     * Create a custom DSQ
+     *
+     * @return 0 on success, negative error number otherwise
+     */
+    protected int scx_bpf_create_dsq(long dsq_id, int node) {
+        return sim().createDsq(dsq_id);
+    }
+
+    /**
+     * Default CPU selection: the previous CPU if it is idle, otherwise the first idle CPU,
+     * the selected idle CPU is claimed
+     *
+     * @param is_idle array of at least length one, the first element is set to whether the
+     *                returned CPU is idle
+     */
+    protected int scx_bpf_select_cpu_dfl(SimTask p, int prev_cpu, long wake_flags, boolean[] is_idle) {
+        return sim().selectCpuDfl(prev_cpu, is_idle);
+    }
+
+    /**
+     * Dispatch a task to a FIFO DSQ
+     *
+     * @param slice time slice in ns, 0 keeps the current slice
+     */
+    protected void scx_bpf_dispatch(SimTask p, long dsq_id, long slice, long enq_flags) {
+        sim().dispatch(p, dsq_id, slice, false, 0);
+    }
+
+    /**
+     * Dispatch a task to a vtime ordered DSQ, built-in DSQs can't be vtime ordered
+     *
+     * @param slice time slice in ns, 0 keeps the current slice
+     */
+    protected void scx_bpf_dispatch_vtime(SimTask p, long dsq_id, long slice, long vtime, long enq_flags) {
+        sim().dispatch(p, dsq_id, slice, true, vtime);
+    }
+
+    /**
+     * Move the first task of the given DSQ to the local DSQ of the dispatching CPU,
+     * only callable in {@link #dispatch(int, SimTask)}
+     *
+     * @return whether a task was moved
+     */
+    protected boolean scx_bpf_consume(long dsq_id) {
+        return sim().consume(dsq_id);
+    }
+
+    /**
+     * @return number of tasks in the DSQ or -ENOENT if it doesn't exist
+     */
+    protected int scx_bpf_dsq_nr_queued(long dsq_id) {
+        return sim().nrQueued(dsq_id);
+    }
+
+    /** Wake up the CPU if it is idle, preemption is not simulated */
+    protected void scx_bpf_kick_cpu(int cpu, long flags) {
+        sim().kickCpu(cpu);
+    }
+
+    protected int scx_bpf_nr_cpu_ids() {
+        return sim().numCpus();
+    }
+
+    protected int scx_bpf_task_cpu(SimTask p) {
+        return p.cpu;
+    }
+
+    /**
+     * Claim an idle CPU
+     *
+     * @return the CPU or -EBUSY if no CPU is idle
+     */
+    protected int scx_bpf_pick_idle_cpu(long flags) {
+        return sim().pickIdleCpu();
+    }
+
+    /** Claim the given CPU if it is idle */
+    protected boolean scx_bpf_test_and_clear_cpu_idle(int cpu) {
+        return sim().testAndClearIdle(cpu);
+    }
+
+    /**
+     * Abort the scheduler
+     *
+     * @throws SimulationError always
+     */
+    protected void scx_bpf_error(String fmt, Object... args) {
+        throw new SimulationError(getSchedulerName() + ": " + String.format(fmt, args), sim().now());
+    }
+
+    /** Current simulated time in ns */
+    protected long bpf_ktime_get_ns() {
+        return sim().now();
+    }
+
+    /** CPU that executes the current callback */
+    protected int bpf_get_smp_processor_id() {
+        return sim().currentCpu();
+    }
+}
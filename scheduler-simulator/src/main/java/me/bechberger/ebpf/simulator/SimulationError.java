@@ -0,0 +1,22 @@
+package me.bechberger.ebpf.simulator;
+
+/**
+ * Error raised by a simulated scheduler, e.g. via {@code scx_bpf_error},
+ * or by the simulator when a scheduler violates the sched-ext contract
+ * <p>
+ * The kernel would abort the BPF scheduler and fall back to CFS in these cases.
+ */
+public class SimulationError extends RuntimeException {
+
+    /** Simulated time at which the error occurred */
+    private final long timeNs;
+
+    public SimulationError(String message, long timeNs) {
+        super(message + " (at " + timeNs + "ns)");
+        this.timeNs = timeNs;
+    }
+
+    public long getTimeNs() {
+        return timeNs;
+    }
+}
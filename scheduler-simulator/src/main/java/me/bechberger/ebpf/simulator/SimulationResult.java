@@ -0,0 +1,124 @@
+package me.bechberger.ebpf.simulator;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Metrics of a simulation run
+ * <p>
+ * Wait times are measured per run, from the time a task became runnable
+ * (woke up or used up its slice) until it started running.
+ */
+public final class SimulationResult {
+
+    private final String schedulerName;
+    private final int cpus;
+    private final long endNs;
+    private final long[] sortedWaits;
+    private final long busyNs;
+    private final long completedPhases;
+    private final long runs;
+    private final List<SimTask> tasks;
+
+    SimulationResult(String schedulerName, int cpus, long endNs, long[] sortedWaits, long busyNs,
+                     long completedPhases, long runs, List<SimTask> tasks) {
+        this.schedulerName = schedulerName;
+        this.cpus = cpus;
+        this.endNs = endNs;
+        this.sortedWaits = sortedWaits;
+        this.busyNs = busyNs;
+        this.completedPhases = completedPhases;
+        this.runs = runs;
+        this.tasks = List.copyOf(tasks);
+    }
+
+    public String schedulerName() {
+        return schedulerName;
+    }
+
+    /** Simulated time at which the simulation ended */
+    public long endNs() {
+        return endNs;
+    }
+
+    public List<SimTask> tasks() {
+        return tasks;
+    }
+
+    /** Number of times a task was put on a CPU */
+    public long runs() {
+        return runs;
+    }
+
+    public int waitSamples() {
+        return sortedWaits.length;
+    }
+
+    public double meanWaitNs() {
+        if (sortedWaits.length == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (long wait : sortedWaits) {
+            sum += wait;
+        }
+        return sum / sortedWaits.length;
+    }
+
+    /**
+     * Nearest-rank percentile of the wait times
+     *
+     * @param percentile between 0 and 100
+     */
+    public long waitPercentileNs(double percentile) {
+        if (sortedWaits.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(percentile / 100 * sortedWaits.length);
+        return sortedWaits[Math.min(sortedWaits.length, Math.max(1, rank)) - 1];
+    }
+
+    public long maxWaitNs() {
+        return sortedWaits.length == 0 ? 0 : sortedWaits[sortedWaits.length - 1];
+    }
+
+    /** Completed phases (CPU bursts) per simulated second */
+    public double throughputPerSecond() {
+        return endNs == 0 ? 0 : completedPhases / (endNs / 1e9);
+    }
+
+    public long completedPhases() {
+        return completedPhases;
+    }
+
+    public long finishedTasks() {
+        return tasks.stream().filter(t -> t.state == SimTask.State.DEAD).count();
+    }
+
+    /** Fraction of the CPU time that was used to run tasks */
+    public double utilization() {
+        return endNs == 0 ? 0 : busyNs / ((double) endNs * cpus);
+    }
+
+    /**
+     * Time at which the last task exited, or -1 if not all tasks finished
+     */
+    public long makespanNs() {
+        long max = 0;
+        for (SimTask task : tasks) {
+            if (task.exitNs < 0) {
+                return -1;
+            }
+            max = Math.max(max, task.exitNs);
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT,
+                "%s: wait mean %.3fms p50 %.3fms p99 %.3fms max %.3fms, %.1f bursts/s, utilization %.1f%%",
+                schedulerName, meanWaitNs() / 1e6, waitPercentileNs(50) / 1e6, waitPercentileNs(99) / 1e6,
+                maxWaitNs() / 1e6, throughputPerSecond(), utilization() * 100);
+    }
+}
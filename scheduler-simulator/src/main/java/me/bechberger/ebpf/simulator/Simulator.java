@@ -0,0 +1,468 @@
+package me.bechberger.ebpf.simulator;
+
+import me.bechberger.ebpf.simulator.SimTask.State;
+import me.bechberger.ebpf.simulator.Workload.Phase;
+import me.bechberger.ebpf.simulator.Workload.TaskSpec;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static me.bechberger.ebpf.simulator.SimulatedScheduler.*;
+
+/**
+ * Discrete-event simulator that runs a {@link SimulatedScheduler} on simulated CPUs
+ * <p>
+ * The simulator models the parts of sched-ext that the lab schedulers rely on:
+ * <ul>
+ *     <li>a local DSQ per CPU, the global DSQ and custom DSQs (FIFO or vtime ordered)</li>
+ *     <li>waking tasks go through {@code selectCPU}, then {@code enqueue} unless they were dispatched directly,
+ *     afterward the selected CPU is kicked if it is idle</li>
+ *     <li>a CPU picks from its local DSQ, then from the global DSQ and then calls {@code dispatch}</li>
+ *     <li>a task runs until its slice is used up ({@code stopping(p, true)} and {@code enqueue}) or until it
+ *     blocks ({@code stopping(p, false)})</li>
+ * </ul>
+ * Preemption, CPU affinity, migration costs and the watchdog are not modelled.
+ * <p>
+ * Simulations are deterministic: events at the same time are processed in the order they were created
+ * and the default CPU selection always prefers the lowest idle CPU. Usage:
+ * {@snippet :
+ *     var workload = Workload.mixed(42, 8, 32, 1_000_000_000L);
+ *     var result = new Simulator(4, new WeightedVTimeScheduler(true)).run(workload, 2_000_000_000L);
+ *     System.out.println(result.waitPercentileNs(99));
+ * }
+ */
+public final class Simulator {
+
+    private static final int ENOENT = 2;
+    private static final int EBUSY = 16;
+    private static final int EEXIST = 17;
+
+    private enum Kind {
+        WAKEUP, RUN_END, RESCHEDULE
+    }
+
+    private record Event(long time, long seq, Kind kind, int cpu, @Nullable SimTask task) {
+    }
+
+    /** Context of the currently running callback, determines which kfuncs are allowed */
+    private enum Context {
+        NONE, SELECT_CPU, ENQUEUE, DISPATCH
+    }
+
+    private record PendingDispatch(long dsqId, boolean vtimeOrdered, long vtime) {
+    }
+
+    private static final class Cpu {
+        final int id;
+        final DispatchQueue local;
+        @Nullable SimTask current;
+        long runStart;
+        /** CPU has nothing to run */
+        boolean idle = true;
+        /** CPU is idle and not claimed by a CPU selection */
+        boolean idleMask = true;
+        /** CPU is currently picking the next task */
+        boolean picking;
+        /** a reschedule event is queued */
+        boolean pickPending;
+        long busyNs;
+
+        Cpu(int id) {
+            this.id = id;
+            this.local = new DispatchQueue(SCX_DSQ_LOCAL_ON | id, id);
+        }
+    }
+
+    private final Cpu[] cpus;
+    private final SimulatedScheduler scheduler;
+    private final DispatchQueue global = new DispatchQueue(SCX_DSQ_GLOBAL, -1);
+    private final Map<Long, DispatchQueue> customDsqs = new HashMap<>();
+    private final PriorityQueue<Event> events = new PriorityQueue<>((a, b) -> {
+        int cmp = Long.compare(a.time, b.time);
+        return cmp != 0 ? cmp : Long.compare(a.seq, b.seq);
+    });
+    private long eventSeq = 0;
+    private long now = 0;
+    private boolean used = false;
+
+    private Context context = Context.NONE;
+    private int contextCpu = 0;
+    private @Nullable PendingDispatch pendingDispatch;
+
+    private long[] waits = new long[1024];
+    private int waitCount = 0;
+    private long completedPhases = 0;
+    private long runs = 0;
+
+    /**
+     * @param cpus      number of simulated CPUs
+     * @param scheduler scheduler, it can't be used in another simulation afterward
+     */
+    public Simulator(int cpus, SimulatedScheduler scheduler) {
+        if (cpus <= 0) {
+            throw new IllegalArgumentException("Need at least one CPU");
+        }
+        this.cpus = new Cpu[cpus];
+        for (int i = 0; i < cpus; i++) {
+            this.cpus[i] = new Cpu(i);
+        }
+        this.scheduler = scheduler;
+        scheduler.attach(this);
+    }
+
+    /**
+     * Run the workload until all tasks exited or the simulated time reached {@code durationNs}
+     * <p>
+     * Tasks that are still waiting at the end contribute their waiting time so far as a wait sample,
+     * so that starving policies are not rewarded.
+     *
+     * @throws SimulationError if the scheduler fails or violates the sched-ext rules
+     */
+    public SimulationResult run(Workload workload, long durationNs) {
+        if (used) {
+            throw new IllegalStateException("Simulator can only run once");
+        }
+        used = true;
+        if (scheduler.init() != 0) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": init failed", now);
+        }
+        List<SimTask> tasks = new ArrayList<>(workload.tasks().size());
+        for (TaskSpec spec : workload.tasks()) {
+            SimTask task = new SimTask(spec, tasks.size() % cpus.length);
+            task.scx.slice = SCX_SLICE_DFL;
+            tasks.add(task);
+            push(spec.startNs(), Kind.WAKEUP, task.cpu, task);
+        }
+        while (!events.isEmpty() && events.peek().time <= durationNs) {
+            Event event = events.poll();
+            now = event.time;
+            switch (event.kind) {
+                case WAKEUP -> wakeup(event.task);
+                case RUN_END -> runEnd(cpus[event.cpu]);
+                case RESCHEDULE -> {
+                    Cpu cpu = cpus[event.cpu];
+                    cpu.pickPending = false;
+                    if (cpu.current == null) {
+                        schedule(cpu, null);
+                    }
+                }
+            }
+        }
+        if (tasks.stream().anyMatch(t -> t.state != State.DEAD)) {
+            // the simulation ran into the time limit or the scheduler lost tasks
+            now = durationNs;
+        }
+        return finish(tasks);
+    }
+
+    private SimulationResult finish(List<SimTask> tasks) {
+        for (Cpu cpu : cpus) {
+            if (cpu.current != null) {
+                long ran = now - cpu.runStart;
+                cpu.busyNs += ran;
+                cpu.current.totalRunNs += ran;
+            }
+        }
+        for (SimTask task : tasks) {
+            if (task.state == State.RUNNABLE) {
+                recordWait(task, now - task.runnableSince);
+            }
+        }
+        long busy = Arrays.stream(cpus).mapToLong(c -> c.busyNs).sum();
+        long[] sortedWaits = Arrays.copyOf(waits, waitCount);
+        Arrays.sort(sortedWaits);
+        return new SimulationResult(scheduler.getSchedulerName(), cpus.length, now, sortedWaits, busy,
+                completedPhases, runs, tasks);
+    }
+
+    private void push(long time, Kind kind, int cpu, @Nullable SimTask task) {
+        events.add(new Event(time, eventSeq++, kind, cpu, task));
+    }
+
+    private void recordWait(SimTask task, long wait) {
+        if (waitCount == waits.length) {
+            waits = Arrays.copyOf(waits, waits.length * 2);
+        }
+        waits[waitCount++] = wait;
+        task.totalWaitNs += wait;
+    }
+
+    private void wakeup(SimTask p) {
+        if (p.state == State.NEW) {
+            if (scheduler.initTask(p) != 0) {
+                throw new SimulationError(scheduler.getSchedulerName() + ": initTask failed for " + p, now);
+            }
+            scheduler.enable(p);
+        }
+        p.state = State.RUNNABLE;
+        p.runnableSince = now;
+
+        context = Context.SELECT_CPU;
+        contextCpu = p.cpu;
+        pendingDispatch = null;
+        int cpu = scheduler.selectCPU(p, p.cpu, 0);
+        context = Context.NONE;
+        checkCpu(cpu);
+        p.cpu = cpu;
+        if (pendingDispatch != null) {
+            PendingDispatch pending = pendingDispatch;
+            pendingDispatch = null;
+            insert(resolveDsq(pending.dsqId, cpu), p, pending.vtimeOrdered, pending.vtime);
+        } else {
+            enqueue(p);
+        }
+        kickCpu(cpu);
+    }
+
+    private void enqueue(SimTask p) {
+        context = Context.ENQUEUE;
+        contextCpu = p.cpu;
+        scheduler.enqueue(p, 0);
+        context = Context.NONE;
+    }
+
+    /** Pick the next task for an idle CPU */
+    private void schedule(Cpu cpu, @Nullable SimTask prev) {
+        cpu.picking = true;
+        SimTask next = cpu.local.poll();
+        if (next == null) {
+            next = global.poll();
+        }
+        if (next == null) {
+            context = Context.DISPATCH;
+            contextCpu = cpu.id;
+            scheduler.dispatch(cpu.id, prev);
+            context = Context.NONE;
+            next = cpu.local.poll();
+        }
+        cpu.picking = false;
+        if (next == null) {
+            cpu.idleMask = true;
+            if (!cpu.idle) {
+                cpu.idle = true;
+                scheduler.updateIdle(cpu.id, true);
+            }
+        } else {
+            run(cpu, next);
+        }
+    }
+
+    private void run(Cpu cpu, SimTask p) {
+        cpu.idleMask = false;
+        if (cpu.idle) {
+            cpu.idle = false;
+            scheduler.updateIdle(cpu.id, false);
+        }
+        p.state = State.RUNNING;
+        p.cpu = cpu.id;
+        cpu.current = p;
+        cpu.runStart = now;
+        runs++;
+        recordWait(p, now - p.runnableSince);
+        if (p.scx.slice <= 0) {
+            // tasks that used up their slice and were dispatched with slice 0 get a fresh default slice
+            p.scx.slice = SCX_SLICE_DFL;
+        }
+        scheduler.running(p);
+        scheduleRunEnd(cpu, p);
+    }
+
+    private void scheduleRunEnd(Cpu cpu, SimTask p) {
+        push(now + Math.max(1, Math.min(p.scx.slice, p.remainingRun)), Kind.RUN_END, cpu.id, p);
+    }
+
+    private void runEnd(Cpu cpu) {
+        SimTask p = cpu.current;
+        assert p != null;
+        long ran = now - cpu.runStart;
+        cpu.busyNs += ran;
+        p.totalRunNs += ran;
+        p.remainingRun -= ran;
+        p.scx.slice = Math.max(0, p.scx.slice - ran);
+        cpu.runStart = now;
+
+        if (p.remainingRun <= 0) {
+            Phase phase = p.currentPhase();
+            assert phase != null;
+            completedPhases++;
+            p.completedPhases++;
+            p.phaseIndex++;
+            Phase next = p.currentPhase();
+            if (next != null) {
+                p.remainingRun = next.runNs();
+                if (phase.sleepNs() == 0 && p.scx.slice > 0) {
+                    // the task doesn't block, so it just continues with the next phase
+                    scheduleRunEnd(cpu, p);
+                    return;
+                }
+            }
+            if (next == null || phase.sleepNs() > 0) {
+                cpu.current = null;
+                scheduler.stopping(p, false);
+                if (next == null) {
+                    p.state = State.DEAD;
+                    p.exitNs = now;
+                } else {
+                    p.state = State.SLEEPING;
+                    push(now + phase.sleepNs(), Kind.WAKEUP, cpu.id, p);
+                }
+                schedule(cpu, p);
+                return;
+            }
+        }
+        // slice used up
+        cpu.current = null;
+        scheduler.stopping(p, true);
+        p.state = State.RUNNABLE;
+        p.runnableSince = now;
+        enqueue(p);
+        schedule(cpu, p);
+    }
+
+    // kfunc implementations
+
+    long now() {
+        return now;
+    }
+
+    int numCpus() {
+        return cpus.length;
+    }
+
+    int currentCpu() {
+        return contextCpu;
+    }
+
+    private void checkCpu(int cpu) {
+        if (cpu < 0 || cpu >= cpus.length) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": invalid CPU " + cpu, now);
+        }
+    }
+
+    int createDsq(long id) {
+        if ((id & SCX_DSQ_FLAG_BUILTIN) != 0 || customDsqs.containsKey(id)) {
+            return -EEXIST;
+        }
+        customDsqs.put(id, new DispatchQueue(id, -1));
+        return 0;
+    }
+
+    private @Nullable DispatchQueue findDsq(long id, int localCpu) {
+        if (id == SCX_DSQ_LOCAL) {
+            return cpus[localCpu].local;
+        }
+        if ((id & SCX_DSQ_LOCAL_ON) == SCX_DSQ_LOCAL_ON) {
+            long cpu = id & SCX_DSQ_LOCAL_CPU_MASK;
+            return cpu < cpus.length ? cpus[(int) cpu].local : null;
+        }
+        if (id == SCX_DSQ_GLOBAL) {
+            return global;
+        }
+        return customDsqs.get(id);
+    }
+
+    private DispatchQueue resolveDsq(long id, int localCpu) {
+        DispatchQueue dsq = findDsq(id, localCpu);
+        if (dsq == null) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": non-existent DSQ 0x" + Long.toHexString(id), now);
+        }
+        return dsq;
+    }
+
+    private void insert(DispatchQueue dsq, SimTask p, boolean vtimeOrdered, long vtime) {
+        if (vtimeOrdered && (dsq.id & SCX_DSQ_FLAG_BUILTIN) != 0) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": cannot use vtime ordering for built-in DSQs", now);
+        }
+        try {
+            dsq.insert(p, vtimeOrdered, vtime);
+        } catch (IllegalStateException e) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": " + e.getMessage(), now);
+        }
+        if (dsq.cpu >= 0) {
+            kickCpu(dsq.cpu);
+        }
+    }
+
+    void dispatch(SimTask p, long dsqId, long slice, boolean vtimeOrdered, long vtime) {
+        if (context == Context.NONE) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": dispatching outside of selectCPU, enqueue and dispatch", now);
+        }
+        if (p.state != State.RUNNABLE || p.queue != null || (context == Context.SELECT_CPU && pendingDispatch != null)) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": " + p + " is not runnable or already dispatched", now);
+        }
+        if (slice != 0) {
+            p.scx.slice = slice;
+        }
+        if (context == Context.SELECT_CPU) {
+            // the target CPU is only known after selectCPU returned
+            pendingDispatch = new PendingDispatch(dsqId, vtimeOrdered, vtime);
+            return;
+        }
+        insert(resolveDsq(dsqId, context == Context.ENQUEUE ? p.cpu : contextCpu), p, vtimeOrdered, vtime);
+    }
+
+    boolean consume(long dsqId) {
+        if (context != Context.DISPATCH) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": scx_bpf_consume outside of dispatch", now);
+        }
+        DispatchQueue dsq = resolveDsq(dsqId, contextCpu);
+        if (dsq.cpu >= 0) {
+            throw new SimulationError(scheduler.getSchedulerName() + ": cannot consume from local DSQs", now);
+        }
+        SimTask p = dsq.poll();
+        if (p == null) {
+            return false;
+        }
+        cpus[contextCpu].local.insert(p, false, 0);
+        return true;
+    }
+
+    int nrQueued(long dsqId) {
+        DispatchQueue dsq = findDsq(dsqId, contextCpu);
+        return dsq == null ? -ENOENT : dsq.size();
+    }
+
+    void kickCpu(int id) {
+        checkCpu(id);
+        Cpu cpu = cpus[id];
+        if (cpu.current == null && !cpu.picking && !cpu.pickPending) {
+            cpu.pickPending = true;
+            push(now, Kind.RESCHEDULE, id, null);
+        }
+    }
+
+    int selectCpuDfl(int prevCpu, boolean[] isIdle) {
+        checkCpu(prevCpu);
+        if (testAndClearIdle(prevCpu)) {
+            isIdle[0] = true;
+            return prevCpu;
+        }
+        int cpu = pickIdleCpu();
+        isIdle[0] = cpu >= 0;
+        return cpu >= 0 ? cpu : prevCpu;
+    }
+
+    int pickIdleCpu() {
+        for (Cpu cpu : cpus) {
+            if (testAndClearIdle(cpu.id)) {
+                return cpu.id;
+            }
+        }
+        return -EBUSY;
+    }
+
+    boolean testAndClearIdle(int id) {
+        checkCpu(id);
+        Cpu cpu = cpus[id];
+        if (cpu.idleMask && cpu.current == null && cpu.local.isEmpty()) {
+            cpu.idleMask = false;
+            return true;
+        }
+        return false;
+    }
+}
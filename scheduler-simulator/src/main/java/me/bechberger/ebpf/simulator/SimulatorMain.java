@@ -0,0 +1,114 @@
+package me.bechberger.ebpf.simulator;
+
+import me.bechberger.ebpf.simulator.schedulers.FIFOScheduler;
+import me.bechberger.ebpf.simulator.schedulers.IOPrioSched;
+import me.bechberger.ebpf.simulator.schedulers.PrioSchedWeightedAvg;
+import me.bechberger.ebpf.simulator.schedulers.PrioSchedWeightedAvgNoStarvation;
+import me.bechberger.ebpf.simulator.schedulers.UserspaceScheduler;
+import me.bechberger.ebpf.simulator.schedulers.WeightedVTimeScheduler;
+import me.bechberger.ebpf.simulator.schedulers.WorkStealingScheduler;
+import me.bechberger.ebpf.simulator.trace.TraceReplay;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Compare the ported lab schedulers on a synthetic workload or on a recorded trace
+ * <p>
+ * Usage: {@code java -jar scheduler-simulator.jar [--cpus N] [--cpu-bound N] [--interactive N]
+ * [--duration-ms N] [--seed N] [--trace FILE] [--scheduler NAME]...}
+ * <p>
+ * With {@code --trace}, the workload is replayed from a trace file (see {@link TraceReplay}),
+ * the number of CPUs defaults to the CPUs in the trace and the duration to twice the trace length.
+ */
+public class SimulatorMain {
+
+    static final Map<String, Supplier<SimulatedScheduler>> SCHEDULERS = new LinkedHashMap<>();
+
+    static {
+        SCHEDULERS.put("fifo", FIFOScheduler::new);
+        SCHEDULERS.put("vtime", WeightedVTimeScheduler::new);
+        SCHEDULERS.put("vtime-fifo", () -> new WeightedVTimeScheduler(true));
+        SCHEDULERS.put("io-prio", IOPrioSched::new);
+        SCHEDULERS.put("prio-weighted-avg", PrioSchedWeightedAvg::new);
+        SCHEDULERS.put("prio-weighted-avg-no-starvation", PrioSchedWeightedAvgNoStarvation::new);
+        SCHEDULERS.put("work-stealing", WorkStealingScheduler::new);
+        SCHEDULERS.put("userspace", UserspaceScheduler::new);
+    }
+
+    public static void main(String[] args) throws IOException {
+        @Nullable Integer cpus = null;
+        int cpuBound = 8;
+        int interactive = 32;
+        @Nullable Long durationMs = null;
+        long seed = 42;
+        @Nullable Path trace = null;
+        List<String> schedulers = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help") || arg.equals("-h")) {
+                printUsage();
+                return;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--cpus" -> cpus = Integer.parseInt(value);
+                case "--cpu-bound" -> cpuBound = Integer.parseInt(value);
+                case "--interactive" -> interactive = Integer.parseInt(value);
+                case "--duration-ms" -> durationMs = Long.parseLong(value);
+                case "--seed" -> seed = Long.parseLong(value);
+                case "--trace" -> trace = Path.of(value);
+                case "--scheduler" -> {
+                    if (!SCHEDULERS.containsKey(value)) {
+                        throw new IllegalArgumentException("Unknown scheduler " + value + ", available: " + SCHEDULERS.keySet());
+                    }
+                    schedulers.add(value);
+                }
+                default -> throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        if (schedulers.isEmpty()) {
+            schedulers.addAll(SCHEDULERS.keySet());
+        }
+        Workload workload;
+        long durationNs;
+        if (trace != null) {
+            var replay = TraceReplay.of(trace);
+            workload = replay.workload();
+            cpus = cpus == null ? replay.cpus() : cpus;
+            durationNs = durationMs == null ? Math.max(1, replay.spanNs() * 2) : durationMs * 1_000_000;
+            System.out.printf(Locale.ROOT, "%d CPUs, %d threads from %s, %dms%n",
+                    cpus, workload.tasks().size(), trace, durationNs / 1_000_000);
+        } else {
+            cpus = cpus == null ? 4 : cpus;
+            durationNs = (durationMs == null ? 1000 : durationMs) * 1_000_000;
+            workload = Workload.mixed(seed, cpuBound, interactive, durationNs);
+            System.out.printf(Locale.ROOT, "%d CPUs, %d CPU-bound and %d interactive tasks, %dms, seed %d%n",
+                    cpus, cpuBound, interactive, durationNs / 1_000_000, seed);
+        }
+        System.out.printf(Locale.ROOT, "%-34s %10s %10s %10s %10s %12s %8s%n",
+                "scheduler", "mean[ms]", "p50[ms]", "p99[ms]", "max[ms]", "bursts/s", "util");
+        for (String name : schedulers) {
+            var result = new Simulator(cpus, SCHEDULERS.get(name).get()).run(workload, durationNs);
+            System.out.printf(Locale.ROOT, "%-34s %10.3f %10.3f %10.3f %10.3f %12.1f %7.1f%%%n",
+                    result.schedulerName(), result.meanWaitNs() / 1e6, result.waitPercentileNs(50) / 1e6,
+                    result.waitPercentileNs(99) / 1e6, result.maxWaitNs() / 1e6,
+                    result.throughputPerSecond(), result.utilization() * 100);
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: [--cpus N] [--cpu-bound N] [--interactive N] [--duration-ms N] [--seed N] [--trace FILE] " +
+                "[--scheduler " + String.join("|", SCHEDULERS.keySet()) + "]...");
+    }
+}
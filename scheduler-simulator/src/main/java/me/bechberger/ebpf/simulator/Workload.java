@@ -0,0 +1,115 @@
+package me.bechberger.ebpf.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Tasks that are simulated, every task alternates between running and sleeping
+ * <p>
+ * Workloads are immutable, so the same workload can be passed to multiple simulations
+ * to compare schedulers on identical inputs. The synthetic workloads are generated
+ * from a seed and are therefore deterministic too.
+ *
+ * @param tasks tasks, in the order of their pids
+ */
+public record Workload(List<TaskSpec> tasks) {
+
+    /** Default weight of a task, corresponds to nice 0 */
+    public static final int DEFAULT_WEIGHT = 100;
+
+    /**
+     * Part of the life of a task
+     *
+     * @param runNs   CPU time the task needs before it blocks
+     * @param sleepNs time the task sleeps afterward, 0 if it stays runnable
+     */
+    public record Phase(long runNs, long sleepNs) {
+        public Phase {
+            if (runNs <= 0 || sleepNs < 0) {
+                throw new IllegalArgumentException("Phase needs a positive run time and a non-negative sleep time");
+            }
+        }
+    }
+
+    /**
+     * Task of a workload
+     *
+     * @param startNs time at which the task becomes runnable the first time
+     * @param phases  phases of the task, the task exits after the last phase
+     */
+    public record TaskSpec(int pid, int tgid, String name, int weight, long startNs, List<Phase> phases) {
+        public TaskSpec {
+            phases = List.copyOf(phases);
+            if (phases.isEmpty()) {
+                throw new IllegalArgumentException("Task " + pid + " has no phases");
+            }
+        }
+
+        /** Total CPU time the task needs */
+        public long totalRunNs() {
+            return phases.stream().mapToLong(Phase::runNs).sum();
+        }
+    }
+
+    public Workload {
+        tasks = List.copyOf(tasks);
+    }
+
+    /** Combine the tasks of both workloads, the pids have to be distinct */
+    public Workload with(Workload other) {
+        List<TaskSpec> combined = new ArrayList<>(tasks);
+        combined.addAll(other.tasks);
+        return new Workload(combined);
+    }
+
+    /**
+     * Task that never sleeps, e.g. a compute thread
+     */
+    public static TaskSpec cpuBound(int pid, String name, long startNs, long runNs) {
+        return new TaskSpec(pid, pid, name, DEFAULT_WEIGHT, startNs, List.of(new Phase(runNs, 0)));
+    }
+
+    /**
+     * Task with short, exponentially distributed bursts and sleeps, e.g. a thread waiting for IO
+     *
+     * @param random  source of randomness, the result is deterministic for a seeded random
+     * @param phases  number of bursts
+     */
+    public static TaskSpec interactive(SplittableRandom random, int pid, String name, long startNs,
+                                       long meanRunNs, long meanSleepNs, int phases) {
+        List<Phase> list = new ArrayList<>(phases);
+        for (int i = 0; i < phases; i++) {
+            list.add(new Phase(exponential(random, meanRunNs), exponential(random, meanSleepNs)));
+        }
+        return new TaskSpec(pid, pid, name, DEFAULT_WEIGHT, startNs, list);
+    }
+
+    private static long exponential(SplittableRandom random, long mean) {
+        return Math.max(1, (long) (-Math.log(1 - random.nextDouble()) * mean));
+    }
+
+    /**
+     * Mix of CPU-bound tasks and interactive tasks, similar to a JVM with compute and IO threads
+     * <p>
+     * The CPU-bound tasks need {@code durationNs} of CPU time each, the interactive tasks run
+     * 50us bursts with 2ms sleeps in between, all tasks start in the first millisecond.
+     *
+     * @param seed seed for the random start times, bursts and sleeps
+     */
+    public static Workload mixed(long seed, int cpuBoundTasks, int interactiveTasks, long durationNs) {
+        var random = new SplittableRandom(seed);
+        List<TaskSpec> tasks = new ArrayList<>();
+        int pid = 1000;
+        for (int i = 0; i < cpuBoundTasks; i++) {
+            tasks.add(cpuBound(pid++, "compute-" + i, random.nextLong(1_000_000), durationNs));
+        }
+        long meanRun = 50_000;
+        long meanSleep = 2_000_000;
+        int phases = (int) Math.max(1, durationNs / (meanRun + meanSleep));
+        for (int i = 0; i < interactiveTasks; i++) {
+            tasks.add(interactive(random, pid++, "io-" + i, random.nextLong(1_000_000), meanRun, meanSleep, phases));
+        }
+        return new Workload(tasks);
+    }
+}
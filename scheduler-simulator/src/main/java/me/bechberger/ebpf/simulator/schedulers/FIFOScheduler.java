@@ -0,0 +1,41 @@
+package me.bechberger.ebpf.simulator.schedulers;
+
+import me.bechberger.ebpf.simulator.SimTask;
+import me.bechberger.ebpf.simulator.SimulatedScheduler;
+
+/**
+ * Port of the lab {@code FIFOScheduler}: one shared FIFO queue, idle CPUs get the task directly
+ * <p>
+ * Like the BPF version, it has no dispatch callback, so the shared DSQ is never consumed:
+ * tasks that don't get an idle CPU in {@link #selectCPU(SimTask, int, long)} are stranded.
+ */
+public class FIFOScheduler extends SimulatedScheduler {
+
+    /**
+     * A custom scheduling queue
+     */
+    static final long SHARED_DSQ_ID = 0;
+
+    @Override
+    public int init() {
+        // init the scheduling queue
+        return scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+    }
+
+    @Override
+    public int selectCPU(SimTask p, int prev_cpu, long wake_flags) {
+        boolean[] is_idle = new boolean[1];
+        // let sched-ext select the best CPU
+        int cpu = scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, is_idle);
+        if (is_idle[0]) {
+            // directly dispatch to the CPU if it is idle
+            scx_bpf_dispatch(p, SCX_DSQ_LOCAL, SCX_SLICE_DFL, 0);
+        }
+        return cpu;
+    }
+
+    @Override
+    public void enqueue(SimTask p, long enq_flags) {
+        scx_bpf_dispatch(p, SHARED_DSQ_ID, SCX_SLICE_DFL, enq_flags);
+    }
+}
@@ -0,0 +1,141 @@
+package me.bechberger.ebpf.simulator.schedulers;
+
+import me.bechberger.ebpf.simulator.SimTask;
+import me.bechberger.ebpf.simulator.SimulatedScheduler;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Port of the lab {@code IOPrioSched}: tasks that used less than a threshold of their
+ * last slice are put into a priority queue, which is consumed before the round-robin queue
+ */
+public class IOPrioSched extends SimulatedScheduler {
+
+    final long slice_time;
+    // The time slice used in the priority queue
+    final long slice_time_prio;
+    // Threshold of how much of the time slice the process consumes to be put in priority queue
+    final int prio_slice_usage_percentage;
+
+    // The queue where all runnable processes are stored
+    static final long RR_DSQ_ID = 0;
+    static final long IO_PRIO_DSQ_ID = 1;
+
+    long total_wait_time = 0;
+    long num_enqueues = 0;
+    long total_prio_queue_wait_time = 0;
+    long num_prio_enqueues = 0;
+    long total_normal_queue_wait_time = 0;
+    long num_normal_enqueues = 0;
+
+    long total_used_slice_time = 0;
+    long total_num_slices = 0;
+    long normal_used_slice_time = 0;
+    long normal_num_slices = 0;
+    long prio_used_slice_time = 0;
+    long prio_num_slices = 0;
+
+    // per-task state, the counterpart of the task storage maps
+    final Map<SimTask, Long> enqueue_time = new HashMap<>();
+    final Map<SimTask, Long> slice_usage = new HashMap<>();
+
+    public IOPrioSched() {
+        this(20_000_000, 20_000_000, 5);
+    }
+
+    public IOPrioSched(long slice_time, long slice_time_prio, int prio_slice_usage_percentage) {
+        this.slice_time = slice_time;
+        this.slice_time_prio = slice_time_prio;
+        this.prio_slice_usage_percentage = prio_slice_usage_percentage;
+    }
+
+    long sliceUsagePercentage(SimTask p) {
+        Long used_t = slice_usage.get(p);
+        if (used_t == null) {
+            // no known value so return the worst possible.
+            return 100;
+        }
+        return (used_t * 100) / slice_time;
+    }
+
+    @Override
+    public int init() {
+        int r1 = scx_bpf_create_dsq(IO_PRIO_DSQ_ID, -1);
+        int r2 = scx_bpf_create_dsq(RR_DSQ_ID, -1);
+        if (r1 == 1 || r2 == 1) {
+            return 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public int selectCPU(SimTask p, int prev_cpu, long wake_flags) {
+        boolean[] is_idle = new boolean[1];
+        int cpu = scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, is_idle);
+        if (is_idle[0]) {
+            // We skip the enqueue call
+            enqueue_time.put(p, bpf_ktime_get_ns());
+            scx_bpf_dispatch(p, SCX_DSQ_LOCAL, slice_time, 0);
+        }
+        return cpu;
+    }
+
+    @Override
+    public void enqueue(SimTask p, long enq_flags) {
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage) {
+            scx_bpf_dispatch(p, IO_PRIO_DSQ_ID, slice_time_prio, enq_flags);
+        } else {
+            scx_bpf_dispatch(p, RR_DSQ_ID, slice_time, enq_flags);
+        }
+        enqueue_time.put(p, bpf_ktime_get_ns());
+    }
+
+    @Override
+    public void dispatch(int cpu, @Nullable SimTask prev) {
+        if (scx_bpf_dsq_nr_queued(IO_PRIO_DSQ_ID) >= 1) {
+            scx_bpf_consume(IO_PRIO_DSQ_ID);
+        } else {
+            scx_bpf_consume(RR_DSQ_ID);
+        }
+    }
+
+    @Override
+    public void running(SimTask p) {
+        Long enqueueTime = enqueue_time.get(p);
+        if (enqueueTime == null) {
+            return;
+        }
+        long wait_time = bpf_ktime_get_ns() - enqueueTime;
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage) {
+            total_prio_queue_wait_time += wait_time;
+            num_prio_enqueues++;
+        } else {
+            total_normal_queue_wait_time += wait_time;
+            num_normal_enqueues++;
+        }
+        total_wait_time += wait_time;
+        num_enqueues++;
+    }
+
+    @Override
+    public void stopping(SimTask p, boolean runnable) {
+        long usedTime = slice_time - p.scx.slice;
+        recordSliceStats(p, usedTime);
+        slice_usage.put(p, usedTime);
+    }
+
+    /** Record the slice time usage stats, before the slice usage of the task is updated */
+    void recordSliceStats(SimTask p, long usedTime) {
+        total_used_slice_time += usedTime;
+        total_num_slices++;
+        if (sliceUsagePercentage(p) < prio_slice_usage_percentage) {
+            prio_used_slice_time += usedTime;
+            prio_num_slices++;
+        } else {
+            normal_used_slice_time += usedTime;
+            normal_num_slices++;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package me.bechberger.ebpf.simulator.schedulers;
+
+import me.bechberger.ebpf.simulator.SimTask;
+
+/**
+ * Port of the lab {@code PrioSchedWeightedAvg}: like {@link IOPrioSched}, but the slice usage
+ * is an exponentially weighted average, {@code avg_{t+1} = avg_t * c + (1 - c) * usage_t},
+ * stored per task like the task storage of the BPF version
+ */
+public class PrioSchedWeightedAvg extends IOPrioSched {
+
+    // used to multiply the weight to represent it as a non floating point number
+    static final long FIXED_POINT_MULT = 1000000L;
+
+    final long weight_avg_mult;
+    // The avg_usage assumed for t=0
+    final long initial_usage;
+
+    public PrioSchedWeightedAvg() {
+        this(20_000_000, 20_000_000, 5, 0.99, 1);
+    }
+
+    public PrioSchedWeightedAvg(long slice_time, long slice_time_prio, int prio_slice_usage_percentage,
+                                double weight_avg_mult, double initial_usage_percentage) {
+        super(slice_time, slice_time_prio, prio_slice_usage_percentage);
+        this.weight_avg_mult = (long) (weight_avg_mult * FIXED_POINT_MULT);
+        this.initial_usage = (long) (slice_time * initial_usage_percentage);
+    }
+
+    @Override
+    public void stopping(SimTask p, boolean runnable) {
+        long usedTime = slice_time - p.scx.slice;
+        recordSliceStats(p, usedTime);
+        long prevAvg = slice_usage.getOrDefault(p, initial_usage);
+        long c = weight_avg_mult;
+        long weightedAvg = (prevAvg * c + (FIXED_POINT_MULT - c) * usedTime) / FIXED_POINT_MULT;
+        slice_usage.put(p, weightedAvg);
+    }
+}
@@ -0,0 +1,45 @@
+package me.bechberger.ebpf.simulator.schedulers;
+
+import me.bechberger.ebpf.simulator.SimTask;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Port of the lab {@code PrioSchedWeightedAvgNoStarvation}: like {@link PrioSchedWeightedAvg},
+ * but a task that was in the priority queue goes to the normal queue the next time,
+ * so that tasks in the normal queue don't starve
+ */
+public class PrioSchedWeightedAvgNoStarvation extends PrioSchedWeightedAvg {
+
+    final Map<SimTask, Boolean> in_prio_queue = new HashMap<>();
+
+    public PrioSchedWeightedAvgNoStarvation() {
+        super();
+    }
+
+    public PrioSchedWeightedAvgNoStarvation(long slice_time, long slice_time_prio, int prio_slice_usage_percentage,
+                                            double weight_avg_mult, double initial_usage_percentage) {
+        super(slice_time, slice_time_prio, prio_slice_usage_percentage, weight_avg_mult, initial_usage_percentage);
+    }
+
+    @Override
+    public void enqueue(SimTask p, long enq_flags) {
+        Boolean inPrioQueue = in_prio_queue.get(p);
+        if (inPrioQueue != null && inPrioQueue) {
+            // Task has been in the priority queue, dispatch to normal queue
+            scx_bpf_dispatch(p, RR_DSQ_ID, slice_time, enq_flags);
+            in_prio_queue.put(p, false);
+        } else {
+            if (sliceUsagePercentage(p) < prio_slice_usage_percentage) {
+                // Task is eligible for priority queue
+                scx_bpf_dispatch(p, IO_PRIO_DSQ_ID, slice_time_prio, enq_flags);
+                in_prio_queue.put(p, true);
+            } else {
+                // Task goes to normal queue
+                scx_bpf_dispatch(p, RR_DSQ_ID, slice_time, enq_flags);
+            }
+        }
+        enqueue_time.put(p, bpf_ktime_get_ns());
+    }
+}
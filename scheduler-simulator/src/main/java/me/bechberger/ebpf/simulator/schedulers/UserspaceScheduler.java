@@ -0,0 +1,136 @@
+package me.bechberger.ebpf.simulator.schedulers;
+
+import me.bechberger.ebpf.bpf.UserspacePolicy;
+import me.bechberger.ebpf.bpf.UserspacePolicy.Decision;
+import me.bechberger.ebpf.bpf.VruntimePolicy;
+import me.bechberger.ebpf.simulator.SimTask;
+import me.bechberger.ebpf.simulator.SimulatedScheduler;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Port of the lab {@code UserspaceSched}: tasks that don't get an idle CPU directly are passed to a
+ * {@link UserspacePolicy}, whose decisions are drained in {@link #dispatch(int, SimTask)}
+ * <p>
+ * The policy thread decides without delay and without using CPU time, the user ring buffer is a queue of the
+ * decisions in flight, which the policy thread refills up to {@code max_in_flight} decisions. The simulator
+ * has no scheduler or kernel threads, so no task is latency critical, and no dispatch slots, so a drain
+ * dispatches all decisions in flight.
+ */
+public class UserspaceScheduler extends SimulatedScheduler {
+
+    static final long SHARED_DSQ_ID = 0;
+
+    final UserspacePolicy policy;
+    final long slice_time;
+    // Maximum number of decisions that dispatch didn't drain yet, default: number of CPUs
+    int max_in_flight;
+
+    // tasks that wait for a decision of the policy, the counterpart of bpf_task_from_pid
+    private final Map<Integer, SimTask> waiting = new HashMap<>();
+    // decisions that the policy sent and dispatch didn't drain yet, the counterpart of the user ring buffer
+    private final ArrayDeque<Decision> inFlight = new ArrayDeque<>();
+
+    long bypassed = 0;
+    long sent = 0;
+    long dispatched = 0;
+
+    public UserspaceScheduler() {
+        this(new VruntimePolicy(), 20_000_000);
+    }
+
+    public UserspaceScheduler(UserspacePolicy policy, long slice_time) {
+        this(policy, slice_time, -1);
+    }
+
+    /**
+     * @param max_in_flight maximum number of decisions in flight, a negative value uses the number of CPUs
+     */
+    public UserspaceScheduler(UserspacePolicy policy, long slice_time, int max_in_flight) {
+        this.policy = policy;
+        this.slice_time = slice_time;
+        this.max_in_flight = max_in_flight;
+    }
+
+    @Override
+    public int init() {
+        if (max_in_flight < 0) {
+            max_in_flight = scx_bpf_nr_cpu_ids();
+        }
+        return scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+    }
+
+    @Override
+    public int selectCPU(SimTask p, int prev_cpu, long wake_flags) {
+        boolean[] is_idle = new boolean[1];
+        int cpu = scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, is_idle);
+        if (is_idle[0]) {
+            // an idle CPU can run the task right away, so it bypasses the policy
+            scx_bpf_dispatch(p, SCX_DSQ_LOCAL, slice_time, 0);
+            bypassed++;
+        }
+        return cpu;
+    }
+
+    @Override
+    public void enqueue(SimTask p, long enq_flags) {
+        waiting.put(p.pid, p);
+        policy.enqueue(new UserspacePolicy.Task(p.pid, p.tgid, scx_bpf_task_cpu(p), p.scx.weight,
+                p.totalRunNs(), bpf_ktime_get_ns()));
+        sent++;
+        sendDecisions();
+    }
+
+    /** Dispatch a single decision of the policy, the counterpart of the drain callback */
+    void dispatchDecision(Decision decision) {
+        SimTask p = waiting.remove(decision.pid());
+        if (p == null) {
+            // the task exited in the meantime
+            return;
+        }
+        // a negative CPU means any CPU
+        if (decision.cpu() >= 0) {
+            scx_bpf_dispatch(p, SCX_DSQ_LOCAL_ON | decision.cpu(), decision.sliceNs(), 0);
+            scx_bpf_kick_cpu(decision.cpu(), 0);
+        } else {
+            scx_bpf_dispatch(p, SHARED_DSQ_ID, decision.sliceNs(), 0);
+            int idle_cpu = scx_bpf_pick_idle_cpu(0);
+            if (idle_cpu >= 0) {
+                scx_bpf_kick_cpu(idle_cpu, 0);
+            }
+        }
+        dispatched++;
+    }
+
+    @Override
+    public void dispatch(int cpu, @Nullable SimTask prev) {
+        Decision decision;
+        while ((decision = inFlight.poll()) != null) {
+            dispatchDecision(decision);
+        }
+        scx_bpf_consume(SHARED_DSQ_ID);
+        sendDecisions();
+    }
+
+    /**
+     * Send decisions until the batch in flight is full, keeping the other tasks in the policy,
+     * so that tasks that are enqueued later can still overtake them
+     */
+    void sendDecisions() {
+        Decision decision;
+        while (inFlight.size() < max_in_flight && (decision = policy.next()) != null) {
+            inFlight.add(decision);
+        }
+    }
+
+    public long bypassed() {
+        return bypassed;
+    }
+
+    public long dispatched() {
+        return dispatched;
+    }
+}
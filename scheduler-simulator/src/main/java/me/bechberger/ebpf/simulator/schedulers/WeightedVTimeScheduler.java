@@ -0,0 +1,106 @@
+package me.bechberger.ebpf.simulator.schedulers;
+
+import me.bechberger.ebpf.simulator.SimTask;
+import me.bechberger.ebpf.simulator.SimulatedScheduler;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Port of the lab {@code OurScheduler}, which is based on {@code scx_simple}:
+ * a global weighted vtime scheduler that can be switched to FIFO scheduling
+ */
+public class WeightedVTimeScheduler extends SimulatedScheduler {
+
+    /*
+     * Built-in DSQs such as SCX_DSQ_GLOBAL cannot be used as priority queues
+     * (meaning, cannot be dispatched to with scx_bpf_dispatch_vtime()). We
+     * therefore create a separate DSQ with ID 0 that we dispatch to and consume
+     * from.
+     */
+    static final long SHARED_DSQ_ID = 0;
+
+    private final boolean fifo_sched;
+    private long vtime_now = 0;
+
+    public WeightedVTimeScheduler() {
+        this(false);
+    }
+
+    public WeightedVTimeScheduler(boolean fifo_sched) {
+        this.fifo_sched = fifo_sched;
+    }
+
+    @Override
+    public String getSchedulerName() {
+        return fifo_sched ? "WeightedVTimeScheduler(fifo)" : "WeightedVTimeScheduler";
+    }
+
+    static boolean isSmaller(long a, long b) {
+        return a - b < 0;
+    }
+
+    @Override
+    public int init() {
+        return scx_bpf_create_dsq(SHARED_DSQ_ID, -1);
+    }
+
+    @Override
+    public int selectCPU(SimTask p, int prev_cpu, long wake_flags) {
+        boolean[] is_idle = new boolean[1];
+        int cpu = scx_bpf_select_cpu_dfl(p, prev_cpu, wake_flags, is_idle);
+        if (is_idle[0]) {
+            scx_bpf_dispatch(p, SCX_DSQ_LOCAL, SCX_SLICE_DFL, 0);
+        }
+        return cpu;
+    }
+
+    @Override
+    public void enqueue(SimTask p, long enq_flags) {
+        if (fifo_sched) {
+            scx_bpf_dispatch(p, SHARED_DSQ_ID, SCX_SLICE_DFL, enq_flags);
+        } else {
+            long vtime = p.scx.dsq_vtime;
+            /*
+             * Limit the amount of budget that an idling task can accumulate
+             * to one slice.
+             */
+            if (isSmaller(vtime, vtime_now - SCX_SLICE_DFL)) {
+                vtime = vtime_now - SCX_SLICE_DFL;
+            }
+            scx_bpf_dispatch_vtime(p, SHARED_DSQ_ID, SCX_SLICE_DFL, vtime, enq_flags);
+        }
+    }
+
+    @Override
+    public void dispatch(int cpu, @Nullable SimTask prev) {
+        scx_bpf_consume(SHARED_DSQ_ID);
+    }
+
+    @Override
+    public void running(SimTask p) {
+        if (fifo_sched) {
+            return;
+        }
+        /*
+         * Global vtime always progresses forward as tasks start executing.
+         */
+        if (isSmaller(vtime_now, p.scx.dsq_vtime)) {
+            vtime_now = p.scx.dsq_vtime;
+        }
+    }
+
+    @Override
+    public void stopping(SimTask p, boolean runnable) {
+        if (fifo_sched) {
+            return;
+        }
+        /*
+         * Scale the execution time by the inverse of the weight and charge.
+         */
+        p.scx.dsq_vtime += (SCX_SLICE_DFL - p.scx.slice) * 100 / p.scx.weight;
+    }
+
+    @Override
+    public void enable(SimTask p) {
+        p.scx.dsq_vtime = vtime_now;
+    }
+}
@@ -0,0 +1,168 @@
+package me.bechberger.ebpf.simulator.schedulers;
+
+import me.bechberger.ebpf.simulator.SimTask;
+import me.bechberger.ebpf.simulator.SimulatedScheduler;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Port of the lab {@code WorkStealingSched}: one DSQ per CPU, CPUs without work steal from the
+ * longest queue, preferring CPUs in the same last level cache
+ * <p>
+ * The simulator has no cache topology, so the CPUs are grouped into LLCs of {@code cpusPerLLC} consecutive CPUs,
+ * and all CPUs belong to one NUMA node.
+ */
+public class WorkStealingScheduler extends SimulatedScheduler {
+
+    final long slice_time;
+    final int cpusPerLLC;
+
+    int nr_cpus = 0;
+
+    long local_dispatches = 0;
+    long llc_steals = 0;
+    long remote_steals = 0;
+    long kicks = 0;
+    long idle_prev = 0;
+    long idle_llc = 0;
+    long idle_remote = 0;
+
+    public WorkStealingScheduler() {
+        this(20_000_000, 4);
+    }
+
+    public WorkStealingScheduler(long slice_time, int cpusPerLLC) {
+        this.slice_time = slice_time;
+        this.cpusPerLLC = cpusPerLLC;
+    }
+
+    int llcOf(int cpu) {
+        return cpu / cpusPerLLC;
+    }
+
+    /** Claim an idle CPU of the given LLC, the counterpart of {@code CpuMaskArray.pickIdleCpu} */
+    int pickIdleCpuInLLC(int llc) {
+        for (int cpu = llc * cpusPerLLC; cpu < Math.min((llc + 1) * cpusPerLLC, nr_cpus); cpu++) {
+            if (scx_bpf_test_and_clear_cpu_idle(cpu)) {
+                return cpu;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Claim an idle CPU, trying the domains from the closest to the farthest
+     *
+     * @return the CPU or a negative number if no CPU is idle
+     */
+    int pickIdleCpu(SimTask p, int prev_cpu) {
+        if (scx_bpf_test_and_clear_cpu_idle(prev_cpu)) {
+            idle_prev++;
+            return prev_cpu;
+        }
+        int prev_llc = llcOf(prev_cpu);
+        int cpu = pickIdleCpuInLLC(prev_llc);
+        if (cpu < 0) {
+            // selectCPU runs on the CPU of the waker, which shares the data with the wakee
+            int waker_llc = llcOf(bpf_get_smp_processor_id());
+            if (waker_llc != prev_llc) {
+                cpu = pickIdleCpuInLLC(waker_llc);
+            }
+        }
+        if (cpu >= 0) {
+            idle_llc++;
+            return cpu;
+        }
+        // the node level is skipped, it contains all CPUs
+        cpu = scx_bpf_pick_idle_cpu(0);
+        if (cpu >= 0) {
+            idle_remote++;
+        }
+        return cpu;
+    }
+
+    @Override
+    public int init() {
+        nr_cpus = scx_bpf_nr_cpu_ids();
+        for (int cpu = 0; cpu < nr_cpus; cpu++) {
+            int err = scx_bpf_create_dsq(cpu, -1);
+            if (err != 0) {
+                return err;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int selectCPU(SimTask p, int prev_cpu, long wake_flags) {
+        int cpu = pickIdleCpu(p, prev_cpu);
+        if (cpu >= 0) {
+            // We skip the enqueue call
+            scx_bpf_dispatch(p, SCX_DSQ_LOCAL, slice_time, 0);
+            return cpu;
+        }
+        return prev_cpu;
+    }
+
+    @Override
+    public void enqueue(SimTask p, long enq_flags) {
+        int cpu = scx_bpf_task_cpu(p);
+        scx_bpf_dispatch(p, cpu, slice_time, enq_flags);
+
+        // wake up an idle CPU, it steals the task if its CPU is still busy
+        int idle_cpu = scx_bpf_pick_idle_cpu(0);
+        if (idle_cpu >= 0) {
+            scx_bpf_kick_cpu(idle_cpu, 0);
+            kicks++;
+        }
+    }
+
+    @Override
+    public void dispatch(int cpu, @Nullable SimTask prev) {
+        if (scx_bpf_consume(cpu)) {
+            local_dispatches++;
+            return;
+        }
+        int own_llc = llcOf(cpu);
+        int llc_victim = -1;
+        int llc_victim_queued = 0;
+        int victim = -1;
+        int victim_queued = 0;
+        for (int other = 0; other < nr_cpus; other++) {
+            if (other == cpu) {
+                continue;
+            }
+            int queued = scx_bpf_dsq_nr_queued(other);
+            if (queued > llc_victim_queued && llcOf(other) == own_llc) {
+                llc_victim = other;
+                llc_victim_queued = queued;
+            }
+            if (queued > victim_queued) {
+                victim = other;
+                victim_queued = queued;
+            }
+        }
+        if (llc_victim >= 0 && scx_bpf_consume(llc_victim)) {
+            llc_steals++;
+            return;
+        }
+        if (victim >= 0 && victim != llc_victim && scx_bpf_consume(victim)) {
+            remote_steals++;
+        }
+    }
+
+    public long localDispatches() {
+        return local_dispatches;
+    }
+
+    public long llcSteals() {
+        return llc_steals;
+    }
+
+    public long remoteSteals() {
+        return remote_steals;
+    }
+
+    public long idleLLC() {
+        return idle_llc;
+    }
+}
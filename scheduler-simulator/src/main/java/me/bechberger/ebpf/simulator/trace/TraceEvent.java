@@ -0,0 +1,14 @@
+package me.bechberger.ebpf.simulator.trace;
+
+/**
+ * Scheduling event of a recorded trace
+ *
+ * @param timestampNs {@code bpf_ktime_get_ns()} at the time of the event
+ * @param kind        one of {@link TraceFile#SWITCH_IN}, {@link TraceFile#PREEMPTED}, {@link TraceFile#BLOCKED},
+ *                    {@link TraceFile#WAKEUP} and {@link TraceFile#WAKEUP_NEW}
+ * @param cpu         CPU on which the event happened
+ * @param pid         thread id
+ * @param tgid        process id
+ */
+public record TraceEvent(long timestampNs, int kind, int cpu, int pid, int tgid) {
+}
@@ -0,0 +1,140 @@
+package me.bechberger.ebpf.simulator.trace;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Compact binary file of scheduling events, written and read via memory mapping
+ * <p>
+ * Layout (little endian): a 24 byte header with the magic {@code SCHEDTRC}, the format version,
+ * the record size and the number of records, followed by 24 byte records of
+ * {@code u64 timestamp, s32 pid, s32 tgid, s32 cpu, s32 kind}.
+ * The file is mapped in chunks, so traces can be larger than the heap.
+ */
+public final class TraceFile {
+
+    /** Task starts running */
+    public static final int SWITCH_IN = 0;
+    /** Task stops running but stays runnable */
+    public static final int PREEMPTED = 1;
+    /** Task stops running because it blocks or exits */
+    public static final int BLOCKED = 2;
+    /** Sleeping task becomes runnable */
+    public static final int WAKEUP = 3;
+    /** New task becomes runnable */
+    public static final int WAKEUP_NEW = 4;
+
+    static final byte[] MAGIC = "SCHEDTRC".getBytes(StandardCharsets.US_ASCII);
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    public static final int RECORD_SIZE = 24;
+    /** Number of records per mapped chunk */
+    static final int CHUNK_RECORDS = 1 << 20;
+
+    private TraceFile() {
+    }
+
+    /**
+     * Writes events to a trace file, not thread-safe
+     */
+    public static final class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private MappedByteBuffer chunk;
+        private long chunkIndex = 0;
+        private long count = 0;
+
+        /** Create or overwrite the trace file */
+        public Writer(Path path) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.chunk = mapChunk(0);
+        }
+
+        private MappedByteBuffer mapChunk(long index) throws IOException {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE,
+                    HEADER_SIZE + index * CHUNK_RECORDS * RECORD_SIZE, (long) CHUNK_RECORDS * RECORD_SIZE);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+
+        public void write(long timestampNs, int kind, int cpu, int pid, int tgid) throws IOException {
+            if (!chunk.hasRemaining()) {
+                chunk.force();
+                chunk = mapChunk(++chunkIndex);
+            }
+            chunk.putLong(timestampNs).putInt(pid).putInt(tgid).putInt(cpu).putInt(kind);
+            count++;
+        }
+
+        public void write(TraceEvent event) throws IOException {
+            write(event.timestampNs(), event.kind(), event.cpu(), event.pid(), event.tgid());
+        }
+
+        public long count() {
+            return count;
+        }
+
+        /** Write the header and cut the file to the written records */
+        @Override
+        public void close() throws IOException {
+            chunk.force();
+            var header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            header.put(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putLong(count);
+            header.force();
+            channel.truncate(HEADER_SIZE + count * RECORD_SIZE);
+            channel.close();
+        }
+    }
+
+    /**
+     * Read all events in the order they were written
+     *
+     * @throws IOException if the file can't be read or is not a trace file
+     */
+    public static void read(Path path, Consumer<TraceEvent> consumer) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(path + " is not a trace file");
+            }
+            var header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION || header.getInt() != RECORD_SIZE) {
+                throw new IOException(path + " is not a version " + VERSION + " trace file");
+            }
+            long count = header.getLong();
+            if (channel.size() < HEADER_SIZE + count * RECORD_SIZE) {
+                throw new IOException(path + " is truncated");
+            }
+            for (long start = 0; start < count; start += CHUNK_RECORDS) {
+                long records = Math.min(CHUNK_RECORDS, count - start);
+                var chunk = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start * RECORD_SIZE,
+                        records * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                for (long i = 0; i < records; i++) {
+                    long timestamp = chunk.getLong();
+                    int pid = chunk.getInt();
+                    int tgid = chunk.getInt();
+                    int cpu = chunk.getInt();
+                    int kind = chunk.getInt();
+                    consumer.accept(new TraceEvent(timestamp, kind, cpu, pid, tgid));
+                }
+            }
+        }
+    }
+
+    public static List<TraceEvent> readAll(Path path) throws IOException {
+        List<TraceEvent> events = new ArrayList<>();
+        read(path, events::add);
+        return events;
+    }
+}
@@ -0,0 +1,172 @@
+package me.bechberger.ebpf.simulator.trace;
+
+import me.bechberger.ebpf.simulator.Workload;
+import me.bechberger.ebpf.simulator.Workload.Phase;
+import me.bechberger.ebpf.simulator.Workload.TaskSpec;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static me.bechberger.ebpf.simulator.trace.TraceFile.*;
+
+/**
+ * Turns a recorded trace into a {@link Workload}, so that policies can be compared on the
+ * run and sleep pattern of a real application
+ * <p>
+ * Every thread becomes a task, whose phases are its CPU bursts (the time it ran between waking up
+ * and blocking, summed over preemptions) and the time it slept afterward. The waiting times in the
+ * trace are dropped, as they depend on the scheduler that ran during the recording.
+ * Times are relative to the first event.
+ * <p>
+ * The events of all CPUs share one ring buffer, so they arrive only roughly in timestamp order.
+ * They are reordered in a bounded window: an event is replayed once an event that is 10ms newer
+ * arrived, keeping the order of events with equal timestamps.
+ *
+ * @param workload workload with one task per traced thread, sorted by pid
+ * @param cpus     number of CPUs that appear in the trace
+ * @param spanNs   time between the first and the last event
+ */
+public record TraceReplay(Workload workload, int cpus, long spanNs) {
+
+    private static final class ThreadState {
+        final int pid;
+        final int tgid;
+        final long startNs;
+        final List<Phase> phases = new ArrayList<>();
+        long runningSince = -1;
+        long run = 0;
+        /** time the thread blocked, -1 if it is not sleeping */
+        long blockedSince = -1;
+
+        ThreadState(int pid, int tgid, long startNs) {
+            this.pid = pid;
+            this.tgid = tgid;
+            this.startNs = startNs;
+        }
+
+        void stop(long time) {
+            if (runningSince >= 0) {
+                run += time - runningSince;
+                runningSince = -1;
+            }
+        }
+
+        void wakeup(long time) {
+            if (blockedSince < 0) {
+                return;
+            }
+            long sleep = time - blockedSince;
+            if (run > 0) {
+                phases.add(new Phase(run, sleep));
+            } else if (!phases.isEmpty()) {
+                // blocked again without running, so extend the previous sleep
+                Phase last = phases.remove(phases.size() - 1);
+                phases.add(new Phase(last.runNs(), last.sleepNs() + sleep));
+            }
+            run = 0;
+            blockedSince = -1;
+        }
+
+        void finish(long time) {
+            stop(time);
+            if (run > 0) {
+                phases.add(new Phase(run, 0));
+            }
+        }
+    }
+
+    public static TraceReplay of(Path trace) throws IOException {
+        Builder builder = new Builder();
+        TraceFile.read(trace, builder::accept);
+        return builder.build();
+    }
+
+    public static TraceReplay of(Iterable<TraceEvent> events) {
+        Builder builder = new Builder();
+        events.forEach(builder::accept);
+        return builder.build();
+    }
+
+    private record PendingEvent(TraceEvent event, long sequence) implements Comparable<PendingEvent> {
+        @Override
+        public int compareTo(PendingEvent other) {
+            int cmp = Long.compare(event.timestampNs(), other.event.timestampNs());
+            return cmp != 0 ? cmp : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static final class Builder {
+        /** events are held back until a REORDER_WINDOW_NS newer event arrived */
+        static final long REORDER_WINDOW_NS = 10_000_000;
+        /** but at most MAX_PENDING events, to bound the memory */
+        static final int MAX_PENDING = 1 << 16;
+
+        private final PriorityQueue<PendingEvent> pending = new PriorityQueue<>();
+        private long sequence = 0;
+        /** latest timestamp of all events */
+        private long latest = Long.MIN_VALUE;
+        private final Map<Integer, ThreadState> threads = new HashMap<>();
+        private final BitSet cpus = new BitSet();
+        private long first = -1;
+        private long last = 0;
+
+        void accept(TraceEvent event) {
+            // the events of the idle task still advance the watermark
+            latest = Math.max(latest, event.timestampNs());
+            if (event.pid() != 0) { // skip the idle task
+                pending.add(new PendingEvent(event, sequence++));
+            }
+            long watermark = latest - REORDER_WINDOW_NS;
+            while (!pending.isEmpty() &&
+                    (pending.peek().event().timestampNs() <= watermark || pending.size() > MAX_PENDING)) {
+                replay(pending.poll().event());
+            }
+        }
+
+        private void replay(TraceEvent event) {
+            if (first < 0) {
+                first = event.timestampNs();
+            }
+            long time = event.timestampNs() - first;
+            last = Math.max(last, time);
+            cpus.set(event.cpu());
+            ThreadState thread = threads.computeIfAbsent(event.pid(), pid -> new ThreadState(pid, event.tgid(), time));
+            switch (event.kind()) {
+                case SWITCH_IN -> {
+                    // a missed wakeup (e.g. a lost record) counts as waking up now
+                    thread.wakeup(time);
+                    thread.runningSince = time;
+                }
+                case PREEMPTED -> thread.stop(time);
+                case BLOCKED -> {
+                    thread.stop(time);
+                    thread.blockedSince = time;
+                }
+                case WAKEUP, WAKEUP_NEW -> thread.wakeup(time);
+                default -> throw new IllegalArgumentException("Unknown event kind " + event.kind());
+            }
+        }
+
+        TraceReplay build() {
+            while (!pending.isEmpty()) {
+                replay(pending.poll().event());
+            }
+            List<TaskSpec> tasks = new ArrayList<>();
+            threads.values().stream().sorted(Comparator.comparingInt(t -> t.pid)).forEach(thread -> {
+                thread.finish(last);
+                if (!thread.phases.isEmpty()) {
+                    tasks.add(new TaskSpec(thread.pid, thread.tgid, "tid-" + thread.pid, Workload.DEFAULT_WEIGHT,
+                            thread.startNs, thread.phases));
+                }
+            });
+            return new TraceReplay(new Workload(tasks), Math.max(1, cpus.cardinality()), last);
+        }
+    }
+}
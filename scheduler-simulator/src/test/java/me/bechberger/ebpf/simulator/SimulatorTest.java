@@ -0,0 +1,173 @@
+package me.bechberger.ebpf.simulator;
+
+import me.bechberger.ebpf.bpf.UserspacePolicy;
+import me.bechberger.ebpf.bpf.VruntimePolicy;
+import me.bechberger.ebpf.simulator.Workload.Phase;
+import me.bechberger.ebpf.simulator.Workload.TaskSpec;
+import me.bechberger.ebpf.simulator.schedulers.FIFOScheduler;
+import me.bechberger.ebpf.simulator.schedulers.IOPrioSched;
+import me.bechberger.ebpf.simulator.schedulers.UserspaceScheduler;
+import me.bechberger.ebpf.simulator.schedulers.WeightedVTimeScheduler;
+import me.bechberger.ebpf.simulator.schedulers.WorkStealingScheduler;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SimulatorTest {
+
+    private static final long MS = 1_000_000;
+
+    @Test
+    public void testDeterministic() {
+        var workload = Workload.mixed(1, 4, 16, 200 * MS);
+        var first = new Simulator(2, new WeightedVTimeScheduler()).run(workload, 300 * MS);
+        var second = new Simulator(2, new WeightedVTimeScheduler()).run(workload, 300 * MS);
+        assertEquals(first.toString(), second.toString());
+        assertEquals(first.runs(), second.runs());
+        assertEquals(Workload.mixed(1, 4, 16, 200 * MS), workload);
+    }
+
+    @Test
+    public void testNoWaitingWithEnoughCpus() {
+        var workload = Workload.mixed(1, 2, 2, 100 * MS);
+        var result = new Simulator(4, new WeightedVTimeScheduler(true)).run(workload, 200 * MS);
+        assertEquals(0, result.maxWaitNs());
+        assertEquals(workload.tasks().size(), result.finishedTasks());
+    }
+
+    @Test
+    public void testRoundRobinOnOneCpu() {
+        var workload = new Workload(List.of(
+                Workload.cpuBound(1, "a", 0, 40 * MS),
+                Workload.cpuBound(2, "b", 0, 40 * MS)));
+        var result = new Simulator(1, new WeightedVTimeScheduler(true)).run(workload, 100 * MS);
+        // both tasks alternate with the default 20ms slices
+        assertEquals(80 * MS, result.makespanNs());
+        assertEquals(4, result.runs());
+        assertEquals(1.0, result.utilization(), 1e-9);
+        assertEquals(60 * MS, result.tasks().get(0).totalRunNs() + result.tasks().get(0).totalWaitNs());
+        assertEquals(80 * MS, result.tasks().get(1).totalRunNs() + result.tasks().get(1).totalWaitNs());
+    }
+
+    @Test
+    public void testPrioritizesInteractiveTasks() {
+        var workload = Workload.mixed(3, 8, 8, 500 * MS);
+        var fifo = new Simulator(2, new WeightedVTimeScheduler(true)).run(workload, 500 * MS);
+        var ioPrio = new Simulator(2, new IOPrioSched()).run(workload, 500 * MS);
+        assertTrue(interactiveWait(ioPrio) < interactiveWait(fifo));
+        assertTrue(ioPrio.throughputPerSecond() > fifo.throughputPerSecond());
+    }
+
+    private static long interactiveWait(SimulationResult result) {
+        return result.tasks().stream().filter(t -> t.comm.startsWith("io-")).mapToLong(SimTask::totalWaitNs).sum();
+    }
+
+    @Test
+    public void testWorkStealing() {
+        // new tasks start on CPU (index % 4), so CPU 0 gets the three long tasks
+        List<TaskSpec> tasks = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            tasks.add(Workload.cpuBound(i + 1, "cpu-" + i, 0, (i % 4 == 0 ? 100 : 10) * MS));
+        }
+        // two LLCs with two CPUs each
+        var scheduler = new WorkStealingScheduler(20 * MS, 2);
+        var result = new Simulator(4, scheduler).run(new Workload(tasks), 500 * MS);
+        assertEquals(12, result.finishedTasks());
+        // CPU 0 alone would need 300ms
+        assertTrue(result.makespanNs() < 150 * MS);
+        assertTrue(scheduler.llcSteals() > 0);
+        assertTrue(scheduler.remoteSteals() > 0);
+    }
+
+    @Test
+    public void testVruntimePolicy() {
+        var policy = new VruntimePolicy(20 * MS, MS);
+        policy.enqueue(new UserspacePolicy.Task(1, 1, 0, 100, 0, 0));
+        policy.enqueue(new UserspacePolicy.Task(2, 2, 0, 100, 0, 0));
+        assertEquals(2, policy.queued());
+        // the slice is split between the waiting tasks
+        assertEquals(new UserspacePolicy.Decision(1, UserspacePolicy.Decision.ANY_CPU, 10 * MS), policy.next());
+        // task 1 ran for 10ms, so task 3 overtakes it, task 3 has twice the weight and runs twice as long
+        policy.enqueue(new UserspacePolicy.Task(1, 1, 0, 100, 10 * MS, 0));
+        policy.enqueue(new UserspacePolicy.Task(3, 3, 0, 200, 0, 0));
+        assertEquals(2, policy.next().pid());
+        assertEquals(3, policy.next().pid());
+        policy.enqueue(new UserspacePolicy.Task(3, 3, 0, 200, 20 * MS, 0));
+        assertEquals(1, policy.next().pid());
+        assertEquals(3, policy.next().pid());
+        assertNull(policy.next());
+    }
+
+    @Test
+    public void testVruntimePolicyReplacesQueuedTask() {
+        var policy = new VruntimePolicy(20 * MS, MS);
+        policy.enqueue(new UserspacePolicy.Task(1, 1, 0, 100, 0, 0));
+        policy.enqueue(new UserspacePolicy.Task(2, 2, 0, 100, 0, 0));
+        // task 1 is enqueued again before its decision was made, it ran for 10ms in the meantime
+        policy.enqueue(new UserspacePolicy.Task(1, 1, 0, 100, 10 * MS, 0));
+        assertEquals(2, policy.queued());
+        assertEquals(2, policy.next().pid());
+        assertEquals(1, policy.next().pid());
+        assertNull(policy.next());
+    }
+
+    @Test
+    public void testUserspaceScheduler() {
+        var workload = Workload.mixed(3, 8, 8, 500 * MS);
+        var scheduler = new UserspaceScheduler();
+        var fifo = new Simulator(2, new WeightedVTimeScheduler(true)).run(workload, 500 * MS);
+        var userspace = new Simulator(2, scheduler).run(workload, 500 * MS);
+        assertTrue(interactiveWait(userspace) < interactiveWait(fifo));
+        assertTrue(scheduler.bypassed() > 0);
+        assertTrue(scheduler.dispatched() > 0);
+    }
+
+    @Test
+    public void testSleepingTaskWakesUp() {
+        var task = new TaskSpec(1, 1, "sleeper", Workload.DEFAULT_WEIGHT, 5 * MS,
+                List.of(new Phase(MS, 10 * MS), new Phase(2 * MS, 0)));
+        var result = new Simulator(1, new FIFOScheduler()).run(new Workload(List.of(task)), 100 * MS);
+        assertEquals(18 * MS, result.makespanNs());
+        assertEquals(2, result.completedPhases());
+    }
+
+    @Test
+    public void testVTimeDispatchToBuiltinDsqFails() {
+        var scheduler = new SimulatedScheduler() {
+            @Override
+            public void enqueue(SimTask p, long enq_flags) {
+                scx_bpf_dispatch_vtime(p, SCX_DSQ_GLOBAL, SCX_SLICE_DFL, 0, enq_flags);
+            }
+        };
+        var workload = new Workload(List.of(Workload.cpuBound(1, "a", 0, 40 * MS),
+                Workload.cpuBound(2, "b", 0, 40 * MS)));
+        assertThrows(SimulationError.class, () -> new Simulator(1, scheduler).run(workload, 100 * MS));
+    }
+
+    @Test
+    public void testStrandedTasksCountAsWaiting() {
+        // never dispatches the tasks it gets in enqueue
+        var scheduler = new SimulatedScheduler() {
+            @Override
+            public int selectCPU(SimTask p, int prev_cpu, long wake_flags) {
+                return prev_cpu;
+            }
+
+            @Override
+            public void enqueue(SimTask p, long enq_flags) {
+            }
+
+            @Override
+            public void dispatch(int cpu, @Nullable SimTask prev) {
+            }
+        };
+        var workload = new Workload(List.of(Workload.cpuBound(1, "a", 0, 10 * MS)));
+        var result = new Simulator(1, scheduler).run(workload, 50 * MS);
+        assertEquals(0, result.finishedTasks());
+        assertEquals(50 * MS, result.maxWaitNs());
+    }
+}
@@ -0,0 +1,101 @@
+package me.bechberger.ebpf.simulator;
+
+import me.bechberger.ebpf.simulator.Workload.Phase;
+import me.bechberger.ebpf.simulator.schedulers.FIFOScheduler;
+import me.bechberger.ebpf.simulator.trace.TraceEvent;
+import me.bechberger.ebpf.simulator.trace.TraceFile;
+import me.bechberger.ebpf.simulator.trace.TraceReplay;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static me.bechberger.ebpf.simulator.trace.TraceFile.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TraceReplayTest {
+
+    private static final long MS = 1_000_000;
+
+    /** Thread 10 runs 2ms (preempted after 1ms), sleeps 5ms, runs 3ms; thread 11 runs 4ms */
+    private static final List<TraceEvent> EVENTS = List.of(
+            new TraceEvent(100 * MS, WAKEUP_NEW, 0, 10, 10),
+            new TraceEvent(100 * MS, SWITCH_IN, 0, 10, 10),
+            new TraceEvent(101 * MS, PREEMPTED, 0, 10, 10),
+            new TraceEvent(101 * MS, SWITCH_IN, 0, 11, 10),
+            new TraceEvent(102 * MS, SWITCH_IN, 1, 10, 10),
+            new TraceEvent(103 * MS, BLOCKED, 1, 10, 10),
+            new TraceEvent(105 * MS, BLOCKED, 0, 11, 10),
+            new TraceEvent(108 * MS, WAKEUP, 1, 10, 10),
+            new TraceEvent(108 * MS, SWITCH_IN, 1, 10, 10),
+            new TraceEvent(111 * MS, BLOCKED, 1, 10, 10));
+
+    @Test
+    public void testTraceFileRoundTrip() throws IOException {
+        var file = Files.createTempFile("sched", ".trace");
+        try {
+            try (var writer = new TraceFile.Writer(file)) {
+                for (var event : EVENTS) {
+                    writer.write(event);
+                }
+            }
+            assertEquals(24 + EVENTS.size() * RECORD_SIZE, Files.size(file));
+            assertEquals(EVENTS, TraceFile.readAll(file));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testTraceFileSpansChunks() throws IOException {
+        var file = Files.createTempFile("sched", ".trace");
+        try {
+            int count = (1 << 20) + 10;
+            try (var writer = new TraceFile.Writer(file)) {
+                for (int i = 0; i < count; i++) {
+                    writer.write(i, SWITCH_IN, 0, i, 1);
+                }
+            }
+            List<TraceEvent> events = new ArrayList<>();
+            TraceFile.read(file, events::add);
+            assertEquals(count, events.size());
+            assertEquals(new TraceEvent(count - 1, SWITCH_IN, 0, count - 1, 1), events.get(count - 1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testReplay() {
+        var replay = TraceReplay.of(EVENTS);
+        assertEquals(2, replay.cpus());
+        assertEquals(11 * MS, replay.spanNs());
+        var tasks = replay.workload().tasks();
+        assertEquals(2, tasks.size());
+        assertEquals(List.of(new Phase(2 * MS, 5 * MS), new Phase(3 * MS, 0)), tasks.get(0).phases());
+        assertEquals(0, tasks.get(0).startNs());
+        assertEquals(List.of(new Phase(4 * MS, 0)), tasks.get(1).phases());
+        assertEquals(MS, tasks.get(1).startNs());
+
+        var result = new Simulator(replay.cpus(), new FIFOScheduler()).run(replay.workload(), 100 * MS);
+        assertEquals(2, result.finishedTasks());
+        assertEquals(0, result.maxWaitNs());
+        assertEquals(10 * MS, result.makespanNs());
+    }
+
+    @Test
+    public void testReplayOutOfOrder() {
+        // the events of each CPU are in order, but CPU 1 submitted its first events before CPU 0
+        List<TraceEvent> events = new ArrayList<>();
+        events.addAll(EVENTS.stream().filter(e -> e.cpu() == 1).limit(2).toList());
+        events.addAll(EVENTS.stream().filter(e -> e.cpu() == 0).toList());
+        events.addAll(EVENTS.stream().filter(e -> e.cpu() == 1).skip(2).toList());
+        assertNotEquals(EVENTS, events);
+        assertEquals(TraceReplay.of(EVENTS), TraceReplay.of(events));
+        // a much later event of the idle task replays the held back events before the end
+        events.add(new TraceEvent(200 * MS, SWITCH_IN, 0, 0, 0));
+        assertEquals(TraceReplay.of(EVENTS), TraceReplay.of(events));
+    }
+}
@@ -0,0 +1,189 @@
+package me.bechberger.ebpf.simulator.schedulers;
+
+import me.bechberger.ebpf.bpf.VruntimePolicy;
+import me.bechberger.ebpf.simulator.SimTask;
+import me.bechberger.ebpf.simulator.Simulator;
+import me.bechberger.ebpf.simulator.Workload;
+import me.bechberger.ebpf.simulator.Workload.Phase;
+import me.bechberger.ebpf.simulator.Workload.TaskSpec;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static me.bechberger.ebpf.simulator.SimulatedScheduler.SCX_DSQ_LOCAL;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Pins the key decisions of each port to the documented behaviour of its lab scheduler,
+ * so that the ports don't silently diverge from the BPF versions
+ */
+public class SchedulerPortsTest {
+
+    private static final long MS = 1_000_000;
+
+    private static final long RR = IOPrioSched.RR_DSQ_ID;
+    private static final long PRIO = IOPrioSched.IO_PRIO_DSQ_ID;
+
+    /**
+     * One CPU hog and a task "io" that arrives at 1ms and then runs 0.5ms (2.5% of a slice)
+     * and sleeps 5ms, five times, so it always wakes up while the hog runs
+     */
+    private static Workload hogAndIO() {
+        return new Workload(List.of(
+                Workload.cpuBound(1, "hog", 0, 200 * MS),
+                new TaskSpec(2, 2, "io", Workload.DEFAULT_WEIGHT, MS,
+                        Collections.nCopies(5, new Phase(MS / 2, 5 * MS)))));
+    }
+
+    @Test
+    public void testFIFOSchedulerStrandsEnqueuedTasks() {
+        List<String> dispatches = new ArrayList<>();
+        var scheduler = new FIFOScheduler() {
+            @Override
+            protected void scx_bpf_dispatch(SimTask p, long dsq_id, long slice, long enq_flags) {
+                dispatches.add(p.comm + ":" + (dsq_id == SCX_DSQ_LOCAL ? "local" : dsq_id));
+                super.scx_bpf_dispatch(p, dsq_id, slice, enq_flags);
+            }
+        };
+        var workload = new Workload(List.of(
+                Workload.cpuBound(1, "a", 0, 40 * MS),
+                Workload.cpuBound(2, "b", 0, 40 * MS)));
+        var result = new Simulator(1, scheduler).run(workload, 100 * MS);
+        // only the task that got the idle CPU runs, the shared DSQ is never consumed
+        assertEquals(List.of("a:local", "b:" + FIFOScheduler.SHARED_DSQ_ID, "a:" + FIFOScheduler.SHARED_DSQ_ID),
+                dispatches);
+        assertEquals(1, result.runs());
+        assertEquals(0, result.finishedTasks());
+    }
+
+    @Test
+    public void testIOPrioSchedPrioritizesShortSlices() {
+        List<Long> dispatches = new ArrayList<>();
+        var scheduler = new IOPrioSched() {
+            @Override
+            protected void scx_bpf_dispatch(SimTask p, long dsq_id, long slice, long enq_flags) {
+                if (p.comm.equals("io")) {
+                    dispatches.add(dsq_id);
+                }
+                super.scx_bpf_dispatch(p, dsq_id, slice, enq_flags);
+            }
+        };
+        var result = new Simulator(1, scheduler).run(hogAndIO(), 300 * MS);
+        // the slice usage is unknown at first, afterward only the last slice counts
+        assertEquals(List.of(RR, PRIO, PRIO, PRIO, PRIO), dispatches);
+        // the priority queue is consumed first, so "io" waits at most for the slice of the hog
+        SimTask io = result.tasks().get(1);
+        assertTrue(io.totalWaitNs() <= 5 * 20 * MS);
+        // the hog never qualifies for the priority queue
+        assertEquals(4, scheduler.num_prio_enqueues);
+    }
+
+    @Test
+    public void testPrioSchedWeightedAvgUsesWeightedAverage() {
+        List<Long> dispatches = new ArrayList<>();
+        var scheduler = new PrioSchedWeightedAvg() {
+            @Override
+            protected void scx_bpf_dispatch(SimTask p, long dsq_id, long slice, long enq_flags) {
+                if (p.comm.equals("io")) {
+                    dispatches.add(dsq_id);
+                }
+                super.scx_bpf_dispatch(p, dsq_id, slice, enq_flags);
+            }
+        };
+        new Simulator(1, scheduler).run(hogAndIO(), 300 * MS);
+        // the average starts at a full slice and c = 0.99 lets it decay only slowly
+        assertEquals(List.of(RR, RR, RR, RR, RR), dispatches);
+
+        // avg_1 = (20ms * 990000 + 10000 * 10ms) / 1000000
+        var single = new PrioSchedWeightedAvg();
+        var result = new Simulator(1, single).run(new Workload(List.of(Workload.cpuBound(1, "a", 0, 10 * MS))),
+                100 * MS);
+        assertEquals(19_900_000L, (long) single.slice_usage.get(result.tasks().get(0)));
+    }
+
+    @Test
+    public void testPrioSchedWeightedAvgWithoutHistoryMatchesIOPrioSched() {
+        List<Long> dispatches = new ArrayList<>();
+        var scheduler = new PrioSchedWeightedAvg(20 * MS, 20 * MS, 5, 0, 1) {
+            @Override
+            protected void scx_bpf_dispatch(SimTask p, long dsq_id, long slice, long enq_flags) {
+                if (p.comm.equals("io")) {
+                    dispatches.add(dsq_id);
+                }
+                super.scx_bpf_dispatch(p, dsq_id, slice, enq_flags);
+            }
+        };
+        new Simulator(1, scheduler).run(hogAndIO(), 300 * MS);
+        assertEquals(List.of(RR, PRIO, PRIO, PRIO, PRIO), dispatches);
+    }
+
+    @Test
+    public void testPrioSchedWeightedAvgNoStarvationAlternatesQueues() {
+        List<Long> dispatches = new ArrayList<>();
+        // without history, so that "io" qualifies for the priority queue after every run
+        var scheduler = new PrioSchedWeightedAvgNoStarvation(20 * MS, 20 * MS, 5, 0, 1) {
+            @Override
+            protected void scx_bpf_dispatch(SimTask p, long dsq_id, long slice, long enq_flags) {
+                if (p.comm.equals("io")) {
+                    dispatches.add(dsq_id);
+                }
+                super.scx_bpf_dispatch(p, dsq_id, slice, enq_flags);
+            }
+        };
+        new Simulator(1, scheduler).run(hogAndIO(), 300 * MS);
+        // a task that was in the priority queue goes to the normal queue the next time
+        assertEquals(List.of(RR, PRIO, RR, PRIO, RR), dispatches);
+    }
+
+    @Test
+    public void testWorkStealingSchedulerPrefersSameLLC() {
+        List<Integer> selected = new ArrayList<>();
+        // two LLCs with two CPUs each
+        var scheduler = new WorkStealingScheduler(20 * MS, 2) {
+            @Override
+            public int selectCPU(SimTask p, int prev_cpu, long wake_flags) {
+                int cpu = super.selectCPU(p, prev_cpu, wake_flags);
+                if (p.comm.equals("wakee")) {
+                    selected.add(cpu);
+                }
+                return cpu;
+            }
+        };
+        // new tasks start on CPU (index % 4), so "busy" and "wakee" both start on CPU 2
+        List<TaskSpec> tasks = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            tasks.add(switch (i) {
+                case 2 -> Workload.cpuBound(i + 1, "busy", 0, 50 * MS);
+                case 6 -> Workload.cpuBound(i + 1, "wakee", MS, 10 * MS);
+                default -> Workload.cpuBound(i + 1, "filler-" + i, 100 * MS, MS);
+            });
+        }
+        new Simulator(4, scheduler).run(new Workload(tasks), 200 * MS);
+        // CPU 2 is busy, the idle CPU 3 shares the LLC, although CPU 0 is idle too
+        assertEquals(List.of(3), selected);
+        assertEquals(1, scheduler.idleLLC());
+    }
+
+    @Test
+    public void testUserspaceSchedulerBypassesIdleCpus() {
+        List<String> dispatches = new ArrayList<>();
+        var scheduler = new UserspaceScheduler(new VruntimePolicy(), 20 * MS, 1) {
+            @Override
+            protected void scx_bpf_dispatch(SimTask p, long dsq_id, long slice, long enq_flags) {
+                dispatches.add(p.comm + ":" + (dsq_id == SCX_DSQ_LOCAL ? "local" : dsq_id));
+                super.scx_bpf_dispatch(p, dsq_id, slice, enq_flags);
+            }
+        };
+        var workload = new Workload(List.of(
+                Workload.cpuBound(1, "a", 0, 10 * MS),
+                Workload.cpuBound(2, "b", MS, 10 * MS)));
+        var result = new Simulator(1, scheduler).run(workload, 100 * MS);
+        // "a" gets the idle CPU directly, "b" is dispatched by the decision of the policy
+        assertEquals(List.of("a:local", "b:" + UserspaceScheduler.SHARED_DSQ_ID), dispatches);
+        assertEquals(1, scheduler.bypassed());
+        assertEquals(1, scheduler.dispatched());
+        assertEquals(2, result.finishedTasks());
+    }
+}
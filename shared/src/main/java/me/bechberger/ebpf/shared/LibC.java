@@ -14,8 +14,7 @@ public class LibC {
     private final static HandlerWithErrno<Integer> OPEN_HANDLE = new HandlerWithErrno<>("open",
             FunctionDescriptor.of(JAVA_INT, PanamaUtil.POINTER, JAVA_INT));
 
-    private final static HandlerWithErrno<Void> CLOSE_HANDLE = new HandlerWithErrno<>("close",
-            FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+    private final static IntHandlerWithErrno CLOSE_HANDLE = new IntHandlerWithErrno("close");
 
     /**
      * Call the {@code open} syscall, to open a file, returns the file descriptor
@@ -27,10 +26,155 @@ public class LibC {
     }
 
     /**
-     * Call the {@code close} syscall, to close a file descriptor
+     * Call the {@code close} syscall, to close a file descriptor, the errno is {@code 0} on success
      */
     public static ResultAndErr<Void> close(int fd) {
-        return CLOSE_HANDLE.call(fd);
+        int result = CLOSE_HANDLE.call(fd);
+        return new ResultAndErr<>(null, result == 0 ? 0 : TypedHandlerWithErrno.lastErrno());
+    }
+
+    private final static IntIntHandlerWithErrno PIDFD_OPEN_HANDLE = new IntIntHandlerWithErrno("pidfd_open");
+
+    /**
+     * Call the {@code pidfd_open} syscall, to obtain a file descriptor that refers to the process,
+     * returns the file descriptor
+     */
+    public static ResultAndErr<Integer> pidfdOpen(int pid) {
+        return PIDFD_OPEN_HANDLE.callWithErrno(pid, 0);
+    }
+
+    private final static HandlerWithErrno<Integer> EPOLL_WAIT_HANDLE = new HandlerWithErrno<>("epoll_wait",
+            FunctionDescriptor.of(JAVA_INT, JAVA_INT, POINTER, JAVA_INT, JAVA_INT));
+
+    /** Upper bound of the size of {@code struct epoll_event}, which is packed to 12 bytes on x86-64 */
+    private static final long EPOLL_EVENT_SIZE = 16;
+
+    /**
+     * Call the {@code epoll_wait} syscall, to wait till at least one file descriptor of the epoll instance
+     * is ready or the timeout elapsed, returns the number of ready file descriptors (at most one)
+     *
+     * @param timeoutMillis timeout in milliseconds, {@code -1} to wait indefinitely
+     */
+    public static ResultAndErr<Integer> epollWait(int epfd, int timeoutMillis) {
+        try (Arena arena = Arena.ofConfined()) {
+            return EPOLL_WAIT_HANDLE.call(epfd, arena.allocate(EPOLL_EVENT_SIZE), 1, timeoutMillis);
+        }
+    }
+
+    public static final int EPOLL_CLOEXEC = 0x80000;
+    public static final int EPOLL_CTL_ADD = 1;
+    public static final int EPOLLIN = 0x001;
+    public static final int EFD_CLOEXEC = 0x80000;
+    public static final int EFD_NONBLOCK = 0x800;
+
+    private final static IntHandlerWithErrno EPOLL_CREATE1_HANDLE = new IntHandlerWithErrno("epoll_create1");
+
+    /**
+     * Call the {@code epoll_create1} syscall, to create a new epoll instance, returns its file descriptor
+     */
+    public static ResultAndErr<Integer> epollCreate1(int flags) {
+        return EPOLL_CREATE1_HANDLE.callWithErrno(flags);
+    }
+
+    private final static HandlerWithErrno<Integer> EPOLL_CTL_HANDLE = new HandlerWithErrno<>("epoll_ctl",
+            FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, POINTER));
+
+    /**
+     * Call the {@code epoll_ctl} syscall with {@link #EPOLL_CTL_ADD}, to add the file descriptor to the
+     * epoll instance, level-triggered with the passed events
+     */
+    public static ResultAndErr<Integer> epollAdd(int epfd, int fd, int events) {
+        try (Arena arena = Arena.ofConfined()) {
+            var event = arena.allocate(EPOLL_EVENT_SIZE);
+            event.set(JAVA_INT, 0, events);
+            return EPOLL_CTL_HANDLE.call(epfd, EPOLL_CTL_ADD, fd, event);
+        }
+    }
+
+    private final static IntIntHandlerWithErrno EVENTFD_HANDLE = new IntIntHandlerWithErrno("eventfd");
+
+    /**
+     * Call the {@code eventfd} syscall, to create a file descriptor for event notification,
+     * returns the file descriptor
+     */
+    public static ResultAndErr<Integer> eventfd(int initialValue, int flags) {
+        return EVENTFD_HANDLE.callWithErrno(initialValue, flags);
+    }
+
+    private final static HandlerWithErrno<Long> WRITE_HANDLE = new HandlerWithErrno<>("write",
+            FunctionDescriptor.of(JAVA_LONG, JAVA_INT, POINTER, JAVA_LONG));
+
+    /**
+     * Add the value to the counter of an eventfd, making it readable, returns the number of written bytes
+     */
+    public static ResultAndErr<Long> eventfdWrite(int fd, long value) {
+        try (Arena arena = Arena.ofConfined()) {
+            return WRITE_HANDLE.call(fd, arena.allocateFrom(JAVA_LONG, value), JAVA_LONG.byteSize());
+        }
+    }
+
+    private final static HandlerWithErrno<Long> READ_HANDLE = new HandlerWithErrno<>("read",
+            FunctionDescriptor.of(JAVA_LONG, JAVA_INT, POINTER, JAVA_LONG));
+
+    /**
+     * Read and reset the counter of an eventfd, returns the number of read bytes,
+     * fails with {@code EAGAIN} if the counter is zero and the eventfd is non-blocking
+     */
+    public static ResultAndErr<Long> eventfdRead(int fd) {
+        try (Arena arena = Arena.ofConfined()) {
+            return READ_HANDLE.call(fd, arena.allocate(JAVA_LONG), JAVA_LONG.byteSize());
+        }
+    }
+
+    public static final int PROT_READ = 0x1;
+    public static final int PROT_WRITE = 0x2;
+    public static final int MAP_SHARED = 0x01;
+
+    /** Value returned by {@code mmap} on failure */
+    public static final long MAP_FAILED = -1;
+
+    private static final int _SC_PAGESIZE = 30;
+
+    private final static HandlerWithErrno<MemorySegment> MMAP_HANDLE = new HandlerWithErrno<>("mmap",
+            FunctionDescriptor.of(POINTER, POINTER, JAVA_LONG, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_LONG));
+
+    private final static HandlerWithErrno<Integer> MUNMAP_HANDLE = new HandlerWithErrno<>("munmap",
+            FunctionDescriptor.of(JAVA_INT, POINTER, JAVA_LONG));
+
+    private final static HandlerWithErrno<Long> SYSCONF_HANDLE = new HandlerWithErrno<>("sysconf",
+            FunctionDescriptor.of(JAVA_LONG, JAVA_INT));
+
+    private static long pageSize = -1;
+
+    /**
+     * Call the {@code mmap} syscall, to map {@code length} bytes of the file descriptor into memory
+     * <p>
+     * The returned segment has the passed length, check the result against {@link #MAP_FAILED} first
+     */
+    public static ResultAndErr<MemorySegment> mmap(long length, int prot, int flags, int fd, long offset) {
+        var res = MMAP_HANDLE.call(MemorySegment.NULL, length, prot, flags, fd, offset);
+        if (res.result().address() == MAP_FAILED) {
+            return res;
+        }
+        return new ResultAndErr<>(res.result().reinterpret(length), res.err());
+    }
+
+    /**
+     * Call the {@code munmap} syscall, to unmap a segment obtained via {@link #mmap(long, int, int, int, long)}
+     */
+    public static ResultAndErr<Integer> munmap(MemorySegment segment) {
+        return MUNMAP_HANDLE.call(segment, segment.byteSize());
+    }
+
+    /**
+     * Size of a memory page, obtained via {@code sysconf(_SC_PAGESIZE)}
+     */
+    public static long pageSize() {
+        if (pageSize == -1) {
+            long size = SYSCONF_HANDLE.call(_SC_PAGESIZE).result();
+            pageSize = size > 0 ? size : 4096;
+        }
+        return pageSize;
     }
 
     private static final GroupLayout RLIMIT_LAYOUT = MemoryLayout.structLayout(
@@ -5,6 +5,7 @@ import org.jetbrains.annotations.Nullable;
 import java.lang.foreign.*;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.function.Supplier;
 
@@ -57,6 +58,11 @@ public class PanamaUtil {
      */
     public static final int ERRNO_PERM_ERROR = 1;
 
+    /**
+     * errno value for "Interrupted system call"
+     */
+    public static final int ERRNO_EINTR = 4;
+
     /**
      * errno value for "Resource temporarily unavailable"
      */
@@ -67,6 +73,21 @@ public class PanamaUtil {
      */
     public static final int ERRNO_EINVAL = 22;
 
+    /**
+     * errno value for "No space left on device"
+     */
+    public static final int ERRNO_ENOSPC = 28;
+
+    /**
+     * errno value for "Operation not supported"
+     */
+    public static final int ERRNO_EOPNOTSUPP = 95;
+
+    /**
+     * Kernel internal errno value for "Operation is not supported", returned by some bpf syscalls
+     */
+    public static final int ERRNO_ENOTSUPP = 524;
+
     /**
      * Allocate a string or NULL in the given arena
      */
@@ -85,9 +106,69 @@ public class PanamaUtil {
         }
     }
 
+    /** Layout of the call state captured by the downcalls, contains the errno */
+    private static final StructLayout CAPTURE_STATE_LAYOUT = Linker.Option.captureStateLayout();
+
+    private static final VarHandle ERRNO_HANDLE =
+            CAPTURE_STATE_LAYOUT.varHandle(MemoryLayout.PathElement.groupElement("errno"));
+
+    /**
+     * Capture state segments of a thread, one per nesting level of the downcalls
+     * <p>
+     * A downcall can call back into Java (e.g. {@code ring_buffer__poll}), which can do downcalls itself.
+     * These nested calls use the segment of the next level, so they never overwrite the errno of
+     * the outer call, without allocating a segment per call.
+     */
+    private static final class CaptureStates {
+        private MemorySegment[] states = new MemorySegment[4];
+        private int depth = 0;
+
+        private MemorySegment at(int level) {
+            if (level == states.length) {
+                states = Arrays.copyOf(states, states.length * 2);
+            }
+            if (states[level] == null) {
+                states[level] = Arena.ofAuto().allocate(CAPTURE_STATE_LAYOUT);
+            }
+            return states[level];
+        }
+
+        /** Segment for a call on the current level, has to be followed by {@link #exit()} */
+        MemorySegment enter() {
+            return at(depth++);
+        }
+
+        void exit() {
+            depth--;
+        }
+
+        /** Segment of the last finished call on the current level */
+        MemorySegment last() {
+            return at(depth);
+        }
+    }
+
+    private static final ThreadLocal<CaptureStates> CAPTURE_STATES = ThreadLocal.withInitial(CaptureStates::new);
+
+    private static CaptureStates captureStates() {
+        return CAPTURE_STATES.get();
+    }
+
+    private static int readErrno(MemorySegment captureState) {
+        return (int) ERRNO_HANDLE.get(captureState, 0L);
+    }
+
+    private static MethodHandle downcallHandleWithErrno(String symbol, FunctionDescriptor descriptor) {
+        return Linker.nativeLinker().downcallHandle(PanamaUtil.lookup(symbol), descriptor,
+                Linker.Option.captureCallState("errno"));
+    }
+
     /**
      * Wraps a method handle and captures the errno value,
      * but only lookup the handle when it is actually used
+     * <p>
+     * Consider using one of the typed handlers (like {@link IntHandlerWithErrno}) for functions
+     * that are called frequently, they don't box the arguments
      */
     public static class HandlerWithErrno<R> {
 
@@ -95,9 +176,7 @@ public class PanamaUtil {
         private final Supplier<MethodHandle> handleSupplier;
 
         public HandlerWithErrno(String symbol, FunctionDescriptor descriptor) {
-            handleSupplier = () -> Linker.nativeLinker()
-                    .downcallHandle(PanamaUtil.lookup(symbol), descriptor,
-                            Linker.Option.captureCallState("errno"));
+            handleSupplier = () -> downcallHandleWithErrno(symbol, descriptor);
         }
 
         private MethodHandle getHandle() {
@@ -108,33 +187,178 @@ public class PanamaUtil {
         }
 
         @SuppressWarnings("unchecked")
-        public ResultAndErr<R> call(Arena arena, Object... args) {
-            StructLayout capturedStateLayout = Linker.Option.captureStateLayout();
-            VarHandle errnoHandle =
-                    capturedStateLayout.varHandle(
-                            MemoryLayout.PathElement.groupElement("errno"));
-            MemorySegment capturedState = arena.allocate(capturedStateLayout);
+        public ResultAndErr<R> call(Object... args) {
+            CaptureStates states = captureStates();
+            MemorySegment capturedState = states.enter();
             try {
                 Object[] argsWithState = new Object[args.length + 1];
                 argsWithState[0] = capturedState;
                 System.arraycopy(args, 0, argsWithState, 1, args.length);
                 var result = (R) getHandle().invokeWithArguments(argsWithState);
-                int errno;
-                try {
-                    errno = (int) errnoHandle.get(capturedState);
-                } catch (Throwable throwable) {
-                    errno = capturedState.get(JAVA_INT, 0);
-                }
-                return new ResultAndErr<>(result, errno);
+                return new ResultAndErr<>(result, readErrno(capturedState));
             } catch (Throwable throwable) {
                 throw new RuntimeException(throwable);
+            } finally {
+                states.exit();
             }
         }
 
-        public ResultAndErr<R> call(Object... args) {
-            try (Arena arena = Arena.ofConfined()) {
-                return call(arena, args);
+        /**
+         * @deprecated the errno is captured without allocating in the arena, use {@link #call(Object...)}
+         */
+        @Deprecated
+        public ResultAndErr<R> call(Arena arena, Object... args) {
+            return call(args);
+        }
+    }
+
+    /**
+     * Base of the handlers that call the downcall handle via {@code invokeExact}
+     * for a fixed signature, avoiding the boxing and the argument array of {@link HandlerWithErrno}
+     * <p>
+     * The handle is looked up lazily, the errno of the last call on the current thread
+     * is available via {@link #lastErrno()}
+     */
+    public static abstract class TypedHandlerWithErrno {
+
+        private final String symbol;
+        private final FunctionDescriptor descriptor;
+        private MethodHandle handle = null;
+
+        TypedHandlerWithErrno(String symbol, FunctionDescriptor descriptor) {
+            this.symbol = symbol;
+            this.descriptor = descriptor;
+        }
+
+        final MethodHandle handle() {
+            var h = handle;
+            if (h == null) {
+                h = downcallHandleWithErrno(symbol, descriptor);
+                handle = h;
             }
+            return h;
+        }
+
+        static CaptureStates states() {
+            return captureStates();
+        }
+
+        static RuntimeException wrap(Throwable throwable) {
+            if (throwable instanceof RuntimeException e) {
+                return e;
+            }
+            if (throwable instanceof Error e) {
+                throw e;
+            }
+            return new RuntimeException(throwable);
+        }
+
+        /**
+         * Errno captured by the last call of a typed handler on the current thread,
+         * calls nested in it (from upcalls) don't change it
+         */
+        public static int lastErrno() {
+            return readErrno(captureStates().last());
+        }
+    }
+
+    /**
+     * Handler for {@code int f(int)}
+     */
+    public static final class IntHandlerWithErrno extends TypedHandlerWithErrno {
+        public IntHandlerWithErrno(String symbol) {
+            super(symbol, FunctionDescriptor.of(JAVA_INT, JAVA_INT));
+        }
+
+        public int call(int a) {
+            CaptureStates states = states();
+            try {
+                return (int) handle().invokeExact(states.enter(), a);
+            } catch (Throwable t) {
+                throw wrap(t);
+            } finally {
+                states.exit();
+            }
+        }
+
+        public ResultAndErr<Integer> callWithErrno(int a) {
+            int result = call(a);
+            return new ResultAndErr<>(result, lastErrno());
+        }
+    }
+
+    /**
+     * Handler for {@code int f(int, int)}
+     */
+    public static final class IntIntHandlerWithErrno extends TypedHandlerWithErrno {
+        public IntIntHandlerWithErrno(String symbol) {
+            super(symbol, FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT));
+        }
+
+        public int call(int a, int b) {
+            CaptureStates states = states();
+            try {
+                return (int) handle().invokeExact(states.enter(), a, b);
+            } catch (Throwable t) {
+                throw wrap(t);
+            } finally {
+                states.exit();
+            }
+        }
+
+        public ResultAndErr<Integer> callWithErrno(int a, int b) {
+            int result = call(a, b);
+            return new ResultAndErr<>(result, lastErrno());
+        }
+    }
+
+    /**
+     * Handler for {@code int f(void*)}
+     */
+    public static final class PointerHandlerWithErrno extends TypedHandlerWithErrno {
+        public PointerHandlerWithErrno(String symbol) {
+            super(symbol, FunctionDescriptor.of(JAVA_INT, POINTER));
+        }
+
+        public int call(MemorySegment a) {
+            CaptureStates states = states();
+            try {
+                return (int) handle().invokeExact(states.enter(), a);
+            } catch (Throwable t) {
+                throw wrap(t);
+            } finally {
+                states.exit();
+            }
+        }
+
+        public ResultAndErr<Integer> callWithErrno(MemorySegment a) {
+            int result = call(a);
+            return new ResultAndErr<>(result, lastErrno());
+        }
+    }
+
+    /**
+     * Handler for {@code int f(void*, int)}
+     */
+    public static final class PointerIntHandlerWithErrno extends TypedHandlerWithErrno {
+        public PointerIntHandlerWithErrno(String symbol) {
+            super(symbol, FunctionDescriptor.of(JAVA_INT, POINTER, JAVA_INT));
+        }
+
+        public int call(MemorySegment a, int b) {
+            CaptureStates states = states();
+            try {
+                return (int) handle().invokeExact(states.enter(), a, b);
+            } catch (Throwable t) {
+                throw wrap(t);
+            } finally {
+                states.exit();
+            }
+        }
+
+        public ResultAndErr<Integer> callWithErrno(MemorySegment a, int b) {
+            int result = call(a, b);
+            return new ResultAndErr<>(result, lastErrno());
         }
     }
 